@@ -1,32 +1,45 @@
 package org.telegram.abilitybots.api.bot;
 
-import org.apache.commons.io.IOUtils;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.telegram.abilitybots.api.db.BackupFormat;
 import org.telegram.abilitybots.api.db.DBContext;
 import org.telegram.abilitybots.api.objects.*;
+import org.telegram.abilitybots.api.sender.CachingMessageSender;
+import org.telegram.abilitybots.api.sender.CircuitBreaker;
+import org.telegram.abilitybots.api.sender.CircuitBreakingMessageSender;
 import org.telegram.abilitybots.api.sender.DefaultMessageSender;
+import org.telegram.abilitybots.api.sender.MeteredMessageSender;
 import org.telegram.abilitybots.api.sender.MessageSender;
+import org.telegram.abilitybots.api.sender.RetryPolicy;
+import org.telegram.abilitybots.api.sender.RetryingMessageSender;
 import org.telegram.abilitybots.api.util.AbilityUtils;
+import org.telegram.abilitybots.api.util.Metrics;
 import org.telegram.abilitybots.api.util.Pair;
 import org.telegram.abilitybots.api.util.Trio;
+import org.telegram.telegrambots.TelegramBotsApi;
 import org.telegram.telegrambots.api.methods.GetFile;
-import org.telegram.telegrambots.api.methods.send.SendDocument;
 import org.telegram.telegrambots.api.objects.Message;
 import org.telegram.telegrambots.api.objects.Update;
 import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
 import org.telegram.telegrambots.logging.BotLogger;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.PrintStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
@@ -49,6 +62,7 @@ import static org.telegram.abilitybots.api.objects.Locality.*;
 import static org.telegram.abilitybots.api.objects.MessageContext.newContext;
 import static org.telegram.abilitybots.api.objects.Privacy.*;
 import static org.telegram.abilitybots.api.util.AbilityUtils.*;
+import static org.telegram.abilitybots.api.util.Streams.gunzipIfCompressed;
 
 /**
  * The <b>father</b> of all ability bots. Bots that need to utilize abilities need to extend this bot.
@@ -66,7 +80,7 @@ import static org.telegram.abilitybots.api.util.AbilityUtils.*;
  * <ul>
  * <li>The same format acceptable by BotFather</li>
  * </ul>
- * <li>/backup - returns a backup of the bot database</li>
+ * <li>/backup [json|binary] - returns a backup of the bot database, in JSON by default</li>
  * <li>/recover - recovers the database</li>
  * <li>/promote <code>@username</code> - promotes user to bot admin</li>
  * <li>/demote <code>@username</code> - demotes bot admin to user</li>
@@ -105,9 +119,33 @@ public abstract class AbilityBot extends TelegramLongPollingBot {
   protected static final String RECOVERY_MESSAGE = "I am ready to receive the backup file. Please reply to this message with the backup file attached.";
   protected static final String RECOVER_SUCCESS = "I have successfully recovered.";
 
+  // Files
+  protected static final String BACKUP_FILE = "backup.%s";
+
+  // Broadcast limits, Telegram allows around 30 messages per second across all chats
+  private static final int BROADCAST_PARALLELISM = 8;
+  private static final double BROADCAST_RATE = 25;
+  // Time broadcasts hold back their sends once the circuit breaker rejected one, and between their retries
+  private static final long BROADCAST_PAUSE = 5000;
+
+  // Asynchronous calls held while the circuit breaker is open
+  private static final int BREAKER_QUEUE_CAPACITY = 1000;
+
+  // Minimum time between two edits of the same progress message
+  private static final long PROGRESS_INTERVAL = 1000;
+
+  // Backups are uploaded while they are written
+  private static final int BACKUP_PIPE_SIZE = 64 * 1024;
+  private static final ThreadFactory BACKUP_THREADS = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("db-backup-%d").build();
+
   // DB and sender
   protected final DBContext db;
   protected MessageSender sender;
+  // The sender that talks to the Bot API, it owns the connections
+  private final DefaultMessageSender apiSender;
+
+  // Metrics of the sender, the DB and the progress messages
+  private final Metrics metrics;
 
   // Bot token and username
   private final String botToken;
@@ -119,13 +157,28 @@ public abstract class AbilityBot extends TelegramLongPollingBot {
   // Reply registry
   private List<Reply> replies;
 
+  // Broadcast jobs
+  private final Broadcaster broadcaster;
+
+  // Throttled progress messages
+  private final ProgressEditor progressEditor;
+
   protected AbilityBot(String botToken, String botUsername, DBContext db, DefaultBotOptions botOptions) {
     super(botOptions);
 
     this.botToken = botToken;
     this.botUsername = botUsername;
     this.db = db;
-    this.sender = new DefaultMessageSender(this);
+    // Bots of the same JVM keep their numbers apart in the global registry
+    this.metrics = isNullOrEmpty(botUsername) ? Metrics.global() : Metrics.global().scoped(botUsername);
+    // Retries sit on top, so that every attempt is metered and seen by the circuit breaker on its own
+    this.apiSender = new DefaultMessageSender(this, RetryPolicy.noRetries(), metrics);
+    MessageSender attempts = new CircuitBreakingMessageSender(new MeteredMessageSender(apiSender, metrics),
+        CircuitBreaker.builder().metrics(metrics).build(), BREAKER_QUEUE_CAPACITY, metrics);
+    this.sender = new CachingMessageSender(new RetryingMessageSender(attempts, RetryPolicy.defaultPolicy(), metrics), db);
+    this.broadcaster = new Broadcaster(this, BROADCAST_PARALLELISM, BROADCAST_RATE, BROADCAST_PAUSE);
+    // Progress edits make single attempts, the editor reschedules them after a retry_after rather than blocking its thread
+    this.progressEditor = new ProgressEditor(() -> attempts, PROGRESS_INTERVAL, metrics);
 
     registerAbilities();
   }
@@ -144,32 +197,85 @@ public abstract class AbilityBot extends TelegramLongPollingBot {
 
   public abstract int creatorId();
 
+  /**
+   * Called once the bot is registered, after it was fully constructed. Resumes the broadcasts that were pending when the bot last stopped.
+   * <p>
+   * Registering the bot with {@link TelegramBotsApi} clears its webhook first, which calls this method. Bots that are started otherwise
+   * should call it themselves. Calling it again does not restart the broadcasts that are still running.
+   */
+  public void onRegister() {
+    broadcaster.resumeAll();
+  }
+
+  @Override
+  public void clearWebhook() throws TelegramApiRequestException {
+    super.clearWebhook();
+    onRegister();
+  }
+
   /**
    * @return the map of ID -> EndUser
    */
   protected Map<Integer, EndUser> users() {
-    return db.getMap(USERS);
+    return db.getMap(USERS, Integer.class, EndUser.class);
   }
 
   /**
    * @return the map of Username -> ID
    */
   protected Map<String, Integer> userIds() {
-    return db.getMap(USER_ID);
+    return db.getMap(USER_ID, String.class, Integer.class);
   }
 
   /**
    * @return a blacklist containing all the IDs of the banned users
    */
   protected Set<Integer> blacklist() {
-    return db.getSet(BLACKLIST);
+    return db.getSet(BLACKLIST, Integer.class);
   }
 
   /**
    * @return an admin set of all the IDs of bot administrators
    */
   protected Set<Integer> admins() {
-    return db.getSet(ADMINS);
+    return db.getSet(ADMINS, Integer.class);
+  }
+
+  /**
+   * The registry of the metrics of the bot, such as the calls, errors and latencies of the Telegram API methods. They can be read with
+   * {@link Metrics#snapshot()}, or exported as text with {@link Metrics#summary()}.
+   * <p>
+   * It is the view of {@link Metrics#global()} scoped by the username of the bot. A {@link DBContext} created with
+   * <code>Metrics.global().scoped(botUsername)</code> reports its numbers here as well.
+   * <p>
+   * Usage: <code>sender.send(metrics().summary(), ctx.chatId())</code>
+   *
+   * @return the metrics of this bot
+   */
+  protected Metrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * The broadcaster sends a message to all the users of the bot. Pending broadcasts are resumed once the bot is registered.
+   * <p>
+   * Usage: <code>broadcaster().start("announcement", "Hello everyone!")</code>
+   *
+   * @return the broadcaster of this bot
+   */
+  protected Broadcaster broadcaster() {
+    return broadcaster;
+  }
+
+  /**
+   * The progress editor edits a message in place to report the progress of a long-running ability, at most once per second per message.
+   * <p>
+   * Usage: <code>progressEditor().update(chatId, messageId, "50%")</code>
+   *
+   * @return the progress editor of this bot
+   */
+  protected ProgressEditor progressEditor() {
+    return progressEditor;
   }
 
   /**
@@ -204,6 +310,17 @@ public abstract class AbilityBot extends TelegramLongPollingBot {
     BotLogger.info(format("Processing of update [%s] ended at %s%n---> Processing time: [%d ms] <---%n", update.getUpdateId(), now(), processingTime), format("%s - %s", TAG, botUsername));
   }
 
+  @Override
+  public void onClosing() {
+    broadcaster.shutdown();
+    progressEditor.shutdown();
+    try {
+      apiSender.close();
+    } catch (IOException e) {
+      BotLogger.error("Could not close the connections of the sender", TAG, e);
+    }
+  }
+
   @Override
   public String getBotToken() {
     return botToken;
@@ -311,11 +428,14 @@ public abstract class AbilityBot extends TelegramLongPollingBot {
   }
 
   /**
-   * This backup ability returns the object defined by {@link DBContext#backup()} as a message document.
+   * This backup ability returns the backup defined by {@link DBContext#backup(OutputStream, BackupFormat)} as a message document.
+   * The format of the backup is the optional argument of the command, JSON by default. {@link AbilityBot#recoverDB()} accepts both formats.
+   * <p>
+   * The backup is uploaded while it is written, it is neither built in memory nor written to a temporary file.
    * <p>
    * This is a high-profile ability and is restricted to the CREATOR only.
    * <p>
-   * Usage: <code>/backup</code>
+   * Usage: <code>/backup</code> or <code>/backup binary</code>
    *
    * @return the ability to back-up the database of the bot
    */
@@ -326,17 +446,15 @@ public abstract class AbilityBot extends TelegramLongPollingBot {
         .privacy(CREATOR)
         .input(0)
         .action(ctx -> {
-          File backup = new File("backup.json");
-
-          try (PrintStream printStream = new PrintStream(backup)) {
-            printStream.print(db.backup());
-            sender.sendDocument(new SendDocument()
-                .setNewDocument(backup)
-                .setChatId(ctx.chatId())
-            );
-          } catch (FileNotFoundException e) {
-            BotLogger.error("Error while fetching backup", TAG, e);
-          } catch (TelegramApiException e) {
+          BackupFormat backupFormat = formatOf(ctx.arguments());
+          if (backupFormat == null) {
+            sender.send("Unknown backup format, use json or binary.", ctx.chatId());
+            return;
+          }
+
+          try (InputStream backup = backupStream(backupFormat)) {
+            sender.sendDocument(ctx.chatId(), format(BACKUP_FILE, backupFormat.extension()), backup, false);
+          } catch (IOException | TelegramApiException e) {
             BotLogger.error("Error while sending document/backup file", TAG, e);
           }
         })
@@ -347,6 +465,8 @@ public abstract class AbilityBot extends TelegramLongPollingBot {
    * Recovers the bot database using {@link DBContext#recover(Object)}.
    * <p>
    * The bot recovery process hugely depends on the implementation of the recovery method of {@link DBContext}.
+   * With a {@link org.telegram.abilitybots.api.db.ChangeLogDBContext}, the base backup is recovered first and its incremental backups
+   * are then applied in order, each with its own <code>/recover</code>.
    * <p>
    * Usage: <code>/recover</code>
    *
@@ -363,9 +483,8 @@ public abstract class AbilityBot extends TelegramLongPollingBot {
           Long chatId = update.getMessage().getChatId();
           String fileId = update.getMessage().getDocument().getFileId();
 
-          try (FileReader reader = new FileReader(downloadFileWithId(fileId))) {
-            String backupData = IOUtils.toString(reader);
-            if (db.recover(backupData)) {
+          try (InputStream backup = downloadFileWithId(fileId)) {
+            if (db.recover(gunzipIfCompressed(backup))) {
               sender.send(RECOVER_SUCCESS, chatId);
             } else {
               sender.send("Oops, something went wrong during recovery.", chatId);
@@ -685,33 +804,91 @@ public abstract class AbilityBot extends TelegramLongPollingBot {
   Update addUser(Update update) {
     EndUser endUser = fromUser(AbilityUtils.getUser(update));
 
-    users().compute(endUser.id(), (id, user) -> {
-      if (user == null) {
-        updateUserId(user, endUser);
-        return endUser;
+    // The user and its username mapping are updated together, they are never persisted one without the other
+    return db.inTransaction(tx -> {
+      Map<String, Integer> userIds = tx.getMap(USER_ID, String.class, Integer.class);
+      tx.getMap(USERS, Integer.class, EndUser.class).compute(endUser.id(), (id, user) -> {
+        if (user == null) {
+          updateUserId(userIds, user, endUser);
+          return endUser;
+        }
+
+        if (!user.equals(endUser)) {
+          updateUserId(userIds, user, endUser);
+          return endUser;
+        }
+
+        return user;
+      });
+      return update;
+    });
+  }
+
+  private static BackupFormat formatOf(String[] arguments) {
+    if (arguments.length == 0)
+      return BackupFormat.JSON;
+
+    return stream(BackupFormat.values())
+        .filter(backupFormat -> backupFormat.name().equalsIgnoreCase(arguments[0]))
+        .findFirst()
+        .orElse(null);
+  }
+
+  /**
+   * Streams a backup of the DB while a separate thread writes it, so that the backup is neither held in memory nor written to disk.
+   * The stream fails instead of ending if the backup could not be written, so that a partial backup is never uploaded.
+   */
+  private InputStream backupStream(BackupFormat backupFormat) throws IOException {
+    PipedInputStream in = new PipedInputStream(BACKUP_PIPE_SIZE);
+    PipedOutputStream out = new PipedOutputStream(in);
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    BACKUP_THREADS.newThread(() -> {
+      try {
+        db.backup(out, backupFormat);
+      } catch (IOException | RuntimeException e) {
+        // Also happens once the upload stops reading, the upload reports its own failure then
+        failure.set(e);
+      } finally {
+        closeQuietly(out);
       }
+    }).start();
 
-      if (!user.equals(endUser)) {
-        updateUserId(user, endUser);
-        return endUser;
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        return checked(super.read());
       }
 
-      return user;
-    });
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return checked(super.read(b, off, len));
+      }
 
-    db.commit();
-    return update;
+      private int checked(int read) throws IOException {
+        if (read == -1 && failure.get() != null)
+          throw new IOException("Could not write the backup of the DB", failure.get());
+        return read;
+      }
+    };
+  }
+
+  private static void closeQuietly(OutputStream out) {
+    try {
+      out.close();
+    } catch (IOException e) {
+      BotLogger.error("Could not close the backup stream", TAG, e);
+    }
   }
 
-  private void updateUserId(EndUser oldUser, EndUser newUser) {
+  private void updateUserId(Map<String, Integer> userIds, EndUser oldUser, EndUser newUser) {
     if (oldUser != null && oldUser.username() != null) {
       // Remove old username -> ID
-      userIds().remove(oldUser.username());
+      userIds.remove(oldUser.username());
     }
 
     if (newUser.username() != null) {
       // Add new mapping with the new username
-      userIds().put(newUser.username().toLowerCase(), newUser.id());
+      userIds.put(newUser.username().toLowerCase(), newUser.id());
     }
   }
 
@@ -733,7 +910,7 @@ public abstract class AbilityBot extends TelegramLongPollingBot {
         .reduce(true, (flag, nextFlag) -> flag && nextFlag.test(update), Boolean::logicalAnd);
   }
 
-  private File downloadFileWithId(String fileId) throws TelegramApiException {
-    return sender.downloadFile(sender.getFile(new GetFile().setFileId(fileId)));
+  private InputStream downloadFileWithId(String fileId) throws TelegramApiException {
+    return sender.downloadFileAsStream(sender.getFile(new GetFile().setFileId(fileId)));
   }
 }
\ No newline at end of file
@@ -0,0 +1,314 @@
+package org.telegram.abilitybots.api.bot;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.telegram.abilitybots.api.db.DBContext;
+import org.telegram.abilitybots.api.sender.CircuitOpenException;
+import org.telegram.telegrambots.api.methods.send.SendMessage;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Strings.nullToEmpty;
+import static com.google.common.collect.Maps.newHashMap;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.regex.Pattern.CASE_INSENSITIVE;
+import static org.apache.commons.lang3.StringUtils.isEmpty;
+import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
+
+/**
+ * A broadcaster fans out a message to every user in the {@link AbilityBot#USERS} map of an {@link AbilityBot}.
+ * <p>
+ * User IDs are streamed from the map rather than copied, and sends are dispatched on a small pool of threads while a rate limiter keeps the
+ * broadcast within Telegram's global limit. Every broadcast is a named job:
+ * <ul>
+ * <li>The job is stored in the {@link Broadcaster#BROADCASTS} map (name -> message) until it finishes</li>
+ * <li>Users that received the message, or that never can because they blocked the bot or their chat is gone, are checkpointed in a set
+ * named <code>BROADCASTS_[name]</code></li>
+ * <li>Checkpoints are committed every {@link Broadcaster#CHECKPOINT_INTERVAL} users, a restarted bot resumes the job where it stopped</li>
+ * <li>Sends are held back for a pause whenever the circuit breaker of the sender rejects one, the users it rejected are left for the next
+ * pass</li>
+ * <li>Users left by failures are retried in up to {@link Broadcaster#MAX_PASSES} passes, a pause apart. The job then stays pending until
+ * it is resumed</li>
+ * <li>The set of checkpoints is dropped once every user was processed</li>
+ * </ul>
+ * The creator of the bot is notified of the progress of every job.
+ */
+public final class Broadcaster {
+  private static final String TAG = Broadcaster.class.getSimpleName();
+
+  public static final String BROADCASTS = "BROADCASTS";
+
+  static final int CHECKPOINT_INTERVAL = 100;
+  // Passes over the users that were left by failed sends before the job stops until it is resumed
+  static final int MAX_PASSES = 3;
+  private static final int PROGRESS_REPORTS = 4;
+  private static final int BAD_REQUEST = 400;
+  private static final int FORBIDDEN = 403;
+  private static final Pattern CHAT_NOT_FOUND = Pattern.compile("chat not found", CASE_INSENSITIVE);
+
+  private final AbilityBot bot;
+  private final RateLimiter rateLimiter;
+  private final int parallelism;
+  private final long pause;
+  private final ExecutorService jobs;
+  private final ExecutorService senders;
+  private final Map<String, CompletableFuture<Integer>> running;
+
+  /**
+   * @param bot               the bot whose users receive the broadcasts
+   * @param parallelism       the maximum number of concurrent sends
+   * @param messagesPerSecond the overall rate of sends, Telegram allows around 30 messages per second
+   * @param pause             the time in milliseconds sends are held back once the circuit breaker of the sender rejected one, and
+   *                          between two passes
+   */
+  Broadcaster(AbilityBot bot, int parallelism, double messagesPerSecond, long pause) {
+    checkArgument(parallelism > 0, "Parallelism must be positive");
+    this.bot = bot;
+    this.parallelism = parallelism;
+    this.pause = pause;
+    this.rateLimiter = RateLimiter.create(messagesPerSecond);
+    this.jobs = Executors.newCachedThreadPool(daemonThreads("broadcast-%d"));
+    this.senders = Executors.newFixedThreadPool(parallelism, daemonThreads("broadcast-sender-%d"));
+    this.running = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Starts broadcasting the message to all the users.
+   *
+   * @param name    the unique name of the job
+   * @param message the message to send
+   * @return a future of the number of users that successfully received the message during this run of the job
+   * @throws IllegalStateException if a job with the same name is still pending
+   */
+  public CompletableFuture<Integer> start(String name, String message) {
+    checkArgument(!isEmpty(name), "Broadcast name cannot be empty");
+    checkArgument(!isEmpty(message), "Broadcast message cannot be empty");
+
+    Map<String, String> pending = pending();
+    if (pending.putIfAbsent(name, message) != null)
+      throw new IllegalStateException(format("Broadcast with name [%s] is already pending", name));
+    db().commit();
+
+    return launch(name, message);
+  }
+
+  /**
+   * Resumes all the jobs that were pending when the bot last stopped.
+   *
+   * @return the futures of the resumed jobs, by name
+   */
+  public Map<String, CompletableFuture<Integer>> resumeAll() {
+    Map<String, CompletableFuture<Integer>> resumed = newHashMap();
+    if (!db().contains(BROADCASTS))
+      return resumed;
+
+    pending().forEach((name, message) -> {
+      if (!running.containsKey(name)) {
+        BotLogger.info(TAG, format("Resuming broadcast [%s]", name));
+        resumed.put(name, launch(name, message));
+      }
+    });
+    return resumed;
+  }
+
+  void shutdown() {
+    jobs.shutdownNow();
+    senders.shutdownNow();
+  }
+
+  private CompletableFuture<Integer> launch(String name, String message) {
+    CompletableFuture<Integer> future = CompletableFuture.supplyAsync(() -> run(name, message), jobs);
+    running.put(name, future);
+    future.whenComplete((delivered, error) -> {
+      running.remove(name);
+      if (error != null)
+        BotLogger.error(format("Broadcast [%s] stopped unexpectedly, it will be resumed on next start", name), TAG, error);
+    });
+    return future;
+  }
+
+  private int run(String name, String message) {
+    Set<Integer> processed = db().getSet(checkpointName(name));
+    Map<Integer, ?> users = db().getMap(USERS);
+    int total = users.size();
+
+    AtomicInteger delivered = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    AtomicInteger done = new AtomicInteger(processed.size());
+    AtomicLong pausedUntil = new AtomicLong();
+    int reportEvery = Math.max(CHECKPOINT_INTERVAL, total / PROGRESS_REPORTS);
+
+    notifyCreator(format("Broadcast [%s] started, %d/%d users already reached.", name, done.get(), total));
+
+    int left;
+    try {
+      int passes = 0;
+      do {
+        if (passes > 0)
+          MILLISECONDS.sleep(pause);
+        left = pass(message, users, processed, pausedUntil, outcome -> {
+          if (outcome == Outcome.DELIVERED)
+            delivered.incrementAndGet();
+          else
+            failed.incrementAndGet();
+
+          int count = done.incrementAndGet();
+          if (count % CHECKPOINT_INTERVAL == 0)
+            db().commit();
+          if (count % reportEvery == 0)
+            notifyCreator(format("Broadcast [%s] progress: %d/%d users processed.", name, count, total));
+        });
+      } while (left > 0 && ++passes < MAX_PASSES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      db().commit();
+      throw new CompletionException(e);
+    }
+
+    if (left > 0) {
+      db().commit();
+      notifyCreator(format("Broadcast [%s] stopped: %d delivered, %d failed, %d users could not be reached for now. " +
+          "They are retried when the broadcast is resumed.", name, delivered.get(), failed.get(), left));
+      return delivered.get();
+    }
+
+    if (!db().drop(checkpointName(name)))
+      processed.clear();
+    pending().remove(name);
+    db().commit();
+
+    notifyCreator(format("Broadcast [%s] finished: %d delivered, %d failed.", name, delivered.get(), failed.get()));
+    return delivered.get();
+  }
+
+  /**
+   * Sends the message to the users that were not processed yet. Users are checkpointed once they received the message or once it could
+   * never reach them, the other failures leave them for the next pass. Sends are held back while the circuit breaker of the sender is open.
+   *
+   * @return the number of users that were left for the next pass
+   */
+  private int pass(String message, Map<Integer, ?> users, Set<Integer> processed, AtomicLong pausedUntil,
+                   Consumer<Outcome> onProcessed) throws InterruptedException {
+    Semaphore inFlight = new Semaphore(parallelism);
+    AtomicInteger left = new AtomicInteger();
+
+    for (Integer id : users.keySet()) {
+      if (processed.contains(id))
+        continue;
+
+      long paused = pausedUntil.get() - System.currentTimeMillis();
+      if (paused > 0)
+        MILLISECONDS.sleep(paused);
+
+      inFlight.acquire();
+      rateLimiter.acquire();
+      senders.execute(() -> {
+        try {
+          Outcome outcome = send(message, id);
+          if (outcome == Outcome.REJECTED)
+            pausedUntil.accumulateAndGet(System.currentTimeMillis() + pause, Math::max);
+
+          if (outcome.isFinal()) {
+            processed.add(id);
+            onProcessed.accept(outcome);
+          } else {
+            left.incrementAndGet();
+          }
+        } finally {
+          inFlight.release();
+        }
+      });
+    }
+
+    // Wait for the in-flight sends to finish
+    inFlight.acquire(parallelism);
+    inFlight.release(parallelism);
+    return left.get();
+  }
+
+  private Outcome send(String message, Integer id) {
+    try {
+      bot.sender.sendMessage(new SendMessage((long) id, message));
+      return Outcome.DELIVERED;
+    } catch (CircuitOpenException e) {
+      return Outcome.REJECTED;
+    } catch (TelegramApiException e) {
+      if (isUnreachable(e)) {
+        BotLogger.warn(TAG, format("User [%d] cannot receive the broadcast: %s", id, e.getMessage()));
+        return Outcome.UNREACHABLE;
+      }
+      BotLogger.warn(TAG, format("Could not send the broadcast to user [%d], retrying later: %s", id, e.getMessage()));
+      return Outcome.RETRIABLE;
+    } catch (RuntimeException e) {
+      BotLogger.error(format("Could not send the broadcast to user [%d], retrying later", id), TAG, e);
+      return Outcome.RETRIABLE;
+    }
+  }
+
+  /**
+   * @return <tt>true</tt> if the user blocked the bot or the chat no longer exists, the message would never reach the user
+   */
+  private static boolean isUnreachable(TelegramApiException e) {
+    if (!(e instanceof TelegramApiRequestException))
+      return false;
+
+    TelegramApiRequestException request = (TelegramApiRequestException) e;
+    return Objects.equals(request.getErrorCode(), FORBIDDEN)
+        || Objects.equals(request.getErrorCode(), BAD_REQUEST) && CHAT_NOT_FOUND.matcher(nullToEmpty(request.getApiResponse())).find();
+  }
+
+  private void notifyCreator(String message) {
+    BotLogger.info(TAG, message);
+    bot.sender.send(message, bot.creatorId());
+  }
+
+  private Map<String, String> pending() {
+    return db().getMap(BROADCASTS);
+  }
+
+  private DBContext db() {
+    return bot.db;
+  }
+
+  private static String checkpointName(String name) {
+    return format("%s_%s", BROADCASTS, name);
+  }
+
+  private static ThreadFactory daemonThreads(String nameFormat) {
+    return new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build();
+  }
+
+  /**
+   * The outcome of a send to a user. Users are only checkpointed after a final outcome.
+   */
+  private enum Outcome {
+    DELIVERED(true),
+    // The user blocked the bot or the chat no longer exists
+    UNREACHABLE(true),
+    // The circuit breaker of the sender is open
+    REJECTED(false),
+    RETRIABLE(false);
+
+    private final boolean isFinal;
+
+    Outcome(boolean isFinal) {
+      this.isFinal = isFinal;
+    }
+
+    boolean isFinal() {
+      return isFinal;
+    }
+  }
+}
@@ -0,0 +1,283 @@
+package org.telegram.abilitybots.api.bot;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.telegram.abilitybots.api.sender.MessageSender;
+import org.telegram.abilitybots.api.sender.RetryPolicy;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A progress editor reports the progress of long-running abilities by editing a message in place, without flooding the Telegram API.
+ * <p>
+ * Only the latest text of every message is kept. Pending texts are flushed at most once per interval for each message, and edits that would
+ * not change the text are skipped. Intermediate states that were superseded before their flush are never sent.
+ * <p>
+ * Usage:
+ * <pre>
+ * Message message = sender.send("Starting...", chatId).get();
+ * for (int i = 0; i &lt; 1000; i++)
+ *   progressEditor().update(chatId, message.getMessageId(), format("%d/1000", i));
+ * progressEditor().finish(chatId, message.getMessageId(), "Done!");
+ * </pre>
+ * Messages that are never finished stop being tracked once they have not been updated for the expiry time.
+ * <p>
+ * All messages are edited by a single thread, so the sender should make a single attempt. When Telegram answers with a <code>retry_after</code>,
+ * the edit is rescheduled after it instead of holding the thread, and only the latest text is sent by then.
+ * <p>
+ * The numbers of updates, edits, skipped edits, throttled edits and expired messages are exported to the {@link Metrics} as
+ * <code>progress.updates</code>, <code>progress.edits</code>, <code>progress.skipped</code>, <code>progress.throttled</code> and
+ * <code>progress.expired</code>.
+ */
+public final class ProgressEditor {
+  private static final String TAG = ProgressEditor.class.getSimpleName();
+
+  static final String UPDATES = "progress.updates";
+  static final String EDITS = "progress.edits";
+  static final String SKIPPED = "progress.skipped";
+  static final String THROTTLED = "progress.throttled";
+  static final String EXPIRED = "progress.expired";
+  private static final long DEFAULT_EXPIRY = MINUTES.toMillis(10);
+
+  private final Supplier<MessageSender> sender;
+  private final long interval;
+  private final long expiry;
+  private final Metrics metrics;
+  private final ScheduledExecutorService scheduler;
+  private final Ticker ticker;
+  private final Map<Key, Progress> messages;
+
+  /**
+   * @param sender    the supplier of the sender used to edit the messages, it should not wait out a <code>retry_after</code> itself
+   * @param interval  the minimum time in milliseconds between two edits of the same message
+   * @param expiry    the time in milliseconds after its last update before a message that was never finished stops being tracked
+   * @param scheduler the scheduler of the edits, shut down along with the editor
+   * @param ticker    the source of time
+   * @param metrics   the registry of the progress metrics
+   */
+  ProgressEditor(Supplier<MessageSender> sender, long interval, long expiry, ScheduledExecutorService scheduler, Ticker ticker, Metrics metrics) {
+    checkArgument(interval >= 0, "Interval cannot be negative");
+    checkArgument(expiry > 0, "Expiry must be positive");
+    this.sender = checkNotNull(sender, "Sender cannot be null");
+    this.interval = interval;
+    this.expiry = expiry;
+    this.scheduler = checkNotNull(scheduler, "Scheduler cannot be null");
+    this.ticker = checkNotNull(ticker, "Ticker cannot be null");
+    this.metrics = checkNotNull(metrics, "Metrics cannot be null");
+    this.messages = new ConcurrentHashMap<>();
+    scheduler.scheduleWithFixedDelay(this::expire, expiry, expiry, MILLISECONDS);
+  }
+
+  ProgressEditor(Supplier<MessageSender> sender, long interval, Metrics metrics) {
+    this(sender, interval, DEFAULT_EXPIRY, Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("progress-editor-%d").build()), Ticker.systemTicker(), metrics);
+  }
+
+  /**
+   * Sets the latest text of the message. The message is edited once its interval elapses, with whatever text is the latest by then.
+   *
+   * @param chatId    the chat of the message
+   * @param messageId the message to edit
+   * @param text      the new text of the message
+   */
+  public void update(long chatId, int messageId, String text) {
+    checkNotNull(text, "Progress text cannot be null");
+    metrics.increment(UPDATES);
+
+    long now = now();
+    Progress progress = messages.computeIfAbsent(new Key(chatId, messageId), key -> new Progress(key, now));
+    synchronized (progress) {
+      progress.pending = text;
+      progress.lastUpdate = now;
+      if (progress.scheduled)
+        return;
+
+      progress.scheduled = true;
+      scheduler.schedule(() -> flush(progress), Math.max(0, progress.nextEdit - now), MILLISECONDS);
+    }
+  }
+
+  /**
+   * Edits the message with its final text right away, dropping any pending update, and stops tracking the message.
+   * The final text is sent after an edit that is already in flight, so that it is never overwritten. If Telegram asks to wait before editing the
+   * message again, the final text is sent once the <code>retry_after</code> is over.
+   *
+   * @param chatId    the chat of the message
+   * @param messageId the message to edit
+   * @param text      the final text of the message
+   */
+  public void finish(long chatId, int messageId, String text) {
+    checkNotNull(text, "Progress text cannot be null");
+    metrics.increment(UPDATES);
+
+    Progress progress = messages.remove(new Key(chatId, messageId));
+    if (progress == null) {
+      edit(new Progress(new Key(chatId, messageId), now()), text, true);
+      return;
+    }
+
+    synchronized (progress) {
+      progress.pending = null;
+      progress.finished = true;
+    }
+    editFinal(progress, text);
+  }
+
+  /**
+   * @return the number of messages being tracked
+   */
+  int tracked() {
+    return messages.size();
+  }
+
+  void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private void flush(Progress progress) {
+    // Edits of a message are sent one at a time, a flush that comes after the message was finished is dropped
+    synchronized (progress.editing) {
+      String text;
+      synchronized (progress) {
+        text = progress.pending;
+        progress.pending = null;
+        progress.scheduled = false;
+        if (text == null || progress.finished)
+          return;
+      }
+      edit(progress, text, false);
+    }
+  }
+
+  private void editFinal(Progress progress, String text) {
+    synchronized (progress.editing) {
+      edit(progress, text, true);
+    }
+  }
+
+  private void expire() {
+    long expired = now() - expiry;
+    messages.forEach((key, progress) -> {
+      synchronized (progress) {
+        if (progress.scheduled || progress.lastUpdate > expired)
+          return;
+      }
+      if (messages.remove(key, progress))
+        metrics.increment(EXPIRED);
+    });
+  }
+
+  private void edit(Progress progress, String text, boolean last) {
+    synchronized (progress) {
+      if (text.equals(progress.sent)) {
+        metrics.increment(SKIPPED);
+        return;
+      }
+      progress.sent = text;
+      progress.nextEdit = now() + interval;
+    }
+
+    try {
+      metrics.increment(EDITS);
+      sender.get().editMessageText(new EditMessageText()
+          .setChatId(progress.key.chatId)
+          .setMessageId(progress.key.messageId)
+          .setText(text));
+    } catch (TelegramApiException e) {
+      BotLogger.warn(TAG, format("Could not edit progress of message [%d] in chat [%d]: %s", progress.key.messageId, progress.key.chatId, e.getMessage()));
+      long retryAfter = RetryPolicy.retryAfter(e);
+      synchronized (progress) {
+        // Let the next update send the text again
+        if (text.equals(progress.sent))
+          progress.sent = null;
+        if (retryAfter > 0)
+          retryAfter(progress, text, last, retryAfter);
+      }
+    }
+  }
+
+  /**
+   * Sends the text again once Telegram lets the message be edited, unless a newer text replaces it by then.
+   * Must be called while holding the lock of the progress.
+   */
+  private void retryAfter(Progress progress, String text, boolean last, long delay) {
+    metrics.increment(THROTTLED);
+    progress.nextEdit = Math.max(progress.nextEdit, now() + delay);
+    if (last) {
+      scheduler.schedule(() -> editFinal(progress, text), delay, MILLISECONDS);
+      return;
+    }
+
+    if (progress.finished)
+      return;
+    if (progress.pending == null)
+      progress.pending = text;
+    if (!progress.scheduled) {
+      progress.scheduled = true;
+      scheduler.schedule(() -> flush(progress), delay, MILLISECONDS);
+    }
+  }
+
+  private long now() {
+    return NANOSECONDS.toMillis(ticker.read());
+  }
+
+  private static final class Key {
+    private final long chatId;
+    private final int messageId;
+
+    private Key(long chatId, int messageId) {
+      this.chatId = chatId;
+      this.messageId = messageId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (o == null || getClass() != o.getClass())
+        return false;
+
+      Key key = (Key) o;
+      return chatId == key.chatId && messageId == key.messageId;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(chatId, messageId);
+    }
+  }
+
+  private static final class Progress {
+    private final Key key;
+    private final Object editing = new Object();
+    private String pending;
+    private String sent;
+    private long nextEdit;
+    private long lastUpdate;
+    private boolean scheduled;
+    private boolean finished;
+
+    private Progress(Key key, long now) {
+      this.key = key;
+      this.nextEdit = now;
+      this.lastUpdate = now;
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package org.telegram.abilitybots.api.db;
+
+import java.io.OutputStream;
+
+/**
+ * The formats of the backups written by {@link DBContext#backup(OutputStream, BackupFormat)}.
+ * <p>
+ * {@link DBContext#recover(java.io.InputStream)} recognizes the format of the backup it is given, a backup can be recovered whatever its format.
+ */
+public enum BackupFormat {
+  /**
+   * A human-readable JSON object mapping every structure name to the structure. Map keys are written as strings and are converted back
+   * to the declared key types of the maps on recovery.
+   */
+  JSON("json"),
+  /**
+   * A versioned binary format, compressed with Deflate at its fastest level. Elements are length-prefixed and tagged with their type,
+   * map keys keep their exact type.
+   */
+  BINARY("bin");
+
+  private final String extension;
+
+  BackupFormat(String extension) {
+    this.extension = extension;
+  }
+
+  /**
+   * @return the file extension of the backups of this format
+   */
+  public String extension() {
+    return extension;
+  }
+}
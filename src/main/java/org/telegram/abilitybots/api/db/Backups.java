@@ -0,0 +1,59 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Writes and reads the backups of the {@link DBContext} implementations in every {@link BackupFormat}.
+ */
+final class Backups {
+  private final JsonBackup json;
+  private final BinaryBackup binary;
+
+  Backups() {
+    json = new JsonBackup();
+    binary = new BinaryBackup();
+  }
+
+  /**
+   * @return the JSON backup of the structures
+   * @see JsonBackup#write(Iterable, Function)
+   */
+  String write(Iterable<String> names, Function<String, Object> structures) {
+    return json.write(names, structures);
+  }
+
+  /**
+   * Writes the backup of the structures straight to the stream in the given format. The stream is not closed.
+   */
+  void write(BackupFormat format, Iterable<String> names, Function<String, Object> structures, OutputStream out) throws IOException {
+    if (format == BackupFormat.BINARY)
+      binary.write(names, structures, out);
+    else
+      json.write(names, structures, out);
+  }
+
+  /**
+   * Reads a backup of any format into the target database. The format is recognized by the first bytes of the backup.
+   *
+   * @see JsonBackup#read(InputStream, DBContext, Function)
+   */
+  void read(InputStream backup, DBContext target, Function<String, String> declarations) throws IOException, ClassNotFoundException {
+    InputStream in = backup.markSupported() ? backup : new BufferedInputStream(backup);
+    byte[] magic = new byte[BinaryBackup.MAGIC.length];
+    in.mark(magic.length);
+    int read = ByteStreams.read(in, magic, 0, magic.length);
+    in.reset();
+
+    if (read == magic.length && Arrays.equals(magic, BinaryBackup.MAGIC))
+      binary.read(in, target);
+    else
+      json.read(in, target, declarations);
+  }
+}
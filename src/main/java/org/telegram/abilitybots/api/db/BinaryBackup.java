@@ -0,0 +1,333 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.collect.ImmutableSet;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.telegram.abilitybots.api.objects.EndUser;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The binary format of the backups of the {@link DBContext} implementations, see {@link BackupFormat#BINARY}.
+ * <p>
+ * A backup starts with the magic bytes <code>ABDB</code> and the version of the format, followed by the Deflate-compressed structures.
+ * A structure is its kind and name, followed by chunks of elements, each prefixed by the number of elements it holds. An empty chunk
+ * ends the structure and an end marker ends the backup.
+ * Every element is tagged with its type, users are written with {@link EndUserSerializer} and unknown types with Java serialization.
+ * <p>
+ * Elements written with Java serialization are only read back if they are made of boxed primitives, strings, the collections of
+ * <code>java.util</code> and <code>java.util.concurrent</code>, the changes of a {@link ChangeLogDBContext} and the classes of
+ * {@link org.telegram.abilitybots.api.objects}. Any other class is rejected before it is instantiated, since backups and replication
+ * streams may come from outside of the JVM.
+ */
+final class BinaryBackup {
+  static final byte[] MAGIC = {'A', 'B', 'D', 'B'};
+  private static final int VERSION = 1;
+  // The maximum number of elements of a chunk, it bounds the memory used to write and read a structure
+  private static final int BATCH = 1000;
+  private static final int BUFFER = 8192;
+
+  // Kinds of structures
+  private static final int END = 0;
+  private static final int SET = 1;
+  private static final int LIST = 2;
+  private static final int MAP = 3;
+
+  // Types of elements
+  private static final int NULL = 0;
+  private static final int STRING = 1;
+  private static final int INTEGER = 2;
+  private static final int LONG = 3;
+  private static final int BOOLEAN = 4;
+  private static final int DOUBLE = 5;
+  private static final int USER = 6;
+  private static final int JAVA = 7;
+
+  // Classes that elements written with Java serialization may be made of, besides the models and the arrays of the allowed classes
+  private static final Set<String> SERIALIZABLE = ImmutableSet.of(
+      "java.lang.Boolean", "java.lang.Byte", "java.lang.Character", "java.lang.Short", "java.lang.Integer", "java.lang.Long",
+      "java.lang.Float", "java.lang.Double", "java.lang.Number", "java.lang.String", "java.lang.Enum", "java.lang.Object",
+      "java.util.ArrayList", "java.util.LinkedList", "java.util.Arrays$ArrayList", "java.util.ArrayDeque",
+      "java.util.HashMap", "java.util.LinkedHashMap", "java.util.TreeMap", "java.util.HashSet", "java.util.LinkedHashSet", "java.util.TreeSet",
+      "java.util.concurrent.ConcurrentHashMap", "java.util.concurrent.ConcurrentHashMap$Segment",
+      // The segments of ConcurrentHashMap are locks
+      "java.util.concurrent.locks.ReentrantLock", "java.util.concurrent.locks.ReentrantLock$Sync",
+      "java.util.concurrent.locks.ReentrantLock$NonfairSync", "java.util.concurrent.locks.AbstractQueuedSynchronizer",
+      "java.util.concurrent.locks.AbstractOwnableSynchronizer",
+      // The changes kept in the log of a ChangeLogDBContext
+      Change.class.getName(), Change.Op.class.getName(),
+      "java.util.concurrent.ConcurrentSkipListMap", "java.util.concurrent.ConcurrentSkipListSet",
+      "java.util.concurrent.CopyOnWriteArrayList", "java.util.concurrent.CopyOnWriteArraySet");
+  // The empty, singleton and unmodifiable collections
+  private static final String COLLECTIONS = "java.util.Collections$";
+  private static final String MODELS = EndUser.class.getPackage().getName() + ".";
+
+  /**
+   * Writes the backup of the structures straight to the stream, one chunk at a time. The stream is not closed.
+   *
+   * @param names      the names of the structures to write
+   * @param structures the structure of each name
+   * @param out        the stream of the backup
+   */
+  void write(Iterable<String> names, Function<String, Object> structures, OutputStream out) throws IOException {
+    out.write(MAGIC);
+    out.write(VERSION);
+
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      DeflaterOutputStream deflated = new DeflaterOutputStream(new FilterOutputStream(out) {
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+          out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+          // The stream of the caller stays open
+          flush();
+        }
+      }, deflater, BUFFER);
+
+      try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(deflated, BUFFER))) {
+        for (String name : names)
+          writeStructure(data, name, structures.apply(name));
+        data.writeByte(END);
+      }
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Reads a backup into the target database, one chunk at a time.
+   * <p>
+   * The target is cleared once the header of the backup was read, it is not committed.
+   *
+   * @param backup the stream of the backup
+   * @param target the database to recover
+   */
+  void read(InputStream backup, DBContext target) throws IOException, ClassNotFoundException {
+    DataInputStream header = new DataInputStream(backup);
+    byte[] magic = new byte[MAGIC.length];
+    header.readFully(magic);
+    if (!Arrays.equals(magic, MAGIC))
+      throw new StreamCorruptedException("Malformed backup, the stream is not a binary backup");
+
+    int version = header.readUnsignedByte();
+    if (version != VERSION)
+      throw new StreamCorruptedException(format("Unsupported version of binary backup [%d]", version));
+
+    target.clear();
+    Inflater inflater = new Inflater();
+    try {
+      DataInputStream data = new DataInputStream(new BufferedInputStream(new InflaterInputStream(backup, inflater, BUFFER), BUFFER));
+      for (int kind = data.readUnsignedByte(); kind != END; kind = data.readUnsignedByte())
+        readStructure(data, kind, target);
+
+      // Reaching the end of the compressed stream verifies its checksum
+      if (data.read() != -1)
+        throw new StreamCorruptedException("Malformed backup, unexpected data after the last structure");
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private void writeStructure(DataOutputStream out, String name, Object struct) throws IOException {
+    Iterable<?> elements;
+    if (struct instanceof Set) {
+      out.writeByte(SET);
+      elements = (Set<?>) struct;
+    } else if (struct instanceof List) {
+      out.writeByte(LIST);
+      elements = (List<?>) struct;
+    } else if (struct instanceof Map) {
+      out.writeByte(MAP);
+      elements = ((Map<?, ?>) struct).entrySet();
+    } else {
+      return;
+    }
+    writeString(out, name);
+
+    List<Object> chunk = new ArrayList<>(BATCH);
+    for (Object element : elements) {
+      chunk.add(element);
+      if (chunk.size() == BATCH)
+        writeChunk(out, chunk);
+    }
+    writeChunk(out, chunk);
+    out.writeInt(0);
+  }
+
+  private void writeChunk(DataOutputStream out, List<Object> chunk) throws IOException {
+    if (chunk.isEmpty())
+      return;
+
+    out.writeInt(chunk.size());
+    for (Object element : chunk) {
+      if (element instanceof Map.Entry) {
+        writeValue(out, ((Map.Entry) element).getKey());
+        writeValue(out, ((Map.Entry) element).getValue());
+      } else {
+        writeValue(out, element);
+      }
+    }
+    chunk.clear();
+  }
+
+  private void readStructure(DataInputStream in, int kind, DBContext target) throws IOException, ClassNotFoundException {
+    String name = readString(in);
+    Collection<Object> collection;
+    Map<Object, Object> map = null;
+
+    switch (kind) {
+      case SET:
+        collection = target.getSet(name);
+        break;
+      case LIST:
+        collection = target.getList(name);
+        break;
+      case MAP:
+        collection = null;
+        map = target.getMap(name);
+        break;
+      default:
+        throw new StreamCorruptedException(format("Malformed backup, unknown kind [%d] of structure [%s]", kind, name));
+    }
+
+    for (int count = in.readInt(); count != 0; count = in.readInt()) {
+      if (count < 0 || count > BATCH)
+        throw new StreamCorruptedException(format("Malformed backup, chunk of [%d] elements in structure [%s]", count, name));
+
+      if (map != null) {
+        Map<Object, Object> chunk = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++)
+          chunk.put(readValue(in), readValue(in));
+        map.putAll(chunk);
+      } else {
+        List<Object> chunk = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+          chunk.add(readValue(in));
+        collection.addAll(chunk);
+      }
+    }
+  }
+
+  static void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof EndUser) {
+      DataOutput2 user = new DataOutput2();
+      EndUserSerializer.INSTANCE.serialize(user, (EndUser) value);
+      out.writeByte(USER);
+      writeBytes(out, user.copyBytes());
+    } else {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream java = new ObjectOutputStream(bytes)) {
+        java.writeObject(value);
+      }
+      out.writeByte(JAVA);
+      writeBytes(out, bytes.toByteArray());
+    }
+  }
+
+  static Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+    int type = in.readUnsignedByte();
+    switch (type) {
+      case NULL:
+        return null;
+      case STRING:
+        return readString(in);
+      case INTEGER:
+        return in.readInt();
+      case LONG:
+        return in.readLong();
+      case BOOLEAN:
+        return in.readBoolean();
+      case DOUBLE:
+        return in.readDouble();
+      case USER:
+        byte[] user = readBytes(in);
+        return EndUserSerializer.INSTANCE.deserialize(new DataInput2.ByteArray(user), user.length);
+      case JAVA:
+        try (ObjectInputStream java = new AllowedClassesInputStream(new ByteArrayInputStream(readBytes(in)))) {
+          return java.readObject();
+        }
+      default:
+        throw new StreamCorruptedException(format("Malformed backup, unknown type [%d] of element", type));
+    }
+  }
+
+  static void writeString(DataOutputStream out, String value) throws IOException {
+    writeBytes(out, value.getBytes(UTF_8));
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    return new String(readBytes(in), UTF_8);
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0)
+      throw new StreamCorruptedException(format("Malformed backup, negative length [%d]", length));
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+  /**
+   * Reads Java serialization, rejecting the classes that elements may not be made of before they are instantiated.
+   */
+  private static final class AllowedClassesInputStream extends ObjectInputStream {
+    private AllowedClassesInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      if (!isAllowed(desc.getName()))
+        throw new InvalidClassException(desc.getName(), "Class is not allowed in backups and replication streams, elements written with " +
+            "Java serialization may only hold boxed primitives, strings, collections and the models of the bots");
+      return super.resolveClass(desc);
+    }
+
+    private static boolean isAllowed(String name) {
+      // Arrays are named after their component, e.g. [Ljava.lang.String; and [I
+      String component = name.replaceFirst("^\\[+", "");
+      if (component.length() == 1 && name.startsWith("["))
+        return true;
+      if (component.startsWith("L") && component.endsWith(";"))
+        component = component.substring(1, component.length() - 1);
+
+      return SERIALIZABLE.contains(component) || component.startsWith(COLLECTIONS) || component.startsWith(MODELS);
+    }
+  }
+}
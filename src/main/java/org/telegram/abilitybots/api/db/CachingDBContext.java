@@ -0,0 +1,764 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A {@link DBContext} that puts an on-heap cache in front of another one.
+ * <p>
+ * Maps and Sets are wrapped so that reads are served from a least-recently-used cache of each structure, absent keys included.
+ * Writes are applied to the cache and flushed to the backing DB in batches, by a background thread every flush interval and on every
+ * {@link CachingDBContext#commit()}. A write thus reaches the backing DB at most one interval after it happened.
+ * Lists are not cached and are returned as is.
+ * <p>
+ * Operations that need the whole structure, such as iterating or computing the size, flush the structure first and go through the backing DB.
+ * Hits, misses and flushed writes are counted in the {@link Metrics} as <code>db.cache.hits</code>, <code>db.cache.misses</code>
+ * and <code>db.cache.flushed</code>. Bots that share a JVM pass their own registry, so that the counts of their caches do not add up.
+ * <p>
+ * The cache is opt-in, a bot that wants it passes the cached DB to its constructor. The registry scoped by the username of the bot is the one
+ * of {@link org.telegram.abilitybots.api.bot.AbilityBot#metrics()}:
+ * <p><code>super(token, username, new CachingDBContext(MapDBContext.onlineInstance(username), Metrics.global().scoped(username)))</code></p>
+ */
+public class CachingDBContext implements DBContext {
+  private static final String TAG = CachingDBContext.class.getSimpleName();
+
+  static final String HITS = "db.cache.hits";
+  static final String MISSES = "db.cache.misses";
+  static final String FLUSHED = "db.cache.flushed";
+
+  private static final int DEFAULT_CAPACITY = 10_000;
+  private static final long DEFAULT_FLUSH_INTERVAL = SECONDS.toMillis(1);
+
+  // Markers of the cached absent keys and of the pending removals
+  private static final Object ABSENT = new Object();
+  private static final Object REMOVED = new Object();
+
+  private final DBContext backend;
+  private final int capacity;
+  private final Metrics metrics;
+  private final Map<String, WriteBehind> structures;
+  private final ScheduledExecutorService flusher;
+  private final Transactions transactions;
+
+  /**
+   * @param backend       the DB the writes are flushed to
+   * @param capacity      the maximum number of cached entries of each structure
+   * @param flushInterval the maximum time in milliseconds a write waits before it is flushed
+   * @param metrics       the registry of the cache metrics
+   */
+  public CachingDBContext(DBContext backend, int capacity, long flushInterval, Metrics metrics) {
+    checkArgument(capacity > 0, "Cache capacity must be positive");
+    checkArgument(flushInterval > 0, "Flush interval must be positive");
+    this.backend = checkNotNull(backend, "Backing DB cannot be null");
+    this.capacity = capacity;
+    this.metrics = checkNotNull(metrics, "Metrics cannot be null");
+    this.structures = new ConcurrentHashMap<>();
+    this.transactions = new Transactions();
+    this.flusher = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("db-flusher-%d").build());
+    flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, MILLISECONDS);
+  }
+
+  /**
+   * @param backend the DB the writes are flushed to
+   * @param metrics the registry of the cache metrics
+   */
+  public CachingDBContext(DBContext backend, Metrics metrics) {
+    this(backend, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL, metrics);
+  }
+
+  /**
+   * The cache metrics are counted in {@link Metrics#global()}.
+   *
+   * @param backend the DB the writes are flushed to
+   */
+  public CachingDBContext(DBContext backend) {
+    this(backend, Metrics.global());
+  }
+
+  @Override
+  public <T> List<T> getList(String name) {
+    return backend.getList(name);
+  }
+
+  @Override
+  public <K, V> Map<K, V> getMap(String name) {
+    return structure(name, CachedMap.class, () -> new CachedMap<>(backend.getMap(name)));
+  }
+
+  @Override
+  public <T> Set<T> getSet(String name) {
+    return structure(name, CachedSet.class, () -> new CachedSet<>(backend.getSet(name)));
+  }
+
+  @Override
+  public <T> List<T> getList(String name, Class<T> type) {
+    return backend.getList(name, type);
+  }
+
+  @Override
+  public <K, V> Map<K, V> getMap(String name, Class<K> keyType, Class<V> valueType) {
+    // Declared on every call, so that conflicting declarations are still detected by the backing DB
+    Map<K, V> backing = backend.getMap(name, keyType, valueType);
+    return structure(name, CachedMap.class, () -> new CachedMap<>(backing));
+  }
+
+  @Override
+  public <T> Set<T> getSet(String name, Class<T> type) {
+    Set<T> backing = backend.getSet(name, type);
+    return structure(name, CachedSet.class, () -> new CachedSet<>(backing));
+  }
+
+  /**
+   * Expiring maps are not cached, their entries expire in the backing DB.
+   */
+  @Override
+  public <K, V> Map<K, V> getExpiringMap(String name, Class<K> keyType, Class<V> valueType, Expiration expiration) {
+    return backend.getExpiringMap(name, keyType, valueType, expiration);
+  }
+
+  /**
+   * Sorted maps are not cached, their ranges are read from the backing DB.
+   */
+  @Override
+  public <K, V> NavigableMap<K, V> getSortedMap(String name, Class<K> keyType, Class<V> valueType) {
+    return backend.getSortedMap(name, keyType, valueType);
+  }
+
+  /**
+   * Counters are not cached, they are batched by the backing DB.
+   */
+  @Override
+  public Counter getCounter(String name) {
+    return backend.getCounter(name);
+  }
+
+  /**
+   * @see CachingDBContext#getCounter(String)
+   */
+  @Override
+  public <K> CounterMap<K> getCounterMap(String name, Class<K> keyType) {
+    return backend.getCounterMap(name, keyType);
+  }
+
+  @Override
+  public String summary() {
+    flush();
+    return backend.summary();
+  }
+
+  @Override
+  public Object backup() {
+    flush();
+    return backend.backup();
+  }
+
+  @Override
+  public void backup(OutputStream out) throws IOException {
+    flush();
+    backend.backup(out);
+  }
+
+  @Override
+  public void backup(OutputStream out, BackupFormat format) throws IOException {
+    flush();
+    backend.backup(out, format);
+  }
+
+  @Override
+  public boolean recover(Object backup) {
+    // Pending writes are flushed, so that a failed recovery leaves them in the backing DB
+    flush();
+    try {
+      return backend.recover(backup);
+    } finally {
+      structures.values().forEach(WriteBehind::invalidate);
+    }
+  }
+
+  @Override
+  public boolean recover(InputStream backup) {
+    flush();
+    try {
+      return backend.recover(backup);
+    } finally {
+      structures.values().forEach(WriteBehind::invalidate);
+    }
+  }
+
+  @Override
+  public String info(String name) {
+    flush();
+    return backend.info(name);
+  }
+
+  /**
+   * Flushes all the pending writes before committing the backing DB. Commits made within a transaction are deferred to the end of the
+   * transaction, so that the backing DB never receives a part of a transaction.
+   */
+  @Override
+  public void commit() {
+    if (transactions.inTransaction())
+      return;
+
+    transactions.shared(() -> {
+      flush();
+      backend.commit();
+    });
+  }
+
+  @Override
+  public void clear() {
+    structures.values().forEach(WriteBehind::invalidate);
+    backend.clear();
+  }
+
+  /**
+   * The pending writes of the structure are flushed first, so that they are not lost if the backing DB cannot drop it.
+   */
+  @Override
+  public boolean drop(String name) {
+    WriteBehind struct = structures.remove(name);
+    if (struct != null)
+      struct.flush();
+    return backend.drop(name);
+  }
+
+  @Override
+  public boolean contains(String name) {
+    return structures.containsKey(name) || backend.contains(name);
+  }
+
+  @Override
+  public <T> T inTransaction(Function<DBContext, T> work) {
+    return transactions.run(this, work);
+  }
+
+  @Override
+  public void close() throws IOException {
+    flusher.shutdown();
+    commit();
+    backend.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  private <S> S structure(String name, Class<?> kind, Supplier<WriteBehind> factory) {
+    WriteBehind struct = structures.computeIfAbsent(name, key -> factory.get());
+    checkState(kind.isInstance(struct), "DB structure with name [%s] was opened as a %s", name, struct.getClass().getSimpleName());
+    return (S) struct;
+  }
+
+  private void flush() {
+    int flushed = 0;
+    for (WriteBehind struct : structures.values())
+      flushed += struct.flush();
+
+    if (flushed > 0)
+      metrics.add(FLUSHED, flushed);
+  }
+
+  private void flushQuietly() {
+    try {
+      if (structures.values().stream().anyMatch(WriteBehind::isDirty))
+        commit();
+    } catch (RuntimeException e) {
+      BotLogger.error("Could not flush pending writes to the DB", TAG, e);
+    }
+  }
+
+  /**
+   * The cache and the pending writes of a structure. Writes and flushes of a structure are serialized on it, reads are not.
+   */
+  private abstract class WriteBehind {
+    private final Cache<Object, Object> cache;
+    private final Map<Object, Object> dirty;
+    private final Function<Object, Object> loader;
+    private final BiConsumer<Object, Object> writer;
+    private final Consumer<Object> remover;
+
+    WriteBehind(Function<Object, Object> loader, BiConsumer<Object, Object> writer, Consumer<Object> remover) {
+      this.cache = CacheBuilder.newBuilder().maximumSize(capacity).build();
+      this.dirty = new ConcurrentHashMap<>();
+      this.loader = loader;
+      this.writer = writer;
+      this.remover = remover;
+    }
+
+    Object load(Object key) {
+      Object pending = dirty.get(key);
+      if (pending != null) {
+        metrics.increment(HITS);
+        return pending == REMOVED ? null : pending;
+      }
+
+      Object cached = cache.getIfPresent(key);
+      if (cached == null) {
+        metrics.increment(MISSES);
+        try {
+          // A write racing with the load replaces the loaded value
+          cached = cache.get(key, () -> {
+            Object value = loader.apply(key);
+            return value == null ? ABSENT : value;
+          });
+        } catch (ExecutionException e) {
+          throw new UncheckedExecutionException(e.getCause());
+        }
+      } else {
+        metrics.increment(HITS);
+      }
+      return cached == ABSENT ? null : cached;
+    }
+
+    synchronized void store(Object key, Object value) {
+      dirty.put(key, value);
+      cache.put(key, value);
+    }
+
+    synchronized void delete(Object key) {
+      dirty.put(key, REMOVED);
+      cache.put(key, ABSENT);
+    }
+
+    boolean isDirty() {
+      return !dirty.isEmpty();
+    }
+
+    /**
+     * @return the number of writes applied to the backing structure
+     */
+    synchronized int flush() {
+      int flushed = dirty.size();
+      dirty.forEach((key, value) -> {
+        if (value == REMOVED)
+          remover.accept(key);
+        else
+          writer.accept(key, value);
+      });
+      dirty.clear();
+      return flushed;
+    }
+
+    synchronized void invalidate() {
+      dirty.clear();
+      cache.invalidateAll();
+    }
+  }
+
+  private final class CachedMap<K, V> extends WriteBehind implements Map<K, V> {
+    private final Map<K, V> backing;
+
+    // Only the keys and values put through this map are written behind
+    @SuppressWarnings("unchecked")
+    private CachedMap(Map<K, V> backing) {
+      super(backing::get, (key, value) -> backing.put((K) key, (V) value), backing::remove);
+      this.backing = backing;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+      return (V) load(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return load(key) != null;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+      return values().contains(value);
+    }
+
+    @Override
+    public synchronized V put(K key, V value) {
+      V previous = get(key);
+      store(key, checkNotNull(value, "Value cannot be null"));
+      return previous;
+    }
+
+    @Override
+    public synchronized V remove(Object key) {
+      V previous = get(key);
+      if (previous != null)
+        delete(key);
+      return previous;
+    }
+
+    @Override
+    public synchronized void putAll(Map<? extends K, ? extends V> map) {
+      map.forEach(this::put);
+    }
+
+    @Override
+    public synchronized void clear() {
+      invalidate();
+      backing.clear();
+    }
+
+    @Override
+    public synchronized V putIfAbsent(K key, V value) {
+      return Map.super.putIfAbsent(key, value);
+    }
+
+    @Override
+    public synchronized boolean remove(Object key, Object value) {
+      return Map.super.remove(key, value);
+    }
+
+    @Override
+    public synchronized boolean replace(K key, V oldValue, V newValue) {
+      return Map.super.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public synchronized V replace(K key, V value) {
+      return Map.super.replace(key, value);
+    }
+
+    @Override
+    public synchronized V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+      return Map.super.computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public synchronized V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+      return Map.super.computeIfPresent(key, remappingFunction);
+    }
+
+    @Override
+    public synchronized V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+      return Map.super.compute(key, remappingFunction);
+    }
+
+    @Override
+    public synchronized V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+      return Map.super.merge(key, value, remappingFunction);
+    }
+
+    @Override
+    public int size() {
+      flush();
+      return backing.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return size() == 0;
+    }
+
+    @Override
+    public Set<K> keySet() {
+      return new AbstractSet<K>() {
+        @Override
+        public Iterator<K> iterator() {
+          Iterator<Entry<K, V>> entries = entrySet().iterator();
+          return new Iterator<K>() {
+            @Override
+            public boolean hasNext() {
+              return entries.hasNext();
+            }
+
+            @Override
+            public K next() {
+              return entries.next().getKey();
+            }
+
+            @Override
+            public void remove() {
+              entries.remove();
+            }
+          };
+        }
+
+        @Override
+        public boolean contains(Object key) {
+          return containsKey(key);
+        }
+
+        @Override
+        public boolean remove(Object key) {
+          return CachedMap.this.remove(key) != null;
+        }
+
+        @Override
+        public int size() {
+          return CachedMap.this.size();
+        }
+      };
+    }
+
+    @Override
+    public Collection<V> values() {
+      return new AbstractCollection<V>() {
+        @Override
+        public Iterator<V> iterator() {
+          Iterator<Entry<K, V>> entries = entrySet().iterator();
+          return new Iterator<V>() {
+            @Override
+            public boolean hasNext() {
+              return entries.hasNext();
+            }
+
+            @Override
+            public V next() {
+              return entries.next().getValue();
+            }
+
+            @Override
+            public void remove() {
+              entries.remove();
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return CachedMap.this.size();
+        }
+      };
+    }
+
+    /**
+     * The entries are read from the backing map once it was flushed, changes made through the entries go through the cache.
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+      return new AbstractSet<Entry<K, V>>() {
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+          flush();
+          Iterator<Entry<K, V>> entries = backing.entrySet().iterator();
+          return new Iterator<Entry<K, V>>() {
+            private Entry<K, V> last;
+
+            @Override
+            public boolean hasNext() {
+              return entries.hasNext();
+            }
+
+            @Override
+            public Entry<K, V> next() {
+              last = new AbstractMap.SimpleEntry<K, V>(entries.next()) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public V setValue(V value) {
+                  put(getKey(), value);
+                  return super.setValue(value);
+                }
+              };
+              return last;
+            }
+
+            @Override
+            public void remove() {
+              checkState(last != null, "No entry to remove");
+              CachedMap.this.remove(last.getKey());
+              last = null;
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return CachedMap.this.size();
+        }
+      };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (!(o instanceof Map))
+        return false;
+
+      flush();
+      return backing.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+      flush();
+      return backing.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      flush();
+      return backing.toString();
+    }
+  }
+
+  private final class CachedSet<T> extends WriteBehind implements Set<T> {
+    private final Set<T> backing;
+
+    // Only the elements added through this set are written behind
+    @SuppressWarnings("unchecked")
+    private CachedSet(Set<T> backing) {
+      super(element -> backing.contains(element) ? Boolean.TRUE : null, (element, present) -> backing.add((T) element), backing::remove);
+      this.backing = backing;
+    }
+
+    @Override
+    public boolean contains(Object element) {
+      return load(element) != null;
+    }
+
+    @Override
+    public synchronized boolean add(T element) {
+      if (contains(element))
+        return false;
+
+      store(checkNotNull(element, "Element cannot be null"), Boolean.TRUE);
+      return true;
+    }
+
+    @Override
+    public synchronized boolean remove(Object element) {
+      if (!contains(element))
+        return false;
+
+      delete(element);
+      return true;
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends T> elements) {
+      boolean changed = false;
+      for (T element : elements)
+        changed |= add(element);
+      return changed;
+    }
+
+    @Override
+    public synchronized boolean removeAll(Collection<?> elements) {
+      boolean changed = false;
+      for (Object element : elements)
+        changed |= remove(element);
+      return changed;
+    }
+
+    @Override
+    public synchronized boolean retainAll(Collection<?> elements) {
+      flush();
+      List<T> removed = new ArrayList<>();
+      for (T element : backing)
+        if (!elements.contains(element))
+          removed.add(element);
+      return removeAll(removed);
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> elements) {
+      return elements.stream().allMatch(this::contains);
+    }
+
+    @Override
+    public synchronized void clear() {
+      invalidate();
+      backing.clear();
+    }
+
+    @Override
+    public int size() {
+      flush();
+      return backing.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return size() == 0;
+    }
+
+    /**
+     * The elements are read from the backing set once it was flushed, removals go through the cache.
+     */
+    @Override
+    public Iterator<T> iterator() {
+      flush();
+      Iterator<T> elements = backing.iterator();
+      return new Iterator<T>() {
+        private T last;
+
+        @Override
+        public boolean hasNext() {
+          return elements.hasNext();
+        }
+
+        @Override
+        public T next() {
+          last = elements.next();
+          return last;
+        }
+
+        @Override
+        public void remove() {
+          checkState(last != null, "No element to remove");
+          CachedSet.this.remove(last);
+          last = null;
+        }
+      };
+    }
+
+    @Override
+    public Object[] toArray() {
+      flush();
+      return backing.toArray();
+    }
+
+    @Override
+    public <E> E[] toArray(E[] array) {
+      flush();
+      return backing.toArray(array);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (!(o instanceof Set))
+        return false;
+
+      flush();
+      return backing.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+      flush();
+      return backing.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      flush();
+      return backing.toString();
+    }
+  }
+}
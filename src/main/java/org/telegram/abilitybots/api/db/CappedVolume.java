@@ -0,0 +1,197 @@
+package org.telegram.abilitybots.api.db;
+
+import org.mapdb.DBException;
+import org.mapdb.DataInput2;
+import org.mapdb.volume.Volume;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A MapDB {@link Volume} that refuses to grow past a maximum size.
+ * <p>
+ * The store grows its volume before writing to it, so a write that would need more than the maximum size fails with
+ * {@link DBException.VolumeMaxSizeExceeded} and nothing is allocated. Every other operation is delegated as is.
+ */
+final class CappedVolume extends Volume {
+  private final Volume delegate;
+  private final long maxSize;
+
+  CappedVolume(Volume delegate, long maxSize) {
+    checkArgument(maxSize > 0, "Maximum size must be positive");
+    this.delegate = checkNotNull(delegate, "Volume cannot be null");
+    this.maxSize = maxSize;
+  }
+
+  long maxSize() {
+    return maxSize;
+  }
+
+  @Override
+  public void ensureAvailable(long offset) {
+    if (offset > maxSize)
+      throw new DBException.VolumeMaxSizeExceeded(offset, maxSize);
+    delegate.ensureAvailable(offset);
+  }
+
+  @Override
+  public void truncate(long size) {
+    delegate.truncate(size);
+  }
+
+  @Override
+  public void putLong(long offset, long value) {
+    delegate.putLong(offset, value);
+  }
+
+  @Override
+  public void putInt(long offset, int value) {
+    delegate.putInt(offset, value);
+  }
+
+  @Override
+  public void putByte(long offset, byte value) {
+    delegate.putByte(offset, value);
+  }
+
+  @Override
+  public void putData(long offset, byte[] src, int srcPos, int srcSize) {
+    delegate.putData(offset, src, srcPos, srcSize);
+  }
+
+  @Override
+  public void putData(long offset, ByteBuffer buf) {
+    delegate.putData(offset, buf);
+  }
+
+  @Override
+  public void putDataOverlap(long offset, byte[] src, int srcPos, int srcSize) {
+    delegate.putDataOverlap(offset, src, srcPos, srcSize);
+  }
+
+  @Override
+  public long getLong(long offset) {
+    return delegate.getLong(offset);
+  }
+
+  @Override
+  public int getInt(long offset) {
+    return delegate.getInt(offset);
+  }
+
+  @Override
+  public byte getByte(long offset) {
+    return delegate.getByte(offset);
+  }
+
+  @Override
+  public DataInput2 getDataInput(long offset, int size) {
+    return delegate.getDataInput(offset, size);
+  }
+
+  @Override
+  public DataInput2 getDataInputOverlap(long offset, int size) {
+    return delegate.getDataInputOverlap(offset, size);
+  }
+
+  @Override
+  public void getData(long offset, byte[] bytes, int bytesPos, int size) {
+    delegate.getData(offset, bytes, bytesPos, size);
+  }
+
+  @Override
+  public void putUnsignedShort(long offset, int value) {
+    delegate.putUnsignedShort(offset, value);
+  }
+
+  @Override
+  public int getUnsignedShort(long offset) {
+    return delegate.getUnsignedShort(offset);
+  }
+
+  @Override
+  public int getUnsignedByte(long offset) {
+    return delegate.getUnsignedByte(offset);
+  }
+
+  @Override
+  public void putUnsignedByte(long offset, int b) {
+    delegate.putUnsignedByte(offset, b);
+  }
+
+  @Override
+  public long getSixLong(long pos) {
+    return delegate.getSixLong(pos);
+  }
+
+  @Override
+  public void putSixLong(long pos, long value) {
+    delegate.putSixLong(pos, value);
+  }
+
+  @Override
+  public int putPackedLong(long pos, long value) {
+    return delegate.putPackedLong(pos, value);
+  }
+
+  @Override
+  public long getPackedLong(long position) {
+    return delegate.getPackedLong(position);
+  }
+
+  @Override
+  public void clear(long startOffset, long endOffset) {
+    delegate.clear(startOffset, endOffset);
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  @Override
+  public boolean isClosed() {
+    return delegate.isClosed();
+  }
+
+  @Override
+  public void sync() {
+    delegate.sync();
+  }
+
+  @Override
+  public int sliceSize() {
+    return delegate.sliceSize();
+  }
+
+  @Override
+  public boolean isSliced() {
+    return delegate.isSliced();
+  }
+
+  /**
+   * @return the number of bytes currently allocated by the volume
+   */
+  @Override
+  public long length() {
+    return delegate.length();
+  }
+
+  @Override
+  public boolean isReadOnly() {
+    return delegate.isReadOnly();
+  }
+
+  @Override
+  public File getFile() {
+    return delegate.getFile();
+  }
+
+  @Override
+  public boolean getFileLocked() {
+    return delegate.getFileLocked();
+  }
+}
@@ -0,0 +1,152 @@
+package org.telegram.abilitybots.api.db;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.Collection;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * A change of a structure recorded by {@link ChangeLogDBContext}.
+ * <p>
+ * Changes of maps, sets and whole structures set the state of a key, an element or the structure, they do not depend on the state they
+ * are applied to. Changes of a single element of a list do, they hold the index and the size the list had before them and are skipped by
+ * lists of another size. Their log thus skips the changes a DB already applied, by their sequence numbers.
+ */
+final class Change implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  enum Op {
+    /**
+     * Puts the value of the key in the map.
+     */
+    PUT,
+    /**
+     * Removes the key from the map.
+     */
+    REMOVE,
+    /**
+     * Adds the element, held in the key, to the set.
+     */
+    ADD,
+    /**
+     * Removes the element, held in the key, from the set.
+     */
+    DISCARD,
+    /**
+     * Replaces the list with the value.
+     */
+    LIST,
+    /**
+     * Clears the whole database.
+     */
+    CLEAR,
+    /**
+     * Appends the value to the list, whose size before the append is held in the key.
+     */
+    APPEND,
+    /**
+     * Sets the element at the index, held in the key, of the list to the value.
+     */
+    SET,
+    /**
+     * Removes the element at the index, held in the key, from the list, whose size before the removal is held in the value.
+     */
+    REMOVE_AT
+  }
+
+  @JsonProperty("op")
+  private final Op op;
+  @JsonProperty("name")
+  private final String name;
+  @JsonProperty("key")
+  private final Object key;
+  @JsonProperty("value")
+  private final Object value;
+
+  @JsonCreator
+  Change(@JsonProperty("op") Op op,
+         @JsonProperty("name") String name,
+         @JsonProperty("key") Object key,
+         @JsonProperty("value") Object value) {
+    this.op = op;
+    this.name = name;
+    this.key = key;
+    this.value = value;
+  }
+
+  Op op() {
+    return op;
+  }
+
+  void applyTo(DBContext db) {
+    switch (op) {
+      case PUT:
+        db.getMap(name).put(key, value);
+        break;
+      case REMOVE:
+        db.getMap(name).remove(key);
+        break;
+      case ADD:
+        db.getSet(name).add(key);
+        break;
+      case DISCARD:
+        db.getSet(name).remove(key);
+        break;
+      case LIST:
+        List<Object> list = db.getList(name);
+        list.clear();
+        list.addAll((Collection<?>) value);
+        break;
+      case CLEAR:
+        db.clear();
+        break;
+      case APPEND:
+        List<Object> appended = db.getList(name);
+        if (appended.size() == index())
+          appended.add(value);
+        break;
+      case SET:
+        List<Object> updated = db.getList(name);
+        if (index() < updated.size())
+          updated.set(index(), value);
+        break;
+      case REMOVE_AT:
+        List<Object> removed = db.getList(name);
+        if (removed.size() == ((Number) value).intValue())
+          removed.remove(index());
+        break;
+    }
+  }
+
+  private int index() {
+    return ((Number) key).intValue();
+  }
+
+  void write(DataOutputStream out) throws IOException {
+    out.writeByte(op.ordinal());
+    BinaryBackup.writeValue(out, name);
+    BinaryBackup.writeValue(out, key);
+    BinaryBackup.writeValue(out, value);
+  }
+
+  static Change read(DataInputStream in) throws IOException, ClassNotFoundException {
+    int op = in.readUnsignedByte();
+    if (op >= Op.values().length)
+      throw new StreamCorruptedException(format("Malformed change, unknown operation [%d]", op));
+
+    return new Change(Op.values()[op], (String) BinaryBackup.readValue(in), BinaryBackup.readValue(in), BinaryBackup.readValue(in));
+  }
+
+  @Override
+  public String toString() {
+    return format("%s %s %s %s", op, name, key, value);
+  }
+}
@@ -0,0 +1,820 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.collect.ForwardingList;
+import com.google.common.collect.ForwardingMap;
+import com.google.common.collect.ForwardingSet;
+import com.google.common.collect.Iterators;
+import com.google.common.io.ByteStreams;
+import org.telegram.abilitybots.api.db.Change.Op;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Collections.unmodifiableCollection;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableSet;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A {@link DBContext} that records the changes made to another one, so that it can be backed up incrementally.
+ * <p>
+ * Every put and removal of a Map or a Set, every modification of a List and every clear of the DB is recorded in a log, under a sequence
+ * number that increases monotonically. Appends, sets and removals of a single element of a List are recorded on their own, with the index
+ * and the size of the list they apply to. Other modifications of a List record it as a whole. The log and the last sequence number are
+ * kept in the backing DB, as the internal structures <code>__CHANGES</code> and <code>__SEQUENCE</code>, and committed alongside the data.
+ * Writes are serialized, so that the order of the log is the order in which the writes were applied.
+ * <p>
+ * Every full backup starts a new chain: the changes recorded until then are dropped from the log and the backup holds the sequence number
+ * it was taken at. {@link ChangeLogDBContext#backupSince(long, OutputStream)} writes the changes recorded after a sequence number.
+ * {@link ChangeLogDBContext#recover(InputStream)} recovers a full backup, or applies an incremental backup on top of the DB as long as it
+ * starts at or before the sequence number of the DB. A base backup followed by its chain of incremental backups recovers the DB as it was
+ * at the end of the chain.
+ */
+public class ChangeLogDBContext implements DBContext {
+  private static final String TAG = ChangeLogDBContext.class.getSimpleName();
+
+  static final String CHANGES = "__CHANGES";
+  static final String SEQUENCE = "__SEQUENCE";
+  private static final String INTERNAL = "__";
+  // Entries of SEQUENCE, the last recorded change and the last change dropped from the log
+  private static final String LAST = "last";
+  private static final String BASE = "base";
+
+  static final byte[] MAGIC = {'A', 'B', 'D', 'L'};
+  private static final int VERSION = 1;
+  private static final int BUFFER = 8192;
+
+  private final DBContext backend;
+  // Shared with the views of the transactions, it is also the lock of the writes
+  private final AtomicLong sequence;
+  private final Map<String, Object> structures;
+  // Changes of a transaction, recorded once its work is done
+  private final List<Change> pending;
+  // Shared with the views of the transactions, counters are written through the DB itself
+  private final CounterStore counters;
+
+  /**
+   * @param backend the DB whose changes are recorded
+   */
+  public ChangeLogDBContext(DBContext backend) {
+    this(checkNotNull(backend, "Backing DB cannot be null"), new AtomicLong(), null, null);
+    // Declares the internal structures, so that their keys are recovered with their types
+    changes();
+    sequence.set(position(LAST));
+  }
+
+  private ChangeLogDBContext(DBContext backend, AtomicLong sequence, List<Change> pending, CounterStore counters) {
+    this.backend = backend;
+    this.sequence = sequence;
+    this.structures = new ConcurrentHashMap<>();
+    this.pending = pending;
+    this.counters = counters == null ? new CounterStore(this) : counters;
+  }
+
+  /**
+   * @return the sequence number of the last recorded change
+   */
+  public long sequence() {
+    return sequence.get();
+  }
+
+  /**
+   * Waits until a change is recorded after the sequence number, or until the timeout elapses.
+   *
+   * @return the sequence number of the last recorded change
+   */
+  long awaitSequence(long after, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (sequence) {
+      long remaining = timeoutMillis;
+      while (sequence.get() <= after && remaining > 0) {
+        sequence.wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+      return sequence.get();
+    }
+  }
+
+  /**
+   * @return the change recorded under the sequence number, or <tt>null</tt> if it is not in the log
+   */
+  Change change(long number) {
+    return changes().get(number);
+  }
+
+  /**
+   * @return the sequence number of the last change dropped from the log
+   */
+  long base() {
+    return position(BASE);
+  }
+
+  /**
+   * Applies a change recorded by another DB under the same sequence number, the DB continues the log of the other one.
+   * The change is not committed.
+   */
+  void apply(long number, Change change) {
+    synchronized (sequence) {
+      checkArgument(number > sequence.get(), "Change [%s] is not after the DB at [%s]", number, sequence.get());
+      if (change.op() == Op.CLEAR)
+        structures.clear();
+      change.applyTo(backend);
+      changes().put(number, change);
+      positions().put(LAST, number);
+      sequence.set(number);
+      sequence.notifyAll();
+    }
+  }
+
+  /**
+   * Writes a binary backup of the DB without dropping the changes from the log.
+   */
+  void snapshot(OutputStream out) throws IOException {
+    counters.flush();
+    backend.backup(out, BackupFormat.BINARY);
+  }
+
+  /**
+   * Writes the changes recorded after the sequence number to the stream, as an incremental backup. The stream is not closed.
+   *
+   * @param since the sequence number of the last change already backed up, usually the sequence number of the previous backup
+   * @param out   the stream to write the backup to
+   * @return the sequence number of the last change written to the backup
+   * @throws IllegalStateException if some of the changes were dropped from the log by a full backup
+   * @throws IOException           if the backup could not be written to the stream
+   */
+  public long backupSince(long since, OutputStream out) throws IOException {
+    counters.flush();
+    long to;
+    synchronized (sequence) {
+      to = sequence.get();
+    }
+    checkArgument(since <= to, "Sequence number [%s] is ahead of the DB at [%s]", since, to);
+    checkState(since >= position(BASE), "Changes after [%s] were dropped from the log by a full backup", since);
+
+    DataOutputStream header = new DataOutputStream(out);
+    header.write(MAGIC);
+    header.writeByte(VERSION);
+    header.writeLong(since);
+    header.writeLong(to);
+    header.flush();
+
+    Map<Long, Change> changes = changes();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      DeflaterOutputStream deflated = new DeflaterOutputStream(new FilterOutputStream(out) {
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+          out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+          // The stream of the caller stays open
+          flush();
+        }
+      }, deflater, BUFFER);
+
+      try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(deflated, BUFFER))) {
+        for (long number = since + 1; number <= to; number++) {
+          Change change = changes.get(number);
+          // A transaction that failed to commit leaves a gap in the log
+          if (change == null)
+            continue;
+
+          data.writeBoolean(true);
+          data.writeLong(number);
+          change.write(data);
+        }
+        data.writeBoolean(false);
+      }
+    } finally {
+      deflater.end();
+    }
+    return to;
+  }
+
+  @Override
+  public <T> List<T> getList(String name) {
+    return structure(name, LoggedList.class, () -> new LoggedList<>(name, backend.getList(name)));
+  }
+
+  @Override
+  public <K, V> Map<K, V> getMap(String name) {
+    return structure(name, Map.class, () -> new LoggedMap<>(name, backend.getMap(name)));
+  }
+
+  @Override
+  public <T> Set<T> getSet(String name) {
+    return structure(name, LoggedSet.class, () -> new LoggedSet<>(name, backend.getSet(name)));
+  }
+
+  @Override
+  public <T> List<T> getList(String name, Class<T> type) {
+    // Declared on every call, so that conflicting declarations are still detected by the backing DB
+    List<T> backing = backend.getList(name, type);
+    return structure(name, LoggedList.class, () -> new LoggedList<>(name, backing));
+  }
+
+  @Override
+  public <K, V> Map<K, V> getMap(String name, Class<K> keyType, Class<V> valueType) {
+    Map<K, V> backing = backend.getMap(name, keyType, valueType);
+    return structure(name, Map.class, () -> new LoggedMap<>(name, backing));
+  }
+
+  @Override
+  public <T> Set<T> getSet(String name, Class<T> type) {
+    Set<T> backing = backend.getSet(name, type);
+    return structure(name, LoggedSet.class, () -> new LoggedSet<>(name, backing));
+  }
+
+  /**
+   * Evictions are not recorded. A DB recovered from the log, or following this one, evicts the entries once it opens the map with the
+   * same expiration.
+   */
+  @Override
+  public <K, V> Map<K, V> getExpiringMap(String name, Class<K> keyType, Class<V> valueType, Expiration expiration) {
+    Map<K, V> backing = backend.getExpiringMap(name, keyType, valueType, expiration);
+    return structure(name, Map.class, () -> new LoggedMap<>(name, backing));
+  }
+
+  @Override
+  public <K, V> NavigableMap<K, V> getSortedMap(String name, Class<K> keyType, Class<V> valueType) {
+    NavigableMap<K, V> backing = backend.getSortedMap(name, keyType, valueType);
+    Map<K, V> struct = structure(name, Map.class, () -> new NavigableView<>(new LoggedMap<>(name, backing), backing));
+    checkState(struct instanceof NavigableMap, "DB structure with name [%s] was opened unsorted", name);
+    return (NavigableMap<K, V>) struct;
+  }
+
+  /**
+   * The counts are recorded as puts of their maps when they are written to the DB, once per batch rather than once per increment.
+   */
+  @Override
+  public Counter getCounter(String name) {
+    return counters.counter(name);
+  }
+
+  /**
+   * @see ChangeLogDBContext#getCounter(String)
+   */
+  @Override
+  public <K> CounterMap<K> getCounterMap(String name, Class<K> keyType) {
+    return counters.map(name, keyType);
+  }
+
+  /**
+   * The internal structures of the log are left out of the summary.
+   */
+  @Override
+  public String summary() {
+    return Arrays.stream(backend.summary().split("\n"))
+        .filter(line -> !line.startsWith(INTERNAL))
+        .collect(joining("\n"));
+  }
+
+  /**
+   * Drops the recorded changes from the log before backing up the DB, the backup is the base of a new chain of incremental backups.
+   */
+  @Override
+  public Object backup() {
+    counters.flush();
+    truncate();
+    return backend.backup();
+  }
+
+  /**
+   * @see ChangeLogDBContext#backup()
+   */
+  @Override
+  public void backup(OutputStream out) throws IOException {
+    counters.flush();
+    truncate();
+    backend.backup(out);
+  }
+
+  /**
+   * @see ChangeLogDBContext#backup()
+   */
+  @Override
+  public void backup(OutputStream out, BackupFormat format) throws IOException {
+    counters.flush();
+    truncate();
+    backend.backup(out, format);
+  }
+
+  @Override
+  public boolean recover(Object backup) {
+    return recover(new ByteArrayInputStream(backup.toString().getBytes(UTF_8)));
+  }
+
+  /**
+   * Recovers a full backup, or applies an incremental backup written by {@link ChangeLogDBContext#backupSince(long, OutputStream)}.
+   * <p>
+   * An incremental backup is only applied if it starts at or before the sequence number of the DB, and if it can be read entirely.
+   * It is then applied without recording its changes, the DB continues the chain of the backup.
+   */
+  @Override
+  public boolean recover(InputStream backup) {
+    counters.flush();
+    boolean recovered = recoverStream(backup);
+    // Outside of the lock of the writes, which the counters take while they are written
+    counters.reset();
+    return recovered;
+  }
+
+  private boolean recoverStream(InputStream backup) {
+    InputStream in = backup.markSupported() ? backup : new BufferedInputStream(backup);
+    try {
+      if (isIncremental(in))
+        return applyIncremental(in);
+    } catch (IOException e) {
+      BotLogger.error("Could not read DB backup stream", TAG, e);
+      return false;
+    }
+
+    synchronized (sequence) {
+      long current = sequence.get();
+      structures.clear();
+      if (!backend.recover(in))
+        return false;
+
+      if (positions().containsKey(LAST)) {
+        sequence.set(position(LAST));
+      } else {
+        // The backup was not taken with a log, the sequence numbers keep increasing from the current one
+        Map<String, Long> positions = positions();
+        positions.put(LAST, current);
+        positions.put(BASE, current);
+        backend.commit();
+      }
+      return true;
+    }
+  }
+
+  @Override
+  public String info(String name) {
+    return backend.info(name);
+  }
+
+  @Override
+  public void commit() {
+    backend.commit();
+  }
+
+  /**
+   * The clear is recorded as a change, the log starts again with it.
+   */
+  @Override
+  public void clear() {
+    synchronized (sequence) {
+      structures.clear();
+      backend.clear();
+      record(new Change(Op.CLEAR, null, null, null));
+    }
+    counters.reset();
+  }
+
+  @Override
+  public boolean contains(String name) {
+    return backend.contains(name);
+  }
+
+  /**
+   * The changes made by the transaction are recorded within it once its work is done, they are never recorded if it is rolled back.
+   */
+  @Override
+  public <T> T inTransaction(Function<DBContext, T> work) {
+    return backend.inTransaction(tx -> {
+      ChangeLogDBContext view = new ChangeLogDBContext(tx, sequence, new ArrayList<>(), counters);
+      T result = work.apply(view);
+      synchronized (sequence) {
+        view.pending.forEach(view::record);
+      }
+      return result;
+    });
+  }
+
+  @Override
+  public void close() throws IOException {
+    counters.close();
+    backend.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  private <S> S structure(String name, Class<?> kind, Supplier<Object> factory) {
+    checkArgument(!name.startsWith(INTERNAL), "DB structure with name [%s] is internal to the change log", name);
+    Object struct = structures.computeIfAbsent(name, key -> factory.get());
+    checkState(kind.isInstance(struct), "DB structure with name [%s] was opened as a %s", name, struct.getClass().getSimpleName());
+    return (S) struct;
+  }
+
+  private Map<Long, Change> changes() {
+    return backend.getMap(CHANGES, Long.class, Change.class);
+  }
+
+  private Map<String, Long> positions() {
+    return backend.getMap(SEQUENCE, String.class, Long.class);
+  }
+
+  private long position(String entry) {
+    Object position = positions().get(entry);
+    return position == null ? 0 : ((Number) position).longValue();
+  }
+
+  /**
+   * Applies the write and records its change, if any, as one step.
+   */
+  private <R> R write(Supplier<R> write, Function<R, Change> change) {
+    synchronized (sequence) {
+      R result = write.get();
+      Change recorded = change.apply(result);
+      if (recorded == null)
+        return result;
+
+      if (pending != null)
+        pending.add(recorded);
+      else
+        record(recorded);
+      return result;
+    }
+  }
+
+  private void record(Change change) {
+    long number = sequence.incrementAndGet();
+    changes().put(number, change);
+    positions().put(LAST, number);
+    sequence.notifyAll();
+  }
+
+  private void truncate() {
+    synchronized (sequence) {
+      long upTo = sequence.get();
+      Map<Long, Change> changes = changes();
+      List<Long> dropped = changes.keySet().stream().filter(number -> number <= upTo).collect(toList());
+      dropped.forEach(changes::remove);
+      positions().put(BASE, upTo);
+      backend.commit();
+    }
+  }
+
+  private static boolean isIncremental(InputStream in) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    in.mark(magic.length);
+    int read = ByteStreams.read(in, magic, 0, magic.length);
+    in.reset();
+    return read == magic.length && Arrays.equals(magic, MAGIC);
+  }
+
+  private boolean applyIncremental(InputStream in) {
+    Path spool = null;
+    try {
+      // The backup is read entirely before any change is applied, a truncated backup leaves the DB untouched
+      spool = Files.createTempFile("db-changes", ".bin");
+      Files.copy(in, spool, REPLACE_EXISTING);
+      try (InputStream verified = Files.newInputStream(spool)) {
+        readIncremental(verified, change -> {
+        });
+      }
+
+      synchronized (sequence) {
+        long current = sequence.get();
+        long to;
+        try (InputStream changes = Files.newInputStream(spool)) {
+          to = readIncremental(changes, current, change -> change.applyTo(backend));
+        }
+
+        Map<String, Long> positions = positions();
+        long last = Math.max(current, to);
+        positions.put(LAST, last);
+        // The applied changes are not in the log
+        positions.put(BASE, last);
+        sequence.set(last);
+        structures.clear();
+        backend.commit();
+        return true;
+      }
+    } catch (IOException | ClassNotFoundException | RuntimeException e) {
+      BotLogger.error("Could not apply incremental DB backup", TAG, e);
+      return false;
+    } finally {
+      if (spool != null)
+        spool.toFile().delete();
+    }
+  }
+
+  private static long readIncremental(InputStream in, Consumer<Change> apply) throws IOException, ClassNotFoundException {
+    return readIncremental(in, Long.MAX_VALUE, apply);
+  }
+
+  /**
+   * Reads the changes of an incremental backup, checking that it follows the given sequence number. Only the changes after it are applied.
+   *
+   * @return the sequence number of the last change of the backup
+   */
+  private static long readIncremental(InputStream in, long current, Consumer<Change> apply)
+      throws IOException, ClassNotFoundException {
+    DataInputStream header = new DataInputStream(in);
+    byte[] magic = new byte[MAGIC.length];
+    header.readFully(magic);
+    int version = header.readUnsignedByte();
+    if (version != VERSION)
+      throw new StreamCorruptedException(format("Unsupported version of incremental backup [%d]", version));
+
+    long since = header.readLong();
+    long to = header.readLong();
+    if (since > current)
+      throw new IllegalStateException(format("Incremental backup starts at [%d], after the DB at [%d]", since, current));
+
+    Inflater inflater = new Inflater();
+    try {
+      DataInputStream data = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in, inflater, BUFFER), BUFFER));
+      while (data.readBoolean()) {
+        long number = data.readLong();
+        if (number <= since || number > to)
+          throw new StreamCorruptedException(format("Malformed incremental backup, change [%d] is out of [%d, %d]", number, since, to));
+
+        // Changes the DB already applied are skipped, changes of single list elements cannot be applied twice
+        Change change = Change.read(data);
+        if (number > current)
+          apply.accept(change);
+      }
+
+      // Reaching the end of the compressed stream verifies its checksum
+      if (data.read() != -1)
+        throw new StreamCorruptedException("Malformed incremental backup, unexpected data after the last change");
+    } finally {
+      inflater.end();
+    }
+    return to;
+  }
+
+  private final class LoggedMap<K, V> extends ForwardingMap<K, V> {
+    private final String name;
+    private final Map<K, V> delegate;
+
+    private LoggedMap(String name, Map<K, V> delegate) {
+      this.name = name;
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected Map<K, V> delegate() {
+      return delegate;
+    }
+
+    @Override
+    public V put(K key, V value) {
+      return write(() -> delegate.put(key, value), previous -> new Change(Op.PUT, name, key, value));
+    }
+
+    @Override
+    public V remove(Object key) {
+      return write(() -> delegate.remove(key), previous -> previous == null ? null : new Change(Op.REMOVE, name, key, null));
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map) {
+      map.forEach(this::put);
+    }
+
+    @Override
+    public void clear() {
+      newArrayList(delegate.keySet()).forEach(this::remove);
+    }
+
+    /**
+     * Modifications through the views are not recorded, the views are read-only.
+     */
+    @Override
+    public Set<K> keySet() {
+      return unmodifiableSet(delegate.keySet());
+    }
+
+    @Override
+    public Collection<V> values() {
+      return unmodifiableCollection(delegate.values());
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+      return Collections.unmodifiableMap(delegate).entrySet();
+    }
+  }
+
+  private final class LoggedSet<T> extends ForwardingSet<T> {
+    private final String name;
+    private final Set<T> delegate;
+
+    private LoggedSet(String name, Set<T> delegate) {
+      this.name = name;
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected Set<T> delegate() {
+      return delegate;
+    }
+
+    /**
+     * Additions are recorded whether or not the element was present, the result of {@link Set#add(Object)} is not reliable on MapDB sets.
+     */
+    @Override
+    public boolean add(T element) {
+      return write(() -> delegate.add(element), added -> new Change(Op.ADD, name, element, null));
+    }
+
+    @Override
+    public boolean remove(Object element) {
+      return write(() -> delegate.remove(element), removed -> removed ? new Change(Op.DISCARD, name, element, null) : null);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> elements) {
+      boolean changed = false;
+      for (T element : elements)
+        changed |= add(element);
+      return changed;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> elements) {
+      boolean changed = false;
+      for (Object element : elements)
+        changed |= remove(element);
+      return changed;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> elements) {
+      return removeIf(element -> !elements.contains(element));
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super T> filter) {
+      return removeAll(delegate.stream().filter(filter).collect(toList()));
+    }
+
+    @Override
+    public void clear() {
+      removeAll(newArrayList(delegate));
+    }
+
+    /**
+     * Removals through the iterator are not recorded, the iterator is read-only.
+     */
+    @Override
+    public Iterator<T> iterator() {
+      return Iterators.unmodifiableIterator(delegate.iterator());
+    }
+  }
+
+  /**
+   * Appends, sets and removals of a single element are recorded on their own, the list is recorded as a whole after other modifications.
+   */
+  private final class LoggedList<T> extends ForwardingList<T> {
+    private final String name;
+    private final List<T> delegate;
+
+    private LoggedList(String name, List<T> delegate) {
+      this.name = name;
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected List<T> delegate() {
+      return delegate;
+    }
+
+    @Override
+    public boolean add(T element) {
+      return write(() -> delegate.add(element), added -> new Change(Op.APPEND, name, delegate.size() - 1, element));
+    }
+
+    @Override
+    public void add(int index, T element) {
+      logged(() -> {
+        delegate.add(index, element);
+        return null;
+      });
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> elements) {
+      return logged(() -> delegate.addAll(elements));
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends T> elements) {
+      return logged(() -> delegate.addAll(index, elements));
+    }
+
+    @Override
+    public T set(int index, T element) {
+      return write(() -> delegate.set(index, element), previous -> new Change(Op.SET, name, index, element));
+    }
+
+    @Override
+    public T remove(int index) {
+      return write(() -> delegate.remove(index), removed -> new Change(Op.REMOVE_AT, name, index, delegate.size() + 1));
+    }
+
+    @Override
+    public boolean remove(Object element) {
+      int removed = write(() -> {
+        int index = delegate.indexOf(element);
+        if (index >= 0)
+          delegate.remove(index);
+        return index;
+      }, index -> index < 0 ? null : new Change(Op.REMOVE_AT, name, index, delegate.size() + 1));
+      return removed >= 0;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> elements) {
+      return logged(() -> delegate.removeAll(elements));
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> elements) {
+      return logged(() -> delegate.retainAll(elements));
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super T> filter) {
+      return logged(() -> delegate.removeIf(filter));
+    }
+
+    @Override
+    public void replaceAll(UnaryOperator<T> operator) {
+      logged(() -> {
+        delegate.replaceAll(operator);
+        return null;
+      });
+    }
+
+    @Override
+    public void sort(Comparator<? super T> comparator) {
+      logged(() -> {
+        delegate.sort(comparator);
+        return null;
+      });
+    }
+
+    @Override
+    public void clear() {
+      logged(() -> {
+        delegate.clear();
+        return null;
+      });
+    }
+
+    /**
+     * Modifications through the iterators and sub-lists are not recorded, they are read-only.
+     */
+    @Override
+    public Iterator<T> iterator() {
+      return Iterators.unmodifiableIterator(delegate.iterator());
+    }
+
+    @Override
+    public ListIterator<T> listIterator() {
+      return unmodifiableList(delegate).listIterator();
+    }
+
+    @Override
+    public ListIterator<T> listIterator(int index) {
+      return unmodifiableList(delegate).listIterator(index);
+    }
+
+    @Override
+    public List<T> subList(int fromIndex, int toIndex) {
+      return unmodifiableList(delegate.subList(fromIndex, toIndex));
+    }
+
+    private <R> R logged(Supplier<R> modification) {
+      return write(modification, result -> new Change(Op.LIST, name, null, newArrayList(delegate)));
+    }
+  }
+}
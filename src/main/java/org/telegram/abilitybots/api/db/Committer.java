@@ -0,0 +1,166 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.mapdb.DB;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Commits a {@link DB} according to a {@link Durability} mode.
+ * <p>
+ * The committer does not commit the DB itself, it decides when to run the commit action it is given.
+ */
+abstract class Committer {
+  private static final String TAG = Committer.class.getSimpleName();
+
+  final Runnable action;
+
+  private Committer(Runnable action) {
+    this.action = action;
+  }
+
+  /**
+   * @param interval the gathering window of {@link Durability#GROUP} or the commit interval of {@link Durability#ASYNC}, in milliseconds
+   */
+  static Committer of(Durability durability, Runnable action, long interval) {
+    switch (durability) {
+      case GROUP:
+        return new Group(action, interval);
+      case ASYNC:
+        return new Async(action, interval);
+      default:
+        return new Sync(action);
+    }
+  }
+
+  abstract void commit();
+
+  /**
+   * Commits whatever is pending, the DB must not be committed after this method returns.
+   */
+  void close() {
+  }
+
+  private static final class Sync extends Committer {
+    private Sync(Runnable action) {
+      super(action);
+    }
+
+    @Override
+    void commit() {
+      action.run();
+    }
+  }
+
+  /**
+   * Every thread takes a ticket. The first thread without a commit in progress becomes the leader, waits for the window to gather
+   * the tickets of the other threads and commits them all at once. The other threads wait for a commit covering their ticket.
+   */
+  private static final class Group extends Committer {
+    private final long window;
+    private final ReentrantLock lock;
+    private final Condition done;
+    private long requested;
+    private long committed;
+    private boolean committing;
+
+    private Group(Runnable action, long window) {
+      super(action);
+      checkArgument(window >= 0, "Group commit window cannot be negative");
+      this.window = MILLISECONDS.toNanos(window);
+      this.lock = new ReentrantLock();
+      this.done = lock.newCondition();
+    }
+
+    @Override
+    void commit() {
+      lock.lock();
+      try {
+        long ticket = ++requested;
+        while (committing && committed < ticket)
+          done.awaitUninterruptibly();
+        if (committed >= ticket)
+          return;
+        committing = true;
+      } finally {
+        lock.unlock();
+      }
+
+      boolean succeeded = false;
+      long target = 0;
+      try {
+        if (window > 0)
+          LockSupport.parkNanos(window);
+
+        lock.lock();
+        try {
+          target = requested;
+        } finally {
+          lock.unlock();
+        }
+
+        action.run();
+        succeeded = true;
+      } finally {
+        lock.lock();
+        try {
+          // On failure, one of the waiting threads takes over and commits again
+          if (succeeded)
+            committed = target;
+          committing = false;
+          done.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  private static final class Async extends Committer {
+    private final AtomicBoolean pending;
+    private final ScheduledExecutorService scheduler;
+
+    private Async(Runnable action, long interval) {
+      super(action);
+      checkArgument(interval > 0, "Commit interval must be positive");
+      this.pending = new AtomicBoolean();
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("db-committer-%d").build());
+      scheduler.scheduleWithFixedDelay(this::flush, interval, interval, MILLISECONDS);
+    }
+
+    @Override
+    void commit() {
+      pending.set(true);
+    }
+
+    @Override
+    void close() {
+      MoreExecutors.shutdownAndAwaitTermination(scheduler, 10, SECONDS);
+      flush();
+    }
+
+    private void flush() {
+      if (!pending.getAndSet(false))
+        return;
+
+      try {
+        action.run();
+      } catch (RuntimeException e) {
+        pending.set(true);
+        BotLogger.error("Could not commit the DB in the background", TAG, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package org.telegram.abilitybots.api.db;
+
+/**
+ * A counter of the DB, opened with {@link DBContext#getCounter(String)}. Its operations are atomic.
+ */
+public interface Counter {
+  /**
+   * The name of the map that holds the counters opened with {@link DBContext#getCounter(String)}, by name.
+   */
+  String COUNTERS = "COUNTERS";
+
+  /**
+   * @return the current count, <tt>0</tt> if the counter was never incremented
+   */
+  long get();
+
+  /**
+   * Adds one to the count.
+   *
+   * @return the count after the increment
+   */
+  long increment();
+
+  /**
+   * Adds the delta to the count.
+   *
+   * @param delta the amount to add, may be negative
+   * @return the count after the addition
+   */
+  long add(long delta);
+}
@@ -0,0 +1,38 @@
+package org.telegram.abilitybots.api.db;
+
+import java.util.Map;
+
+/**
+ * Counters by key, opened with {@link DBContext#getCounterMap(String, Class)}. Its operations are atomic.
+ *
+ * @param <K> the type of the keys
+ */
+public interface CounterMap<K> {
+  /**
+   * @param key the key of the counter
+   * @return the current count of the key, <tt>0</tt> if it was never incremented
+   */
+  long get(K key);
+
+  /**
+   * Adds one to the count of the key.
+   *
+   * @param key the key of the counter
+   * @return the count of the key after the increment
+   */
+  long increment(K key);
+
+  /**
+   * Adds the delta to the count of the key.
+   *
+   * @param key   the key of the counter
+   * @param delta the amount to add, may be negative
+   * @return the count of the key after the addition
+   */
+  long add(K key, long delta);
+
+  /**
+   * @return a copy of the current counts, by key
+   */
+  Map<K, Long> asMap();
+}
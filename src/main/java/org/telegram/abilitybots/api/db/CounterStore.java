@@ -0,0 +1,231 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.telegram.abilitybots.api.db.Counter.COUNTERS;
+
+/**
+ * The counters of a DB, kept in memory and written behind to its maps.
+ * <p>
+ * The count of a key is loaded from the map of its counters when it is updated, then updated atomically in memory. The counts that changed
+ * are written to the maps every second, and the DB is committed after them, so that frequent increments neither write nor commit the DB
+ * each time. Written counts are dropped from memory, only the keys updated since the last write are held on the heap. The DB writes them
+ * before it is backed up and once it is closed. The counts of the last second are lost if the JVM crashes.
+ * <p>
+ * The maps of the counters must only be modified through the counters.
+ */
+final class CounterStore {
+  private static final String TAG = CounterStore.class.getSimpleName();
+  private static final long FLUSH_INTERVAL = SECONDS.toMillis(1);
+
+  private final DBContext db;
+  private final Map<String, Counts<?>> counts;
+  private final ScheduledExecutorService flusher;
+  private final AtomicBoolean scheduled;
+
+  /**
+   * @param db the DB whose maps hold the counts
+   */
+  CounterStore(DBContext db) {
+    this.db = db;
+    this.counts = new ConcurrentHashMap<>();
+    this.flusher = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("db-counters-%d").build());
+    this.scheduled = new AtomicBoolean();
+  }
+
+  Counter counter(String name) {
+    return MapCounters.counter(map(COUNTERS, String.class), name);
+  }
+
+  // The counters are checked against the key type before they are returned
+  @SuppressWarnings("unchecked")
+  <K> CounterMap<K> map(String name, Class<K> keyType) {
+    // Declares the map, so that conflicting types are detected by the DB
+    db.getMap(name, keyType, Long.class);
+    Counts<?> map = counts.computeIfAbsent(name, key -> new Counts<>(name, keyType));
+    checkState(map.keyType.equals(keyType), "DB counters with name [%s] were opened with keys of type [%s]", name, map.keyType.getName());
+
+    // The flusher thread is only started once counters are used
+    if (scheduled.compareAndSet(false, true))
+      flusher.scheduleWithFixedDelay(this::flushAndCommit, FLUSH_INTERVAL, FLUSH_INTERVAL, MILLISECONDS);
+    return (CounterMap<K>) map;
+  }
+
+  /**
+   * @return the number of counts held in memory
+   */
+  int held() {
+    return counts.values().stream().mapToInt(map -> map.values.size()).sum();
+  }
+
+  /**
+   * Writes the counts that changed to the maps and drops them from memory, without committing the DB. Flushes run one at a time, so that
+   * an older count never overwrites a newer one.
+   *
+   * @return <tt>true</tt> if any count was written
+   */
+  synchronized boolean flush() {
+    boolean flushed = false;
+    for (Counts<?> map : counts.values())
+      flushed |= map.flush();
+    return flushed;
+  }
+
+  /**
+   * Drops the counts kept in memory, they are loaded from the maps again. Called once the maps were cleared or recovered, the counters
+   * already opened stay valid.
+   */
+  synchronized void reset() {
+    counts.values().forEach(Counts::reset);
+  }
+
+  /**
+   * Writes the counts that changed and stops writing them periodically.
+   */
+  void close() {
+    flusher.shutdownNow();
+    flush();
+  }
+
+  private void flushAndCommit() {
+    try {
+      if (flush())
+        db.commit();
+    } catch (RuntimeException e) {
+      BotLogger.error("Could not write the DB counters", TAG, e);
+    }
+  }
+
+  private final class Counts<K> implements CounterMap<K> {
+    private final String name;
+    private final Class<K> keyType;
+    // Held shared by the updates, and exclusively to swap out or drop the counts, so that an update is never made to a dropped count
+    private final StampedLock stamp;
+    // The counts updated since the last flush
+    private volatile Map<K, AtomicLong> values;
+    // The counts being written by a flush, loaded from until they are in the map
+    private volatile Map<K, AtomicLong> flushing;
+
+    private Counts(String name, Class<K> keyType) {
+      this.name = name;
+      this.keyType = keyType;
+      this.stamp = new StampedLock();
+      this.values = new ConcurrentHashMap<>();
+      this.flushing = emptyMap();
+    }
+
+    @Override
+    public long get(K key) {
+      checkNotNull(key, "Counter key cannot be null");
+      long read = stamp.readLock();
+      try {
+        AtomicLong value = values.get(key);
+        return value == null ? load(key) : value.get();
+      } finally {
+        stamp.unlockRead(read);
+      }
+    }
+
+    @Override
+    public long increment(K key) {
+      return add(key, 1);
+    }
+
+    @Override
+    public long add(K key, long delta) {
+      checkNotNull(key, "Counter key cannot be null");
+      long read = stamp.readLock();
+      try {
+        return values.computeIfAbsent(key, k -> new AtomicLong(load(k))).addAndGet(delta);
+      } finally {
+        stamp.unlockRead(read);
+      }
+    }
+
+    @Override
+    public Map<K, Long> asMap() {
+      long read = stamp.readLock();
+      try {
+        // Taken before the map is read, the counts being flushed are at least as recent as the ones in the map
+        Map<K, AtomicLong> written = flushing;
+        Map<K, Long> copy = new HashMap<>(stored());
+        written.forEach((key, value) -> copy.put(key, value.get()));
+        values.forEach((key, value) -> copy.put(key, value.get()));
+        return unmodifiableMap(copy);
+      } finally {
+        stamp.unlockRead(read);
+      }
+    }
+
+    private long load(K key) {
+      AtomicLong written = flushing.get(key);
+      if (written != null)
+        return written.get();
+      Long stored = stored().get(key);
+      return stored == null ? 0 : stored;
+    }
+
+    private boolean flush() {
+      Map<K, AtomicLong> written;
+      long write = stamp.writeLock();
+      try {
+        if (values.isEmpty())
+          return false;
+        // Later updates start from the counts being written, on new values
+        written = values;
+        flushing = written;
+        values = new ConcurrentHashMap<>();
+      } finally {
+        stamp.unlockWrite(write);
+      }
+
+      try {
+        Map<K, Long> stored = stored();
+        written.forEach((key, value) -> stored.put(key, value.get()));
+      } catch (RuntimeException e) {
+        // The counts that were not updated since are written next time, the others were loaded from them
+        long restore = stamp.writeLock();
+        try {
+          written.forEach(values::putIfAbsent);
+        } finally {
+          stamp.unlockWrite(restore);
+        }
+        throw e;
+      } finally {
+        flushing = emptyMap();
+      }
+      return true;
+    }
+
+    private void reset() {
+      long write = stamp.writeLock();
+      try {
+        values = new ConcurrentHashMap<>();
+        flushing = emptyMap();
+      } finally {
+        stamp.unlockWrite(write);
+      }
+    }
+
+    private Map<K, Long> stored() {
+      return db.getMap(name, keyType, Long.class);
+    }
+  }
+}
@@ -1,12 +1,24 @@
 package org.telegram.abilitybots.api.db;
 
+import com.google.common.io.CharStreams;
 import org.telegram.abilitybots.api.bot.AbilityBot;
+import org.telegram.abilitybots.api.util.Metrics;
 import org.telegram.telegrambots.api.objects.Update;
+import org.telegram.telegrambots.logging.BotLogger;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.function.Function;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * This interface represents the high-level methods exposed to the user when handling an {@link Update}.
@@ -39,6 +51,138 @@ public interface DBContext extends Closeable {
    */
   <T> Set<T> getSet(String name);
 
+  /**
+   * Implementations are free to use the type to store the elements more efficiently.
+   * Once a structure is opened with its type, it can still be opened by name only.
+   * <p>
+   * The default implementation ignores the type and opens the structure by name.
+   *
+   * @param name the unique name of the {@link List}
+   * @param type the class of the elements of the List
+   * @param <T>  the type that the List holds
+   * @return the List with the specified name
+   * @throws IllegalStateException if the List was already opened with a different type
+   */
+  default <T> List<T> getList(String name, Class<T> type) {
+    return getList(name);
+  }
+
+  /**
+   * @param name      the unique name of the {@link Map}
+   * @param keyType   the class of the Map keys
+   * @param valueType the class of the Map values
+   * @param <K>       the type of the Map keys
+   * @param <V>       the type of the Map values
+   * @return the Map with the specified name
+   * @throws IllegalStateException if the Map was already opened with different types
+   * @see DBContext#getList(String, Class)
+   */
+  default <K, V> Map<K, V> getMap(String name, Class<K> keyType, Class<V> valueType) {
+    return getMap(name);
+  }
+
+  /**
+   * @param name the unique name of the {@link Set}
+   * @param type the class of the elements of the Set
+   * @param <T>  the type that the Set holds
+   * @return the Set with the specified name
+   * @throws IllegalStateException if the Set was already opened with a different type
+   * @see DBContext#getList(String, Class)
+   */
+  default <T> Set<T> getSet(String name, Class<T> type) {
+    return getSet(name);
+  }
+
+  /**
+   * Opens a map whose entries expire according to the policy, for data that must not grow forever such as conversation states, temporary
+   * tokens or caches.
+   * <p>
+   * Expired entries are evicted in the background and the evictions are counted in the {@link Metrics} as <code>db.evictions.[name]</code>.
+   * The policy is not part of backups. Like the types, it must be declared again once the DB is reopened or before it is recovered, before
+   * the map is opened by name.
+   * <p>
+   * The default implementation keeps the time of every entry in a second map, named <code>__EXPIRY_[name]</code>, and evicts the expired
+   * entries as the map is used rather than in the background. It does not check the policy against the one the map was opened with.
+   *
+   * @param name       the unique name of the {@link Map}
+   * @param keyType    the class of the Map keys
+   * @param valueType  the class of the Map values
+   * @param expiration the expiration policy of the entries
+   * @param <K>        the type of the Map keys
+   * @param <V>        the type of the Map values
+   * @return the Map with the specified name
+   * @throws IllegalStateException if the Map was already opened with different types or another expiration policy
+   * @see DBContext#getMap(String, Class, Class)
+   */
+  default <K, V> Map<K, V> getExpiringMap(String name, Class<K> keyType, Class<V> valueType, Expiration expiration) {
+    return new ExpiringView<>(name, getMap(name, keyType, valueType),
+        getMap(format("%s_%s", ExpiringView.TIMES, name), keyType, Long.class), expiration);
+  }
+
+  /**
+   * Opens a map that keeps its keys in their natural order, for leaderboards, time-ordered logs and other data that is read by ranges.
+   * <p>
+   * Ranges are read with the views of the map, such as <code>subMap(from, true, to, false)</code>, without going through the other keys.
+   * {@link SortedMaps} adds prefix and top-N queries. The views are read-only, the map is written through its own methods.
+   * Like the types, the map must be opened sorted before it is recovered, it is otherwise recovered as a regular map. Once created, it can
+   * still be opened by name.
+   * <p>
+   * The default implementation opens the map with {@link DBContext#getMap(String, Class, Class)} and sorts a copy of it for every
+   * navigation and iteration, so ranges cost as much as reading the whole map. Its key, value and entry sets are read-only.
+   * Implementations should keep the map sorted instead.
+   * <p>
+   * Example usage:
+   * <p><code>SortedMaps.top(db.getSortedMap(SCORES, Long.class, Integer.class), 10)</code></p>
+   *
+   * @param name      the unique name of the {@link NavigableMap}
+   * @param keyType   the class of the Map keys, which must be {@link Comparable}
+   * @param valueType the class of the Map values
+   * @param <K>       the type of the Map keys
+   * @param <V>       the type of the Map values
+   * @return the sorted Map with the specified name
+   * @throws IllegalStateException if the Map was already opened with different types or created unsorted
+   * @see DBContext#getMap(String, Class, Class)
+   */
+  default <K, V> NavigableMap<K, V> getSortedMap(String name, Class<K> keyType, Class<V> valueType) {
+    return NavigableView.sorting(getMap(name, keyType, valueType));
+  }
+
+  /**
+   * Opens a counter that is incremented atomically, without reading and writing back its value.
+   * <p>
+   * Counts are kept in memory and written to the DB in batches every second, before backups and once the DB is closed. The DB is
+   * committed after each batch, increments never commit it themselves. Counters are not part of transactions, and the counts of the last
+   * second are lost if the JVM crashes. Counters are stored in the {@link Counter#COUNTERS} map, by name, which must only be modified
+   * through them.
+   * <p>
+   * The default implementation writes every increment straight to the map, and the counts are committed along with the DB. Increments are
+   * atomic as long as the DB returns concurrent maps, or the same map every time it is opened.
+   * <p>
+   * Example usage:
+   * <p><code>db.getCounter("commands").increment()</code></p>
+   *
+   * @param name the unique name of the counter
+   * @return the counter with the specified name
+   * @see DBContext#getCounterMap(String, Class)
+   */
+  default Counter getCounter(String name) {
+    return MapCounters.counter(getCounterMap(Counter.COUNTERS, String.class), name);
+  }
+
+  /**
+   * Opens counters by key, such as usage by ability or by user, stored in the map with the specified name. The counters behave like the
+   * ones of {@link DBContext#getCounter(String)}, and the map must only be modified through them.
+   *
+   * @param name    the unique name of the map of counters
+   * @param keyType the class of the keys
+   * @param <K>     the type of the keys
+   * @return the counters with the specified name
+   * @throws IllegalStateException if the Map was already opened with different types
+   */
+  default <K> CounterMap<K> getCounterMap(String name, Class<K> keyType) {
+    return new MapCounters<>(getMap(name, keyType, Long.class));
+  }
+
   /**
    * @return a high-level summary of the database structures (Sets, Lists, Maps, ...) present.
    */
@@ -51,6 +195,37 @@ public interface DBContext extends Closeable {
    */
   Object backup();
 
+  /**
+   * Writes a backup of the DB to the stream, in the same format as {@link DBContext#backup()}.
+   * <p>
+   * Implementations should write the structures as they iterate them, so that backing up a large database does not require holding it in memory.
+   * The default implementation writes the text of {@link DBContext#backup()} in UTF-8. The stream is not closed by this method.
+   *
+   * @param out the stream to write the backup to
+   * @throws IOException if the backup could not be written to the stream
+   */
+  default void backup(OutputStream out) throws IOException {
+    out.write(String.valueOf(backup()).getBytes(UTF_8));
+    out.flush();
+  }
+
+  /**
+   * Writes a backup of the DB to the stream in the given format. Backups of every format can be read by {@link DBContext#recover(InputStream)}.
+   * <p>
+   * The default implementation only supports {@link BackupFormat#JSON}, which it writes with {@link DBContext#backup(OutputStream)}.
+   *
+   * @param out    the stream to write the backup to
+   * @param format the format of the backup
+   * @throws IOException                   if the backup could not be written to the stream
+   * @throws UnsupportedOperationException if the implementation does not support the format
+   * @see DBContext#backup(OutputStream)
+   */
+  default void backup(OutputStream out, BackupFormat format) throws IOException {
+    if (format != BackupFormat.JSON)
+      throw new UnsupportedOperationException(format("%s does not support %s backups", getClass().getSimpleName(), format));
+    backup(out);
+  }
+
   /**
    * The object passed to this method need to conform to the implementation of the {@link DBContext#backup()} method.
    *
@@ -59,6 +234,26 @@ public interface DBContext extends Closeable {
    */
   boolean recover(Object backup);
 
+  /**
+   * Recovers the database from a stream holding a backup produced by {@link DBContext#backup()} or, in any {@link BackupFormat},
+   * by {@link DBContext#backup(OutputStream, BackupFormat)}.
+   * <p>
+   * Implementations should consume the stream incrementally so that recovering a large backup does not require holding it in memory.
+   * The default implementation reads the stream as UTF-8 text and recovers it with {@link DBContext#recover(Object)}. The stream is not
+   * closed by this method.
+   *
+   * @param backup the stream of the backup of the database
+   * @return <tt>true</tt> if the database successfully recovered
+   */
+  default boolean recover(InputStream backup) {
+    try {
+      return recover((Object) CharStreams.toString(new InputStreamReader(backup, UTF_8)));
+    } catch (IOException e) {
+      BotLogger.error("Could not read the backup of the DB", DBContext.class.getSimpleName(), e);
+      return false;
+    }
+  }
+
   /**
    * @param name the name of the data structure
    * @return the high-level information of the structure
@@ -77,9 +272,46 @@ public interface DBContext extends Closeable {
    */
   void clear();
 
+  /**
+   * Deletes the data structure along with its data, a structure opened later under the same name starts empty. References to the
+   * dropped structure must no longer be used. Dropping a structure is not undone by a failed transaction.
+   * <p>
+   * The default implementation cannot delete structures, it leaves the structure untouched and returns <tt>false</tt>. The caller is
+   * then expected to clear it.
+   *
+   * @param name the name of the data structure
+   * @return <tt>true</tt> if the structure no longer exists
+   */
+  default boolean drop(String name) {
+    return false;
+  }
+
   /**
    * @param name the name of the data structure
    * @return <tt>true</tt> if this database contains the specified structure name
    */
   boolean contains(String name);
+
+  /**
+   * Runs the work as a single transaction. The work must only use the structures of the {@link DBContext} it is given.
+   * <p>
+   * Transactions are isolated from each other and from commits, a commit never persists a transaction partially.
+   * If the work throws, every modification it made is undone and the exception is rethrown. Otherwise, the database is committed once.
+   * A transaction started within another one joins it.
+   * <p>
+   * Example usage:
+   * <p><code>db.inTransaction(tx -> {tx.getMap(USERS).put(id, user); return tx.getSet(USER_ID).add(id);})</code></p>
+   * <p>
+   * The default implementation is neither isolated nor undone: it runs the work on this DB and commits it once the work returns. If the
+   * work throws, the modifications it made are left in place, uncommitted, and the exception is rethrown.
+   *
+   * @param work the work of the transaction
+   * @param <T>  the type of the result of the work
+   * @return the result of the work
+   */
+  default <T> T inTransaction(Function<DBContext, T> work) {
+    T result = work.apply(this);
+    commit();
+    return result;
+  }
 }
\ No newline at end of file
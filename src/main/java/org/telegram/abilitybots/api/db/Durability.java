@@ -0,0 +1,21 @@
+package org.telegram.abilitybots.api.db;
+
+/**
+ * The durability modes of the commits of a {@link MapDBContext}.
+ */
+public enum Durability {
+  /**
+   * Every commit is written and synced to disk before {@link DBContext#commit()} returns.
+   */
+  SYNC,
+  /**
+   * Commits of concurrent threads are gathered into a single one. {@link DBContext#commit()} still returns once the data is on disk,
+   * but it may wait for the commits of the other threads of the same window.
+   */
+  GROUP,
+  /**
+   * {@link DBContext#commit()} returns right away and a background thread commits at a fixed interval.
+   * The commits of the last interval are lost if the JVM crashes.
+   */
+  ASYNC
+}
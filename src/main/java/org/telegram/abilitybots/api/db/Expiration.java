@@ -0,0 +1,145 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * The expiration policy of a map opened with {@link DBContext#getExpiringMap(String, Class, Class, Expiration)}.
+ * <p>
+ * Entries expire a fixed time after they were last written, or after they were last read or written, and the oldest entries are evicted
+ * once the map holds more entries than its maximum size. A policy expires entries either after write or after access, not both.
+ * <p>
+ * Example usage:
+ * <p><code>Expiration.builder().afterAccess(MINUTES.toMillis(30)).maxSize(10_000).build()</code></p>
+ */
+public final class Expiration {
+  // Prefix of the counters of the evicted entries, followed by the name of the map
+  static final String EVICTIONS = "db.evictions";
+
+  private final long afterWrite;
+  private final long afterAccess;
+  private final long maxSize;
+  private final long evictionInterval;
+
+  private Expiration(long afterWrite, long afterAccess, long maxSize, long evictionInterval) {
+    checkArgument(afterWrite >= 0 && afterAccess >= 0 && maxSize >= 0, "Expiration times and maximum size cannot be negative");
+    checkArgument(afterWrite == 0 || afterAccess == 0, "Entries expire either after write or after access, not both");
+    checkArgument(afterWrite > 0 || afterAccess > 0 || maxSize > 0, "Expiration must have an expiration time or a maximum size");
+    checkArgument(evictionInterval > 0, "Eviction interval must be positive");
+    this.afterWrite = afterWrite;
+    this.afterAccess = afterAccess;
+    this.maxSize = maxSize;
+    this.evictionInterval = evictionInterval;
+  }
+
+  public static ExpirationBuilder builder() {
+    return new ExpirationBuilder();
+  }
+
+  /**
+   * @return the time in milliseconds after which entries expire once written, <tt>0</tt> if they do not
+   */
+  public long afterWrite() {
+    return afterWrite;
+  }
+
+  /**
+   * @return the time in milliseconds after which entries expire once read or written, <tt>0</tt> if they do not
+   */
+  public long afterAccess() {
+    return afterAccess;
+  }
+
+  /**
+   * @return the maximum number of entries of the map, <tt>0</tt> if it is not capped
+   */
+  public long maxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return the time in milliseconds between two evictions of the expired entries
+   */
+  public long evictionInterval() {
+    return evictionInterval;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (o == null || getClass() != o.getClass())
+      return false;
+
+    Expiration that = (Expiration) o;
+    return afterWrite == that.afterWrite &&
+        afterAccess == that.afterAccess &&
+        maxSize == that.maxSize &&
+        evictionInterval == that.evictionInterval;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(afterWrite, afterAccess, maxSize, evictionInterval);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("afterWrite", afterWrite)
+        .add("afterAccess", afterAccess)
+        .add("maxSize", maxSize)
+        .add("evictionInterval", evictionInterval)
+        .toString();
+  }
+
+  public static class ExpirationBuilder {
+    private long afterWrite;
+    private long afterAccess;
+    private long maxSize;
+    private long evictionInterval = SECONDS.toMillis(1);
+
+    private ExpirationBuilder() {
+    }
+
+    /**
+     * @param afterWrite the time in milliseconds after which entries expire once written
+     */
+    public ExpirationBuilder afterWrite(long afterWrite) {
+      this.afterWrite = afterWrite;
+      return this;
+    }
+
+    /**
+     * @param afterAccess the time in milliseconds after which entries expire once read or written
+     */
+    public ExpirationBuilder afterAccess(long afterAccess) {
+      this.afterAccess = afterAccess;
+      return this;
+    }
+
+    /**
+     * @param maxSize the maximum number of entries, the oldest ones are evicted beyond it
+     */
+    public ExpirationBuilder maxSize(long maxSize) {
+      this.maxSize = maxSize;
+      return this;
+    }
+
+    /**
+     * @param evictionInterval the time in milliseconds between two evictions of the expired entries
+     */
+    public ExpirationBuilder evictionInterval(long evictionInterval) {
+      this.evictionInterval = evictionInterval;
+      return this;
+    }
+
+    public Expiration build() {
+      return new Expiration(afterWrite, afterAccess, maxSize, evictionInterval);
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.collect.ForwardingMap;
+import org.telegram.abilitybots.api.util.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.lang.String.format;
+import static java.util.Map.Entry.comparingByValue;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A map whose entries expire, on top of a map of the DB and a second map that holds the time each entry was last written or accessed.
+ * The default of {@link DBContext#getExpiringMap(String, Class, Class, Expiration)}.
+ * <p>
+ * Nothing evicts the entries in the background. A read of an expired entry evicts it, and the whole map is swept at most once per
+ * eviction interval, when it is used. Entries that have no time yet, such as the ones written before the map expired its entries, are
+ * timed from the sweep that finds them. Writes beyond the maximum size evict the oldest entries right away.
+ */
+final class ExpiringView<K, V> extends ForwardingMap<K, V> {
+  // Prefix of the maps of the times, followed by the name of the map
+  static final String TIMES = "__EXPIRY";
+
+  private final Map<K, V> map;
+  private final Map<K, Long> times;
+  private final Expiration expiration;
+  private final String evictions;
+  private long swept;
+
+  /**
+   * @param name       the name of the map
+   * @param map        the map
+   * @param times      the map of the times of the entries
+   * @param expiration the expiration policy of the entries
+   */
+  ExpiringView(String name, Map<K, V> map, Map<K, Long> times, Expiration expiration) {
+    this.map = map;
+    this.times = times;
+    this.expiration = expiration;
+    this.evictions = format("%s.%s", Expiration.EVICTIONS, name);
+  }
+
+  @Override
+  protected Map<K, V> delegate() {
+    sweep();
+    return map;
+  }
+
+  @Override
+  public V get(Object key) {
+    V value = delegate().get(key);
+    if (value == null)
+      return null;
+
+    @SuppressWarnings("unchecked")
+    K typed = (K) key;
+    long now = System.currentTimeMillis();
+    if (expired(typed, now)) {
+      evict(typed);
+      return null;
+    }
+    if (expiration.afterAccess() > 0)
+      times.put(typed, now);
+    return value;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public V put(K key, V value) {
+    times.put(key, System.currentTimeMillis());
+    V previous = delegate().put(key, value);
+    cap(key);
+    return previous;
+  }
+
+  @Override
+  public void putAll(Map<? extends K, ? extends V> entries) {
+    entries.forEach(this::put);
+  }
+
+  @Override
+  public V remove(Object key) {
+    times.remove(key);
+    return delegate().remove(key);
+  }
+
+  @Override
+  public void clear() {
+    times.clear();
+    delegate().clear();
+  }
+
+  private synchronized void sweep() {
+    long now = System.currentTimeMillis();
+    if (now - swept < expiration.evictionInterval())
+      return;
+    swept = now;
+
+    for (K key : new ArrayList<>(map.keySet())) {
+      if (!times.containsKey(key))
+        times.put(key, now);
+      else if (expired(key, now))
+        evict(key);
+    }
+    // Entries removed through the views of the map leave their time behind
+    times.keySet().retainAll(new ArrayList<>(map.keySet()));
+    cap(null);
+  }
+
+  /**
+   * Evicts the oldest entries beyond the maximum size, except the entry that was just written.
+   */
+  private synchronized void cap(K written) {
+    long excess = map.size() - expiration.maxSize();
+    if (expiration.maxSize() == 0 || excess <= 0)
+      return;
+
+    List<K> oldest = times.entrySet().stream()
+        .filter(entry -> !Objects.equals(entry.getKey(), written))
+        .sorted(comparingByValue())
+        .limit(excess)
+        .map(Map.Entry::getKey)
+        .collect(toList());
+    oldest.forEach(this::evict);
+  }
+
+  private boolean expired(K key, long now) {
+    long expiry = Math.max(expiration.afterWrite(), expiration.afterAccess());
+    Long time = times.get(key);
+    return expiry > 0 && time != null && now - time >= expiry;
+  }
+
+  private void evict(K key) {
+    if (map.remove(key) != null)
+      Metrics.global().increment(evictions);
+    times.remove(key);
+  }
+}
@@ -0,0 +1,445 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.isNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * An implementation of {@link DBContext} that keeps all the structures in concurrent in-heap collections.
+ * <p>
+ * Writes never touch the disk. Instead, the database is written to a snapshot file periodically and on shutdown, in the format of
+ * {@link InMemoryDBContext#backup()}, and loaded back from it on startup. Snapshots are only written when the database was committed,
+ * cleared or recovered since the previous one. Updates that happen after the last snapshot are lost if the JVM crashes.
+ * <p>
+ * Snapshots and backups see the database as it was when they started, while it keeps being updated, and are never taken in the middle of a
+ * {@link DBContext#inTransaction(Function) transaction}. The structures save the previous state of what they modify while one runs,
+ * rather than being copied or locked.
+ * <p>
+ * Expiring maps are Guava caches, expired entries are no longer visible even before they are evicted in the background.
+ */
+public class InMemoryDBContext implements DBContext {
+  private static final String TAG = DBContext.class.getSimpleName();
+  private static final long SNAPSHOT_INTERVAL = SECONDS.toMillis(5);
+
+  private final Map<String, Object> structures;
+  private final Map<String, String> types;
+  private final Backups backups;
+  private final AtomicBoolean dirty;
+  private final Transactions transactions;
+  private final Snapshots snapshots;
+  private final Map<String, Expiration> expirations;
+  private final ScheduledExecutorService evictor;
+  private final CounterStore counters;
+  private final Path snapshot;
+  private final ScheduledExecutorService scheduler;
+  private final Thread shutdownHook;
+
+  private InMemoryDBContext(Path snapshot, long snapshotInterval) {
+    // Sorted, so that summaries are listed in the same order as with MapDB
+    this.structures = new ConcurrentSkipListMap<>();
+    this.types = new ConcurrentHashMap<>();
+    this.backups = new Backups();
+    this.dirty = new AtomicBoolean();
+    this.transactions = new Transactions();
+    this.snapshots = new Snapshots(transactions);
+    this.expirations = new ConcurrentHashMap<>();
+    // Its thread is only started once an expiring map is opened
+    this.evictor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("db-evictor-%d").build());
+    this.counters = new CounterStore(this);
+    this.snapshot = snapshot;
+
+    if (isNull(snapshot)) {
+      scheduler = null;
+      shutdownHook = null;
+      return;
+    }
+
+    checkArgument(snapshotInterval > 0, "Snapshot interval must be positive");
+    load();
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("db-snapshot-%d").build());
+    scheduler.scheduleWithFixedDelay(this::snapshot, snapshotInterval, snapshotInterval, MILLISECONDS);
+    shutdownHook = new Thread(this::snapshot, "db-snapshot-shutdown");
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+  }
+
+  /**
+   * The DB returned by this method is snapshot to the file <code>[name].json</code> every 5 seconds.
+   *
+   * @param name name of the DB
+   * @return an online instance of {@link InMemoryDBContext}
+   */
+  public static DBContext onlineInstance(String name) {
+    return onlineInstance(name, SNAPSHOT_INTERVAL);
+  }
+
+  /**
+   * @param name             name of the DB
+   * @param snapshotInterval the time in milliseconds between two snapshots
+   * @return an online instance of {@link InMemoryDBContext}
+   */
+  public static DBContext onlineInstance(String name, long snapshotInterval) {
+    return new InMemoryDBContext(Paths.get(name + ".json"), snapshotInterval);
+  }
+
+  /**
+   * The DB returned by this method is never persisted.
+   *
+   * @return an offline instance of {@link InMemoryDBContext}
+   */
+  public static DBContext offlineInstance() {
+    return new InMemoryDBContext(null, 0);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> List<T> getList(String name) {
+    return (List<T>) structure(name, List.class, () -> Collections.synchronizedList(new ArrayList<>()));
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <K, V> Map<K, V> getMap(String name) {
+    return (Map<K, V>) structure(name, Map.class, ConcurrentHashMap::new);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> Set<T> getSet(String name) {
+    return (Set<T>) structure(name, Set.class, ConcurrentHashMap::newKeySet);
+  }
+
+  @Override
+  public <T> List<T> getList(String name, Class<T> type) {
+    declare(name, type.getName());
+    return getList(name);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <K, V> Map<K, V> getMap(String name, Class<K> keyType, Class<V> valueType) {
+    String declaration = keyType.getName() + "," + valueType.getName();
+    Map<K, V> map = getMap(name);
+    if (declare(name, declaration) && !map.isEmpty())
+      // Keys loaded before the map was declared are strings, as in the JSON snapshot
+      rekey(name, declaration, (Map<Object, Object>) map);
+    return map;
+  }
+
+  @Override
+  public <T> Set<T> getSet(String name, Class<T> type) {
+    declare(name, type.getName());
+    return getSet(name);
+  }
+
+  /**
+   * A map opened before its expiration was declared, such as one loaded from a snapshot, becomes expiring. Its entries expire as if they
+   * had just been written.
+   */
+  @Override
+  public <K, V> Map<K, V> getExpiringMap(String name, Class<K> keyType, Class<V> valueType, Expiration expiration) {
+    Expiration existing = expirations.putIfAbsent(name, expiration);
+    checkState(existing == null || existing.equals(expiration),
+        "DB structure with name [%s] was opened with expiration %s, it cannot be opened with expiration %s", name, existing, expiration);
+
+    if (existing == null) {
+      structures.compute(name, (key, current) -> {
+        checkState(isNull(current) || current instanceof Map, "DB structure with name [%s] is not a Map", name);
+        Map<Object, Object> expiring = expiringMap(name, expiration);
+        if (current != null)
+          expiring.putAll((Map<?, ?>) Snapshots.unwrap(current));
+        return snapshots.wrap(name, expiring);
+      });
+    }
+    return getMap(name, keyType, valueType);
+  }
+
+  /**
+   * A map opened before it was declared sorted, such as one loaded from a snapshot, becomes sorted.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public <K, V> NavigableMap<K, V> getSortedMap(String name, Class<K> keyType, Class<V> valueType) {
+    // Declared first, so that the keys loaded as strings are typed before they are sorted
+    getMap(name, keyType, valueType);
+    return (NavigableMap<K, V>) structures.compute(name, (key, current) -> {
+      if (current instanceof NavigableMap)
+        return current;
+
+      NavigableMap<Object, Object> sorted = new ConcurrentSkipListMap<>((Map<?, ?>) Snapshots.unwrap(current));
+      return snapshots.wrap(name, sorted);
+    });
+  }
+
+  @Override
+  public Counter getCounter(String name) {
+    return counters.counter(name);
+  }
+
+  @Override
+  public <K> CounterMap<K> getCounterMap(String name, Class<K> keyType) {
+    return counters.map(name, keyType);
+  }
+
+  @Override
+  public String summary() {
+    return structures.keySet().stream()
+        .map(this::info)
+        .reduce(new StringJoiner("\n"), StringJoiner::add, StringJoiner::merge)
+        .toString();
+  }
+
+  @Override
+  public Object backup() {
+    counters.flush();
+    return snapshots.read(structures::get, snapshot -> backups.write(structures.keySet(), snapshot));
+  }
+
+  @Override
+  public void backup(OutputStream out) throws IOException {
+    backup(out, BackupFormat.JSON);
+  }
+
+  @Override
+  public void backup(OutputStream out, BackupFormat format) throws IOException {
+    counters.flush();
+    snapshots.read(structures::get, snapshot -> {
+      backups.write(format, structures.keySet(), snapshot, out);
+      return null;
+    });
+  }
+
+  @Override
+  public boolean recover(Object backup) {
+    return recover(new ByteArrayInputStream(backup.toString().getBytes(UTF_8)));
+  }
+
+  /**
+   * The backup is read into a separate database first, the current data is only replaced once the whole backup was read.
+   */
+  @Override
+  public boolean recover(InputStream backup) {
+    InMemoryDBContext staging = new InMemoryDBContext(null, 0);
+    staging.types.putAll(types);
+
+    try {
+      backups.read(backup, staging, types::get);
+    } catch (IOException | ClassNotFoundException e) {
+      BotLogger.error("Could not recover DB data from backup stream", TAG, e);
+      return false;
+    }
+
+    clear();
+    staging.structures.forEach(this::restore);
+    return true;
+  }
+
+  @Override
+  public String info(String name) {
+    Object struct = structures.get(name);
+    if (isNull(struct))
+      throw new IllegalStateException(format("DB structure with name [%s] does not exist", name));
+
+    if (struct instanceof Set)
+      return format("%s - Set - %d", name, ((Set) struct).size());
+    else if (struct instanceof List)
+      return format("%s - List - %d", name, ((List) struct).size());
+    else
+      return format("%s - Map - %d", name, ((Map) struct).size());
+  }
+
+  /**
+   * Marks the database for the next snapshot. Snapshots are never taken while a transaction is in progress.
+   */
+  @Override
+  public void commit() {
+    dirty.set(true);
+  }
+
+  @Override
+  public void clear() {
+    structures.values().forEach(struct -> {
+      if (struct instanceof Collection)
+        ((Collection) struct).clear();
+      else
+        ((Map) struct).clear();
+    });
+    counters.reset();
+    commit();
+  }
+
+  @Override
+  public boolean drop(String name) {
+    // Snapshots and backups look the structures up by name until they are done
+    snapshots.outside(() -> {
+      structures.remove(name);
+      types.remove(name);
+      expirations.remove(name);
+    });
+    commit();
+    return true;
+  }
+
+  @Override
+  public boolean contains(String name) {
+    return structures.containsKey(name);
+  }
+
+  @Override
+  public <T> T inTransaction(Function<DBContext, T> work) {
+    return transactions.run(this, work);
+  }
+
+  /**
+   * Writes the last snapshot of the database and stops the periodic snapshots.
+   */
+  @Override
+  public void close() throws IOException {
+    counters.close();
+    evictor.shutdownNow();
+    if (isNull(snapshot))
+      return;
+
+    scheduler.shutdown();
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException e) {
+      // The JVM is already shutting down, the hook takes care of the snapshot
+      return;
+    }
+    snapshot();
+  }
+
+  private Object structure(String name, Class<?> kind, Supplier<Object> factory) {
+    Object struct = structures.computeIfAbsent(name, key -> snapshots.wrap(name, factory.get()));
+    checkState(kind.isInstance(struct), "DB structure with name [%s] is not a %s", name, kind.getSimpleName());
+    return struct;
+  }
+
+  private Map<Object, Object> expiringMap(String name, Expiration expiration) {
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+    if (expiration.afterWrite() > 0)
+      builder.expireAfterWrite(expiration.afterWrite(), MILLISECONDS);
+    if (expiration.afterAccess() > 0)
+      builder.expireAfterAccess(expiration.afterAccess(), MILLISECONDS);
+    if (expiration.maxSize() > 0)
+      builder.maximumSize(expiration.maxSize());
+
+    String evictions = format("%s.%s", Expiration.EVICTIONS, name);
+    Cache<Object, Object> cache = builder
+        .removalListener(notification -> {
+          if (notification.wasEvicted())
+            Metrics.global().increment(evictions);
+        })
+        .build();
+    // Guava evicts as the cache is used, idle caches are cleaned up periodically
+    evictor.scheduleWithFixedDelay(cache::cleanUp, expiration.evictionInterval(), expiration.evictionInterval(), MILLISECONDS);
+    return cache.asMap();
+  }
+
+  /**
+   * @return <tt>true</tt> if the structure was not declared before
+   */
+  private boolean declare(String name, String declaration) {
+    String existing = types.putIfAbsent(name, declaration);
+    checkState(existing == null || existing.equals(declaration),
+        "DB structure with name [%s] was declared with types [%s], it cannot be opened with types [%s]", name, existing, declaration);
+    return existing == null;
+  }
+
+  private static void rekey(String name, String declaration, Map<Object, Object> map) {
+    new ArrayList<>(map.keySet()).stream()
+        .filter(key -> key instanceof String)
+        .forEach(key -> {
+          Object typed = JsonBackup.keyOf(name, declaration, (String) key);
+          if (!typed.equals(key))
+            map.put(typed, map.remove(key));
+        });
+  }
+
+  @SuppressWarnings("unchecked")
+  private void restore(String name, Object struct) {
+    // Rewrapped, the structures of the staging database save their states to its own snapshots
+    struct = snapshots.wrap(name, Snapshots.unwrap(struct));
+    Object current = structures.putIfAbsent(name, struct);
+    if (isNull(current))
+      return;
+
+    if (current instanceof Set && struct instanceof Set)
+      ((Set<Object>) current).addAll((Set<?>) struct);
+    else if (current instanceof List && struct instanceof List)
+      ((List<Object>) current).addAll((List<?>) struct);
+    else if (current instanceof Map && struct instanceof Map)
+      ((Map<Object, Object>) current).putAll((Map<?, ?>) struct);
+    else
+      structures.put(name, struct);
+  }
+
+  private void load() {
+    if (!Files.exists(snapshot))
+      return;
+
+    try (InputStream in = Files.newInputStream(snapshot)) {
+      if (recover(in)) {
+        dirty.set(false);
+        BotLogger.info(TAG, format("Loaded DB snapshot [%s]", snapshot));
+        return;
+      }
+    } catch (IOException e) {
+      BotLogger.error(format("Could not read DB snapshot [%s]", snapshot), TAG, e);
+    }
+
+    // Keep the unreadable snapshot aside rather than overwriting it with the next one
+    try {
+      Files.move(snapshot, snapshot.resolveSibling(snapshot.getFileName() + ".corrupt"), REPLACE_EXISTING);
+    } catch (IOException e) {
+      BotLogger.error(format("Could not move aside DB snapshot [%s]", snapshot), TAG, e);
+    }
+  }
+
+  private synchronized void snapshot() {
+    if (!dirty.getAndSet(false))
+      return;
+
+    Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+    try {
+      try (OutputStream out = Files.newOutputStream(temp)) {
+        backup(out);
+      }
+      // Readers either see the previous snapshot or the new one, never a partial file
+      Files.move(temp, snapshot, REPLACE_EXISTING, ATOMIC_MOVE);
+    } catch (IOException e) {
+      dirty.set(true);
+      BotLogger.error(format("Could not write DB snapshot [%s]", snapshot), TAG, e);
+    }
+  }
+}
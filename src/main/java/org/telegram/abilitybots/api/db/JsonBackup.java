@@ -0,0 +1,211 @@
+package org.telegram.abilitybots.api.db;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.function.Function;
+
+import static com.fasterxml.jackson.core.JsonGenerator.Feature.AUTO_CLOSE_TARGET;
+import static com.fasterxml.jackson.core.JsonToken.*;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
+
+/**
+ * The JSON format of the backups of the {@link DBContext} implementations.
+ * <p>
+ * A backup is a JSON object mapping every structure name to the structure, written with its type, <code>["java.util.HashSet", [...]]</code>.
+ */
+final class JsonBackup {
+  private static final String TAG = JsonBackup.class.getSimpleName();
+  // The number of elements read before they are written to the target, it bounds the memory used by a recovery
+  private static final int BATCH = 1000;
+
+  private final ObjectMapper objectMapper;
+  // Elements carry their type as they do when a whole structure is written by the mapper
+  private final TypeSerializer elementTyping;
+
+  JsonBackup() {
+    objectMapper = new ObjectMapper();
+    objectMapper.enableDefaultTyping();
+    try {
+      elementTyping = objectMapper.getSerializerFactory()
+          .createTypeSerializer(objectMapper.getSerializationConfig(), objectMapper.constructType(Object.class));
+    } catch (JsonMappingException e) {
+      throw new IllegalStateException("Could not create the type serializer of the backups", e);
+    }
+  }
+
+  /**
+   * Writes the backup of the structures straight to the stream, one element at a time. The stream is not closed.
+   * <p>
+   * Structures are written as they are iterated, a structure modified while it is written is only weakly consistent.
+   *
+   * @param names      the names of the structures to write
+   * @param structures the structure of each name
+   * @param out        the stream of the backup
+   */
+  void write(Iterable<String> names, Function<String, Object> structures, OutputStream out) throws IOException {
+    SerializerProvider provider = objectMapper.getSerializerProviderInstance();
+    try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out).disable(AUTO_CLOSE_TARGET)) {
+      generator.writeStartObject();
+      for (String name : names) {
+        Object struct = structures.apply(name);
+        if (struct instanceof Set || struct instanceof List || struct instanceof Map) {
+          generator.writeFieldName(name);
+          writeStructure(generator, provider, struct);
+        }
+      }
+      generator.writeEndObject();
+    }
+  }
+
+  /**
+   * @return the JSON backup of the structures
+   * @see JsonBackup#write(Iterable, Function, OutputStream)
+   */
+  String write(Iterable<String> names, Function<String, Object> structures) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      write(names, structures, out);
+      return new String(out.toByteArray(), UTF_8);
+    } catch (IOException e) {
+      BotLogger.info(format("Failed to write the JSON representation of structures: %s", names), TAG, e);
+      return "Error reading required data...";
+    }
+  }
+
+  /**
+   * Reads a backup into the target database, one structure at a time. Elements are written to the target in batches.
+   * <p>
+   * The target is cleared once the stream is known to hold a JSON object, it is not committed.
+   *
+   * @param backup       the stream of the backup
+   * @param target       the database to recover
+   * @param declarations the declared types of the structures of the target, as comma-separated class names
+   */
+  void read(InputStream backup, DBContext target, Function<String, String> declarations) throws IOException, ClassNotFoundException {
+    try (JsonParser parser = objectMapper.getFactory().createParser(backup)) {
+      // Do not touch the current data unless the stream actually looks like a backup
+      expect(parser, parser.nextToken(), START_OBJECT);
+      target.clear();
+      while (parser.nextToken() == FIELD_NAME) {
+        String name = parser.getCurrentName();
+        readStructure(name, parser, target, declarations.apply(name));
+      }
+      expect(parser, parser.getCurrentToken(), END_OBJECT);
+    }
+  }
+
+  /**
+   * JSON keys are always strings, they are converted back to the declared key type of the map.
+   */
+  static Object keyOf(String name, String declaration, String key) {
+    String keyType = declaration == null ? null : declaration.split(",")[0];
+
+    // USERS is keyed by integers even in databases created before typed structures
+    if (Integer.class.getName().equals(keyType) || (keyType == null && name.equals(USERS)))
+      return Integer.valueOf(key);
+    else if (Long.class.getName().equals(keyType))
+      return Long.valueOf(key);
+    else
+      return key;
+  }
+
+  /**
+   * Writes the structure as <code>["java.util.HashSet", [...]]</code>, with the type of the local copy of the structure.
+   */
+  private void writeStructure(JsonGenerator generator, SerializerProvider provider, Object struct) throws IOException {
+    generator.writeStartArray();
+    generator.writeString(copyType(struct).getName());
+
+    if (struct instanceof Map) {
+      generator.writeStartObject();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) struct).entrySet()) {
+        generator.writeFieldName(String.valueOf(entry.getKey()));
+        writeElement(generator, provider, entry.getValue());
+      }
+      generator.writeEndObject();
+    } else {
+      generator.writeStartArray();
+      for (Object element : (Collection<?>) struct)
+        writeElement(generator, provider, element);
+      generator.writeEndArray();
+    }
+
+    generator.writeEndArray();
+  }
+
+  private void writeElement(JsonGenerator generator, SerializerProvider provider, Object element) throws IOException {
+    if (element == null)
+      generator.writeNull();
+    else
+      provider.findValueSerializer(element.getClass()).serializeWithType(element, generator, provider, elementTyping);
+  }
+
+  private static Class<?> copyType(Object struct) {
+    if (struct instanceof Set)
+      return HashSet.class;
+    else if (struct instanceof List)
+      return ArrayList.class;
+    else
+      return HashMap.class;
+  }
+
+  private void readStructure(String name, JsonParser parser, DBContext target, String declaration) throws IOException, ClassNotFoundException {
+    expect(parser, parser.nextToken(), START_ARRAY);
+    expect(parser, parser.nextToken(), VALUE_STRING);
+    Class<?> type = Class.forName(parser.getText(), false, getClass().getClassLoader());
+    JsonToken payload = parser.nextToken();
+
+    if (Set.class.isAssignableFrom(type) || List.class.isAssignableFrom(type)) {
+      expect(parser, payload, START_ARRAY);
+      Collection<Object> struct = Set.class.isAssignableFrom(type) ? target.getSet(name) : target.getList(name);
+      List<Object> batch = new ArrayList<>();
+      while (parser.nextToken() != END_ARRAY) {
+        batch.add(objectMapper.readValue(parser, Object.class));
+        if (batch.size() == BATCH) {
+          struct.addAll(batch);
+          batch.clear();
+        }
+      }
+      struct.addAll(batch);
+    } else if (Map.class.isAssignableFrom(type)) {
+      expect(parser, payload, START_OBJECT);
+      Map<Object, Object> map = target.getMap(name);
+      Map<Object, Object> batch = new HashMap<>();
+      while (parser.nextToken() == FIELD_NAME) {
+        Object key = keyOf(name, declaration, parser.getCurrentName());
+        parser.nextToken();
+        batch.put(key, objectMapper.readValue(parser, Object.class));
+        if (batch.size() == BATCH) {
+          map.putAll(batch);
+          batch.clear();
+        }
+      }
+      map.putAll(batch);
+    } else {
+      BotLogger.error(TAG, format("Unable to identify object type during DB recovery, entry name: %s", name));
+      parser.skipChildren();
+    }
+
+    expect(parser, parser.nextToken(), END_ARRAY);
+  }
+
+  private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonParseException {
+    if (actual != expected)
+      throw new JsonParseException(parser, format("Malformed backup, expected %s but found %s", expected, actual));
+  }
+}
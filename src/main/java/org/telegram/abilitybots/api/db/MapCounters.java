@@ -0,0 +1,79 @@
+package org.telegram.abilitybots.api.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Counters written straight to a map of the DB, the default of {@link DBContext#getCounterMap(String, Class)}.
+ * <p>
+ * Every update writes the map, and the counts are committed along with the DB. Updates are atomic if the map is a {@link ConcurrentMap},
+ * they are otherwise synchronized on the map.
+ */
+final class MapCounters<K> implements CounterMap<K> {
+  private final Map<K, Long> counts;
+
+  MapCounters(Map<K, Long> counts) {
+    this.counts = counts;
+  }
+
+  /**
+   * @param counters the counters of the DB, by name
+   * @param name     the name of the counter
+   * @return the counter with the specified name
+   */
+  static Counter counter(CounterMap<String> counters, String name) {
+    return new Counter() {
+      @Override
+      public long get() {
+        return counters.get(name);
+      }
+
+      @Override
+      public long increment() {
+        return counters.increment(name);
+      }
+
+      @Override
+      public long add(long delta) {
+        return counters.add(name, delta);
+      }
+    };
+  }
+
+  @Override
+  public long get(K key) {
+    checkNotNull(key, "Counter key cannot be null");
+    Long count = counts.get(key);
+    return count == null ? 0 : count;
+  }
+
+  @Override
+  public long increment(K key) {
+    return add(key, 1);
+  }
+
+  @Override
+  public long add(K key, long delta) {
+    checkNotNull(key, "Counter key cannot be null");
+    if (counts instanceof ConcurrentMap)
+      return counts.merge(key, delta, Long::sum);
+
+    synchronized (counts) {
+      return counts.merge(key, delta, Long::sum);
+    }
+  }
+
+  @Override
+  public Map<K, Long> asMap() {
+    if (counts instanceof ConcurrentMap)
+      return unmodifiableMap(new HashMap<>(counts));
+
+    synchronized (counts) {
+      return unmodifiableMap(new HashMap<>(counts));
+    }
+  }
+}
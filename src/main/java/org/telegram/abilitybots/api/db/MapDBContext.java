@@ -1,30 +1,68 @@
 package org.telegram.abilitybots.api.db;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.mapdb.DB;
+import org.mapdb.DBException;
 import org.mapdb.DBMaker;
 import org.mapdb.Serializer;
-import org.telegram.abilitybots.api.util.Pair;
+import org.mapdb.StoreDirect;
+import org.mapdb.StoreTx;
+import org.mapdb.serializer.GroupSerializer;
+import org.mapdb.volume.ByteBufferMemoryVol;
+import org.telegram.abilitybots.api.objects.EndUser;
+import org.telegram.abilitybots.api.util.Metrics;
 import org.telegram.telegrambots.logging.BotLogger;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
-import static com.google.common.collect.Lists.newArrayList;
-import static com.google.common.collect.Maps.newHashMap;
-import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.base.Preconditions.checkState;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.isNull;
-import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static java.util.stream.StreamSupport.stream;
+import static org.mapdb.Serializer.INTEGER;
 import static org.mapdb.Serializer.JAVA;
-import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
+import static org.mapdb.Serializer.LONG;
+import static org.mapdb.Serializer.STRING;
 
 /**
  * An implementation of {@link DBContext} that relies on a {@link DB}.
+ * <p>
+ * Structures opened with the typed accessors, such as {@link MapDBContext#getMap(String, Class, Class)}, are stored with compact serializers for
+ * {@link Integer}, {@link Long}, {@link String} and {@link EndUser}. Their types are remembered, so that they can be reopened by name alone.
+ * Structures opened by name only are stored with Java serialization. Sorted maps are B-trees of MapDB, they store {@link EndUser} values with Java
+ * serialization.
+ * <p>
+ * Structures created before they were accessed with their types keep using Java serialization. To migrate them, open a new database,
+ * declare the typed structures on it and copy the old database into it with {@link MapDBContext#copyTo(DBContext)}.
+ * <p>
+ * Opened structures are cached, repeated accesses to the same structure return the same instance without looking it up in the DB.
+ * The cache is dropped whenever the DB is cleared, recovered or closed.
+ * <p>
+ * Backups see the DB as it was when they started, while it keeps being updated. The structures save the previous state of what they modify
+ * while a backup runs, rather than being copied or locked.
+ * <p>
+ * Expiring maps rely on the expiration of MapDB, their entries are evicted by a background thread of the DB. Their expiration times are
+ * stored in the DB while their maximum size is not, a map reopened by name before its expiration was declared again only evicts its
+ * entries as it is written to. The maximum size is enforced on each of the segments of the map, a small cap may keep a few more entries.
+ * <p>
+ * Counters are regular maps of {@link Long} counts, so that they are backed up and copied like the other structures.
  *
  * @author Abbas Abou Daya
  * @see <a href="https://github.com/jankotek/mapdb">MapDB project</a>
@@ -32,14 +70,66 @@ import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
 public class MapDBContext implements DBContext {
   private static final String TAG = DBContext.class.getSimpleName();
 
+  // Hidden structure holding the declared types of the typed structures, name -> comma-separated class names
+  static final String TYPES = "__TYPES";
+  // Type of the sorted maps in the catalog of the DB
+  private static final String TREE_MAP = "TreeMap";
+
+  private static final Map<String, Serializer<?>> SERIALIZERS = ImmutableMap.of(
+      Integer.class.getName(), INTEGER,
+      Long.class.getName(), LONG,
+      String.class.getName(), STRING,
+      EndUser.class.getName(), EndUserSerializer.INSTANCE);
+
+  private static final long GROUP_WINDOW = 1;
+  private static final long ASYNC_INTERVAL = 1000;
+
+  private static final int KEY = 0;
+  private static final int VALUE = 1;
+  private static final int ELEMENT = 0;
+
   private final DB db;
-  private final ObjectMapper objectMapper;
+  private final Committer committer;
+  private final Transactions transactions;
+  private final Backups backups;
+  private final Snapshots snapshots;
+  private final Map<String, String> types;
+  // Opened structures and verified declarations, so that frequent accesses do not go through the catalog of the DB
+  private final Map<String, Object> handles;
+  private final Map<String, String> declared;
+  private final Map<String, Expiration> expirations;
+  private final ScheduledExecutorService evictor;
+  private final Metrics metrics;
+  private final CounterStore counters;
 
   public MapDBContext(DB db) {
-    this.db = db;
+    this(db, Durability.SYNC, 0);
+  }
 
-    objectMapper = new ObjectMapper();
-    objectMapper.enableDefaultTyping();
+  /**
+   * @param db         the underlying DB
+   * @param durability the durability mode of the commits
+   * @param interval   the gathering window of {@link Durability#GROUP} or the commit interval of {@link Durability#ASYNC}, in milliseconds
+   */
+  public MapDBContext(DB db, Durability durability, long interval) {
+    this(db, durability, interval, Metrics.global());
+  }
+
+  MapDBContext(DB db, Durability durability, long interval, Metrics metrics) {
+    this.db = db;
+    this.metrics = metrics;
+    this.transactions = new Transactions();
+    this.committer = Committer.of(durability, () -> transactions.shared(db::commit), interval);
+    this.types = db.hashMap(TYPES, STRING, STRING).createOrOpen();
+    this.handles = new ConcurrentHashMap<>();
+    this.declared = new ConcurrentHashMap<>();
+    this.expirations = new ConcurrentHashMap<>();
+    // Its thread is only started once an expiring map is opened
+    this.evictor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("db-evictor-%d").build());
+    this.backups = new Backups();
+    this.snapshots = new Snapshots(transactions);
+    this.counters = new CounterStore(this);
   }
 
   /**
@@ -49,14 +139,49 @@ public class MapDBContext implements DBContext {
    * @return an online instance of {@link MapDBContext}
    */
   public static DBContext onlineInstance(String name) {
-    DB db = DBMaker
+    return onlineInstance(name, Durability.SYNC);
+  }
+
+  /**
+   * Group commits are gathered over {@value GROUP_WINDOW} millisecond, asynchronous commits happen every {@value ASYNC_INTERVAL} milliseconds.
+   *
+   * @param name       name of the DB file
+   * @param durability the durability mode of the commits
+   * @return an online instance of {@link MapDBContext}
+   * @see MapDBContext#onlineInstance(String, Durability, long)
+   */
+  public static DBContext onlineInstance(String name, Durability durability) {
+    return onlineInstance(name, durability, durability == Durability.ASYNC ? ASYNC_INTERVAL : GROUP_WINDOW);
+  }
+
+  /**
+   * A DB file whose header was left broken by a crash during a commit is reopened without checking the header, the write-ahead log
+   * then restores the last commit.
+   *
+   * @param name       name of the DB file
+   * @param durability the durability mode of the commits
+   * @param interval   the gathering window of {@link Durability#GROUP} or the commit interval of {@link Durability#ASYNC}, in milliseconds
+   * @return an online instance of {@link MapDBContext}
+   */
+  public static DBContext onlineInstance(String name, Durability durability, long interval) {
+    DB db;
+    try {
+      db = fileDB(name).make();
+    } catch (DBException.DataCorruption e) {
+      BotLogger.warn(TAG, format("DB file [%s] was not closed correctly, it is recovered from its write-ahead log: %s", name, e.getMessage()));
+      // The failed open keeps the lock of the file, which still guards it from other processes
+      db = fileDB(name).checksumHeaderBypass().fileLockDisable().make();
+    }
+
+    return new MapDBContext(db, durability, interval);
+  }
+
+  private static DBMaker.Maker fileDB(String name) {
+    return DBMaker
         .fileDB(name)
         .fileMmapEnableIfSupported()
         .closeOnJvmShutdown()
-        .transactionEnable()
-        .make();
-
-    return new MapDBContext(db);
+        .transactionEnable();
   }
 
   /**
@@ -78,24 +203,145 @@ public class MapDBContext implements DBContext {
     return new MapDBContext(db);
   }
 
+  /**
+   * The DB returned by this method lives in direct memory, outside of the garbage-collected heap, and is lost when it is closed.
+   * It suits large ephemeral structures such as caches and session states.
+   * <p>
+   * Writes that would grow the DB past its maximum size fail with {@link DBException.VolumeMaxSizeExceeded}.
+   * The allocated and used off-heap bytes are exported to the {@link Metrics} as <code>db.[name].offheap.allocated</code> and
+   * <code>db.[name].offheap.used</code>, alongside the <code>db.[name].offheap.max</code> size.
+   *
+   * @param name    name of the DB
+   * @param maxSize the maximum number of off-heap bytes the DB may allocate
+   * @return an off-heap instance of {@link MapDBContext}
+   */
+  public static DBContext offHeapInstance(String name, long maxSize) {
+    return offHeapInstance(name, maxSize, Metrics.global());
+  }
+
+  /**
+   * Bots that share a JVM pass their own registry, such as <code>Metrics.global().scoped(botUsername)</code>, so that the numbers of their DBs
+   * do not collide.
+   *
+   * @param name    name of the DB
+   * @param maxSize the maximum number of off-heap bytes the DB may allocate
+   * @param metrics the registry of the off-heap and eviction metrics
+   * @return an off-heap instance of {@link MapDBContext}
+   * @see MapDBContext#offHeapInstance(String, long)
+   */
+  public static DBContext offHeapInstance(String name, long maxSize, Metrics metrics) {
+    CappedVolume volume = new CappedVolume(ByteBufferMemoryVol.FACTORY_WITH_CLEANER_HACK.makeVolume(null, false), maxSize);
+    DB db = DBMaker
+        .volumeDB(volume, false)
+        .make();
+
+    StoreDirect store = (StoreDirect) db.getStore();
+    // Gauges outlive the DB, a closed DB reports nothing allocated
+    metrics.gauge(format("db.%s.offheap.allocated", name), () -> volume.isClosed() ? 0 : volume.length());
+    metrics.gauge(format("db.%s.offheap.used", name), () -> volume.isClosed() ? 0 : store.getTotalSize() - store.getFreeSize());
+    metrics.gauge(format("db.%s.offheap.max", name), volume::maxSize);
+    return new MapDBContext(db, Durability.SYNC, 0, metrics);
+  }
+
   @Override
+  @SuppressWarnings("unchecked")
   public <T> List<T> getList(String name) {
-    return (List<T>) db.<T>indexTreeList(name, Serializer.JAVA).createOrOpen();
+    Object handle = handles.get(name);
+    if (handle instanceof List)
+      return (List<T>) handle;
+
+    return (List<T>) cache(name, db.indexTreeList(name, serializer(name, ELEMENT)).createOrOpen());
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public <K, V> Map<K, V> getMap(String name) {
-    return db.<K, V>hashMap(name, JAVA, JAVA).createOrOpen();
+    Object handle = handles.get(name);
+    if (handle instanceof Map)
+      return (Map<K, V>) handle;
+
+    if (isSorted(name))
+      return (Map<K, V>) sortedMap(name);
+
+    DB.HashMapMaker<?, ?> maker = db.hashMap(name, serializer(name, KEY), serializer(name, VALUE));
+    Expiration expiration = expirations.get(name);
+    if (expiration != null)
+      expire(name, maker, expiration);
+    return (Map<K, V>) cache(name, maker.createOrOpen());
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public <T> Set<T> getSet(String name) {
-    return (Set<T>) db.<T>hashSet(name, JAVA).createOrOpen();
+    Object handle = handles.get(name);
+    if (handle instanceof Set)
+      return (Set<T>) handle;
+
+    return (Set<T>) cache(name, db.hashSet(name, serializer(name, ELEMENT)).createOrOpen());
+  }
+
+  @Override
+  public <T> List<T> getList(String name, Class<T> type) {
+    declare(name, type);
+    return getList(name);
+  }
+
+  @Override
+  public <K, V> Map<K, V> getMap(String name, Class<K> keyType, Class<V> valueType) {
+    declare(name, keyType, valueType);
+    return getMap(name);
+  }
+
+  @Override
+  public <T> Set<T> getSet(String name, Class<T> type) {
+    declare(name, type);
+    return getSet(name);
+  }
+
+  @Override
+  public <K, V> Map<K, V> getExpiringMap(String name, Class<K> keyType, Class<V> valueType, Expiration expiration) {
+    declare(name, keyType, valueType);
+    Expiration existing = expirations.putIfAbsent(name, expiration);
+    checkState(existing == null || existing.equals(expiration),
+        "DB structure with name [%s] was opened with expiration %s, it cannot be opened with expiration %s", name, existing, expiration);
+    if (existing != null)
+      return getMap(name);
+
+    // Opened again, so that an existing map is checked against the expiration
+    handles.remove(name);
+    try {
+      return getMap(name);
+    } catch (IllegalStateException e) {
+      expirations.remove(name, expiration);
+      throw e;
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <K, V> NavigableMap<K, V> getSortedMap(String name, Class<K> keyType, Class<V> valueType) {
+    declare(name, keyType, valueType);
+    Object handle = handles.get(name);
+    if (handle instanceof NavigableMap)
+      return (NavigableMap<K, V>) handle;
+
+    checkState(!db.exists(name) || isSorted(name), "DB structure with name [%s] was not created sorted", name);
+    return (NavigableMap<K, V>) sortedMap(name);
+  }
+
+  @Override
+  public Counter getCounter(String name) {
+    return counters.counter(name);
+  }
+
+  @Override
+  public <K> CounterMap<K> getCounterMap(String name, Class<K> keyType) {
+    return counters.map(name, keyType);
   }
 
   @Override
   public String summary() {
-    return stream(db.getAllNames().spliterator(), false)
+    return names()
         .map(this::info)
         .reduce(new StringJoiner("\n"), StringJoiner::add, StringJoiner::merge)
         .toString();
@@ -103,30 +349,73 @@ public class MapDBContext implements DBContext {
 
   @Override
   public Object backup() {
-    Map<String, Object> collectedMap = localCopy();
-    return writeAsString(collectedMap);
+    counters.flush();
+    return snapshots.read(this::structure, snapshot -> backups.write(names()::iterator, snapshot));
+  }
+
+  @Override
+  public void backup(OutputStream out) throws IOException {
+    backup(out, BackupFormat.JSON);
+  }
+
+  @Override
+  public void backup(OutputStream out, BackupFormat format) throws IOException {
+    counters.flush();
+    snapshots.read(this::structure, snapshot -> {
+      backups.write(format, names()::iterator, snapshot, out);
+      return null;
+    });
   }
 
   @Override
   public boolean recover(Object backup) {
-    Map<String, Object> snapshot = localCopy();
+    return recover(new ByteArrayInputStream(backup.toString().getBytes(UTF_8)));
+  }
 
-    try {
-      Map<String, Object> backupData = objectMapper.readValue(backup.toString(), new TypeReference<HashMap<String, Object>>() {
-      });
-      doRecover(backupData);
-      return true;
-    } catch (IOException e) {
-      BotLogger.error(format("Could not recover DB data from file with String representation %s", backup), TAG, e);
-      // Attempt to fallback to data snapshot before recovery
-      doRecover(snapshot);
-      return false;
-    }
+  /**
+   * The backup is parsed one structure at a time and written in batches to the DB, within a MapDB transaction.
+   * If the backup cannot be read, the transaction is rolled back and the DB is left as it was before the recovery.
+   * <p>
+   * DBs without transactions, such as the off-heap ones, are backed up to a temporary file first and restored from it instead.
+   * No transaction or commit of the DB runs while it is recovered.
+   */
+  @Override
+  public boolean recover(InputStream backup) {
+    counters.flush();
+    boolean recovered = transactions.exclusive(() -> {
+      // Pending writes are committed, so that a rollback returns to the DB as it was before the recovery
+      db.commit();
+      Set<String> existing = names().collect(toSet());
+      boolean transactional = db.getStore() instanceof StoreTx;
+      Path fallback = null;
+
+      try {
+        if (!transactional)
+          fallback = spill();
+
+        handles.clear();
+        backups.read(backup, this, types::get);
+        db.commit();
+        return true;
+      } catch (IOException | ClassNotFoundException | RuntimeException e) {
+        BotLogger.error("Could not recover DB data from backup stream", TAG, e);
+        if (transactional)
+          rollback(existing);
+        else if (fallback != null && !restore(fallback))
+          // The file holds the only copy of the data, it is kept
+          fallback = null;
+        return false;
+      } finally {
+        deleteQuietly(fallback);
+      }
+    });
+    counters.reset();
+    return recovered;
   }
 
   @Override
   public String info(String name) {
-    Object struct = db.get(name);
+    Object struct = db.exists(name) ? structure(name) : null;
     if (isNull(struct))
       throw new IllegalStateException(format("DB structure with name [%s] does not exist", name));
 
@@ -140,85 +429,305 @@ public class MapDBContext implements DBContext {
       return format("%s - %s", name, struct.getClass().getSimpleName());
   }
 
+  /**
+   * Commits made within a transaction are deferred to the end of the transaction.
+   */
   @Override
   public void commit() {
-    db.commit();
+    if (transactions.inTransaction())
+      return;
+    committer.commit();
   }
 
   @Override
   public void clear() {
-    db.getAllNames().forEach(name -> {
-      Object struct = db.get(name);
+    handles.clear();
+    names().forEach(name -> {
+      Object struct = structure(name);
       if (struct instanceof Collection)
         ((Collection) struct).clear();
       else if (struct instanceof Map)
         ((Map) struct).clear();
     });
+    counters.reset();
     commit();
   }
 
+  /**
+   * The structure is emptied, then removed from the catalog of MapDB along with its type. MapDB cannot delete structures and keeps the
+   * instances it opened, the instance of the structure is evicted as on a rolled back recovery. If it cannot be evicted, the structure is
+   * left in the DB and <tt>false</tt> is returned.
+   */
+  @Override
+  public boolean drop(String name) {
+    Cache<String, Object> instances;
+    try {
+      instances = instances();
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      BotLogger.error(format("Could not drop DB structure [%s], its instance cannot be evicted from MapDB", name), TAG, e);
+      return false;
+    }
+
+    // Backups look the structures up by name until they are done
+    snapshots.outside(() -> {
+      if (db.exists(name)) {
+        Object struct = structure(name);
+        if (struct instanceof Collection)
+          ((Collection) struct).clear();
+        else if (struct instanceof Map)
+          ((Map) struct).clear();
+
+        SortedMap<String, String> catalog = db.nameCatalogLoad();
+        catalog.keySet().removeIf(key -> key.startsWith(name + "#"));
+        db.nameCatalogSave(catalog);
+      }
+      instances.invalidate(name);
+      handles.remove(name);
+      declared.remove(name);
+      expirations.remove(name);
+      types.remove(name);
+    });
+    commit();
+    return true;
+  }
+
   @Override
   public boolean contains(String name) {
     return db.exists(name);
   }
 
+  @Override
+  public <T> T inTransaction(Function<DBContext, T> work) {
+    return transactions.run(this, work);
+  }
+
   @Override
   public void close() throws IOException {
+    counters.close();
+    committer.close();
+    handles.clear();
+    declared.clear();
+    expirations.clear();
     db.close();
+    evictor.shutdownNow();
   }
 
   /**
-   * @return a local non-thread safe copy of the database
+   * Copies all the structures of this database into the target database, element by element.
+   * <p>
+   * Structures are opened by name on the target, so the ones the target declared with typed accessors beforehand are stored with their compact serializers.
+   *
+   * @param target the database to copy to
    */
-  private Map<String, Object> localCopy() {
-    return db.getAll().entrySet().stream().map(entry -> {
-      Object struct = entry.getValue();
-      if (struct instanceof Set)
-        return Pair.of(entry.getKey(), newHashSet((Set) struct));
-      else if (struct instanceof List)
-        return Pair.of(entry.getKey(), newArrayList((List) struct));
-      else if (struct instanceof Map)
-        return Pair.of(entry.getKey(), newHashMap((Map) struct));
-      else
-        return Pair.of(entry.getKey(), struct);
-    }).collect(toMap(pair -> (String) pair.a(), Pair::b));
-  }
-
-  private void doRecover(Map<String, Object> backupData) {
-    clear();
-    backupData.forEach((name, value) -> {
-
-      if (value instanceof Set) {
-        Set entrySet = (Set) value;
-        getSet(name).addAll(entrySet);
-      } else if (value instanceof Map) {
-        Map<Object, Object> entryMap = (Map) value;
-
-        // TODO: This is ugly
-        // Special handling of USERS since the key is an integer. JSON by default considers a map a JSONObject.
-        // Keys are serialized and deserialized as String
-        if (name.equals(USERS))
-          entryMap = entryMap.entrySet().stream()
-              .map(entry -> Pair.of(Integer.parseInt(entry.getKey().toString()), entry.getValue()))
-              .collect(toMap(Pair::a, Pair::b));
-
-        getMap(name).putAll(entryMap);
-      } else if (value instanceof List) {
-        List entryList = (List) value;
-        getList(name).addAll(entryList);
-      } else {
-        BotLogger.error(TAG, format("Unable to identify object type during DB recovery, entry name: %s", name));
-      }
+  public void copyTo(DBContext target) {
+    counters.flush();
+    snapshots.read(this::structure, snapshot -> {
+      names().forEach(name -> {
+        Object struct = snapshot.apply(name);
+        if (struct instanceof Set)
+          target.<Object>getSet(name).addAll((Set<?>) struct);
+        else if (struct instanceof List)
+          target.<Object>getList(name).addAll((List<?>) struct);
+        else if (struct instanceof Map)
+          target.<Object, Object>getMap(name).putAll((Map<?, ?>) struct);
+        else
+          BotLogger.error(TAG, format("Unable to identify object type during DB copy, entry name: %s", name));
+      });
+      return null;
     });
-    commit();
+    target.commit();
+  }
+
+  /**
+   * Rolls back the DB to its last commit. Structures created since then are gone from the DB, but MapDB still holds their instances and
+   * would return them if they were opened again, they are evicted. MapDB does not expose its instances, they are reached by reflection
+   * only when there is something to evict. If that fails, e.g. with another version of MapDB, the DB keeps working and only those
+   * structures are stale until it is reopened.
+   */
+  private void rollback(Set<String> existing) {
+    List<String> created = names().filter(name -> !existing.contains(name)).collect(toList());
+    db.rollback();
+    handles.clear();
+    declared.clear();
+
+    if (created.isEmpty())
+      return;
+
+    try {
+      instances().invalidateAll(created);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      BotLogger.error(format("Could not evict the structures %s created by the rolled back recovery, reopen the DB before using them",
+          created), TAG, e);
+    }
+  }
+
+  /**
+   * @return the instances MapDB opened, by name. MapDB does not expose them, they are reached by reflection.
+   */
+  @SuppressWarnings("unchecked")
+  private Cache<String, Object> instances() throws ReflectiveOperationException {
+    Method instances = DB.class.getDeclaredMethod("getNamesInstanciated");
+    instances.setAccessible(true);
+    return (Cache<String, Object>) instances.invoke(db);
+  }
+
+  /**
+   * @return a temporary file holding the backup of the DB
+   */
+  private Path spill() throws IOException {
+    Path file = Files.createTempFile("db-recovery", ".json");
+    try (OutputStream out = Files.newOutputStream(file)) {
+      backup(out);
+    } catch (IOException | RuntimeException e) {
+      deleteQuietly(file);
+      throw e;
+    }
+    return file;
+  }
+
+  private boolean restore(Path file) {
+    handles.clear();
+    try (InputStream in = Files.newInputStream(file)) {
+      backups.read(in, this, types::get);
+      db.commit();
+      return true;
+    } catch (IOException | ClassNotFoundException | RuntimeException e) {
+      BotLogger.error(format("Could not restore DB data, it is kept in [%s]", file), TAG, e);
+      return false;
+    }
   }
 
-  private String writeAsString(Object obj) {
+  private static void deleteQuietly(Path file) {
+    if (file == null)
+      return;
+
     try {
-      return objectMapper.writeValueAsString(obj);
-    } catch (JsonProcessingException e) {
-      BotLogger.info(format("Failed to read the JSON representation of object: %s", obj), TAG, e);
-      return "Error reading required data...";
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      BotLogger.error(format("Could not delete temporary file [%s]", file), TAG, e);
+    }
+  }
+
+  /**
+   * @return the names of the structures of the database, excluding the internal ones
+   */
+  private Stream<String> names() {
+    return stream(db.getAllNames().spliterator(), false).filter(name -> !name.equals(TYPES));
+  }
+
+  /**
+   * Opens a structure with its declared serializers. {@link DB#get(String)} must not be used as it cannot resolve the custom serializers.
+   */
+  private Object structure(String name) {
+    String type = db.nameCatalogParamsFor(name).get(name + "#type");
+    if ("HashMap".equals(type))
+      return getMap(name);
+    else if ("HashSet".equals(type))
+      return getSet(name);
+    else if ("IndexTreeList".equals(type))
+      return getList(name);
+    else if (TREE_MAP.equals(type))
+      return sortedMap(name);
+    else
+      return db.get(name);
+  }
+
+  /**
+   * Sets up the expiration of the map. An existing map must have been created with the same expiration times, MapDB keeps the ones of
+   * its creation.
+   */
+  private <K, V> void expire(String name, DB.HashMapMaker<K, V> maker, Expiration expiration) {
+    long onCreate, onUpdate, onGet;
+    if (expiration.afterWrite() > 0) {
+      onCreate = onUpdate = expiration.afterWrite();
+      onGet = 0;
+    } else if (expiration.afterAccess() > 0) {
+      onCreate = onUpdate = onGet = expiration.afterAccess();
+    } else {
+      // Entries are queued without expiring, so that the oldest ones can be evicted beyond the maximum size
+      onCreate = -1;
+      onUpdate = onGet = 0;
+    }
+
+    if (db.exists(name)) {
+      Map<String, String> catalog = db.nameCatalogParamsFor(name);
+      boolean same = String.valueOf(onCreate).equals(catalog.get(name + "#expireCreateTTL"))
+          && String.valueOf(onUpdate).equals(catalog.get(name + "#expireUpdateTTL"))
+          && String.valueOf(onGet).equals(catalog.get(name + "#expireGetTTL"));
+      checkState(same, "DB structure with name [%s] was created with other expiration times than %s", name, expiration);
+    }
+
+    if (onCreate > 0)
+      maker.expireAfterCreate(onCreate);
+    else
+      maker.expireAfterCreate();
+    if (onUpdate > 0)
+      maker.expireAfterUpdate(onUpdate);
+    if (onGet > 0)
+      maker.expireAfterGet(onGet);
+    if (expiration.maxSize() > 0)
+      maker.expireMaxSize(expiration.maxSize());
+
+    String evictions = format("%s.%s", Expiration.EVICTIONS, name);
+    maker.expireExecutor(evictor)
+        .expireExecutorPeriod(expiration.evictionInterval())
+        .modificationListener((key, oldValue, newValue, evicted) -> {
+          if (evicted)
+            metrics.increment(evictions);
+        });
+  }
+
+  private boolean isSorted(String name) {
+    return db.exists(name) && TREE_MAP.equals(db.nameCatalogParamsFor(name).get(name + "#type"));
+  }
+
+  /**
+   * Sorted maps keep a counter of their entries, their size would otherwise be counted by walking them.
+   */
+  private Object sortedMap(String name) {
+    return cache(name, db.treeMap(name, groupSerializer(name, KEY), groupSerializer(name, VALUE)).counterEnable().createOrOpen());
+  }
+
+  private Object cache(String name, Object struct) {
+    Object handle = snapshots.wrap(name, struct);
+    handles.put(name, handle);
+    return handle;
+  }
+
+  private void declare(String name, Class<?> type) {
+    declare(name, type.getName());
+  }
+
+  private void declare(String name, Class<?> keyType, Class<?> valueType) {
+    declare(name, keyType.getName() + "," + valueType.getName());
+  }
+
+  private void declare(String name, String declaration) {
+    if (declaration.equals(declared.get(name)))
+      return;
+
+    // Created before it was typed, the structure keeps its Java serialization until it is migrated
+    if (types.containsKey(name) || !db.exists(name)) {
+      String existing = types.putIfAbsent(name, declaration);
+      checkState(existing == null || existing.equals(declaration),
+          "DB structure with name [%s] was declared with types [%s], it cannot be opened with types [%s]", name, existing, declaration);
     }
+    declared.put(name, declaration);
+  }
+
+  /**
+   * Sorted maps store their keys and values in groups, the serializers that cannot serialize groups fall back to Java serialization.
+   */
+  private GroupSerializer<?> groupSerializer(String name, int position) {
+    Serializer<?> serializer = serializer(name, position);
+    return serializer instanceof GroupSerializer ? (GroupSerializer<?>) serializer : JAVA;
+  }
+
+  private Serializer<?> serializer(String name, int position) {
+    String declaration = types.get(name);
+    if (declaration == null)
+      return JAVA;
+
+    return SERIALIZERS.getOrDefault(declaration.split(",")[position], JAVA);
   }
 }
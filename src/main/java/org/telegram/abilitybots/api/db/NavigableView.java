@@ -0,0 +1,212 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.collect.ForwardingMap;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import static java.util.Collections.unmodifiableCollection;
+import static java.util.Collections.unmodifiableNavigableMap;
+import static java.util.Collections.unmodifiableNavigableSet;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * A sorted map whose writes go through a wrapper of the map, while its navigation reads the map directly, or a sorted copy of it.
+ * <p>
+ * The structures of the DB are wrapped to act on their writes, the wrappers only forward the methods of a {@link Map}. Sorted maps are
+ * wrapped once more by this view so that they stay navigable. The ranges and key sets it returns are read-only, the map is written through
+ * its own methods.
+ */
+final class NavigableView<K, V> extends ForwardingMap<K, V> implements NavigableMap<K, V> {
+  private final Map<K, V> writes;
+  private final Supplier<NavigableMap<K, V>> reads;
+
+  /**
+   * @param writes the wrapper of the map
+   * @param reads  the map itself
+   */
+  NavigableView(Map<K, V> writes, NavigableMap<K, V> reads) {
+    this(writes, () -> reads);
+  }
+
+  private NavigableView(Map<K, V> writes, Supplier<NavigableMap<K, V>> reads) {
+    this.writes = writes;
+    this.reads = reads;
+  }
+
+  /**
+   * A view of a map that is not sorted, which sorts a copy of the map for every navigation and iteration.
+   *
+   * @param map the map
+   * @return the sorted view of the map
+   */
+  static <K, V> NavigableView<K, V> sorting(Map<K, V> map) {
+    Supplier<NavigableMap<K, V>> sorted = () -> new TreeMap<>(map);
+    return new NavigableView<>(new ForwardingMap<K, V>() {
+      @Override
+      protected Map<K, V> delegate() {
+        return map;
+      }
+
+      @Override
+      public Set<K> keySet() {
+        return unmodifiableNavigableSet(sorted.get().navigableKeySet());
+      }
+
+      @Override
+      public Collection<V> values() {
+        return unmodifiableCollection(sorted.get().values());
+      }
+
+      @Override
+      public Set<Entry<K, V>> entrySet() {
+        return unmodifiableSet(sorted.get().entrySet());
+      }
+    }, sorted);
+  }
+
+  @Override
+  protected Map<K, V> delegate() {
+    return writes;
+  }
+
+  @Override
+  public Comparator<? super K> comparator() {
+    return reads.get().comparator();
+  }
+
+  @Override
+  public K firstKey() {
+    return reads.get().firstKey();
+  }
+
+  @Override
+  public K lastKey() {
+    return reads.get().lastKey();
+  }
+
+  @Override
+  public Entry<K, V> lowerEntry(K key) {
+    return reads.get().lowerEntry(key);
+  }
+
+  @Override
+  public K lowerKey(K key) {
+    return reads.get().lowerKey(key);
+  }
+
+  @Override
+  public Entry<K, V> floorEntry(K key) {
+    return reads.get().floorEntry(key);
+  }
+
+  @Override
+  public K floorKey(K key) {
+    return reads.get().floorKey(key);
+  }
+
+  @Override
+  public Entry<K, V> ceilingEntry(K key) {
+    return reads.get().ceilingEntry(key);
+  }
+
+  @Override
+  public K ceilingKey(K key) {
+    return reads.get().ceilingKey(key);
+  }
+
+  @Override
+  public Entry<K, V> higherEntry(K key) {
+    return reads.get().higherEntry(key);
+  }
+
+  @Override
+  public K higherKey(K key) {
+    return reads.get().higherKey(key);
+  }
+
+  @Override
+  public Entry<K, V> firstEntry() {
+    return reads.get().firstEntry();
+  }
+
+  @Override
+  public Entry<K, V> lastEntry() {
+    return reads.get().lastEntry();
+  }
+
+  @Override
+  public Entry<K, V> pollFirstEntry() {
+    return poll(reads.get().firstEntry());
+  }
+
+  @Override
+  public Entry<K, V> pollLastEntry() {
+    return poll(reads.get().lastEntry());
+  }
+
+  @Override
+  public NavigableMap<K, V> descendingMap() {
+    return unmodifiableNavigableMap(reads.get().descendingMap());
+  }
+
+  @Override
+  public NavigableSet<K> navigableKeySet() {
+    return unmodifiableNavigableSet(reads.get().navigableKeySet());
+  }
+
+  @Override
+  public NavigableSet<K> descendingKeySet() {
+    return unmodifiableNavigableSet(reads.get().descendingKeySet());
+  }
+
+  @Override
+  public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+    return unmodifiableNavigableMap(reads.get().subMap(fromKey, fromInclusive, toKey, toInclusive));
+  }
+
+  @Override
+  public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+    return unmodifiableNavigableMap(reads.get().headMap(toKey, inclusive));
+  }
+
+  @Override
+  public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+    return unmodifiableNavigableMap(reads.get().tailMap(fromKey, inclusive));
+  }
+
+  @Override
+  public SortedMap<K, V> subMap(K fromKey, K toKey) {
+    return subMap(fromKey, true, toKey, false);
+  }
+
+  @Override
+  public SortedMap<K, V> headMap(K toKey) {
+    return headMap(toKey, false);
+  }
+
+  @Override
+  public SortedMap<K, V> tailMap(K fromKey) {
+    return tailMap(fromKey, true);
+  }
+
+  /**
+   * @return the map this view wraps
+   */
+  Map<K, V> writes() {
+    return writes;
+  }
+
+  private Entry<K, V> poll(Entry<K, V> entry) {
+    if (entry != null)
+      writes.remove(entry.getKey());
+    return entry;
+  }
+}
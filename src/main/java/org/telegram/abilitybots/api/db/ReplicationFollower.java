@@ -0,0 +1,196 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.String.format;
+import static org.telegram.abilitybots.api.db.ReplicationLeader.BUFFER;
+import static org.telegram.abilitybots.api.db.ReplicationLeader.CHANGE;
+import static org.telegram.abilitybots.api.db.ReplicationLeader.HANDSHAKE_TIMEOUT;
+import static org.telegram.abilitybots.api.db.ReplicationLeader.HEARTBEAT;
+import static org.telegram.abilitybots.api.db.ReplicationLeader.SNAPSHOT;
+
+/**
+ * Keeps a {@link ChangeLogDBContext} up to date with a {@link ReplicationLeader}, as a warm standby that can take over from it.
+ * <p>
+ * The follower applies the changes of the leader under their own sequence numbers and commits them once it has applied all the batches
+ * it received. It reconnects when the connection drops, resuming after the last change it applied. The DB of the follower must not be
+ * written to while it follows.
+ * {@link ReplicationFollower#promote()} stops following and hands the DB over, its log continues the one of the leader.
+ * <p>
+ * The follower only reads the stream of a leader that proved it knows the shared secret. It deserializes whatever that leader sends, see
+ * the trust model of {@link ReplicationLeader}.
+ * <p>
+ * The following entries are exported to the {@link Metrics}:
+ * <ul>
+ * <li><code>db.replication.applied</code> - the number of changes applied</li>
+ * <li><code>db.replication.lag</code> - the number of changes the follower is behind the leader, as of the last heartbeat</li>
+ * <li><code>db.replication.delay</code> - a histogram of the milliseconds between the leader shipping a batch and the follower applying it</li>
+ * </ul>
+ */
+public final class ReplicationFollower implements Closeable {
+  private static final String TAG = ReplicationFollower.class.getSimpleName();
+
+  static final String APPLIED = "db.replication.applied";
+  static final String LAG = "db.replication.lag";
+  static final String DELAY = "db.replication.delay";
+
+  static final int CONNECT_TIMEOUT = 5000;
+  static final long RECONNECT_DELAY = 1000;
+
+  private final ChangeLogDBContext db;
+  private final SocketAddress leader;
+  private final byte[] secret;
+  private final Metrics metrics;
+  private final Thread follower;
+  private volatile Socket socket;
+  private volatile long leaderSequence;
+  private volatile boolean stopped;
+
+  /**
+   * @param db      the DB to keep up to date
+   * @param leader  the address of the leader
+   * @param secret  the secret shared with the leader, at least 16 bytes long
+   * @param metrics the registry of the metrics
+   */
+  public ReplicationFollower(ChangeLogDBContext db, SocketAddress leader, byte[] secret, Metrics metrics) {
+    this.db = checkNotNull(db, "Follower DB cannot be null");
+    this.leader = checkNotNull(leader, "Leader address cannot be null");
+    this.metrics = checkNotNull(metrics, "Metrics cannot be null");
+    this.secret = ReplicationHandshake.checkSecret(secret);
+    this.leaderSequence = db.sequence();
+    metrics.gauge(LAG, this::lag);
+
+    this.follower = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("db-replication-follower-%d").build()
+        .newThread(this::follow);
+    follower.start();
+  }
+
+  /**
+   * @param db     the DB to keep up to date
+   * @param port   the loopback port of the leader
+   * @param secret the secret shared with the leader, at least 16 bytes long
+   */
+  public ReplicationFollower(ChangeLogDBContext db, int port, byte[] secret) {
+    this(db, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), secret, Metrics.global());
+  }
+
+  /**
+   * @return the number of changes the follower is behind the leader, as of the last heartbeat
+   */
+  public long lag() {
+    return Math.max(0, leaderSequence - db.sequence());
+  }
+
+  /**
+   * Stops following the leader and commits the applied changes, the DB can then be written to.
+   *
+   * @return the DB of the follower
+   */
+  public ChangeLogDBContext promote() {
+    stop();
+    db.commit();
+    return db;
+  }
+
+  /**
+   * Stops following the leader. The DB is left open.
+   */
+  @Override
+  public void close() {
+    stop();
+  }
+
+  private void stop() {
+    stopped = true;
+    Socket current = socket;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException e) {
+        BotLogger.error("Could not close connection to the DB leader", TAG, e);
+      }
+    }
+    // The thread is not interrupted, an interrupt would close the files of the DB if it is writing to them
+    try {
+      follower.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void follow() {
+    while (!stopped) {
+      try (Socket connection = new Socket()) {
+        socket = connection;
+        connection.connect(leader, CONNECT_TIMEOUT);
+        connection.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), BUFFER));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+
+        connection.setSoTimeout(HANDSHAKE_TIMEOUT);
+        ReplicationHandshake.follow(in, out, secret);
+        connection.setSoTimeout(0);
+        replicate(in, out);
+      } catch (IOException | ClassNotFoundException | RuntimeException e) {
+        if (stopped)
+          break;
+        BotLogger.error(format("Lost connection to the DB leader [%s], reconnecting", leader), TAG, e);
+        try {
+          Thread.sleep(RECONNECT_DELAY);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+  }
+
+  private void replicate(DataInputStream in, DataOutputStream out) throws IOException, ClassNotFoundException {
+    out.writeLong(db.sequence());
+    out.flush();
+
+    while (!stopped) {
+      int frame = in.readUnsignedByte();
+      switch (frame) {
+        case SNAPSHOT:
+          InputStream snapshot = ByteStreams.limit(in, in.readLong());
+          if (!db.recover(snapshot))
+            throw new IOException("Could not recover the snapshot of the DB leader");
+          ByteStreams.copy(snapshot, ByteStreams.nullOutputStream());
+          leaderSequence = db.sequence();
+          out.writeLong(db.sequence());
+          out.flush();
+          break;
+        case CHANGE:
+          long number = in.readLong();
+          Change change = Change.read(in);
+          // Reapplying a change is harmless, but the sequence number of the DB never goes back
+          if (number > db.sequence()) {
+            db.apply(number, change);
+            metrics.increment(APPLIED);
+          }
+          break;
+        case HEARTBEAT:
+          leaderSequence = in.readLong();
+          long shipped = in.readLong();
+          // Batches that arrived during a commit are committed together
+          if (in.available() == 0)
+            db.commit();
+          metrics.histogram(DELAY).record(Math.max(0, System.currentTimeMillis() - shipped));
+          break;
+        default:
+          throw new StreamCorruptedException(format("Malformed replication stream, unknown frame [%d]", frame));
+      }
+    }
+  }
+}
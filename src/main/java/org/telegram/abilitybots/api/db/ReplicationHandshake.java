@@ -0,0 +1,105 @@
+package org.telegram.abilitybots.api.db;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The challenge-response handshake that opens every replication connection, before anything of the DB is sent.
+ * <p>
+ * The leader sends a random nonce, the follower answers with its own nonce and an HMAC-SHA256 of both nonces under the shared secret.
+ * The leader closes the connection unless the proof is right, otherwise it proves in turn that it knows the secret. The proofs of the two
+ * ends are keyed by their role, so that a proof cannot be sent back to the end that computed it. Proofs are compared in constant time.
+ */
+final class ReplicationHandshake {
+  static final int MIN_SECRET_LENGTH = 16;
+
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final int NONCE_LENGTH = 32;
+  private static final int PROOF_LENGTH = 32;
+  private static final byte LEADER = 'L';
+  private static final byte FOLLOWER = 'F';
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private ReplicationHandshake() {
+  }
+
+  /**
+   * @return a copy of the secret
+   * @throws IllegalArgumentException if the secret is shorter than {@link ReplicationHandshake#MIN_SECRET_LENGTH} bytes
+   */
+  static byte[] checkSecret(byte[] secret) {
+    checkArgument(secret != null && secret.length >= MIN_SECRET_LENGTH,
+        "Replication secret must be at least %s bytes long", MIN_SECRET_LENGTH);
+    return secret.clone();
+  }
+
+  /**
+   * The side of the leader.
+   *
+   * @throws IOException if the follower does not prove that it knows the secret
+   */
+  static void lead(DataInputStream in, DataOutputStream out, byte[] secret) throws IOException {
+    byte[] leaderNonce = nonce();
+    out.write(leaderNonce);
+    out.flush();
+
+    byte[] followerNonce = read(in, NONCE_LENGTH);
+    byte[] proof = read(in, PROOF_LENGTH);
+    if (!MessageDigest.isEqual(proof, proof(secret, FOLLOWER, leaderNonce, followerNonce)))
+      throw new IOException("DB follower did not prove that it knows the replication secret");
+
+    out.write(proof(secret, LEADER, leaderNonce, followerNonce));
+    out.flush();
+  }
+
+  /**
+   * The side of the follower.
+   *
+   * @throws IOException if the leader does not prove that it knows the secret
+   */
+  static void follow(DataInputStream in, DataOutputStream out, byte[] secret) throws IOException {
+    byte[] leaderNonce = read(in, NONCE_LENGTH);
+    byte[] followerNonce = nonce();
+    out.write(followerNonce);
+    out.write(proof(secret, FOLLOWER, leaderNonce, followerNonce));
+    out.flush();
+
+    byte[] proof = read(in, PROOF_LENGTH);
+    if (!MessageDigest.isEqual(proof, proof(secret, LEADER, leaderNonce, followerNonce)))
+      throw new IOException("DB leader did not prove that it knows the replication secret");
+  }
+
+  private static byte[] proof(byte[] secret, byte role, byte[] leaderNonce, byte[] followerNonce) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(new SecretKeySpec(secret, ALGORITHM));
+      mac.update(role);
+      mac.update(leaderNonce);
+      mac.update(followerNonce);
+      return mac.doFinal();
+    } catch (GeneralSecurityException e) {
+      // Every Java platform supports HmacSHA256
+      throw new IllegalStateException("Could not compute the replication handshake", e);
+    }
+  }
+
+  private static byte[] nonce() {
+    byte[] nonce = new byte[NONCE_LENGTH];
+    RANDOM.nextBytes(nonce);
+    return nonce;
+  }
+
+  private static byte[] read(DataInputStream in, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,208 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.String.format;
+
+/**
+ * Ships the changes recorded by a {@link ChangeLogDBContext} to the {@link ReplicationFollower}s connected to it.
+ * <p>
+ * A follower connects with the sequence number of the last change it applied. If the changes after it are still in the log, the leader
+ * streams them right away. Otherwise, the follower first receives a binary backup of the DB, which does not drop the changes from the log.
+ * The follower then receives every change as soon as it is recorded, in batches of at most a thousand changes, each followed by a heartbeat
+ * holding the sequence number and the clock of the leader. Heartbeats are also sent when no change was recorded for a second.
+ * <p>
+ * The leader listens on the loopback interface unless given another address. The number of changes shipped to the followers is exported
+ * to the {@link Metrics} as the <code>db.replication.shipped</code> counter.
+ * <p>
+ * Trust model: the leader and its followers share a secret, and every connection opens with a challenge-response handshake that proves
+ * each end knows it, see {@link ReplicationHandshake}. Nothing of the DB is sent to a follower that did not prove it, and a follower
+ * reads nothing from a leader that did not. The followers deserialize whatever the authenticated leader sends them, including the values
+ * stored with Java serialization, so the secret must only be given to hosts that are trusted to run code in the follower. The stream is
+ * neither encrypted nor protected from tampering after the handshake: the leader only binds to addresses reachable from other hosts when
+ * explicitly allowed to, and such followers should reach it over a private network or a tunnel.
+ */
+public final class ReplicationLeader implements Closeable {
+  private static final String TAG = ReplicationLeader.class.getSimpleName();
+
+  static final String SHIPPED = "db.replication.shipped";
+
+  // Frames of the replication stream
+  static final byte SNAPSHOT = 1;
+  static final byte CHANGE = 2;
+  static final byte HEARTBEAT = 3;
+
+  static final long HEARTBEAT_INTERVAL = 1000;
+  // Bounds the changes between two heartbeats, so that the lag of the follower stays up to date while it catches up
+  static final int BATCH = 1000;
+  static final int BUFFER = 64 * 1024;
+  // Bounds the time a connection may take to authenticate
+  static final int HANDSHAKE_TIMEOUT = 5000;
+
+  private final ChangeLogDBContext db;
+  private final ServerSocket server;
+  private final ExecutorService connections;
+  private final Set<Socket> followers;
+  private final byte[] secret;
+  private final Metrics metrics;
+  private volatile boolean closed;
+
+  /**
+   * @param db      the DB to replicate
+   * @param address the address to listen on
+   * @param secret  the secret shared with the followers, at least 16 bytes long
+   * @param remote  <tt>true</tt> to allow an address that is reachable from other hosts, see the trust model above
+   * @param metrics the registry of the metrics
+   * @throws IllegalArgumentException if the address is not a loopback one and remote addresses are not allowed, or if the secret is too short
+   */
+  public ReplicationLeader(ChangeLogDBContext db, SocketAddress address, byte[] secret, boolean remote, Metrics metrics) throws IOException {
+    this.db = checkNotNull(db, "Replicated DB cannot be null");
+    this.metrics = checkNotNull(metrics, "Metrics cannot be null");
+    this.secret = ReplicationHandshake.checkSecret(secret);
+    checkArgument(remote || isLoopback(address),
+        "Leader address [%s] is reachable from other hosts, listening on it must be allowed explicitly", address);
+    this.server = new ServerSocket();
+    this.server.bind(address);
+    this.followers = ConcurrentHashMap.newKeySet();
+    this.connections = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("db-replication-leader-%d").build());
+    connections.submit(this::accept);
+  }
+
+  /**
+   * @param db     the DB to replicate
+   * @param port   the loopback port to listen on, <tt>0</tt> for any free port
+   * @param secret the secret shared with the followers, at least 16 bytes long
+   */
+  public ReplicationLeader(ChangeLogDBContext db, int port, byte[] secret) throws IOException {
+    this(db, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), secret, false, Metrics.global());
+  }
+
+  /**
+   * @return the port the leader listens on
+   */
+  public int port() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * @return the number of followers currently connected
+   */
+  public int followers() {
+    return followers.size();
+  }
+
+  /**
+   * Stops listening and disconnects the followers. The DB is left open.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    server.close();
+    for (Socket follower : followers)
+      follower.close();
+    connections.shutdownNow();
+  }
+
+  private void accept() {
+    while (!closed) {
+      try {
+        Socket follower = server.accept();
+        followers.add(follower);
+        connections.submit(() -> serve(follower));
+      } catch (IOException e) {
+        if (!closed)
+          BotLogger.error("Could not accept DB follower", TAG, e);
+      }
+    }
+  }
+
+  private void serve(Socket follower) {
+    try (Socket socket = follower) {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER));
+
+      socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+      ReplicationHandshake.lead(in, out, secret);
+      socket.setSoTimeout(0);
+
+      long shipped = in.readLong();
+      if (shipped < db.base() || shipped > db.sequence()) {
+        sendSnapshot(out);
+        shipped = in.readLong();
+      }
+
+      while (!closed) {
+        long to = Math.min(db.awaitSequence(shipped, HEARTBEAT_INTERVAL), shipped + BATCH);
+        for (long number = shipped + 1; number <= to; number++) {
+          Change change = db.change(number);
+          if (change == null) {
+            if (number <= db.base())
+              throw new IllegalStateException(format("Change [%d] was dropped from the log before it was shipped", number));
+            // A transaction that failed to commit leaves a gap in the log
+            continue;
+          }
+
+          out.writeByte(CHANGE);
+          out.writeLong(number);
+          change.write(out);
+          metrics.increment(SHIPPED);
+        }
+        shipped = to;
+
+        out.writeByte(HEARTBEAT);
+        out.writeLong(db.sequence());
+        out.writeLong(System.currentTimeMillis());
+        out.flush();
+      }
+    } catch (IOException | RuntimeException e) {
+      if (!closed)
+        BotLogger.error(format("Stopped replicating to DB follower [%s]", follower.getRemoteSocketAddress()), TAG, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      followers.remove(follower);
+    }
+  }
+
+  private static boolean isLoopback(SocketAddress address) {
+    return address instanceof InetSocketAddress
+        && ((InetSocketAddress) address).getAddress() != null
+        && ((InetSocketAddress) address).getAddress().isLoopbackAddress();
+  }
+
+  private void sendSnapshot(DataOutputStream out) throws IOException {
+    // The length of the backup precedes it in the stream, it is spooled to learn it
+    Path spool = Files.createTempFile("db-snapshot", ".bin");
+    try {
+      try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(spool), BUFFER)) {
+        db.snapshot(file);
+      }
+
+      out.writeByte(SNAPSHOT);
+      out.writeLong(Files.size(spool));
+      Files.copy(spool, out);
+      out.flush();
+    } finally {
+      spool.toFile().delete();
+    }
+  }
+}
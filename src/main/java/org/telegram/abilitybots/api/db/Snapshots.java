@@ -0,0 +1,716 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ForwardingList;
+import com.google.common.collect.ForwardingListIterator;
+import com.google.common.collect.ForwardingMap;
+import com.google.common.collect.ForwardingSet;
+import com.google.common.collect.Iterators;
+import org.mapdb.HTreeMap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Takes point-in-time snapshots of the structures of a {@link DBContext} while writers keep going, for its backups.
+ * <p>
+ * The structures of the DB are handed out wrapped. While a snapshot is open, the wrappers save the previous state of a key, an element or
+ * a whole list before they first modify it. The snapshot reads the live structures and substitutes the saved states, so that it sees every
+ * structure as it was when it was opened. Writers only wait for a snapshot while it is being opened, and only pay for the saved states
+ * while one is open.
+ * <p>
+ * Snapshots are opened while no transaction is in progress, they never see half of a transaction.
+ */
+final class Snapshots {
+  // Saved states of a key or an element that was absent or present when the snapshot was opened
+  private static final Object ABSENT = new Object();
+  private static final Object PRESENT = new Object();
+
+  private final Transactions transactions;
+  // Held shared by the writers while they save and modify, exclusively while a snapshot is opened
+  private final ReentrantReadWriteLock gate;
+  private volatile Snapshot current;
+
+  Snapshots(Transactions transactions) {
+    this.transactions = transactions;
+    this.gate = new ReentrantReadWriteLock();
+  }
+
+  /**
+   * The reader of a snapshot, see {@link Snapshots#read(Function, Reader)}.
+   */
+  interface Reader<T, E extends Exception> {
+    /**
+     * @param structures the structure of each name, as it was when the snapshot was opened
+     */
+    T read(Function<String, Object> structures) throws E;
+  }
+
+  /**
+   * Opens a snapshot and hands it to the reader. Snapshots are taken one at a time.
+   *
+   * @param structures the live structure of each name, as wrapped by {@link Snapshots#wrap(String, Object)}
+   * @param reader     the reader of the snapshot
+   * @return the result of the reader
+   */
+  synchronized <T, E extends Exception> T read(Function<String, Object> structures, Reader<T, E> reader) throws E {
+    Snapshot snapshot = new Snapshot();
+    transactions.shared(() -> {
+      gate.writeLock().lock();
+      try {
+        current = snapshot;
+      } finally {
+        gate.writeLock().unlock();
+      }
+    });
+
+    try {
+      return reader.read(name -> snapshot.of(name, structures.apply(name)));
+    } finally {
+      current = null;
+    }
+  }
+
+  /**
+   * Runs the action while no snapshot is open, for the actions that remove structures the readers of a snapshot may still look up.
+   */
+  synchronized void outside(Runnable action) {
+    action.run();
+  }
+
+  /**
+   * @return the structure wrapped so that its writes are visible to the snapshots as they happen, other objects are returned as is
+   */
+  Object wrap(String name, Object struct) {
+    if (struct instanceof NavigableMap)
+      return sorted(name, (NavigableMap<?, ?>) struct);
+    else if (struct instanceof Map)
+      return new SnapshotMap<>(name, (Map<?, ?>) struct);
+    else if (struct instanceof Set)
+      return new SnapshotSet<>(name, (Set<?>) struct);
+    else if (struct instanceof List)
+      return list(name, (List<?>) struct);
+    else
+      return struct;
+  }
+
+  private <K, V> NavigableMap<K, V> sorted(String name, NavigableMap<K, V> map) {
+    return new NavigableView<>(new SnapshotMap<>(name, map), map);
+  }
+
+  private <T> List<T> list(String name, List<T> list) {
+    return new SnapshotList<>(name, list, list);
+  }
+
+  /**
+   * @return the live structure wrapped by {@link Snapshots#wrap(String, Object)}
+   */
+  static Object unwrap(Object struct) {
+    if (struct instanceof NavigableView)
+      return unwrap(((NavigableView) struct).writes());
+    else if (struct instanceof SnapshotMap)
+      return ((SnapshotMap) struct).delegate;
+    else if (struct instanceof SnapshotSet)
+      return ((SnapshotSet) struct).delegate;
+    else if (struct instanceof SnapshotList)
+      return ((SnapshotList) struct).root;
+    else
+      return struct;
+  }
+
+  /**
+   * Saves the previous state, then applies the write.
+   */
+  private <R> R write(Consumer<Snapshot> save, Supplier<R> write) {
+    gate.readLock().lock();
+    try {
+      Snapshot snapshot = current;
+      if (snapshot != null)
+        save.accept(snapshot);
+      return write.get();
+    } finally {
+      gate.readLock().unlock();
+    }
+  }
+
+  /**
+   * The states saved since a snapshot was opened.
+   * <p>
+   * A state is read before it is saved, and only the first saved state of a key is kept. Every write saves before it modifies, so the first
+   * state saved for a key was read before any write of the key since the snapshot was opened.
+   */
+  private static final class Snapshot {
+    private final Map<String, Map<Object, Object>> saved = new ConcurrentHashMap<>();
+    private final Map<String, List<Object>> lists = new ConcurrentHashMap<>();
+
+    private Map<Object, Object> saved(String name) {
+      return saved.computeIfAbsent(name, key -> new ConcurrentHashMap<>());
+    }
+
+    private void save(String name, Object key, Supplier<Object> state) {
+      Map<Object, Object> states = saved(name);
+      if (!states.containsKey(key))
+        states.putIfAbsent(key, state.get());
+    }
+
+    private List<Object> save(String name, List<?> list) {
+      List<Object> saved = lists.get(name);
+      if (saved != null)
+        return saved;
+
+      List<Object> copy = newArrayList(list);
+      saved = lists.putIfAbsent(name, copy);
+      return saved == null ? copy : saved;
+    }
+
+    private Object of(String name, Object struct) {
+      if (struct instanceof NavigableView)
+        return of(name, ((NavigableView) struct).writes());
+      else if (struct instanceof SnapshotMap)
+        return new MapView(name, ((SnapshotMap) struct).delegate);
+      else if (struct instanceof SnapshotSet)
+        return new SetView(name, ((SnapshotSet) struct).delegate);
+      else if (struct instanceof SnapshotList)
+        return save(name, ((SnapshotList) struct).root);
+      else
+        return struct;
+    }
+
+    /**
+     * The live entries, or their saved states, followed by the saved entries the live ones did not list. Entries that were modified after
+     * they were listed are listed twice, with the same value.
+     */
+    private final class MapView extends AbstractMap<Object, Object> {
+      private final String name;
+      private final Map<?, ?> live;
+
+      private MapView(String name, Map<?, ?> live) {
+        this.name = name;
+        this.live = live;
+      }
+
+      @Override
+      public Set<Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Entry<Object, Object>>() {
+          @Override
+          public Iterator<Entry<Object, Object>> iterator() {
+            Map<Object, Object> states = saved(name);
+            Iterator<? extends Entry<?, ?>> entries = live.entrySet().iterator();
+            // Bounded by the saved states, unlike the live entries
+            Set<Object> listed = new HashSet<>();
+
+            return new AbstractIterator<Entry<Object, Object>>() {
+              // Started once the live entries were read, so that it sees the states saved until then
+              private Iterator<Entry<Object, Object>> saved;
+
+              @Override
+              protected Entry<Object, Object> computeNext() {
+                while (entries.hasNext()) {
+                  Entry<?, ?> entry = entries.next();
+                  // The saved state is looked up after the live value was read
+                  Object state = states.get(entry.getKey());
+                  if (state == null)
+                    return new SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+
+                  listed.add(entry.getKey());
+                  if (state != ABSENT)
+                    return new SimpleImmutableEntry<>(entry.getKey(), state);
+                }
+                if (saved == null)
+                  saved = states.entrySet().iterator();
+                while (saved.hasNext()) {
+                  Entry<Object, Object> entry = saved.next();
+                  if (entry.getValue() != ABSENT && !listed.contains(entry.getKey()))
+                    return entry;
+                }
+                return endOfData();
+              }
+            };
+          }
+
+          @Override
+          public int size() {
+            return Iterators.size(iterator());
+          }
+        };
+      }
+    }
+
+    /**
+     * @see MapView
+     */
+    private final class SetView extends AbstractSet<Object> {
+      private final String name;
+      private final Set<?> live;
+
+      private SetView(String name, Set<?> live) {
+        this.name = name;
+        this.live = live;
+      }
+
+      @Override
+      public Iterator<Object> iterator() {
+        Map<Object, Object> states = saved(name);
+        Iterator<?> elements = live.iterator();
+        Set<Object> listed = new HashSet<>();
+
+        return new AbstractIterator<Object>() {
+          private Iterator<Map.Entry<Object, Object>> saved;
+
+          @Override
+          protected Object computeNext() {
+            while (elements.hasNext()) {
+              Object element = elements.next();
+              Object state = states.get(element);
+              if (state == null)
+                return element;
+
+              listed.add(element);
+              if (state == PRESENT)
+                return element;
+            }
+            if (saved == null)
+              saved = states.entrySet().iterator();
+            while (saved.hasNext()) {
+              Map.Entry<Object, Object> entry = saved.next();
+              if (entry.getValue() == PRESENT && !listed.contains(entry.getKey()))
+                return entry.getKey();
+            }
+            return endOfData();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return Iterators.size(iterator());
+      }
+    }
+  }
+
+  private final class SnapshotMap<K, V> extends ForwardingMap<K, V> {
+    private final String name;
+    private final Map<K, V> delegate;
+
+    private SnapshotMap(String name, Map<K, V> delegate) {
+      this.name = name;
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected Map<K, V> delegate() {
+      return delegate;
+    }
+
+    private <R> R write(Object key, Supplier<R> write) {
+      return Snapshots.this.write(snapshot -> snapshot.save(name, key, () -> {
+        V value = delegate.get(key);
+        return value == null ? ABSENT : value;
+      }), write);
+    }
+
+    @Override
+    public V put(K key, V value) {
+      return write(key, () -> delegate.put(key, value));
+    }
+
+    @Override
+    public V remove(Object key) {
+      return write(key, () -> delegate.remove(key));
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map) {
+      map.forEach(this::put);
+    }
+
+    @Override
+    public void clear() {
+      newArrayList(delegate.keySet()).forEach(this::remove);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+      return write(key, () -> delegate.putIfAbsent(key, value));
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+      return write(key, () -> delegate.remove(key, value));
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+      return write(key, () -> delegate.replace(key, oldValue, newValue));
+    }
+
+    @Override
+    public V replace(K key, V value) {
+      return write(key, () -> delegate.replace(key, value));
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+      return write(key, () -> delegate.computeIfAbsent(key, mappingFunction));
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+      return write(key, () -> delegate.computeIfPresent(key, remappingFunction));
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+      return write(key, () -> delegate.compute(key, remappingFunction));
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+      return write(key, () -> delegate.merge(key, value, remappingFunction));
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+      newArrayList(delegate.keySet()).forEach(key -> computeIfPresent(key, function));
+    }
+
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+      return delegate.getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+      delegate.forEach(action);
+    }
+
+    /**
+     * Changes made through the views go through the map.
+     */
+    @Override
+    public Set<K> keySet() {
+      return new AbstractSet<K>() {
+        @Override
+        public Iterator<K> iterator() {
+          return Iterators.transform(entrySet().iterator(), Entry::getKey);
+        }
+
+        @Override
+        public boolean contains(Object key) {
+          return containsKey(key);
+        }
+
+        @Override
+        public boolean remove(Object key) {
+          return SnapshotMap.this.remove(key) != null;
+        }
+
+        @Override
+        public int size() {
+          return SnapshotMap.this.size();
+        }
+      };
+    }
+
+    @Override
+    public Collection<V> values() {
+      return new AbstractCollection<V>() {
+        @Override
+        public Iterator<V> iterator() {
+          return Iterators.transform(entrySet().iterator(), Entry::getValue);
+        }
+
+        @Override
+        public int size() {
+          return SnapshotMap.this.size();
+        }
+      };
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+      return new AbstractSet<Entry<K, V>>() {
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+          Iterator<Entry<K, V>> entries = delegate.entrySet().iterator();
+          return new Iterator<Entry<K, V>>() {
+            private Entry<K, V> last;
+
+            @Override
+            public boolean hasNext() {
+              return entries.hasNext();
+            }
+
+            @Override
+            public Entry<K, V> next() {
+              last = new AbstractMap.SimpleEntry<K, V>(entries.next()) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public V setValue(V value) {
+                  put(getKey(), value);
+                  return super.setValue(value);
+                }
+              };
+              return last;
+            }
+
+            @Override
+            public void remove() {
+              checkState(last != null, "No entry to remove");
+              SnapshotMap.this.remove(last.getKey());
+              last = null;
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return SnapshotMap.this.size();
+        }
+      };
+    }
+  }
+
+  private final class SnapshotSet<T> extends ForwardingSet<T> {
+    private final String name;
+    private final Set<T> delegate;
+    private final Predicate<Object> membership;
+
+    private SnapshotSet(String name, Set<T> delegate) {
+      this.name = name;
+      this.delegate = delegate;
+      // MapDB sets look up their elements by iterating over them, their map looks them up by hash
+      this.membership = delegate instanceof HTreeMap.KeySet ? ((HTreeMap.KeySet<?>) delegate).getMap()::containsKey : delegate::contains;
+    }
+
+    @Override
+    protected Set<T> delegate() {
+      return delegate;
+    }
+
+    private <R> R write(Object element, Supplier<R> write) {
+      return Snapshots.this.write(snapshot -> snapshot.save(name, element, () -> membership.test(element) ? PRESENT : ABSENT), write);
+    }
+
+    @Override
+    public boolean contains(Object element) {
+      return membership.test(element);
+    }
+
+    @Override
+    public boolean add(T element) {
+      return write(element, () -> delegate.add(element));
+    }
+
+    @Override
+    public boolean remove(Object element) {
+      return write(element, () -> delegate.remove(element));
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> elements) {
+      return standardAddAll(elements);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> elements) {
+      boolean changed = false;
+      for (Object element : elements)
+        changed |= remove(element);
+      return changed;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> elements) {
+      return standardRetainAll(elements);
+    }
+
+    @Override
+    public void clear() {
+      standardClear();
+    }
+
+    /**
+     * Removals through the iterator go through the set.
+     */
+    @Override
+    public Iterator<T> iterator() {
+      Iterator<T> elements = delegate.iterator();
+      return new Iterator<T>() {
+        private T last;
+        private boolean removable;
+
+        @Override
+        public boolean hasNext() {
+          return elements.hasNext();
+        }
+
+        @Override
+        public T next() {
+          last = elements.next();
+          removable = true;
+          return last;
+        }
+
+        @Override
+        public void remove() {
+          checkState(removable, "No element to remove");
+          SnapshotSet.this.remove(last);
+          removable = false;
+        }
+      };
+    }
+  }
+
+  /**
+   * Lists are saved as a whole before their first modification. Sub-lists save the list they are part of.
+   */
+  private final class SnapshotList<T> extends ForwardingList<T> {
+    private final String name;
+    private final List<T> root;
+    private final List<T> delegate;
+
+    private SnapshotList(String name, List<T> root, List<T> delegate) {
+      this.name = name;
+      this.root = root;
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected List<T> delegate() {
+      return delegate;
+    }
+
+    private <R> R write(Supplier<R> write) {
+      return Snapshots.this.write(snapshot -> snapshot.save(name, root), write);
+    }
+
+    private void modify(Runnable modification) {
+      write(() -> {
+        modification.run();
+        return null;
+      });
+    }
+
+    @Override
+    public boolean add(T element) {
+      return write(() -> delegate.add(element));
+    }
+
+    @Override
+    public void add(int index, T element) {
+      modify(() -> delegate.add(index, element));
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> elements) {
+      return write(() -> delegate.addAll(elements));
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends T> elements) {
+      return write(() -> delegate.addAll(index, elements));
+    }
+
+    @Override
+    public T set(int index, T element) {
+      return write(() -> delegate.set(index, element));
+    }
+
+    @Override
+    public T remove(int index) {
+      return write(() -> delegate.remove(index));
+    }
+
+    @Override
+    public boolean remove(Object element) {
+      return write(() -> delegate.remove(element));
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> elements) {
+      return write(() -> delegate.removeAll(elements));
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> elements) {
+      return write(() -> delegate.retainAll(elements));
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super T> filter) {
+      return write(() -> delegate.removeIf(filter));
+    }
+
+    @Override
+    public void replaceAll(UnaryOperator<T> operator) {
+      modify(() -> delegate.replaceAll(operator));
+    }
+
+    @Override
+    public void sort(Comparator<? super T> comparator) {
+      modify(() -> delegate.sort(comparator));
+    }
+
+    @Override
+    public void clear() {
+      modify(() -> delegate.clear());
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return listIterator();
+    }
+
+    @Override
+    public ListIterator<T> listIterator() {
+      return listIterator(0);
+    }
+
+    /**
+     * Changes made through the iterators go through the list.
+     */
+    @Override
+    public ListIterator<T> listIterator(int index) {
+      ListIterator<T> elements = delegate.listIterator(index);
+      return new ForwardingListIterator<T>() {
+        @Override
+        protected ListIterator<T> delegate() {
+          return elements;
+        }
+
+        @Override
+        public void remove() {
+          modify(elements::remove);
+        }
+
+        @Override
+        public void set(T element) {
+          modify(() -> elements.set(element));
+        }
+
+        @Override
+        public void add(T element) {
+          modify(() -> elements.add(element));
+        }
+      };
+    }
+
+    @Override
+    public List<T> subList(int fromIndex, int toIndex) {
+      return new SnapshotList<>(name, root, delegate.subList(fromIndex, toIndex));
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package org.telegram.abilitybots.api.db;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Queries of the sorted maps opened with {@link DBContext#getSortedMap(String, Class, Class)}, on top of the ranges of {@link NavigableMap}.
+ * <p>
+ * The queries walk the map from the first matching key, they run in logarithmic time plus the number of entries they return.
+ */
+public final class SortedMaps {
+  private SortedMaps() {
+
+  }
+
+  /**
+   * @param map    the map to query
+   * @param prefix the prefix of the keys
+   * @param <V>    the type of the Map values
+   * @return a read-only view of the entries whose keys start with the prefix
+   */
+  public static <V> NavigableMap<String, V> withPrefix(NavigableMap<String, V> map, String prefix) {
+    // The keys with the prefix come before the prefix with its last incrementable character incremented
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE)
+      end--;
+    if (end == 0)
+      return map.tailMap(prefix, true);
+
+    String upper = prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    return map.subMap(prefix, true, upper, false);
+  }
+
+  /**
+   * @param map   the map to query
+   * @param count the maximum number of entries to return
+   * @param <K>   the type of the Map keys
+   * @param <V>   the type of the Map values
+   * @return the entries with the greatest keys, from the greatest down
+   */
+  public static <K, V> List<Map.Entry<K, V>> top(NavigableMap<K, V> map, int count) {
+    checkArgument(count >= 0, "Count cannot be negative");
+    return map.descendingMap().entrySet().stream().limit(count).collect(toList());
+  }
+
+  /**
+   * @param map   the map to query
+   * @param count the maximum number of entries to return
+   * @param <K>   the type of the Map keys
+   * @param <V>   the type of the Map values
+   * @return the entries with the smallest keys, from the smallest up
+   */
+  public static <K, V> List<Map.Entry<K, V>> bottom(NavigableMap<K, V> map, int count) {
+    checkArgument(count >= 0, "Count cannot be negative");
+    return map.entrySet().stream().limit(count).collect(toList());
+  }
+}
@@ -0,0 +1,538 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.collect.ForwardingList;
+import com.google.common.collect.ForwardingMap;
+import com.google.common.collect.ForwardingSet;
+import com.google.common.collect.Iterators;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.Collections.unmodifiableCollection;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * Runs the transactions of a {@link DBContext}, see {@link DBContext#inTransaction(Function)}.
+ * <p>
+ * Transactions hold an exclusive lock while commits hold a shared one, so that a commit never persists half of a transaction.
+ * The work of a transaction sees the DB through a view that records the previous state of everything it modifies.
+ * If the work throws, the recorded states are restored in reverse order.
+ * <p>
+ * Writes made outside of transactions are neither isolated nor rolled back, and structures created by a failed transaction are left empty.
+ */
+final class Transactions {
+  private final ReentrantReadWriteLock lock;
+  private final ThreadLocal<Transaction> current;
+
+  Transactions() {
+    lock = new ReentrantReadWriteLock();
+    current = new ThreadLocal<>();
+  }
+
+  /**
+   * Runs the work as a transaction on the DB and commits the DB once the work completed. A nested transaction joins the current one.
+   */
+  <T> T run(DBContext db, Function<DBContext, T> work) {
+    checkNotNull(work, "Transaction work cannot be null");
+    Transaction active = current.get();
+    if (active != null)
+      return work.apply(active);
+
+    T result;
+    Transaction transaction = new Transaction(db);
+    lock.writeLock().lock();
+    current.set(transaction);
+    try {
+      result = work.apply(transaction);
+    } catch (RuntimeException | Error e) {
+      try {
+        transaction.rollback();
+      } catch (RuntimeException rollbackFailure) {
+        e.addSuppressed(rollbackFailure);
+      }
+      throw e;
+    } finally {
+      current.remove();
+      lock.writeLock().unlock();
+    }
+
+    // The transaction is complete, it can be committed alongside the others
+    db.commit();
+    return result;
+  }
+
+  /**
+   * @return <tt>true</tt> if the current thread is running a transaction, its commits are then deferred to the end of the transaction
+   */
+  boolean inTransaction() {
+    return lock.isWriteLockedByCurrentThread();
+  }
+
+  /**
+   * Runs the action while no transaction or commit is in progress. As within a transaction, the commits requested by the action are ignored.
+   */
+  <T> T exclusive(Supplier<T> action) {
+    lock.writeLock().lock();
+    try {
+      return action.get();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Runs the action while no transaction is in progress.
+   */
+  void shared(Runnable action) {
+    lock.readLock().lock();
+    try {
+      action.run();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * The view of the DB given to the work of a transaction.
+   */
+  private static final class Transaction implements DBContext {
+    private final DBContext db;
+    private final Map<String, Object> structures;
+    private final Deque<Runnable> undo;
+    private final Map<Object, Set<Object>> recorded;
+
+    private Transaction(DBContext db) {
+      this.db = db;
+      this.structures = new HashMap<>();
+      this.undo = new ArrayDeque<>();
+      this.recorded = new IdentityHashMap<>();
+    }
+
+    @Override
+    public <T> List<T> getList(String name) {
+      return structure(name, () -> new JournaledList<>(db.getList(name)));
+    }
+
+    @Override
+    public <K, V> Map<K, V> getMap(String name) {
+      return structure(name, () -> new JournaledMap<>(db.getMap(name)));
+    }
+
+    @Override
+    public <T> Set<T> getSet(String name) {
+      return structure(name, () -> new JournaledSet<>(db.getSet(name)));
+    }
+
+    @Override
+    public <T> List<T> getList(String name, Class<T> type) {
+      return structure(name, () -> new JournaledList<>(db.getList(name, type)));
+    }
+
+    @Override
+    public <K, V> Map<K, V> getMap(String name, Class<K> keyType, Class<V> valueType) {
+      return structure(name, () -> new JournaledMap<>(db.getMap(name, keyType, valueType)));
+    }
+
+    @Override
+    public <K, V> Map<K, V> getExpiringMap(String name, Class<K> keyType, Class<V> valueType, Expiration expiration) {
+      return structure(name, () -> new JournaledMap<>(db.getExpiringMap(name, keyType, valueType, expiration)));
+    }
+
+    @Override
+    public <K, V> NavigableMap<K, V> getSortedMap(String name, Class<K> keyType, Class<V> valueType) {
+      return structure(name, () -> {
+        NavigableMap<K, V> map = db.getSortedMap(name, keyType, valueType);
+        return new NavigableView<>(new JournaledMap<>(map), map);
+      });
+    }
+
+    /**
+     * Counters are not part of the transaction, their updates are kept if it is rolled back.
+     */
+    @Override
+    public Counter getCounter(String name) {
+      return db.getCounter(name);
+    }
+
+    @Override
+    public <K> CounterMap<K> getCounterMap(String name, Class<K> keyType) {
+      return db.getCounterMap(name, keyType);
+    }
+
+    @Override
+    public <T> Set<T> getSet(String name, Class<T> type) {
+      return structure(name, () -> new JournaledSet<>(db.getSet(name, type)));
+    }
+
+    /**
+     * Every structure is opened once per transaction. The work gets the structure under the types it asks for, like it does from the DB.
+     */
+    @SuppressWarnings("unchecked")
+    private <S> S structure(String name, Supplier<Object> open) {
+      return (S) structures.computeIfAbsent(name, key -> open.get());
+    }
+
+    @Override
+    public String summary() {
+      return db.summary();
+    }
+
+    @Override
+    public Object backup() {
+      return db.backup();
+    }
+
+    @Override
+    public void backup(OutputStream out) throws IOException {
+      db.backup(out);
+    }
+
+    @Override
+    public void backup(OutputStream out, BackupFormat format) throws IOException {
+      db.backup(out, format);
+    }
+
+    @Override
+    public boolean recover(Object backup) {
+      throw new UnsupportedOperationException("The DB cannot be recovered in a transaction");
+    }
+
+    @Override
+    public boolean recover(InputStream backup) {
+      throw new UnsupportedOperationException("The DB cannot be recovered in a transaction");
+    }
+
+    @Override
+    public String info(String name) {
+      return db.info(name);
+    }
+
+    /**
+     * Does nothing, the transaction is committed once it completes.
+     */
+    @Override
+    public void commit() {
+    }
+
+    @Override
+    public void clear() {
+      throw new UnsupportedOperationException("The DB cannot be cleared in a transaction");
+    }
+
+    @Override
+    public boolean contains(String name) {
+      return db.contains(name);
+    }
+
+    @Override
+    public <T> T inTransaction(Function<DBContext, T> work) {
+      return work.apply(this);
+    }
+
+    @Override
+    public void close() {
+      throw new UnsupportedOperationException("The DB cannot be closed in a transaction");
+    }
+
+    private void rollback() {
+      undo.forEach(Runnable::run);
+    }
+
+    /**
+     * @return <tt>true</tt> the first time the key of the structure is recorded
+     */
+    private boolean record(Object structure, Object key) {
+      return recorded.computeIfAbsent(structure, s -> new HashSet<>()).add(key);
+    }
+
+    private final class JournaledMap<K, V> extends ForwardingMap<K, V> {
+      private final Map<K, V> delegate;
+
+      private JournaledMap(Map<K, V> delegate) {
+        this.delegate = delegate;
+      }
+
+      @Override
+      protected Map<K, V> delegate() {
+        return delegate;
+      }
+
+      @Override
+      public V put(K key, V value) {
+        journal(key);
+        return delegate.put(key, value);
+      }
+
+      @Override
+      public V remove(Object key) {
+        journal(key);
+        return delegate.remove(key);
+      }
+
+      @Override
+      public void putAll(Map<? extends K, ? extends V> map) {
+        map.forEach(this::put);
+      }
+
+      @Override
+      public void clear() {
+        newArrayList(delegate.keySet()).forEach(this::remove);
+      }
+
+      /**
+       * Modifications through the views are not recorded, the views are read-only.
+       */
+      @Override
+      public Set<K> keySet() {
+        return unmodifiableSet(delegate.keySet());
+      }
+
+      @Override
+      public Collection<V> values() {
+        return unmodifiableCollection(delegate.values());
+      }
+
+      @Override
+      public Set<Entry<K, V>> entrySet() {
+        return Collections.unmodifiableMap(delegate).entrySet();
+      }
+
+      // Only keys that were in the map are put back, so they are of its key type
+      @SuppressWarnings("unchecked")
+      private void journal(Object key) {
+        if (!record(this, key))
+          return;
+
+        V previous = delegate.get(key);
+        undo.push(() -> {
+          if (previous == null)
+            delegate.remove(key);
+          else
+            delegate.put((K) key, previous);
+        });
+      }
+    }
+
+    private final class JournaledSet<T> extends ForwardingSet<T> {
+      private final Set<T> delegate;
+
+      private JournaledSet(Set<T> delegate) {
+        this.delegate = delegate;
+      }
+
+      @Override
+      protected Set<T> delegate() {
+        return delegate;
+      }
+
+      @Override
+      public boolean add(T element) {
+        journal(element);
+        return delegate.add(element);
+      }
+
+      @Override
+      public boolean remove(Object element) {
+        journal(element);
+        return delegate.remove(element);
+      }
+
+      @Override
+      public boolean addAll(Collection<? extends T> elements) {
+        return standardAddAll(elements);
+      }
+
+      @Override
+      public boolean removeAll(Collection<?> elements) {
+        boolean changed = false;
+        for (Object element : elements)
+          changed |= remove(element);
+        return changed;
+      }
+
+      @Override
+      public boolean retainAll(Collection<?> elements) {
+        List<T> removed = new ArrayList<>();
+        for (T element : delegate)
+          if (!elements.contains(element))
+            removed.add(element);
+        return removeAll(removed);
+      }
+
+      @Override
+      public boolean removeIf(Predicate<? super T> filter) {
+        List<T> removed = new ArrayList<>();
+        for (T element : delegate)
+          if (filter.test(element))
+            removed.add(element);
+        return removeAll(removed);
+      }
+
+      @Override
+      public void clear() {
+        removeAll(newArrayList(delegate));
+      }
+
+      /**
+       * Removals through the iterator are not recorded, the iterator is read-only.
+       */
+      @Override
+      public Iterator<T> iterator() {
+        return Iterators.unmodifiableIterator(delegate.iterator());
+      }
+
+      // Only elements that were in the set are added back, so they are of its type
+      @SuppressWarnings("unchecked")
+      private void journal(Object element) {
+        if (!record(this, element))
+          return;
+
+        boolean present = delegate.contains(element);
+        undo.push(() -> {
+          if (present)
+            delegate.add((T) element);
+          else
+            delegate.remove(element);
+        });
+      }
+    }
+
+    /**
+     * Lists are recorded as a whole before their first modification.
+     */
+    private final class JournaledList<T> extends ForwardingList<T> {
+      private final List<T> delegate;
+
+      private JournaledList(List<T> delegate) {
+        this.delegate = delegate;
+      }
+
+      @Override
+      protected List<T> delegate() {
+        return delegate;
+      }
+
+      @Override
+      public boolean add(T element) {
+        journal();
+        return delegate.add(element);
+      }
+
+      @Override
+      public void add(int index, T element) {
+        journal();
+        delegate.add(index, element);
+      }
+
+      @Override
+      public boolean addAll(Collection<? extends T> elements) {
+        journal();
+        return delegate.addAll(elements);
+      }
+
+      @Override
+      public boolean addAll(int index, Collection<? extends T> elements) {
+        journal();
+        return delegate.addAll(index, elements);
+      }
+
+      @Override
+      public T set(int index, T element) {
+        journal();
+        return delegate.set(index, element);
+      }
+
+      @Override
+      public T remove(int index) {
+        journal();
+        return delegate.remove(index);
+      }
+
+      @Override
+      public boolean remove(Object element) {
+        journal();
+        return delegate.remove(element);
+      }
+
+      @Override
+      public boolean removeAll(Collection<?> elements) {
+        journal();
+        return delegate.removeAll(elements);
+      }
+
+      @Override
+      public boolean retainAll(Collection<?> elements) {
+        journal();
+        return delegate.retainAll(elements);
+      }
+
+      @Override
+      public boolean removeIf(Predicate<? super T> filter) {
+        journal();
+        return delegate.removeIf(filter);
+      }
+
+      @Override
+      public void replaceAll(UnaryOperator<T> operator) {
+        journal();
+        delegate.replaceAll(operator);
+      }
+
+      @Override
+      public void sort(Comparator<? super T> comparator) {
+        journal();
+        delegate.sort(comparator);
+      }
+
+      @Override
+      public void clear() {
+        journal();
+        delegate.clear();
+      }
+
+      /**
+       * Modifications through the iterators and sub-lists are not recorded, they are read-only.
+       */
+      @Override
+      public Iterator<T> iterator() {
+        return Iterators.unmodifiableIterator(delegate.iterator());
+      }
+
+      @Override
+      public ListIterator<T> listIterator() {
+        return unmodifiableList(delegate).listIterator();
+      }
+
+      @Override
+      public ListIterator<T> listIterator(int index) {
+        return unmodifiableList(delegate).listIterator(index);
+      }
+
+      @Override
+      public List<T> subList(int fromIndex, int toIndex) {
+        return unmodifiableList(delegate.subList(fromIndex, toIndex));
+      }
+
+      private void journal() {
+        if (!record(this, this))
+          return;
+
+        List<T> previous = newArrayList(delegate);
+        undo.push(() -> {
+          delegate.clear();
+          delegate.addAll(previous);
+        });
+      }
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package org.telegram.abilitybots.api.sender;
+
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+
+/**
+ * A single invocation of a Telegram API method, deferred so that it can be retried or decorated.
+ *
+ * @param <T> the type returned by the API method
+ */
+@FunctionalInterface
+public interface ApiCall<T> {
+  T call() throws TelegramApiException;
+}
@@ -0,0 +1,196 @@
+package org.telegram.abilitybots.api.sender;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.telegram.abilitybots.api.db.DBContext;
+import org.telegram.abilitybots.api.db.Expiration;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.api.methods.send.SendDocument;
+import org.telegram.telegrambots.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.api.objects.Message;
+import org.telegram.telegrambots.api.objects.PhotoSize;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Strings.nullToEmpty;
+import static java.lang.Boolean.TRUE;
+import static java.lang.String.format;
+import static java.util.Objects.isNull;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.regex.Pattern.CASE_INSENSITIVE;
+
+/**
+ * A sender that avoids uploading the same media twice.
+ * <p>
+ * When a document or a photo is uploaded from a {@link File}, the sender hashes its content and remembers the <code>file_id</code> that Telegram returns.
+ * Later uploads of the same content are sent by <code>file_id</code> instead of re-uploading the bytes. If Telegram rejects a cached <code>file_id</code>
+ * as a bad request, the entry is dropped and the file is uploaded again. Other failures are thrown without touching the cache.
+ * <p>
+ * The cache is persisted in the {@link DBContext} expiring map named {@link CachingMessageSender#FILE_IDS} (content hash -> file_id). The DB evicts
+ * the least recently used entries once the map exceeds its capacity, and the entries that were not used for 30 days.
+ * Uploads from streams are forwarded untouched since hashing them would consume them.
+ * <p>
+ * The requests of the callers are never modified, cached <code>file_id</code>s are sent with copies of them.
+ */
+public class CachingMessageSender extends ForwardingMessageSender {
+  private static final String TAG = CachingMessageSender.class.getSimpleName();
+
+  public static final String FILE_IDS = "FILE_IDS";
+
+  static final String HITS = "sender.cache.hits";
+  static final String MISSES = "sender.cache.misses";
+
+  private static final int DEFAULT_CAPACITY = 1000;
+  // Entries that were not used for that long are dropped, even below the capacity
+  private static final long MAX_IDLE = DAYS.toMillis(30);
+  private static final String DOCUMENT = "document";
+  private static final String PHOTO = "photo";
+  private static final int BAD_REQUEST = 400;
+  // Matches "wrong file identifier", "wrong remote file id" and "invalid file_id"
+  private static final Pattern FILE_ID = Pattern.compile("file[ _]?id", CASE_INSENSITIVE);
+
+  private final DBContext db;
+  private final Metrics metrics;
+  private final Map<String, String> fileIds;
+
+  public CachingMessageSender(MessageSender delegate, DBContext db, int capacity, Metrics metrics) {
+    super(delegate);
+    checkArgument(capacity > 0, "Cache capacity must be positive");
+    this.db = db;
+    this.metrics = metrics;
+    // Reads refresh the entries, so that the least recently used ones are evicted first
+    this.fileIds = db.getExpiringMap(FILE_IDS, String.class, String.class, Expiration.builder()
+        .afterAccess(MAX_IDLE)
+        .maxSize(capacity)
+        .build());
+  }
+
+  public CachingMessageSender(MessageSender delegate, DBContext db) {
+    this(delegate, db, DEFAULT_CAPACITY, Metrics.global());
+  }
+
+  @Override
+  public Message sendDocument(SendDocument sendDocument) throws TelegramApiException {
+    File file = sendDocument.getNewDocumentFile();
+    if (!sendDocument.isNewDocument() || isNull(file))
+      return delegate.sendDocument(sendDocument);
+
+    return sendCached(DOCUMENT, file,
+        fileId -> () -> delegate.sendDocument(byFileId(sendDocument, fileId)),
+        () -> delegate.sendDocument(sendDocument),
+        message -> isNull(message.getDocument()) ? null : message.getDocument().getFileId());
+  }
+
+  @Override
+  public Message sendPhoto(SendPhoto sendPhoto) throws TelegramApiException {
+    File file = sendPhoto.getNewPhotoFile();
+    if (!sendPhoto.isNewPhoto() || isNull(file))
+      return delegate.sendPhoto(sendPhoto);
+
+    return sendCached(PHOTO, file,
+        fileId -> () -> delegate.sendPhoto(byFileId(sendPhoto, fileId)),
+        () -> delegate.sendPhoto(sendPhoto),
+        this::largestPhotoId);
+  }
+
+  /**
+   * The request of the caller is left untouched, a cached <code>file_id</code> is sent with a copy of it.
+   */
+  private Message sendCached(String kind, File file, Function<String, ApiCall<Message>> sendFileId,
+                             ApiCall<Message> upload, Function<Message, String> fileIdOf) throws TelegramApiException {
+    String key;
+    try {
+      key = format("%s:%s", kind, Files.hash(file, Hashing.sha256()));
+    } catch (IOException e) {
+      BotLogger.warn(TAG, format("Could not hash file [%s], uploading it without caching: %s", file, e.getMessage()));
+      return upload.call();
+    }
+
+    String cachedId = fileIds.get(key);
+    if (cachedId != null) {
+      metrics.increment(HITS);
+      try {
+        return sendFileId.apply(cachedId).call();
+      } catch (TelegramApiException e) {
+        // Rate limits, server and network errors would fail the upload as well, they are left to the caller
+        if (!isRejectedFileId(e))
+          throw e;
+
+        BotLogger.warn(TAG, format("Cached file_id [%s] was rejected, uploading the file again: %s", cachedId, e.getMessage()));
+        evict(key);
+      }
+    }
+
+    metrics.increment(MISSES);
+    Message message = upload.call();
+    String fileId = isNull(message) ? null : fileIdOf.apply(message);
+    if (fileId != null)
+      remember(key, fileId);
+
+    return message;
+  }
+
+  /**
+   * @return <tt>true</tt> if Telegram refused the <code>file_id</code> itself, such as with "Bad Request: wrong file identifier"
+   */
+  private static boolean isRejectedFileId(TelegramApiException e) {
+    if (!(e instanceof TelegramApiRequestException))
+      return false;
+
+    TelegramApiRequestException request = (TelegramApiRequestException) e;
+    return Objects.equals(request.getErrorCode(), BAD_REQUEST) && FILE_ID.matcher(nullToEmpty(request.getApiResponse())).find();
+  }
+
+  private String largestPhotoId(Message message) {
+    List<PhotoSize> sizes = message.getPhoto();
+    if (isNull(sizes) || sizes.isEmpty())
+      return null;
+
+    // Telegram lists the sizes in ascending order, the last one is the original
+    return sizes.get(sizes.size() - 1).getFileId();
+  }
+
+  private void remember(String key, String fileId) {
+    fileIds.put(key, fileId);
+    db.commit();
+  }
+
+  private void evict(String key) {
+    fileIds.remove(key);
+    db.commit();
+  }
+
+  private static SendDocument byFileId(SendDocument sendDocument, String fileId) {
+    SendDocument copy = new SendDocument()
+        .setChatId(sendDocument.getChatId())
+        .setDocument(fileId)
+        .setCaption(sendDocument.getCaption())
+        .setReplyToMessageId(sendDocument.getReplyToMessageId())
+        .setReplyMarkup(sendDocument.getReplyMarkup());
+    if (TRUE.equals(sendDocument.getDisableNotification()))
+      copy.disableNotification();
+    return copy;
+  }
+
+  private static SendPhoto byFileId(SendPhoto sendPhoto, String fileId) {
+    SendPhoto copy = new SendPhoto()
+        .setChatId(sendPhoto.getChatId())
+        .setPhoto(fileId)
+        .setCaption(sendPhoto.getCaption())
+        .setReplyToMessageId(sendPhoto.getReplyToMessageId())
+        .setReplyMarkup(sendPhoto.getReplyMarkup());
+    if (TRUE.equals(sendPhoto.getDisableNotification()))
+      copy.disableNotification();
+    return copy;
+  }
+}
@@ -0,0 +1,324 @@
+package org.telegram.abilitybots.api.sender;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Ticker;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.logging.BotLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A circuit breaker tracks the outcome of the latest calls to the Telegram API and stops letting calls through when the API is degraded.
+ * <ul>
+ * <li>{@link State#CLOSED} - calls go through. The breaker opens once the rate of failed calls or the rate of slow calls in the window reaches its threshold</li>
+ * <li>{@link State#OPEN} - calls are rejected until the open duration elapses, the breaker then becomes half-open</li>
+ * <li>{@link State#HALF_OPEN} - a limited number of probe calls go through. A single failed or slow probe opens the breaker again,
+ * the breaker closes once all the probes succeed</li>
+ * </ul>
+ * Transitions are counted in the {@link Metrics} as <code>sender.breaker.[state]</code> and the current state is exported as the
+ * <code>sender.breaker.state</code> gauge (<tt>0</tt> closed, <tt>1</tt> half-open, <tt>2</tt> open).
+ * <p>
+ * In-order to instantiate a breaker, you can call {@link CircuitBreaker#builder()}.
+ */
+public final class CircuitBreaker {
+  private static final String TAG = CircuitBreaker.class.getSimpleName();
+
+  static final String STATE = "sender.breaker.state";
+  static final String REJECTED = "sender.breaker.rejected";
+
+  /**
+   * The states of a {@link CircuitBreaker}.
+   */
+  public enum State {
+    CLOSED, HALF_OPEN, OPEN;
+
+    String metric() {
+      return format("sender.breaker.%s", name().toLowerCase());
+    }
+  }
+
+  private final int windowSize;
+  private final int minimumCalls;
+  private final double failureRateThreshold;
+  private final double slowCallRateThreshold;
+  private final long slowCallThreshold;
+  private final long openDuration;
+  private final int halfOpenProbes;
+  private final Ticker ticker;
+  private final Metrics metrics;
+  private final List<Runnable> onClose;
+
+  // Ring buffer of the outcomes of the latest calls
+  private final Outcome[] window;
+  private int next;
+  private int recorded;
+  private int failures;
+  private int slowCalls;
+
+  private State state;
+  private long openedAt;
+  private int probesStarted;
+  private int probesSucceeded;
+
+  private enum Outcome {
+    SUCCESS, FAILURE, SLOW
+  }
+
+  private CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, double slowCallRateThreshold, long slowCallThreshold,
+                         long openDuration, int halfOpenProbes, Ticker ticker, Metrics metrics) {
+    checkArgument(windowSize > 0, "Window size must be positive");
+    checkArgument(minimumCalls > 0 && minimumCalls <= windowSize, "Minimum calls must be positive and cannot exceed the window size");
+    checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 1, "Failure rate threshold must be a ratio between 0 and 1");
+    checkArgument(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1, "Slow call rate threshold must be a ratio between 0 and 1");
+    checkArgument(slowCallThreshold > 0, "Slow call threshold must be positive");
+    checkArgument(openDuration >= 0, "Open duration cannot be negative");
+    checkArgument(halfOpenProbes > 0, "The number of half-open probes must be positive");
+    this.windowSize = windowSize;
+    this.minimumCalls = minimumCalls;
+    this.failureRateThreshold = failureRateThreshold;
+    this.slowCallRateThreshold = slowCallRateThreshold;
+    this.slowCallThreshold = MILLISECONDS.toNanos(slowCallThreshold);
+    this.openDuration = MILLISECONDS.toNanos(openDuration);
+    this.halfOpenProbes = halfOpenProbes;
+    this.ticker = checkNotNull(ticker, "Ticker cannot be null");
+    this.metrics = checkNotNull(metrics, "Metrics cannot be null");
+    this.onClose = new ArrayList<>();
+    this.window = new Outcome[windowSize];
+    this.state = State.CLOSED;
+
+    metrics.gauge(STATE, () -> state().ordinal());
+  }
+
+  public static CircuitBreakerBuilder builder() {
+    return new CircuitBreakerBuilder();
+  }
+
+  /**
+   * @return the current state of the breaker, an open breaker whose open duration elapsed is reported as half-open
+   */
+  public synchronized State state() {
+    if (state == State.OPEN && ticker.read() - openedAt >= openDuration)
+      transitionTo(State.HALF_OPEN);
+    return state;
+  }
+
+  /**
+   * Asks for a permission to call the API. Every granted permission must be followed by a call to {@link CircuitBreaker#onSuccess(long)},
+   * {@link CircuitBreaker#onFailure()} or {@link CircuitBreaker#onIgnored()}.
+   *
+   * @return <tt>true</tt> if the call may proceed
+   */
+  public synchronized boolean tryAcquire() {
+    switch (state()) {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        if (probesStarted < halfOpenProbes) {
+          probesStarted++;
+          return true;
+        }
+        break;
+      default:
+        break;
+    }
+
+    metrics.increment(REJECTED);
+    return false;
+  }
+
+  /**
+   * @return the current time of the breaker's ticker, to be used as the start of a call
+   */
+  public long start() {
+    return ticker.read();
+  }
+
+  /**
+   * @param start the start of the call as returned by {@link CircuitBreaker#start()}
+   */
+  public void onSuccess(long start) {
+    record(ticker.read() - start >= slowCallThreshold ? Outcome.SLOW : Outcome.SUCCESS);
+  }
+
+  public void onFailure() {
+    record(Outcome.FAILURE);
+  }
+
+  /**
+   * Releases a permission without recording an outcome, for calls that neither succeeded nor failed because of the API.
+   */
+  public synchronized void onIgnored() {
+    if (state == State.HALF_OPEN && probesStarted > probesSucceeded)
+      probesStarted--;
+  }
+
+  /**
+   * Registers an action that is run whenever the breaker closes, on the thread that closed it.
+   *
+   * @param action the action to run
+   */
+  public synchronized void onClose(Runnable action) {
+    onClose.add(checkNotNull(action, "Action cannot be null"));
+  }
+
+  private void record(Outcome outcome) {
+    List<Runnable> actions = null;
+    synchronized (this) {
+      if (state == State.HALF_OPEN) {
+        if (outcome != Outcome.SUCCESS) {
+          transitionTo(State.OPEN);
+        } else if (++probesSucceeded >= halfOpenProbes) {
+          transitionTo(State.CLOSED);
+          actions = new ArrayList<>(onClose);
+        }
+      } else if (state == State.CLOSED) {
+        add(outcome);
+        if (recorded >= minimumCalls && (rate(failures) >= failureRateThreshold || rate(slowCalls) >= slowCallRateThreshold))
+          transitionTo(State.OPEN);
+      }
+    }
+
+    // Run outside of the lock, actions usually call the API again
+    if (actions != null)
+      actions.forEach(Runnable::run);
+  }
+
+  private void add(Outcome outcome) {
+    Outcome evicted = window[next];
+    if (evicted == Outcome.FAILURE)
+      failures--;
+    else if (evicted == Outcome.SLOW)
+      slowCalls--;
+    else if (evicted == null)
+      recorded++;
+
+    window[next] = outcome;
+    next = (next + 1) % windowSize;
+    if (outcome == Outcome.FAILURE)
+      failures++;
+    else if (outcome == Outcome.SLOW)
+      slowCalls++;
+  }
+
+  private double rate(int count) {
+    return (double) count / recorded;
+  }
+
+  private void transitionTo(State target) {
+    if (state == target)
+      return;
+
+    BotLogger.warn(TAG, format("Circuit breaker transitioned from %s to %s", state, target));
+    state = target;
+    metrics.increment(target.metric());
+    probesStarted = 0;
+    probesSucceeded = 0;
+
+    if (target == State.OPEN) {
+      openedAt = ticker.read();
+    } else if (target == State.CLOSED) {
+      for (int i = 0; i < windowSize; i++)
+        window[i] = null;
+      next = 0;
+      recorded = 0;
+      failures = 0;
+      slowCalls = 0;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("state", state())
+        .add("windowSize", windowSize)
+        .add("minimumCalls", minimumCalls)
+        .add("failureRateThreshold", failureRateThreshold)
+        .add("slowCallRateThreshold", slowCallRateThreshold)
+        .add("halfOpenProbes", halfOpenProbes)
+        .toString();
+  }
+
+  public static class CircuitBreakerBuilder {
+    private int windowSize = 20;
+    private int minimumCalls = 10;
+    private double failureRateThreshold = 0.5;
+    private double slowCallRateThreshold = 0.8;
+    private long slowCallThreshold = SECONDS.toMillis(10);
+    private long openDuration = SECONDS.toMillis(30);
+    private int halfOpenProbes = 3;
+    private Ticker ticker = Ticker.systemTicker();
+    private Metrics metrics = Metrics.global();
+
+    private CircuitBreakerBuilder() {
+    }
+
+    /**
+     * @param windowSize the number of latest calls the rates are computed on
+     */
+    public CircuitBreakerBuilder windowSize(int windowSize) {
+      this.windowSize = windowSize;
+      return this;
+    }
+
+    /**
+     * @param minimumCalls the number of calls to record before the breaker may open
+     */
+    public CircuitBreakerBuilder minimumCalls(int minimumCalls) {
+      this.minimumCalls = minimumCalls;
+      return this;
+    }
+
+    public CircuitBreakerBuilder failureRateThreshold(double failureRateThreshold) {
+      this.failureRateThreshold = failureRateThreshold;
+      return this;
+    }
+
+    public CircuitBreakerBuilder slowCallRateThreshold(double slowCallRateThreshold) {
+      this.slowCallRateThreshold = slowCallRateThreshold;
+      return this;
+    }
+
+    /**
+     * @param slowCallThreshold the latency in milliseconds from which a successful call is considered slow
+     */
+    public CircuitBreakerBuilder slowCallThreshold(long slowCallThreshold) {
+      this.slowCallThreshold = slowCallThreshold;
+      return this;
+    }
+
+    /**
+     * @param openDuration the time in milliseconds the breaker stays open before probing the API
+     */
+    public CircuitBreakerBuilder openDuration(long openDuration) {
+      this.openDuration = openDuration;
+      return this;
+    }
+
+    public CircuitBreakerBuilder halfOpenProbes(int halfOpenProbes) {
+      this.halfOpenProbes = halfOpenProbes;
+      return this;
+    }
+
+    public CircuitBreakerBuilder ticker(Ticker ticker) {
+      this.ticker = ticker;
+      return this;
+    }
+
+    public CircuitBreakerBuilder metrics(Metrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    public CircuitBreaker build() {
+      return new CircuitBreaker(windowSize, minimumCalls, failureRateThreshold, slowCallRateThreshold, slowCallThreshold,
+          openDuration, halfOpenProbes, ticker, metrics);
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package org.telegram.abilitybots.api.sender;
+
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.api.methods.BotApiMethod;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.logging.BotLogger;
+import org.telegram.telegrambots.updateshandlers.DownloadFileCallback;
+import org.telegram.telegrambots.updateshandlers.SentCallback;
+
+import java.io.Serializable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.String.format;
+
+/**
+ * A sender that stops calling the Telegram API while it is degraded, according to a {@link CircuitBreaker}.
+ * <p>
+ * While the breaker is open:
+ * <ul>
+ * <li>Synchronous calls fail fast with a {@link CircuitOpenException} instead of blocking on the API</li>
+ * <li>{@link MessageSender#send(String, long)}, {@link MessageSender#sendMd(String, long)} and {@link MessageSender#forceReply(String, long)}
+ * return an empty result, as they do for any other failure</li>
+ * <li>Asynchronous calls are queued and dispatched once the breaker closes again. When the queue is full, they fail fast as well</li>
+ * </ul>
+ * The number of queued calls is exported to the {@link Metrics} as the <code>sender.breaker.queued</code> gauge.
+ * <p>
+ * Only transient failures (see {@link RetryPolicy#isTransient(TelegramApiException)}) count against the API, a <code>400 Bad Request</code> is the
+ * caller's mistake and proves the API is responsive.
+ * <p>
+ * The breaker should see every attempt rather than the outcome of several retries, so it belongs under a {@link RetryingMessageSender}
+ * and above a sender that makes a single attempt. Calls rejected by the breaker are not retried.
+ */
+public class CircuitBreakingMessageSender extends ForwardingMessageSender {
+  private static final String TAG = CircuitBreakingMessageSender.class.getSimpleName();
+
+  static final String QUEUED = "sender.breaker.queued";
+  private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+  private final CircuitBreaker breaker;
+  private final Predicate<TelegramApiException> isFailure;
+  private final BlockingQueue<Replay> queue;
+
+  public CircuitBreakingMessageSender(MessageSender delegate, CircuitBreaker breaker, int queueCapacity, Metrics metrics) {
+    super(delegate);
+    checkArgument(queueCapacity > 0, "Queue capacity must be positive");
+    this.breaker = checkNotNull(breaker, "Circuit breaker cannot be null");
+    this.isFailure = RetryPolicy.defaultPolicy()::isTransient;
+    this.queue = new LinkedBlockingQueue<>(queueCapacity);
+    breaker.onClose(this::drain);
+    metrics.gauge(QUEUED, queue::size);
+  }
+
+  public CircuitBreakingMessageSender(MessageSender delegate) {
+    this(delegate, CircuitBreaker.builder().build(), DEFAULT_QUEUE_CAPACITY, Metrics.global());
+  }
+
+  /**
+   * @return the number of asynchronous calls waiting for the breaker to close
+   */
+  public int queued() {
+    return queue.size();
+  }
+
+  @Override
+  protected <T> T call(String method, ApiCall<T> call) throws TelegramApiException {
+    if (!breaker.tryAcquire())
+      throw new CircuitOpenException("Telegram API is unavailable, the circuit breaker is open");
+
+    long start = breaker.start();
+    try {
+      T result = call.call();
+      breaker.onSuccess(start);
+      return result;
+    } catch (TelegramApiException e) {
+      onError(e, start);
+      throw e;
+    } catch (RuntimeException e) {
+      breaker.onIgnored();
+      throw e;
+    }
+  }
+
+  @Override
+  protected <T extends Serializable> void async(String method, SentCallback<T> callback, Dispatch<SentCallback<T>> dispatch) throws TelegramApiException {
+    if (!breaker.tryAcquire()) {
+      enqueue(() -> async(method, callback, dispatch));
+      return;
+    }
+
+    long start = breaker.start();
+    dispatch(start, dispatch, new SentCallback<T>() {
+      @Override
+      public void onResult(BotApiMethod<T> apiMethod, T response) {
+        breaker.onSuccess(start);
+        callback.onResult(apiMethod, response);
+      }
+
+      @Override
+      public void onError(BotApiMethod<T> apiMethod, TelegramApiRequestException e) {
+        CircuitBreakingMessageSender.this.onError(e, start);
+        callback.onError(apiMethod, e);
+      }
+
+      @Override
+      public void onException(BotApiMethod<T> apiMethod, Exception e) {
+        CircuitBreakingMessageSender.this.onError(e, start);
+        callback.onException(apiMethod, e);
+      }
+    });
+  }
+
+  @Override
+  protected <T> void download(String method, DownloadFileCallback<T> callback, Dispatch<DownloadFileCallback<T>> dispatch) throws TelegramApiException {
+    if (!breaker.tryAcquire()) {
+      enqueue(() -> download(method, callback, dispatch));
+      return;
+    }
+
+    long start = breaker.start();
+    dispatch(start, dispatch, new DownloadFileCallback<T>() {
+      @Override
+      public void onResult(T file, java.io.File output) {
+        breaker.onSuccess(start);
+        callback.onResult(file, output);
+      }
+
+      @Override
+      public void onException(T file, Exception e) {
+        onError(e, start);
+        callback.onException(file, e);
+      }
+    });
+  }
+
+  private <C> void dispatch(long start, Dispatch<C> dispatch, C tracked) throws TelegramApiException {
+    try {
+      dispatch.dispatch(tracked);
+    } catch (TelegramApiException | RuntimeException e) {
+      onError(e, start);
+      throw e;
+    }
+  }
+
+  private void onError(Exception e, long start) {
+    if (!(e instanceof TelegramApiException))
+      breaker.onIgnored();
+    else if (isFailure.test((TelegramApiException) e))
+      breaker.onFailure();
+    else
+      breaker.onSuccess(start);
+  }
+
+  private void enqueue(Replay replay) throws CircuitOpenException {
+    if (!queue.offer(replay))
+      throw new CircuitOpenException("Telegram API is unavailable and the queue of pending calls is full");
+  }
+
+  /**
+   * Dispatches the calls that were queued while the breaker was open. Calls that get queued again are left for the next closing.
+   */
+  private void drain() {
+    for (int pending = queue.size(); pending > 0; pending--) {
+      Replay replay = queue.poll();
+      if (replay == null)
+        return;
+
+      try {
+        replay.run();
+      } catch (TelegramApiException | RuntimeException e) {
+        BotLogger.error(format("Could not dispatch a call that was queued while the circuit breaker was open: %s", e.getMessage()), TAG, e);
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface Replay {
+    void run() throws TelegramApiException;
+  }
+}
@@ -0,0 +1,14 @@
+package org.telegram.abilitybots.api.sender;
+
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+
+/**
+ * Thrown when a call is rejected without reaching the Telegram API because the {@link CircuitBreaker} is open.
+ */
+public class CircuitOpenException extends TelegramApiException {
+  private static final long serialVersionUID = 1L;
+
+  public CircuitOpenException(String message) {
+    super(message);
+  }
+}
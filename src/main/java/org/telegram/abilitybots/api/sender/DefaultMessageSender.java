@@ -1,5 +1,13 @@
 package org.telegram.abilitybots.api.sender;
 
+import org.apache.http.StatusLine;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.json.JSONObject;
+import org.telegram.abilitybots.api.util.Metrics;
 import org.telegram.telegrambots.api.methods.*;
 import org.telegram.telegrambots.api.methods.games.GetGameHighScores;
 import org.telegram.telegrambots.api.methods.games.SetGameScore;
@@ -15,17 +23,36 @@ import org.telegram.telegrambots.api.objects.games.GameHighScore;
 import org.telegram.telegrambots.api.objects.replykeyboard.ForceReplyKeyboard;
 import org.telegram.telegrambots.bots.DefaultAbsSender;
 import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
 import org.telegram.telegrambots.logging.BotLogger;
 import org.telegram.telegrambots.updateshandlers.DownloadFileCallback;
 import org.telegram.telegrambots.updateshandlers.SentCallback;
 
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
 
+import static com.google.common.base.Strings.nullToEmpty;
+import static java.lang.String.format;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 import static java.util.Optional.empty;
 import static java.util.Optional.ofNullable;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.lang3.StringUtils.isEmpty;
+import static org.telegram.abilitybots.api.util.Streams.asStream;
+import static org.telegram.abilitybots.api.util.Streams.gzip;
+import static org.telegram.telegrambots.Constants.SOCKET_TIMEOUT;
 
 /**
  * The default implementation of the {@link MessageSender}. This serves as a proxy to the {@link DefaultAbsSender} methods.
@@ -34,106 +61,123 @@ import static java.util.Optional.ofNullable;
  * <li>{@link DefaultMessageSender#sendMd(String, long)} - with markdown</li>
  * <li>{@link DefaultMessageSender#send(String, long)} - without markdown</li>
  * </ol>
+ * <p>Synchronous calls that fail with a retriable error are retried according to the {@link RetryPolicy} the sender was created with, see
+ * {@link RetryPolicy#isRetriable(String, TelegramApiException)}.
+ * The number of retries and of calls that were given up on are exported to the {@link Metrics} as <code>sender.retries</code> and <code>sender.giveups</code>.</p>
+ * <p>To meter or guard every attempt, create it with {@link RetryPolicy#noRetries()} and retry with a {@link RetryingMessageSender} on top of the
+ * decorating senders instead.</p>
  *
  * @author Abbas Abou Daya
  */
-public class DefaultMessageSender implements MessageSender {
+public class DefaultMessageSender implements MessageSender, Closeable {
   private static final String TAG = MessageSender.class.getName();
 
-  private DefaultAbsSender bot;
+  static final String RETRIES = "sender.retries";
+  static final String GIVE_UPS = "sender.giveups";
 
-  public DefaultMessageSender(DefaultAbsSender bot) {
+  private final DefaultAbsSender bot;
+  private final RetryPolicy retryPolicy;
+  private final Metrics metrics;
+  private final CloseableHttpClient httpClient;
+
+  public DefaultMessageSender(DefaultAbsSender bot, RetryPolicy retryPolicy, Metrics metrics) {
     this.bot = bot;
+    this.retryPolicy = retryPolicy;
+    this.metrics = metrics;
+    // Pooled like the client of the bot, which is not exposed
+    this.httpClient = HttpClientBuilder.create()
+        .setConnectionTimeToLive(70, SECONDS)
+        .setMaxConnTotal(100)
+        .build();
+  }
+
+  public DefaultMessageSender(DefaultAbsSender bot) {
+    this(bot, RetryPolicy.defaultPolicy(), Metrics.global());
   }
 
   @Override
   public Optional<Message> send(String message, long id) {
-    return doSendMessage(message, id, false);
+    return orEmpty(() -> sendMessage(textMessage(message, id, false)));
   }
 
   @Override
   public Optional<Message> sendMd(String message, long id) {
-    return doSendMessage(message, id, true);
+    return orEmpty(() -> sendMessage(textMessage(message, id, true)));
   }
 
   @Override
   public Optional<Message> forceReply(String message, long id) {
-    SendMessage msg = new SendMessage();
-    msg.setText(message);
-    msg.setChatId(id);
-    msg.setReplyMarkup(new ForceReplyKeyboard());
-
-    return optionalSendMessage(msg);
+    return orEmpty(() -> sendMessage(forceReplyMessage(message, id)));
   }
 
   @Override
   public Boolean answerInlineQuery(AnswerInlineQuery answerInlineQuery) throws TelegramApiException {
-    return bot.answerInlineQuery(answerInlineQuery);
+    return execute("answerInlineQuery", () -> bot.answerInlineQuery(answerInlineQuery));
   }
 
   @Override
   public Boolean sendChatAction(SendChatAction sendChatAction) throws TelegramApiException {
-    return bot.sendChatAction(sendChatAction);
+    return execute("sendChatAction", () -> bot.sendChatAction(sendChatAction));
   }
 
   @Override
   public Message forwardMessage(ForwardMessage forwardMessage) throws TelegramApiException {
-    return bot.forwardMessage(forwardMessage);
+    return execute("forwardMessage", () -> bot.forwardMessage(forwardMessage));
   }
 
   @Override
   public Message sendLocation(SendLocation sendLocation) throws TelegramApiException {
-    return bot.sendLocation(sendLocation);
+    return execute("sendLocation", () -> bot.sendLocation(sendLocation));
   }
 
   @Override
   public Message sendVenue(SendVenue sendVenue) throws TelegramApiException {
-    return bot.sendVenue(sendVenue);
+    return execute("sendVenue", () -> bot.sendVenue(sendVenue));
   }
 
   @Override
   public Message sendContact(SendContact sendContact) throws TelegramApiException {
-    return bot.sendContact(sendContact);
+    return execute("sendContact", () -> bot.sendContact(sendContact));
   }
 
   @Override
   public Boolean kickMember(KickChatMember kickChatMember) throws TelegramApiException {
-    return bot.kickMember(kickChatMember);
+    return execute("kickMember", () -> bot.kickMember(kickChatMember));
   }
 
   @Override
   public Boolean unbanMember(UnbanChatMember unbanChatMember) throws TelegramApiException {
-    return bot.unbanMember(unbanChatMember);
+    return execute("unbanMember", () -> bot.unbanMember(unbanChatMember));
   }
 
   @Override
   public Boolean leaveChat(LeaveChat leaveChat) throws TelegramApiException {
-    return bot.leaveChat(leaveChat);
+    return execute("leaveChat", () -> bot.leaveChat(leaveChat));
   }
 
   @Override
   public Chat getChat(GetChat getChat) throws TelegramApiException {
-    return bot.getChat(getChat);
+    return execute("getChat", () -> bot.getChat(getChat));
   }
 
   @Override
   public List<ChatMember> getChatAdministrators(GetChatAdministrators getChatAdministrators) throws TelegramApiException {
-    return bot.getChatAdministrators(getChatAdministrators);
+    return execute("getChatAdministrators", () -> bot.getChatAdministrators(getChatAdministrators));
   }
 
   @Override
   public ChatMember getChatMember(GetChatMember getChatMember) throws TelegramApiException {
-    return bot.getChatMember(getChatMember);
+    return execute("getChatMember", () -> bot.getChatMember(getChatMember));
   }
 
   @Override
   public Integer getChatMemberCount(GetChatMemberCount getChatMemberCount) throws TelegramApiException {
-    return bot.getChatMemberCount(getChatMemberCount);
+    return execute("getChatMemberCount", () -> bot.getChatMemberCount(getChatMemberCount));
   }
 
   @Override
   public Boolean deleteMessage(DeleteMessage deleteMessage) throws TelegramApiException {
-    return bot.deleteMessage(deleteMessage);
+    return execute("deleteMessage", () -> bot.deleteMessage(deleteMessage));
   }
 
   @Override
@@ -143,32 +187,32 @@ public class DefaultMessageSender implements MessageSender {
 
   @Override
   public Serializable editMessageText(EditMessageText editMessageText) throws TelegramApiException {
-    return bot.editMessageText(editMessageText);
+    return execute("editMessageText", () -> bot.editMessageText(editMessageText));
   }
 
   @Override
   public Serializable editMessageCaption(EditMessageCaption editMessageCaption) throws TelegramApiException {
-    return bot.editMessageCaption(editMessageCaption);
+    return execute("editMessageCaption", () -> bot.editMessageCaption(editMessageCaption));
   }
 
   @Override
   public Serializable editMessageReplyMarkup(EditMessageReplyMarkup editMessageReplyMarkup) throws TelegramApiException {
-    return bot.editMessageReplyMarkup(editMessageReplyMarkup);
+    return execute("editMessageReplyMarkup", () -> bot.editMessageReplyMarkup(editMessageReplyMarkup));
   }
 
   @Override
   public Boolean answerCallbackQuery(AnswerCallbackQuery answerCallbackQuery) throws TelegramApiException {
-    return bot.answerCallbackQuery(answerCallbackQuery);
+    return execute("answerCallbackQuery", () -> bot.answerCallbackQuery(answerCallbackQuery));
   }
 
   @Override
   public UserProfilePhotos getUserProfilePhotos(GetUserProfilePhotos getUserProfilePhotos) throws TelegramApiException {
-    return bot.getUserProfilePhotos(getUserProfilePhotos);
+    return execute("getUserProfilePhotos", () -> bot.getUserProfilePhotos(getUserProfilePhotos));
   }
 
   @Override
   public java.io.File downloadFile(String path) throws TelegramApiException {
-    return bot.downloadFile(path);
+    return execute("downloadFile", () -> bot.downloadFile(path));
   }
 
   @Override
@@ -178,7 +222,7 @@ public class DefaultMessageSender implements MessageSender {
 
   @Override
   public java.io.File downloadFile(File file) throws TelegramApiException {
-    return bot.downloadFile(file);
+    return execute("downloadFile", () -> bot.downloadFile(file));
   }
 
   @Override
@@ -188,42 +232,42 @@ public class DefaultMessageSender implements MessageSender {
 
   @Override
   public File getFile(GetFile getFile) throws TelegramApiException {
-    return bot.getFile(getFile);
+    return execute("getFile", () -> bot.getFile(getFile));
   }
 
   @Override
   public User getMe() throws TelegramApiException {
-    return bot.getMe();
+    return execute("getMe", () -> bot.getMe());
   }
 
   @Override
   public WebhookInfo getWebhookInfo() throws TelegramApiException {
-    return bot.getWebhookInfo();
+    return execute("getWebhookInfo", () -> bot.getWebhookInfo());
   }
 
   @Override
   public Serializable setGameScore(SetGameScore setGameScore) throws TelegramApiException {
-    return bot.setGameScore(setGameScore);
+    return execute("setGameScore", () -> bot.setGameScore(setGameScore));
   }
 
   @Override
   public Serializable getGameHighScores(GetGameHighScores getGameHighScores) throws TelegramApiException {
-    return bot.getGameHighScores(getGameHighScores);
+    return execute("getGameHighScores", () -> bot.getGameHighScores(getGameHighScores));
   }
 
   @Override
   public Message sendGame(SendGame sendGame) throws TelegramApiException {
-    return bot.sendGame(sendGame);
+    return execute("sendGame", () -> bot.sendGame(sendGame));
   }
 
   @Override
   public Boolean deleteWebhook(DeleteWebhook deleteWebhook) throws TelegramApiException {
-    return bot.deleteWebhook(deleteWebhook);
+    return execute("deleteWebhook", () -> bot.deleteWebhook(deleteWebhook));
   }
 
   @Override
   public Message sendMessage(SendMessage sendMessage) throws TelegramApiException {
-    return bot.sendMessage(sendMessage);
+    return execute("sendMessage", () -> bot.sendMessage(sendMessage));
   }
 
   @Override
@@ -358,49 +402,220 @@ public class DefaultMessageSender implements MessageSender {
 
   @Override
   public Message sendDocument(SendDocument sendDocument) throws TelegramApiException {
-    return bot.sendDocument(sendDocument);
+    return upload("sendDocument", sendDocument.getNewDocumentStream(), () -> bot.sendDocument(sendDocument));
   }
 
   @Override
   public Message sendPhoto(SendPhoto sendPhoto) throws TelegramApiException {
-    return bot.sendPhoto(sendPhoto);
+    return upload("sendPhoto", sendPhoto.getNewPhotoStream(), () -> bot.sendPhoto(sendPhoto));
   }
 
   @Override
   public Message sendVideo(SendVideo sendVideo) throws TelegramApiException {
-    return bot.sendVideo(sendVideo);
+    return upload("sendVideo", sendVideo.getNewVideoStream(), () -> bot.sendVideo(sendVideo));
   }
 
   @Override
   public Message sendSticker(SendSticker sendSticker) throws TelegramApiException {
-    return bot.sendSticker(sendSticker);
+    return upload("sendSticker", sendSticker.getNewStickerStream(), () -> bot.sendSticker(sendSticker));
   }
 
   @Override
   public Message sendAudio(SendAudio sendAudio) throws TelegramApiException {
-    return bot.sendAudio(sendAudio);
+    return upload("sendAudio", sendAudio.getNewAudioStream(), () -> bot.sendAudio(sendAudio));
   }
 
   @Override
   public Message sendVoice(SendVoice sendVoice) throws TelegramApiException {
-    return bot.sendVoice(sendVoice);
+    return upload("sendVoice", sendVoice.getNewVoiceStream(), () -> bot.sendVoice(sendVoice));
+  }
+
+  @Override
+  public Message sendDocument(long chatId, String name, InputStream content, boolean compress) throws TelegramApiException {
+    return sendDocument(new SendDocument()
+        .setChatId(chatId)
+        .setNewDocument(documentName(name, compress), compress ? gzip(content) : content));
+  }
+
+  @Override
+  public Message sendDocument(long chatId, String name, ByteBuffer content, boolean compress) throws TelegramApiException {
+    // Every attempt gets a fresh stream over the buffer
+    return execute("sendDocument", () -> bot.sendDocument(new SendDocument()
+        .setChatId(chatId)
+        .setNewDocument(documentName(name, compress), compress ? gzip(asStream(content)) : asStream(content))));
+  }
+
+  @Override
+  public InputStream downloadFileAsStream(File file) throws TelegramApiException {
+    return downloadFileAsStream(file.getFilePath());
+  }
+
+  @Override
+  public InputStream downloadFileAsStream(String path) throws TelegramApiException {
+    if (isEmpty(path))
+      throw new TelegramApiException("Parameter file can not be null");
+
+    String url = format("%s%s/%s", fileBaseUrl(), bot.getBotToken(), path);
+    return execute("downloadFileAsStream", () -> openStream(url));
+  }
+
+  /**
+   * Releases the connections of the downloads. The bot itself is left untouched, its API calls keep working.
+   */
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+
+  /**
+   * Files are served next to the Bot API, <code>https://api.telegram.org/bot</code> hosts them under <code>https://api.telegram.org/file/bot</code>.
+   */
+  private String fileBaseUrl() throws TelegramApiException {
+    String baseUrl = bot.getOptions().getBaseUrl();
+    try {
+      URI api = new URI(baseUrl);
+      String path = nullToEmpty(api.getPath());
+      int lastSegment = path.lastIndexOf('/') + 1;
+      if (isNull(api.getScheme()) || isNull(api.getHost()) || !path.startsWith("bot", lastSegment))
+        throw new TelegramApiException(format("Unable to locate the files of Bot API base URL [%s], it must end with the bot path", baseUrl));
+
+      String filePath = format("%sfile/%s", path.substring(0, lastSegment), path.substring(lastSegment));
+      return new URI(api.getScheme(), api.getUserInfo(), api.getHost(), api.getPort(), filePath, null, null).toString();
+    } catch (URISyntaxException e) {
+      throw new TelegramApiException(format("Invalid Bot API base URL [%s]", baseUrl), e);
+    }
+  }
+
+  /**
+   * Downloads go through the proxy and the timeouts of the {@link RequestConfig} of the bot options, like the API calls of the bot.
+   * A download that stalls for longer than the socket timeout fails, and is retried as any network failure.
+   */
+  private InputStream openStream(String url) throws TelegramApiException {
+    HttpGet get = new HttpGet(url);
+    get.setConfig(requestConfig());
+
+    CloseableHttpResponse response = null;
+    try {
+      response = httpClient.execute(get);
+      StatusLine status = response.getStatusLine();
+      if (status.getStatusCode() != HTTP_OK) {
+        response.close();
+        throw new TelegramApiRequestException("Unable to download file", new JSONObject()
+            .put("ok", false)
+            .put("error_code", status.getStatusCode())
+            .put("description", status.getReasonPhrase()));
+      }
+
+      CloseableHttpResponse download = response;
+      return new FilterInputStream(download.getEntity().getContent()) {
+        @Override
+        public void close() throws IOException {
+          // Releases the connection without reading the rest of the file
+          download.close();
+        }
+      };
+    } catch (IOException e) {
+      closeQuietly(response);
+      throw new TelegramApiException("Unable to download file", e);
+    }
+  }
+
+  private RequestConfig requestConfig() {
+    RequestConfig config = bot.getOptions().getRequestConfig();
+    if (nonNull(config))
+      return config;
+
+    // The defaults of the bot when its options have no request config
+    return RequestConfig.custom()
+        .setSocketTimeout(SOCKET_TIMEOUT)
+        .setConnectTimeout(SOCKET_TIMEOUT)
+        .setConnectionRequestTimeout(SOCKET_TIMEOUT)
+        .build();
+  }
+
+  private static void closeQuietly(CloseableHttpResponse response) {
+    if (response == null)
+      return;
+
+    try {
+      response.close();
+    } catch (IOException e) {
+      BotLogger.error("Could not close download response", TAG, e);
+    }
+  }
+
+  private String documentName(String name, boolean compress) {
+    return compress ? name + ".gz" : name;
   }
 
-  private Optional<Message> doSendMessage(String txt, long groupId, boolean format) {
+  static SendMessage textMessage(String txt, long groupId, boolean format) {
     SendMessage smsg = new SendMessage();
     smsg.setChatId(groupId);
     smsg.setText(txt);
     smsg.enableMarkdown(format);
+    return smsg;
+  }
 
-    return optionalSendMessage(smsg);
+  static SendMessage forceReplyMessage(String txt, long groupId) {
+    SendMessage smsg = new SendMessage();
+    smsg.setText(txt);
+    smsg.setChatId(groupId);
+    smsg.setReplyMarkup(new ForceReplyKeyboard());
+    return smsg;
   }
 
-  private Optional<Message> optionalSendMessage(SendMessage smsg) {
+  /**
+   * The convenience methods log the errors and return an empty result instead. Senders that decorate them go through
+   * {@link MessageSender#sendMessage(SendMessage)}, so that they see the error itself.
+   */
+  static Optional<Message> orEmpty(ApiCall<Message> send) {
     try {
-      return ofNullable(sendMessage(smsg));
+      return ofNullable(send.call());
     } catch (TelegramApiException e) {
       BotLogger.error("Could not send message", TAG, e);
       return empty();
     }
   }
+
+  private <T> T execute(String method, ApiCall<T> call) throws TelegramApiException {
+    return execute(retryPolicy, metrics, method, call);
+  }
+
+  /**
+   * Executes the call, retrying the failures the {@link RetryPolicy} deems retriable for the method as long as it allows it.
+   */
+  static <T> T execute(RetryPolicy retryPolicy, Metrics metrics, String method, ApiCall<T> call) throws TelegramApiException {
+    for (int retry = 1; ; retry++) {
+      try {
+        return call.call();
+      } catch (TelegramApiException e) {
+        OptionalLong delay = retryPolicy.delayFor(retry, method, e);
+        if (!delay.isPresent()) {
+          if (retryPolicy.isRetriable(method, e))
+            metrics.increment(GIVE_UPS);
+          throw e;
+        }
+
+        BotLogger.warn(TAG, format("Transient failure while calling %s, retry %d/%d in %d ms: %s", method, retry, retryPolicy.maxRetries(), delay.getAsLong(), e.getMessage()));
+        metrics.increment(RETRIES);
+        sleep(delay.getAsLong(), e);
+      }
+    }
+  }
+
+  /**
+   * Uploads media. Uploads from streams are attempted once since a consumed stream cannot be sent again.
+   */
+  private <T> T upload(String method, InputStream stream, ApiCall<T> call) throws TelegramApiException {
+    return nonNull(stream) ? call.call() : execute(method, call);
+  }
+
+  private static void sleep(long millis, TelegramApiException cause) throws TelegramApiException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw cause;
+    }
+  }
 }
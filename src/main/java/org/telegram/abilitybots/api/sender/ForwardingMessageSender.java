@@ -0,0 +1,461 @@
+package org.telegram.abilitybots.api.sender;
+
+import org.telegram.telegrambots.api.methods.*;
+import org.telegram.telegrambots.api.methods.games.GetGameHighScores;
+import org.telegram.telegrambots.api.methods.games.SetGameScore;
+import org.telegram.telegrambots.api.methods.groupadministration.*;
+import org.telegram.telegrambots.api.methods.send.*;
+import org.telegram.telegrambots.api.methods.updates.DeleteWebhook;
+import org.telegram.telegrambots.api.methods.updatingmessages.DeleteMessage;
+import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageCaption;
+import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageReplyMarkup;
+import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.api.objects.*;
+import org.telegram.telegrambots.api.objects.games.GameHighScore;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.updateshandlers.DownloadFileCallback;
+import org.telegram.telegrambots.updateshandlers.SentCallback;
+
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.telegram.abilitybots.api.sender.DefaultMessageSender.forceReplyMessage;
+import static org.telegram.abilitybots.api.sender.DefaultMessageSender.orEmpty;
+import static org.telegram.abilitybots.api.sender.DefaultMessageSender.textMessage;
+
+/**
+ * A {@link MessageSender} that forwards all its calls to another sender.
+ * <p>
+ * Every call goes through one of the hooks {@link ForwardingMessageSender#call(String, ApiCall)}, {@link ForwardingMessageSender#upload(String, InputStream, ApiCall)},
+ * {@link ForwardingMessageSender#async(String, SentCallback, Dispatch)} and {@link ForwardingMessageSender#download(String, DownloadFileCallback, Dispatch)},
+ * under the name of the Telegram API method it makes. Decorators that treat every call alike override the hooks, others override the methods
+ * they need to decorate, in the same spirit as Guava's forwarding collections.
+ * <p>
+ * {@link MessageSender#send(String, long)}, {@link MessageSender#sendMd(String, long)} and {@link MessageSender#forceReply(String, long)} are sent through
+ * {@link MessageSender#sendMessage(SendMessage)} of the wrapped sender, so that their failures reach the hooks.
+ */
+public abstract class ForwardingMessageSender implements MessageSender {
+  protected final MessageSender delegate;
+
+  protected ForwardingMessageSender(MessageSender delegate) {
+    this.delegate = checkNotNull(delegate, "Delegate sender cannot be null");
+  }
+
+  @Override
+  public Optional<Message> send(String message, long id) {
+    return orEmpty(() -> call("send", () -> delegate.sendMessage(textMessage(message, id, false))));
+  }
+
+  @Override
+  public Optional<Message> sendMd(String message, long id) {
+    return orEmpty(() -> call("sendMd", () -> delegate.sendMessage(textMessage(message, id, true))));
+  }
+
+  @Override
+  public Optional<Message> forceReply(String message, long id) {
+    return orEmpty(() -> call("forceReply", () -> delegate.sendMessage(forceReplyMessage(message, id))));
+  }
+
+  @Override
+  public Boolean answerInlineQuery(AnswerInlineQuery answerInlineQuery) throws TelegramApiException {
+    return call("answerInlineQuery", () -> delegate.answerInlineQuery(answerInlineQuery));
+  }
+
+  @Override
+  public Boolean sendChatAction(SendChatAction sendChatAction) throws TelegramApiException {
+    return call("sendChatAction", () -> delegate.sendChatAction(sendChatAction));
+  }
+
+  @Override
+  public Message forwardMessage(ForwardMessage forwardMessage) throws TelegramApiException {
+    return call("forwardMessage", () -> delegate.forwardMessage(forwardMessage));
+  }
+
+  @Override
+  public Message sendLocation(SendLocation sendLocation) throws TelegramApiException {
+    return call("sendLocation", () -> delegate.sendLocation(sendLocation));
+  }
+
+  @Override
+  public Message sendVenue(SendVenue sendVenue) throws TelegramApiException {
+    return call("sendVenue", () -> delegate.sendVenue(sendVenue));
+  }
+
+  @Override
+  public Message sendContact(SendContact sendContact) throws TelegramApiException {
+    return call("sendContact", () -> delegate.sendContact(sendContact));
+  }
+
+  @Override
+  public Boolean kickMember(KickChatMember kickChatMember) throws TelegramApiException {
+    return call("kickMember", () -> delegate.kickMember(kickChatMember));
+  }
+
+  @Override
+  public Boolean unbanMember(UnbanChatMember unbanChatMember) throws TelegramApiException {
+    return call("unbanMember", () -> delegate.unbanMember(unbanChatMember));
+  }
+
+  @Override
+  public Boolean leaveChat(LeaveChat leaveChat) throws TelegramApiException {
+    return call("leaveChat", () -> delegate.leaveChat(leaveChat));
+  }
+
+  @Override
+  public Chat getChat(GetChat getChat) throws TelegramApiException {
+    return call("getChat", () -> delegate.getChat(getChat));
+  }
+
+  @Override
+  public List<ChatMember> getChatAdministrators(GetChatAdministrators getChatAdministrators) throws TelegramApiException {
+    return call("getChatAdministrators", () -> delegate.getChatAdministrators(getChatAdministrators));
+  }
+
+  @Override
+  public ChatMember getChatMember(GetChatMember getChatMember) throws TelegramApiException {
+    return call("getChatMember", () -> delegate.getChatMember(getChatMember));
+  }
+
+  @Override
+  public Integer getChatMemberCount(GetChatMemberCount getChatMemberCount) throws TelegramApiException {
+    return call("getChatMemberCount", () -> delegate.getChatMemberCount(getChatMemberCount));
+  }
+
+  @Override
+  public Boolean deleteMessage(DeleteMessage deleteMessage) throws TelegramApiException {
+    return call("deleteMessage", () -> delegate.deleteMessage(deleteMessage));
+  }
+
+  @Override
+  public void deleteMessageAsync(DeleteMessage deleteMessage, SentCallback<Boolean> sentCallback) throws TelegramApiException {
+    async("deleteMessage", sentCallback, tracked -> delegate.deleteMessageAsync(deleteMessage, tracked));
+  }
+
+  @Override
+  public Serializable editMessageText(EditMessageText editMessageText) throws TelegramApiException {
+    return call("editMessageText", () -> delegate.editMessageText(editMessageText));
+  }
+
+  @Override
+  public Serializable editMessageCaption(EditMessageCaption editMessageCaption) throws TelegramApiException {
+    return call("editMessageCaption", () -> delegate.editMessageCaption(editMessageCaption));
+  }
+
+  @Override
+  public Serializable editMessageReplyMarkup(EditMessageReplyMarkup editMessageReplyMarkup) throws TelegramApiException {
+    return call("editMessageReplyMarkup", () -> delegate.editMessageReplyMarkup(editMessageReplyMarkup));
+  }
+
+  @Override
+  public Boolean answerCallbackQuery(AnswerCallbackQuery answerCallbackQuery) throws TelegramApiException {
+    return call("answerCallbackQuery", () -> delegate.answerCallbackQuery(answerCallbackQuery));
+  }
+
+  @Override
+  public UserProfilePhotos getUserProfilePhotos(GetUserProfilePhotos getUserProfilePhotos) throws TelegramApiException {
+    return call("getUserProfilePhotos", () -> delegate.getUserProfilePhotos(getUserProfilePhotos));
+  }
+
+  @Override
+  public java.io.File downloadFile(String path) throws TelegramApiException {
+    return call("downloadFile", () -> delegate.downloadFile(path));
+  }
+
+  @Override
+  public void downloadFileAsync(String path, DownloadFileCallback<String> callback) throws TelegramApiException {
+    download("downloadFile", callback, tracked -> delegate.downloadFileAsync(path, tracked));
+  }
+
+  @Override
+  public java.io.File downloadFile(File file) throws TelegramApiException {
+    return call("downloadFile", () -> delegate.downloadFile(file));
+  }
+
+  @Override
+  public void downloadFileAsync(File file, DownloadFileCallback<File> callback) throws TelegramApiException {
+    download("downloadFile", callback, tracked -> delegate.downloadFileAsync(file, tracked));
+  }
+
+  @Override
+  public File getFile(GetFile getFile) throws TelegramApiException {
+    return call("getFile", () -> delegate.getFile(getFile));
+  }
+
+  @Override
+  public User getMe() throws TelegramApiException {
+    return call("getMe", () -> delegate.getMe());
+  }
+
+  @Override
+  public WebhookInfo getWebhookInfo() throws TelegramApiException {
+    return call("getWebhookInfo", () -> delegate.getWebhookInfo());
+  }
+
+  @Override
+  public Serializable setGameScore(SetGameScore setGameScore) throws TelegramApiException {
+    return call("setGameScore", () -> delegate.setGameScore(setGameScore));
+  }
+
+  @Override
+  public Serializable getGameHighScores(GetGameHighScores getGameHighScores) throws TelegramApiException {
+    return call("getGameHighScores", () -> delegate.getGameHighScores(getGameHighScores));
+  }
+
+  @Override
+  public Message sendGame(SendGame sendGame) throws TelegramApiException {
+    return call("sendGame", () -> delegate.sendGame(sendGame));
+  }
+
+  @Override
+  public Boolean deleteWebhook(DeleteWebhook deleteWebhook) throws TelegramApiException {
+    return call("deleteWebhook", () -> delegate.deleteWebhook(deleteWebhook));
+  }
+
+  @Override
+  public Message sendMessage(SendMessage sendMessage) throws TelegramApiException {
+    return call("sendMessage", () -> delegate.sendMessage(sendMessage));
+  }
+
+  @Override
+  public void sendMessageAsync(SendMessage sendMessage, SentCallback<Message> sentCallback) throws TelegramApiException {
+    async("sendMessage", sentCallback, tracked -> delegate.sendMessageAsync(sendMessage, tracked));
+  }
+
+  @Override
+  public void answerInlineQueryAsync(AnswerInlineQuery answerInlineQuery, SentCallback<Boolean> sentCallback) throws TelegramApiException {
+    async("answerInlineQuery", sentCallback, tracked -> delegate.answerInlineQueryAsync(answerInlineQuery, tracked));
+  }
+
+  @Override
+  public void sendChatActionAsync(SendChatAction sendChatAction, SentCallback<Boolean> sentCallback) throws TelegramApiException {
+    async("sendChatAction", sentCallback, tracked -> delegate.sendChatActionAsync(sendChatAction, tracked));
+  }
+
+  @Override
+  public void forwardMessageAsync(ForwardMessage forwardMessage, SentCallback<Message> sentCallback) throws TelegramApiException {
+    async("forwardMessage", sentCallback, tracked -> delegate.forwardMessageAsync(forwardMessage, tracked));
+  }
+
+  @Override
+  public void sendLocationAsync(SendLocation sendLocation, SentCallback<Message> sentCallback) throws TelegramApiException {
+    async("sendLocation", sentCallback, tracked -> delegate.sendLocationAsync(sendLocation, tracked));
+  }
+
+  @Override
+  public void sendVenueAsync(SendVenue sendVenue, SentCallback<Message> sentCallback) throws TelegramApiException {
+    async("sendVenue", sentCallback, tracked -> delegate.sendVenueAsync(sendVenue, tracked));
+  }
+
+  @Override
+  public void sendContactAsync(SendContact sendContact, SentCallback<Message> sentCallback) throws TelegramApiException {
+    async("sendContact", sentCallback, tracked -> delegate.sendContactAsync(sendContact, tracked));
+  }
+
+  @Override
+  public void kickMemberAsync(KickChatMember kickChatMember, SentCallback<Boolean> sentCallback) throws TelegramApiException {
+    async("kickMember", sentCallback, tracked -> delegate.kickMemberAsync(kickChatMember, tracked));
+  }
+
+  @Override
+  public void unbanMemberAsync(UnbanChatMember unbanChatMember, SentCallback<Boolean> sentCallback) throws TelegramApiException {
+    async("unbanMember", sentCallback, tracked -> delegate.unbanMemberAsync(unbanChatMember, tracked));
+  }
+
+  @Override
+  public void leaveChatAsync(LeaveChat leaveChat, SentCallback<Boolean> sentCallback) throws TelegramApiException {
+    async("leaveChat", sentCallback, tracked -> delegate.leaveChatAsync(leaveChat, tracked));
+  }
+
+  @Override
+  public void getChatAsync(GetChat getChat, SentCallback<Chat> sentCallback) throws TelegramApiException {
+    async("getChat", sentCallback, tracked -> delegate.getChatAsync(getChat, tracked));
+  }
+
+  @Override
+  public void getChatAdministratorsAsync(GetChatAdministrators getChatAdministrators, SentCallback<ArrayList<ChatMember>> sentCallback) throws TelegramApiException {
+    async("getChatAdministrators", sentCallback, tracked -> delegate.getChatAdministratorsAsync(getChatAdministrators, tracked));
+  }
+
+  @Override
+  public void getChatMemberAsync(GetChatMember getChatMember, SentCallback<ChatMember> sentCallback) throws TelegramApiException {
+    async("getChatMember", sentCallback, tracked -> delegate.getChatMemberAsync(getChatMember, tracked));
+  }
+
+  @Override
+  public void getChatMemberCountAsync(GetChatMemberCount getChatMemberCount, SentCallback<Integer> sentCallback) throws TelegramApiException {
+    async("getChatMemberCount", sentCallback, tracked -> delegate.getChatMemberCountAsync(getChatMemberCount, tracked));
+  }
+
+  @Override
+  public void editMessageTextAsync(EditMessageText editMessageText, SentCallback<Serializable> sentCallback) throws TelegramApiException {
+    async("editMessageText", sentCallback, tracked -> delegate.editMessageTextAsync(editMessageText, tracked));
+  }
+
+  @Override
+  public void editMessageCaptionAsync(EditMessageCaption editMessageCaption, SentCallback<Serializable> sentCallback) throws TelegramApiException {
+    async("editMessageCaption", sentCallback, tracked -> delegate.editMessageCaptionAsync(editMessageCaption, tracked));
+  }
+
+  @Override
+  public void editMessageReplyMarkup(EditMessageReplyMarkup editMessageReplyMarkup, SentCallback<Serializable> sentCallback) throws TelegramApiException {
+    async("editMessageReplyMarkup", sentCallback, tracked -> delegate.editMessageReplyMarkup(editMessageReplyMarkup, tracked));
+  }
+
+  @Override
+  public void answerCallbackQueryAsync(AnswerCallbackQuery answerCallbackQuery, SentCallback<Boolean> sentCallback) throws TelegramApiException {
+    async("answerCallbackQuery", sentCallback, tracked -> delegate.answerCallbackQueryAsync(answerCallbackQuery, tracked));
+  }
+
+  @Override
+  public void getUserProfilePhotosAsync(GetUserProfilePhotos getUserProfilePhotos, SentCallback<UserProfilePhotos> sentCallback) throws TelegramApiException {
+    async("getUserProfilePhotos", sentCallback, tracked -> delegate.getUserProfilePhotosAsync(getUserProfilePhotos, tracked));
+  }
+
+  @Override
+  public void getFileAsync(GetFile getFile, SentCallback<File> sentCallback) throws TelegramApiException {
+    async("getFile", sentCallback, tracked -> delegate.getFileAsync(getFile, tracked));
+  }
+
+  @Override
+  public void getMeAsync(SentCallback<User> sentCallback) throws TelegramApiException {
+    async("getMe", sentCallback, tracked -> delegate.getMeAsync(tracked));
+  }
+
+  @Override
+  public void getWebhookInfoAsync(SentCallback<WebhookInfo> sentCallback) throws TelegramApiException {
+    async("getWebhookInfo", sentCallback, tracked -> delegate.getWebhookInfoAsync(tracked));
+  }
+
+  @Override
+  public void setGameScoreAsync(SetGameScore setGameScore, SentCallback<Serializable> sentCallback) throws TelegramApiException {
+    async("setGameScore", sentCallback, tracked -> delegate.setGameScoreAsync(setGameScore, tracked));
+  }
+
+  @Override
+  public void getGameHighScoresAsync(GetGameHighScores getGameHighScores, SentCallback<ArrayList<GameHighScore>> sentCallback) throws TelegramApiException {
+    async("getGameHighScores", sentCallback, tracked -> delegate.getGameHighScoresAsync(getGameHighScores, tracked));
+  }
+
+  @Override
+  public void sendGameAsync(SendGame sendGame, SentCallback<Message> sentCallback) throws TelegramApiException {
+    async("sendGame", sentCallback, tracked -> delegate.sendGameAsync(sendGame, tracked));
+  }
+
+  @Override
+  public void deleteWebhook(DeleteWebhook deleteWebhook, SentCallback<Boolean> sentCallback) throws TelegramApiException {
+    async("deleteWebhook", sentCallback, tracked -> delegate.deleteWebhook(deleteWebhook, tracked));
+  }
+
+  @Override
+  public Message sendDocument(SendDocument sendDocument) throws TelegramApiException {
+    return upload("sendDocument", sendDocument.getNewDocumentStream(), () -> delegate.sendDocument(sendDocument));
+  }
+
+  @Override
+  public Message sendPhoto(SendPhoto sendPhoto) throws TelegramApiException {
+    return upload("sendPhoto", sendPhoto.getNewPhotoStream(), () -> delegate.sendPhoto(sendPhoto));
+  }
+
+  @Override
+  public Message sendVideo(SendVideo sendVideo) throws TelegramApiException {
+    return upload("sendVideo", sendVideo.getNewVideoStream(), () -> delegate.sendVideo(sendVideo));
+  }
+
+  @Override
+  public Message sendSticker(SendSticker sendSticker) throws TelegramApiException {
+    return upload("sendSticker", sendSticker.getNewStickerStream(), () -> delegate.sendSticker(sendSticker));
+  }
+
+  @Override
+  public Message sendAudio(SendAudio sendAudio) throws TelegramApiException {
+    return upload("sendAudio", sendAudio.getNewAudioStream(), () -> delegate.sendAudio(sendAudio));
+  }
+
+  @Override
+  public Message sendVoice(SendVoice sendVoice) throws TelegramApiException {
+    return upload("sendVoice", sendVoice.getNewVoiceStream(), () -> delegate.sendVoice(sendVoice));
+  }
+
+  @Override
+  public Message sendDocument(long chatId, String name, InputStream content, boolean compress) throws TelegramApiException {
+    return upload("sendDocument", content, () -> delegate.sendDocument(chatId, name, content, compress));
+  }
+
+  @Override
+  public Message sendDocument(long chatId, String name, ByteBuffer content, boolean compress) throws TelegramApiException {
+    return call("sendDocument", () -> delegate.sendDocument(chatId, name, content, compress));
+  }
+
+  @Override
+  public InputStream downloadFileAsStream(File file) throws TelegramApiException {
+    return call("downloadFileAsStream", () -> delegate.downloadFileAsStream(file));
+  }
+
+  @Override
+  public InputStream downloadFileAsStream(String path) throws TelegramApiException {
+    return call("downloadFileAsStream", () -> delegate.downloadFileAsStream(path));
+  }
+
+  /**
+   * Makes a synchronous call. Asynchronous calls are named after their synchronous counterpart.
+   *
+   * @param method the name of the Telegram API method
+   * @param call   the call to the wrapped sender
+   * @param <T>    the type of the result
+   * @return the result of the call
+   * @throws TelegramApiException if the call fails
+   */
+  protected <T> T call(String method, ApiCall<T> call) throws TelegramApiException {
+    return call.call();
+  }
+
+  /**
+   * Makes a synchronous call that uploads media. The default implementation goes through {@link ForwardingMessageSender#call(String, ApiCall)}.
+   *
+   * @param method the name of the Telegram API method
+   * @param stream the stream the media is read from, <tt>null</tt> if it is not uploaded from a stream
+   * @param call   the call to the wrapped sender
+   * @param <T>    the type of the result
+   * @return the result of the call
+   * @throws TelegramApiException if the call fails
+   */
+  protected <T> T upload(String method, InputStream stream, ApiCall<T> call) throws TelegramApiException {
+    return call(method, call);
+  }
+
+  /**
+   * Dispatches an asynchronous call with the callback of the caller, or with one that wraps it.
+   *
+   * @param method   the name of the synchronous counterpart of the Telegram API method
+   * @param callback the callback of the caller
+   * @param dispatch dispatches the call to the wrapped sender with the given callback
+   * @param <T>      the type of the result
+   * @throws TelegramApiException if the call cannot be dispatched
+   */
+  protected <T extends Serializable> void async(String method, SentCallback<T> callback, Dispatch<SentCallback<T>> dispatch) throws TelegramApiException {
+    dispatch.dispatch(callback);
+  }
+
+  /**
+   * Dispatches an asynchronous download with the callback of the caller, or with one that wraps it.
+   *
+   * @param method   the name of the synchronous counterpart of the Telegram API method
+   * @param callback the callback of the caller
+   * @param dispatch dispatches the download to the wrapped sender with the given callback
+   * @param <T>      the type of the downloaded file
+   * @throws TelegramApiException if the download cannot be dispatched
+   */
+  protected <T> void download(String method, DownloadFileCallback<T> callback, Dispatch<DownloadFileCallback<T>> dispatch) throws TelegramApiException {
+    dispatch.dispatch(callback);
+  }
+
+  @FunctionalInterface
+  protected interface Dispatch<C> {
+    void dispatch(C callback) throws TelegramApiException;
+  }
+}
@@ -17,7 +17,9 @@ import org.telegram.telegrambots.exceptions.TelegramApiException;
 import org.telegram.telegrambots.updateshandlers.DownloadFileCallback;
 import org.telegram.telegrambots.updateshandlers.SentCallback;
 
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -161,4 +163,47 @@ public interface MessageSender {
   Message sendAudio(SendAudio sendAudio) throws TelegramApiException;
 
   Message sendVoice(SendVoice sendVoice) throws TelegramApiException;
+
+  /**
+   * Uploads the content of the stream as a document, without going through a temporary file.
+   * <p>
+   * A stream can only be read once, so the upload is not retried if it fails.
+   *
+   * @param chatId   the chat to send the document to
+   * @param name     the file name of the document
+   * @param content  the content of the document, streamed as it is uploaded
+   * @param compress <tt>true</tt> to gzip the content on the fly, <code>.gz</code> is then appended to the name
+   * @return the sent message
+   */
+  Message sendDocument(long chatId, String name, InputStream content, boolean compress) throws TelegramApiException;
+
+  /**
+   * Uploads the remaining bytes of the buffer as a document, without going through a temporary file.
+   * <p>
+   * The buffer is not modified, which makes it safe to retry the upload.
+   *
+   * @param chatId   the chat to send the document to
+   * @param name     the file name of the document
+   * @param content  the content of the document
+   * @param compress <tt>true</tt> to gzip the content on the fly, <code>.gz</code> is then appended to the name
+   * @return the sent message
+   */
+  Message sendDocument(long chatId, String name, ByteBuffer content, boolean compress) throws TelegramApiException;
+
+  /**
+   * Opens a stream to the file hosted by Telegram. Unlike {@link MessageSender#downloadFile(File)}, nothing is written to disk.
+   * <p>
+   * The caller is responsible for closing the stream.
+   *
+   * @param file the file returned by {@link MessageSender#getFile(GetFile)}
+   * @return the content of the file, streamed as it is read
+   */
+  InputStream downloadFileAsStream(File file) throws TelegramApiException;
+
+  /**
+   * @param path the path of the file on Telegram's servers
+   * @return the content of the file, streamed as it is read
+   * @see MessageSender#downloadFileAsStream(File)
+   */
+  InputStream downloadFileAsStream(String path) throws TelegramApiException;
 }
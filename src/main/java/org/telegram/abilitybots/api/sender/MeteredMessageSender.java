@@ -0,0 +1,170 @@
+package org.telegram.abilitybots.api.sender;
+
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.api.methods.BotApiMethod;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.exceptions.TelegramApiValidationException;
+import org.telegram.telegrambots.updateshandlers.DownloadFileCallback;
+import org.telegram.telegrambots.updateshandlers.SentCallback;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+import static java.util.Objects.isNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A sender that records metrics of every call it forwards, per Telegram API method.
+ * <p>
+ * The following entries are exported to the {@link Metrics}:
+ * <ul>
+ * <li><code>sender.calls.[method]</code> - the number of calls</li>
+ * <li><code>sender.errors.[method].[code]</code> - the number of failed calls, by Telegram error code or by <code>validation</code> and <code>exception</code></li>
+ * <li><code>sender.latency.[method]</code> - a histogram of the latency of the calls in microseconds</li>
+ * <li><code>sender.async.inflight</code> - the number of asynchronous calls that have not completed yet</li>
+ * </ul>
+ * Asynchronous methods are recorded under the name of their synchronous counterpart, their latency spans until their callback is invoked.
+ * {@link MessageSender#send(String, long)}, {@link MessageSender#sendMd(String, long)} and {@link MessageSender#forceReply(String, long)} are
+ * recorded under their own name, with the error code of the message they send.
+ * <p>
+ * Every call is recorded as it reaches this sender. Wrapped by a {@link RetryingMessageSender}, every attempt is recorded on its own and the
+ * latencies leave out the backoff between the attempts. {@link org.telegram.abilitybots.api.bot.AbilityBot#metrics()} exposes the registry of the metrics of a bot.
+ */
+public class MeteredMessageSender extends ForwardingMessageSender {
+  static final String CALLS = "sender.calls";
+  static final String ERRORS = "sender.errors";
+  static final String LATENCY = "sender.latency";
+  static final String IN_FLIGHT = "sender.async.inflight";
+
+  private static final String VALIDATION = "validation";
+  private static final String EXCEPTION = "exception";
+
+  private final Metrics metrics;
+  private final AtomicInteger inFlight;
+
+  public MeteredMessageSender(MessageSender delegate, Metrics metrics) {
+    super(delegate);
+    this.metrics = metrics;
+    this.inFlight = new AtomicInteger();
+    metrics.gauge(IN_FLIGHT, inFlight::get);
+  }
+
+  public MeteredMessageSender(MessageSender delegate) {
+    this(delegate, Metrics.global());
+  }
+
+  @Override
+  protected <T> T call(String method, ApiCall<T> call) throws TelegramApiException {
+    Call metered = new Call(method, false);
+    try {
+      T result = call.call();
+      metered.succeed();
+      return result;
+    } catch (TelegramApiException | RuntimeException e) {
+      metered.fail(e);
+      throw e;
+    }
+  }
+
+  @Override
+  protected <T extends Serializable> void async(String method, SentCallback<T> callback, Dispatch<SentCallback<T>> dispatch) throws TelegramApiException {
+    Call metered = new Call(method, true);
+    dispatch(metered, dispatch, new SentCallback<T>() {
+      @Override
+      public void onResult(BotApiMethod<T> apiMethod, T response) {
+        metered.succeed();
+        callback.onResult(apiMethod, response);
+      }
+
+      @Override
+      public void onError(BotApiMethod<T> apiMethod, TelegramApiRequestException e) {
+        metered.fail(e);
+        callback.onError(apiMethod, e);
+      }
+
+      @Override
+      public void onException(BotApiMethod<T> apiMethod, Exception e) {
+        metered.fail(e);
+        callback.onException(apiMethod, e);
+      }
+    });
+  }
+
+  @Override
+  protected <T> void download(String method, DownloadFileCallback<T> callback, Dispatch<DownloadFileCallback<T>> dispatch) throws TelegramApiException {
+    Call metered = new Call(method, true);
+    dispatch(metered, dispatch, new DownloadFileCallback<T>() {
+      @Override
+      public void onResult(T file, java.io.File output) {
+        metered.succeed();
+        callback.onResult(file, output);
+      }
+
+      @Override
+      public void onException(T file, Exception e) {
+        metered.fail(e);
+        callback.onException(file, e);
+      }
+    });
+  }
+
+  private <C> void dispatch(Call metered, Dispatch<C> dispatch, C tracked) throws TelegramApiException {
+    try {
+      dispatch.dispatch(tracked);
+    } catch (TelegramApiException | RuntimeException e) {
+      metered.fail(e);
+      throw e;
+    }
+  }
+
+  private static String errorCode(Throwable e) {
+    if (e instanceof TelegramApiRequestException && !isNull(((TelegramApiRequestException) e).getErrorCode()))
+      return String.valueOf(((TelegramApiRequestException) e).getErrorCode());
+    else if (e instanceof TelegramApiValidationException)
+      return VALIDATION;
+    else
+      return EXCEPTION;
+  }
+
+  /**
+   * A single call being measured. It is recorded once, whichever of the caller or the callback completes it first.
+   */
+  private final class Call {
+    private final String method;
+    private final boolean async;
+    private final long start;
+    private final AtomicBoolean completed;
+
+    Call(String method, boolean async) {
+      this.method = method;
+      this.async = async;
+      this.completed = new AtomicBoolean();
+      metrics.increment(format("%s.%s", CALLS, method));
+      if (async)
+        inFlight.incrementAndGet();
+      this.start = System.nanoTime();
+    }
+
+    void succeed() {
+      complete(null);
+    }
+
+    void fail(Throwable e) {
+      complete(errorCode(e));
+    }
+
+    private void complete(String errorCode) {
+      if (!completed.compareAndSet(false, true))
+        return;
+
+      metrics.histogram(format("%s.%s", LATENCY, method)).record(NANOSECONDS.toMicros(System.nanoTime() - start));
+      if (errorCode != null)
+        metrics.increment(format("%s.%s.%s", ERRORS, method, errorCode));
+      if (async)
+        inFlight.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package org.telegram.abilitybots.api.sender;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.telegram.telegrambots.api.objects.ResponseParameters;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.exceptions.TelegramApiValidationException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.nonNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A retry policy decides whether a failed Telegram API call should be attempted again and how long to wait before doing so.
+ * <p>
+ * Only transient failures are retried:
+ * <ul>
+ * <li>HTTP <code>429 Too Many Requests</code> - the server's <code>retry_after</code> is honored as is</li>
+ * <li>HTTP <code>5xx</code> server errors</li>
+ * <li>I/O failures while talking to the Bot API</li>
+ * </ul>
+ * A <code>5xx</code> or an I/O failure after the request was sent does not tell whether Telegram carried it out, so these are only retried for
+ * idempotent methods (see {@link RetryPolicy#isIdempotent(String)}). Other methods, such as <code>sendMessage</code>, are only retried when the request
+ * never reached Telegram or when Telegram asks to retry after a while, so that a message is not sent twice.
+ * <p>
+ * Every other failure is returned to the caller straight away. The delay between attempts grows exponentially and is jittered to avoid
+ * synchronized retries from concurrent abilities.
+ * <p>
+ * In-order to instantiate a policy, you can call {@link RetryPolicy#builder()}, or use {@link RetryPolicy#defaultPolicy()} and {@link RetryPolicy#noRetries()}.
+ */
+public final class RetryPolicy {
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final int SERVER_ERROR = 500;
+  private static final List<String> IDEMPOTENT_PREFIXES = ImmutableList.of("get", "edit", "answer", "delete", "download");
+  private static final String SEND_CHAT_ACTION = "sendChatAction";
+
+  private final int maxRetries;
+  private final long baseDelay;
+  private final long maxDelay;
+  private final long maxRetryAfter;
+  private final double jitter;
+
+  private RetryPolicy(int maxRetries, long baseDelay, long maxDelay, long maxRetryAfter, double jitter) {
+    checkArgument(maxRetries >= 0, "The number of retries cannot be negative");
+    checkArgument(baseDelay >= 0 && maxDelay >= baseDelay, "Delays must be positive and the maximum delay cannot be less than the base delay");
+    checkArgument(maxRetryAfter >= 0, "The maximum retry_after cannot be negative");
+    checkArgument(jitter >= 0 && jitter <= 1, "Jitter must be a ratio between 0 and 1");
+    this.maxRetries = maxRetries;
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+    this.maxRetryAfter = maxRetryAfter;
+    this.jitter = jitter;
+  }
+
+  public static RetryPolicyBuilder builder() {
+    return new RetryPolicyBuilder();
+  }
+
+  /**
+   * @return a policy of 3 retries, starting at 500ms and growing up to 10s, that waits at most 60s for a <code>retry_after</code>
+   */
+  public static RetryPolicy defaultPolicy() {
+    return builder().build();
+  }
+
+  /**
+   * @return a policy that never retries
+   */
+  public static RetryPolicy noRetries() {
+    return builder().maxRetries(0).build();
+  }
+
+  public int maxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * @param e the exception thrown by the API call
+   * @return <tt>true</tt> if the failure is worth retrying
+   */
+  public boolean isTransient(TelegramApiException e) {
+    if (e instanceof TelegramApiValidationException)
+      return false;
+
+    if (e instanceof TelegramApiRequestException) {
+      Integer errorCode = ((TelegramApiRequestException) e).getErrorCode();
+      if (nonNull(errorCode))
+        return errorCode == TOO_MANY_REQUESTS || errorCode >= SERVER_ERROR;
+    }
+
+    return e.getCause() instanceof IOException;
+  }
+
+  /**
+   * @param method the name of the Telegram API method, such as <code>getChat</code> or <code>downloadFile</code>
+   * @return <tt>true</tt> if calling the method twice has the same effect as calling it once
+   */
+  public static boolean isIdempotent(String method) {
+    return IDEMPOTENT_PREFIXES.stream().anyMatch(method::startsWith) || SEND_CHAT_ACTION.equals(method);
+  }
+
+  /**
+   * @param method the name of the Telegram API method
+   * @param e      the exception thrown by the API call
+   * @return <tt>true</tt> if the failure is worth retrying for the method, without the risk of carrying the call out twice
+   */
+  public boolean isRetriable(String method, TelegramApiException e) {
+    if (isIdempotent(method))
+      return isTransient(e);
+
+    return retryAfter(e) > 0 || isConnectFailure(e);
+  }
+
+  /**
+   * Computes the delay before the next attempt of an idempotent call.
+   *
+   * @param retry the number of the upcoming retry, starting at 1
+   * @param e     the exception thrown by the last attempt
+   * @return the delay in milliseconds, or an empty optional if the call should not be retried
+   * @see RetryPolicy#delayFor(int, String, TelegramApiException)
+   */
+  public OptionalLong delayFor(int retry, TelegramApiException e) {
+    return delayFor(retry, isTransient(e), e);
+  }
+
+  /**
+   * Computes the delay before the next attempt.
+   *
+   * @param retry  the number of the upcoming retry, starting at 1
+   * @param method the name of the Telegram API method
+   * @param e      the exception thrown by the last attempt
+   * @return the delay in milliseconds, or an empty optional if the call should not be retried
+   */
+  public OptionalLong delayFor(int retry, String method, TelegramApiException e) {
+    return delayFor(retry, isRetriable(method, e), e);
+  }
+
+  private OptionalLong delayFor(int retry, boolean retriable, TelegramApiException e) {
+    if (retry > maxRetries || !retriable)
+      return OptionalLong.empty();
+
+    long retryAfter = retryAfter(e);
+    if (retryAfter > 0)
+      return retryAfter <= maxRetryAfter ? OptionalLong.of(retryAfter) : OptionalLong.empty();
+
+    long exponential = Math.min(maxDelay, baseDelay << Math.min(retry - 1, 30));
+    long jittered = exponential - (long) (exponential * jitter * ThreadLocalRandom.current().nextDouble());
+    return OptionalLong.of(Math.max(0, jittered));
+  }
+
+  /**
+   * A request that could not connect was never sent, whatever the method.
+   */
+  private static boolean isConnectFailure(TelegramApiException e) {
+    return Throwables.getCausalChain(e).stream().anyMatch(cause ->
+        cause instanceof ConnectException || cause instanceof ConnectTimeoutException || cause instanceof UnknownHostException);
+  }
+
+  /**
+   * @param e the exception thrown by the API call
+   * @return the <code>retry_after</code> in milliseconds that the server asked for, or 0 if it did not ask to wait
+   */
+  public static long retryAfter(TelegramApiException e) {
+    if (!(e instanceof TelegramApiRequestException))
+      return 0;
+
+    ResponseParameters parameters = ((TelegramApiRequestException) e).getParameters();
+    if (parameters == null || parameters.getRetryAfter() == null)
+      return 0;
+
+    return SECONDS.toMillis(parameters.getRetryAfter());
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("maxRetries", maxRetries)
+        .add("baseDelay", baseDelay)
+        .add("maxDelay", maxDelay)
+        .add("maxRetryAfter", maxRetryAfter)
+        .add("jitter", jitter)
+        .toString();
+  }
+
+  public static class RetryPolicyBuilder {
+    private int maxRetries = 3;
+    private long baseDelay = 500;
+    private long maxDelay = SECONDS.toMillis(10);
+    private long maxRetryAfter = SECONDS.toMillis(60);
+    private double jitter = 0.5;
+
+    private RetryPolicyBuilder() {
+    }
+
+    public RetryPolicyBuilder maxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * @param baseDelay the delay in milliseconds before the first retry, doubled on every subsequent one
+     */
+    public RetryPolicyBuilder baseDelay(long baseDelay) {
+      this.baseDelay = baseDelay;
+      return this;
+    }
+
+    /**
+     * @param maxDelay the upper bound in milliseconds of the exponential delay
+     */
+    public RetryPolicyBuilder maxDelay(long maxDelay) {
+      this.maxDelay = maxDelay;
+      return this;
+    }
+
+    /**
+     * @param maxRetryAfter the longest <code>retry_after</code> in milliseconds that is waited for, calls asked to wait longer are given up
+     */
+    public RetryPolicyBuilder maxRetryAfter(long maxRetryAfter) {
+      this.maxRetryAfter = maxRetryAfter;
+      return this;
+    }
+
+    /**
+     * @param jitter the ratio of the delay that is randomly shaved off, <tt>0</tt> disables jitter
+     */
+    public RetryPolicyBuilder jitter(double jitter) {
+      this.jitter = jitter;
+      return this;
+    }
+
+    public RetryPolicy build() {
+      return new RetryPolicy(maxRetries, baseDelay, maxDelay, maxRetryAfter, jitter);
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package org.telegram.abilitybots.api.sender;
+
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+
+import java.io.InputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * A sender that retries the synchronous calls that fail with a retriable error, according to a {@link RetryPolicy}.
+ * <p>
+ * The senders it wraps see every attempt as a call of its own. {@link MeteredMessageSender} and {@link CircuitBreakingMessageSender} are meant
+ * to be wrapped by it, so that latencies and failures are those of single attempts rather than including the backoff between them.
+ * The wrapped sender should not retry on its own, such as a {@link DefaultMessageSender} created with {@link RetryPolicy#noRetries()}.
+ * <p>
+ * Uploads from streams are attempted once since a consumed stream cannot be sent again, and asynchronous calls are forwarded untouched.
+ * The number of retries and of calls that were given up on are exported to the {@link Metrics} as <code>sender.retries</code> and
+ * <code>sender.giveups</code>.
+ */
+public class RetryingMessageSender extends ForwardingMessageSender {
+  private final RetryPolicy retryPolicy;
+  private final Metrics metrics;
+
+  public RetryingMessageSender(MessageSender delegate, RetryPolicy retryPolicy, Metrics metrics) {
+    super(delegate);
+    this.retryPolicy = checkNotNull(retryPolicy, "Retry policy cannot be null");
+    this.metrics = checkNotNull(metrics, "Metrics cannot be null");
+  }
+
+  public RetryingMessageSender(MessageSender delegate) {
+    this(delegate, RetryPolicy.defaultPolicy(), Metrics.global());
+  }
+
+  @Override
+  protected <T> T call(String method, ApiCall<T> call) throws TelegramApiException {
+    return DefaultMessageSender.execute(retryPolicy, metrics, method, call);
+  }
+
+  @Override
+  protected <T> T upload(String method, InputStream stream, ApiCall<T> call) throws TelegramApiException {
+    return nonNull(stream) ? call.call() : call(method, call);
+  }
+}
@@ -0,0 +1,93 @@
+package org.telegram.abilitybots.api.util;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A lock-free histogram of non-negative values, typically latencies.
+ * <p>
+ * Values are counted in buckets whose bounds are powers of two, so recording is cheap and the memory used is constant.
+ * Percentiles are approximated by the upper bound of the bucket they fall in, capped by the maximum recorded value.
+ */
+public final class Histogram {
+  private static final int BUCKETS = Long.SIZE;
+
+  private final LongAdder[] buckets;
+  private final LongAdder count;
+  private final LongAdder sum;
+  private final LongAccumulator max;
+
+  public Histogram() {
+    buckets = new LongAdder[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++)
+      buckets[i] = new LongAdder();
+
+    count = new LongAdder();
+    sum = new LongAdder();
+    max = new LongAccumulator(Math::max, 0);
+  }
+
+  /**
+   * @param value the value to record, negative values are recorded as <tt>0</tt>
+   */
+  public void record(long value) {
+    long positive = Math.max(0, value);
+    buckets[bucketOf(positive)].increment();
+    count.increment();
+    sum.add(positive);
+    max.accumulate(positive);
+  }
+
+  /**
+   * @return the number of recorded values
+   */
+  public long count() {
+    return count.sum();
+  }
+
+  /**
+   * @return the mean of the recorded values, <tt>0</tt> if nothing was recorded
+   */
+  public long mean() {
+    long total = count.sum();
+    return total == 0 ? 0 : sum.sum() / total;
+  }
+
+  /**
+   * @return the largest recorded value
+   */
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile the percentile, between <tt>0</tt> and <tt>100</tt>
+   * @return an upper bound of the value at the specified percentile, <tt>0</tt> if nothing was recorded
+   */
+  public long percentile(double percentile) {
+    checkArgument(percentile >= 0 && percentile <= 100, "Percentile must be between 0 and 100");
+
+    long total = count.sum();
+    if (total == 0)
+      return 0;
+
+    long rank = (long) Math.ceil(percentile / 100 * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets[i].sum();
+      if (seen >= rank)
+        return Math.min(upperBoundOf(i), max());
+    }
+    return max();
+  }
+
+  private static int bucketOf(long value) {
+    return value == 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(value) - 1;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (bucket + 1)) - 1;
+  }
+}
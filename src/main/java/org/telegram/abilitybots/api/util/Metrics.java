@@ -0,0 +1,151 @@
+package org.telegram.abilitybots.api.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static java.lang.String.format;
+
+/**
+ * A lightweight registry of named counters, gauges and histograms.
+ * <p>
+ * Components of the bot (the sender, the database, ...) register their numbers here so that they can all be exported from a single place.
+ * {@link Metrics#global()} is the registry used by default, while tests or bots that need isolation can instantiate their own.
+ * Several bots that share a registry each use a {@link Metrics#scoped(String)} view of it, so that their numbers do not collide.
+ */
+public final class Metrics {
+  private static final Metrics GLOBAL = new Metrics();
+
+  private final Map<String, LongAdder> counters;
+  private final Map<String, Supplier<? extends Number>> gauges;
+  private final Map<String, Histogram> histograms;
+  private final String prefix;
+
+  public Metrics() {
+    this(new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), "");
+  }
+
+  private Metrics(Map<String, LongAdder> counters, Map<String, Supplier<? extends Number>> gauges, Map<String, Histogram> histograms, String prefix) {
+    this.counters = counters;
+    this.gauges = gauges;
+    this.histograms = histograms;
+    this.prefix = prefix;
+  }
+
+  /**
+   * @return the registry shared by all components that were not handed one explicitly
+   */
+  public static Metrics global() {
+    return GLOBAL;
+  }
+
+  /**
+   * Returns a view of this registry whose numbers are stored under <code>[scope].[name]</code>. The view reads and exports only its own numbers,
+   * under their unscoped names, while this registry exports them with the scope. Views of the same scope share their numbers.
+   *
+   * @param scope the scope of the numbers, such as the username of a bot
+   * @return a scoped view of this registry
+   */
+  public Metrics scoped(String scope) {
+    checkArgument(!isNullOrEmpty(scope), "Scope cannot be empty");
+    return new Metrics(counters, gauges, histograms, format("%s%s.", prefix, scope));
+  }
+
+  /**
+   * Increments the counter with the specified name by one.
+   *
+   * @param name the name of the counter
+   */
+  public void increment(String name) {
+    add(name, 1);
+  }
+
+  /**
+   * Adds the delta to the counter with the specified name. Counters are created on first use.
+   *
+   * @param name  the name of the counter
+   * @param delta the amount to add
+   */
+  public void add(String name, long delta) {
+    counters.computeIfAbsent(prefix + name, key -> new LongAdder()).add(delta);
+  }
+
+  /**
+   * @param name the name of the counter
+   * @return the current value of the counter, <tt>0</tt> if it was never incremented
+   */
+  public long count(String name) {
+    LongAdder counter = counters.get(prefix + name);
+    return counter == null ? 0 : counter.sum();
+  }
+
+  /**
+   * Registers a gauge, a value that is sampled whenever the metrics are exported. Registering a gauge with an existing name replaces it.
+   *
+   * @param name  the name of the gauge
+   * @param gauge the supplier of the current value
+   */
+  public void gauge(String name, Supplier<? extends Number> gauge) {
+    gauges.put(prefix + name, checkNotNull(gauge, "Gauge supplier cannot be null"));
+  }
+
+  /**
+   * Histograms are created on first use.
+   *
+   * @param name the name of the histogram
+   * @return the histogram with the specified name
+   */
+  public Histogram histogram(String name) {
+    return histograms.computeIfAbsent(prefix + name, key -> new Histogram());
+  }
+
+  /**
+   * Histograms are exported as several entries suffixed by the statistic, e.g. <code>name.count</code>, <code>name.p99</code> and <code>name.max</code>.
+   *
+   * @return a sorted point-in-time view of all the counters, gauges and histograms
+   */
+  public SortedMap<String, Number> snapshot() {
+    SortedMap<String, Number> snapshot = new TreeMap<>();
+    scoped(counters).forEach((name, counter) -> snapshot.put(name, counter.sum()));
+    scoped(gauges).forEach((name, gauge) -> snapshot.put(name, gauge.get()));
+    scoped(histograms).forEach((name, histogram) -> {
+      snapshot.put(name + ".count", histogram.count());
+      snapshot.put(name + ".mean", histogram.mean());
+      snapshot.put(name + ".p50", histogram.percentile(50));
+      snapshot.put(name + ".p90", histogram.percentile(90));
+      snapshot.put(name + ".p99", histogram.percentile(99));
+      snapshot.put(name + ".max", histogram.max());
+    });
+    return snapshot;
+  }
+
+  /**
+   * @return a human-readable summary of the metrics, one <code>name - value</code> per line
+   */
+  public String summary() {
+    return snapshot().entrySet().stream()
+        .map(entry -> format("%s - %s", entry.getKey(), entry.getValue()))
+        .reduce(new StringJoiner("\n"), StringJoiner::add, StringJoiner::merge)
+        .toString();
+  }
+
+  /**
+   * @return the entries of the scope of this registry, under their unscoped names
+   */
+  private <T> Map<String, T> scoped(Map<String, T> entries) {
+    Map<String, T> scoped = new HashMap<>();
+    entries.forEach((name, entry) -> {
+      if (name.startsWith(prefix))
+        scoped.put(name.substring(prefix.length()), entry);
+    });
+    return scoped;
+  }
+}
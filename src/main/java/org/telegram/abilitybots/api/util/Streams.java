@@ -0,0 +1,133 @@
+package org.telegram.abilitybots.api.util;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.util.Arrays.asList;
+import static java.util.Collections.enumeration;
+
+/**
+ * Helper methods for streaming data in and out of the bot without going through temporary files.
+ */
+public final class Streams {
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+  private static final byte[] GZIP_MAGIC = {0x1f, (byte) 0x8b};
+  private static final int GZIP_TRAILER_LENGTH = 8;
+
+  private Streams() {
+
+  }
+
+  /**
+   * Wraps a buffer in a stream. The stream reads from the position to the limit of the buffer without modifying it.
+   *
+   * @param buffer any byte buffer, direct or heap
+   * @return a stream over the remaining bytes of the buffer
+   */
+  public static InputStream asStream(ByteBuffer buffer) {
+    ByteBuffer view = buffer.duplicate();
+    if (view.hasArray())
+      return new ByteArrayInputStream(view.array(), view.arrayOffset() + view.position(), view.remaining());
+
+    return new InputStream() {
+      @Override
+      public int read() {
+        return view.hasRemaining() ? view.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) {
+        if (!view.hasRemaining())
+          return -1;
+
+        int count = Math.min(length, view.remaining());
+        view.get(bytes, offset, count);
+        return count;
+      }
+
+      @Override
+      public int available() {
+        return view.remaining();
+      }
+    };
+  }
+
+  /**
+   * Compresses a stream in the gzip format as it is being read. Nothing is buffered beyond the deflater's window.
+   *
+   * @param source the uncompressed stream
+   * @return a stream of the gzip-compressed content of the source
+   */
+  public static InputStream gzip(InputStream source) {
+    CountingInputStream counter = new CountingInputStream(source);
+    CheckedInputStream checked = new CheckedInputStream(counter, new CRC32());
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    InputStream body = new DeflaterInputStream(checked, deflater) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          deflater.end();
+        }
+      }
+    };
+
+    // The trailer holds the CRC and the size of the uncompressed data, it can only be computed once the body is consumed
+    InputStream trailer = new InputStream() {
+      private ByteArrayInputStream bytes;
+
+      @Override
+      public int read() throws IOException {
+        return trailer().read();
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        return trailer().read(buffer, offset, length);
+      }
+
+      private ByteArrayInputStream trailer() {
+        if (bytes == null) {
+          ByteBuffer buffer = ByteBuffer.allocate(GZIP_TRAILER_LENGTH).order(LITTLE_ENDIAN);
+          buffer.putInt((int) checked.getChecksum().getValue());
+          buffer.putInt((int) counter.getCount());
+          bytes = new ByteArrayInputStream(buffer.array());
+        }
+        return bytes;
+      }
+    };
+
+    return new SequenceInputStream(enumeration(asList(new ByteArrayInputStream(GZIP_HEADER), body, trailer)));
+  }
+
+  /**
+   * Peeks at the first bytes of the stream and transparently decompresses it if it holds gzip-compressed data.
+   *
+   * @param source a stream that may or may not be gzip-compressed
+   * @return a stream of the uncompressed content of the source
+   */
+  public static InputStream gunzipIfCompressed(InputStream source) throws IOException {
+    PushbackInputStream stream = new PushbackInputStream(source, GZIP_MAGIC.length);
+    byte[] magic = new byte[GZIP_MAGIC.length];
+    int read = ByteStreams.read(stream, magic, 0, magic.length);
+    if (read > 0)
+      stream.unread(magic, 0, read);
+
+    return Arrays.equals(magic, GZIP_MAGIC) ? new GZIPInputStream(stream) : stream;
+  }
+}
@@ -1,30 +1,48 @@
 package org.telegram.abilitybots.api.bot;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import org.jetbrains.annotations.NotNull;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.telegram.abilitybots.api.db.DBContext;
+import org.telegram.abilitybots.api.db.LegacyDBContext;
 import org.telegram.abilitybots.api.objects.*;
+import org.telegram.abilitybots.api.sender.CircuitOpenException;
 import org.telegram.abilitybots.api.sender.MessageSender;
+import org.telegram.abilitybots.api.util.Metrics;
 import org.telegram.abilitybots.api.util.Pair;
 import org.telegram.abilitybots.api.util.Trio;
+import org.telegram.telegrambots.api.methods.send.SendMessage;
 import org.telegram.telegrambots.api.objects.*;
 import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Sets.newHashSet;
 import static java.lang.String.format;
 import static java.util.Collections.emptySet;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
 import static org.apache.commons.lang3.ArrayUtils.addAll;
 import static org.apache.commons.lang3.StringUtils.EMPTY;
 import static org.junit.Assert.*;
@@ -32,6 +50,7 @@ import static org.mockito.Mockito.*;
 import static org.mockito.internal.verification.VerificationModeFactory.times;
 import static org.telegram.abilitybots.api.bot.AbilityBot.RECOVERY_MESSAGE;
 import static org.telegram.abilitybots.api.bot.AbilityBot.RECOVER_SUCCESS;
+import static org.telegram.abilitybots.api.bot.Broadcaster.BROADCASTS;
 import static org.telegram.abilitybots.api.bot.DefaultBot.getDefaultBuilder;
 import static org.telegram.abilitybots.api.db.MapDBContext.offlineInstance;
 import static org.telegram.abilitybots.api.objects.EndUser.endUser;
@@ -103,10 +122,41 @@ public class AbilityBotTest {
   @Test
   public void canBackupDB() throws TelegramApiException {
     MessageContext context = defaultContext();
+    when(context.arguments()).thenReturn(new String[0]);
 
     bot.backupDB().action().accept(context);
 
-    verify(sender, times(1)).sendDocument(any());
+    verify(sender, times(1)).sendDocument(anyLong(), eq("backup.json"), any(InputStream.class), anyBoolean());
+  }
+
+  @Test
+  public void uploadsBackupWhileItIsWritten() throws TelegramApiException {
+    Set<String> entries = db.getSet(TEST);
+    for (int i = 0; i < 20000; i++)
+      entries.add(TEST + i);
+    MessageContext context = defaultContext();
+    when(context.arguments()).thenReturn(new String[0]);
+    AtomicReference<byte[]> uploaded = new AtomicReference<>();
+    when(sender.sendDocument(anyLong(), eq("backup.json"), any(InputStream.class), anyBoolean())).then(invocation -> {
+      uploaded.set(ByteStreams.toByteArray((InputStream) invocation.getArguments()[2]));
+      return null;
+    });
+
+    bot.backupDB().action().accept(context);
+    db.clear();
+
+    assertTrue("Uploaded backup could not be recovered", db.recover(new ByteArrayInputStream(uploaded.get())));
+    assertEquals("Uploaded backup is incomplete", 20000, db.getSet(TEST).size());
+  }
+
+  @Test
+  public void canBackupDBInBinary() throws TelegramApiException {
+    MessageContext context = defaultContext();
+    when(context.arguments()).thenReturn(new String[]{"binary"});
+
+    bot.backupDB().action().accept(context);
+
+    verify(sender, times(1)).sendDocument(anyLong(), eq("backup.bin"), any(InputStream.class), anyBoolean());
   }
 
   @Test
@@ -115,7 +165,7 @@ public class AbilityBotTest {
     Object backup = getDbBackup();
     java.io.File backupFile = createBackupFile(backup);
 
-    when(sender.downloadFile(Matchers.any(File.class))).thenReturn(backupFile);
+    when(sender.downloadFileAsStream(Matchers.any(File.class))).thenReturn(new FileInputStream(backupFile));
     bot.recoverDB().replies().get(0).actOn(update);
 
     verify(sender, times(1)).send(RECOVER_SUCCESS, GROUP_ID);
@@ -123,6 +173,125 @@ public class AbilityBotTest {
     assertTrue("Could not delete backup file", backupFile.delete());
   }
 
+  @Test
+  public void canBroadcastToAllUsers() throws Exception {
+    addUsers(MUSER, CREATOR);
+    when(sender.sendMessage(any(SendMessage.class))).thenReturn(mock(Message.class));
+
+    int delivered = bot.broadcaster().start(TEST, TEST).get(5, SECONDS);
+
+    assertEquals("Broadcast did not reach all the users", 2, delivered);
+    assertEquals("Broadcast was not sent once to every user", newArrayList(MUSER.id(), CREATOR.id()), broadcastChats());
+    assertFalse("Finished broadcast is still pending", db.getMap(BROADCASTS).containsKey(TEST));
+    assertFalse("Checkpoints of the finished broadcast were not dropped", db.contains(format("%s_%s", BROADCASTS, TEST)));
+  }
+
+  @Test
+  public void canResumeBroadcast() throws Exception {
+    addUsers(MUSER, CREATOR);
+    db.<String, String>getMap(BROADCASTS).put(TEST, TEST);
+    db.<Integer>getSet(format("%s_%s", BROADCASTS, TEST)).add(MUSER.id());
+    when(sender.sendMessage(any(SendMessage.class))).thenReturn(mock(Message.class));
+
+    int delivered = bot.broadcaster().resumeAll().get(TEST).get(5, SECONDS);
+
+    assertEquals("Resumed broadcast did not skip the reached users", 1, delivered);
+    assertEquals("Resumed broadcast did not skip the reached users", newArrayList(CREATOR.id()), broadcastChats());
+  }
+
+  @Test
+  public void resumesBroadcastsOnceRegistered() throws TelegramApiException {
+    addUsers(CREATOR);
+    db.<String, String>getMap(BROADCASTS).put(TEST, TEST);
+    when(sender.sendMessage(any(SendMessage.class))).thenReturn(mock(Message.class));
+
+    DefaultBot restarted = new DefaultBot(EMPTY, EMPTY, db);
+    restarted.setSender(sender);
+    verify(sender, never()).sendMessage(any(SendMessage.class));
+    restarted.onRegister();
+
+    verify(sender, timeout(5000)).sendMessage(any(SendMessage.class));
+  }
+
+  @Test
+  public void checkpointsUnreachableUsers() throws Exception {
+    addUsers(MUSER, CREATOR);
+    when(sender.sendMessage(any(SendMessage.class))).thenAnswer(invocation -> {
+      if (isTo(invocation.getArguments()[0], MUSER))
+        throw apiError(403, "Forbidden: bot was blocked by the user");
+      return mock(Message.class);
+    });
+
+    int delivered = bot.broadcaster().start(TEST, TEST).get(5, SECONDS);
+
+    assertEquals("Broadcast did not reach the other users", 1, delivered);
+    assertEquals("Unreachable user was retried", newArrayList(MUSER.id(), CREATOR.id()), broadcastChats());
+    assertFalse("Broadcast to unreachable users is still pending", db.getMap(BROADCASTS).containsKey(TEST));
+  }
+
+  @Test
+  public void leavesFailedUsersPending() throws Exception {
+    addUsers(MUSER, CREATOR);
+    when(sender.sendMessage(any(SendMessage.class))).thenAnswer(invocation -> {
+      if (isTo(invocation.getArguments()[0], MUSER))
+        throw apiError(500, "Internal Server Error");
+      return mock(Message.class);
+    });
+    Broadcaster broadcaster = new Broadcaster(bot, 1, 1000, 10);
+
+    try {
+      int delivered = broadcaster.start(TEST, TEST).get(5, SECONDS);
+
+      assertEquals("Broadcast did not reach the other users", 1, delivered);
+      assertEquals("Failed user was not retried in every pass", Broadcaster.MAX_PASSES,
+          broadcastChats().stream().filter(id -> id == MUSER.id()).count());
+      assertTrue("Broadcast with failed users is not pending", db.getMap(BROADCASTS).containsKey(TEST));
+      assertEquals("Failed user was checkpointed", newHashSet(CREATOR.id()), db.getSet(format("%s_%s", BROADCASTS, TEST)));
+    } finally {
+      broadcaster.shutdown();
+    }
+  }
+
+  @Test
+  public void holdsBackBroadcastWhileBreakerIsOpen() throws Exception {
+    addUsers(MUSER, CREATOR);
+    AtomicBoolean open = new AtomicBoolean(true);
+    when(sender.sendMessage(any(SendMessage.class))).thenAnswer(invocation -> {
+      if (open.getAndSet(false))
+        throw new CircuitOpenException("open");
+      return mock(Message.class);
+    });
+    Broadcaster broadcaster = new Broadcaster(bot, 1, 1000, 200);
+
+    try {
+      long start = System.currentTimeMillis();
+      int delivered = broadcaster.start(TEST, TEST).get(5, SECONDS);
+
+      assertEquals("Rejected user was not retried", 2, delivered);
+      assertTrue("Broadcast was not held back", System.currentTimeMillis() - start >= 200);
+      assertFalse("Finished broadcast is still pending", db.getMap(BROADCASTS).containsKey(TEST));
+    } finally {
+      broadcaster.shutdown();
+    }
+  }
+
+  private List<Integer> broadcastChats() throws TelegramApiException {
+    ArgumentCaptor<SendMessage> captor = ArgumentCaptor.forClass(SendMessage.class);
+    verify(sender, atLeast(0)).sendMessage(captor.capture());
+    return captor.getAllValues().stream().map(message -> Integer.valueOf(message.getChatId())).sorted().collect(toList());
+  }
+
+  private static boolean isTo(Object message, EndUser user) {
+    return String.valueOf(user.id()).equals(((SendMessage) message).getChatId());
+  }
+
+  private static TelegramApiRequestException apiError(int errorCode, String description) {
+    return new TelegramApiRequestException("Error sending message", new JSONObject()
+        .put("ok", false)
+        .put("error_code", errorCode)
+        .put("description", description));
+  }
+
   @Test
   public void canFilterOutReplies() {
     Update update = mock(Update.class);
@@ -271,6 +440,36 @@ public class AbilityBotTest {
     assertEquals("User was not added", expectedUsers, bot.users());
   }
 
+  @Test
+  public void canAddUserToDBWithoutTransactions() {
+    DefaultBot legacy = new DefaultBot(EMPTY, EMPTY, new LegacyDBContext(db));
+    Update update = mock(Update.class);
+    Message message = mock(Message.class);
+    User user = mock(User.class);
+
+    mockAlternateUser(update, message, user, MUSER);
+
+    legacy.addUser(update);
+
+    assertEquals("User was not added", ImmutableMap.of(MUSER.username(), MUSER.id()), legacy.userIds());
+    assertEquals("User was not added", ImmutableMap.of(MUSER.id(), MUSER), legacy.users());
+  }
+
+  @Test
+  public void keepsMetricsOfBotsApart() {
+    DefaultBot first = new DefaultBot(EMPTY, "first", db);
+    DefaultBot second = new DefaultBot(EMPTY, "second", db);
+
+    first.metrics().increment("test.counter");
+
+    assertEquals("Counter of a bot was not counted", 1, first.metrics().count("test.counter"));
+    assertEquals("Counter of a bot was counted by another bot", 0, second.metrics().count("test.counter"));
+    assertTrue("Bot does not export its gauges under their own name", first.metrics().snapshot().containsKey("sender.async.inflight"));
+    assertTrue("Gauges of a bot are not scoped by its username", Metrics.global().snapshot().containsKey("second.sender.async.inflight"));
+    assertTrue("Circuit breaker of a bot is not scoped by its username", Metrics.global().snapshot().containsKey("second.sender.breaker.state"));
+    assertTrue("Breaker queue of a bot is not scoped by its username", second.metrics().snapshot().containsKey("sender.breaker.queued"));
+  }
+
   @Test
   public void canEditUser() {
     addUsers(MUSER);
@@ -0,0 +1,171 @@
+package org.telegram.abilitybots.api.bot;
+
+import com.google.common.base.Ticker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A scheduler whose time only moves when the test advances it. Due tasks run on the thread that calls {@link ManualScheduler#advance(long)}.
+ */
+final class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+  private final PriorityQueue<Task<?>> tasks = new PriorityQueue<>();
+  private long now;
+  private long sequence;
+  private boolean shutdown;
+
+  /**
+   * @return a ticker that reads the time of this scheduler
+   */
+  Ticker ticker() {
+    return new Ticker() {
+      @Override
+      public long read() {
+        return MILLISECONDS.toNanos(now());
+      }
+    };
+  }
+
+  synchronized long now() {
+    return now;
+  }
+
+  /**
+   * Moves the time forward, running every task that falls due on the way, in order.
+   */
+  void advance(long millis) {
+    long until;
+    synchronized (this) {
+      until = now + millis;
+    }
+
+    while (true) {
+      Task<?> task;
+      synchronized (this) {
+        task = tasks.peek();
+        if (task == null || task.time > until) {
+          now = until;
+          return;
+        }
+        tasks.poll();
+        now = Math.max(now, task.time);
+      }
+      task.run();
+    }
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    return schedule(Executors.callable(command), delay, unit);
+  }
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+    return enqueue(new Task<>(callable, unit.toMillis(delay), 0));
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+    return scheduleWithFixedDelay(command, initialDelay, period, unit);
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+    return enqueue(new Task<>(Executors.callable(command), unit.toMillis(initialDelay), unit.toMillis(delay)));
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    schedule(command, 0, MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void shutdown() {
+    shutdown = true;
+    tasks.clear();
+  }
+
+  @Override
+  public synchronized List<Runnable> shutdownNow() {
+    List<Runnable> pending = new ArrayList<>(tasks);
+    shutdown();
+    return pending;
+  }
+
+  @Override
+  public synchronized boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return isShutdown();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) {
+    return isTerminated();
+  }
+
+  private synchronized <V> Task<V> enqueue(Task<V> task) {
+    if (shutdown)
+      throw new RejectedExecutionException("Scheduler was shut down");
+
+    tasks.add(task);
+    return task;
+  }
+
+  private final class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+    private final long period;
+    private final long order;
+    private long time;
+
+    private Task(Callable<V> callable, long delay, long period) {
+      super(callable);
+      this.period = period;
+      synchronized (ManualScheduler.this) {
+        this.time = now + delay;
+        this.order = sequence++;
+      }
+    }
+
+    @Override
+    public void run() {
+      if (period == 0) {
+        super.run();
+        return;
+      }
+
+      if (runAndReset()) {
+        synchronized (ManualScheduler.this) {
+          time = now + period;
+          if (!shutdown)
+            tasks.add(this);
+        }
+      }
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(time - now(), MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      Task<?> other = (Task<?>) o;
+      return time != other.time ? Long.compare(time, other.time) : Long.compare(order, other.order);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package org.telegram.abilitybots.api.bot;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.telegram.abilitybots.api.sender.MessageSender;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+import static org.telegram.abilitybots.api.bot.ProgressEditor.EXPIRED;
+import static org.telegram.abilitybots.api.bot.ProgressEditor.SKIPPED;
+import static org.telegram.abilitybots.api.bot.ProgressEditor.THROTTLED;
+
+public class ProgressEditorTest {
+  private static final long CHAT_ID = 1L;
+  private static final long OTHER_CHAT_ID = 3L;
+  private static final int MESSAGE_ID = 2;
+  private static final long INTERVAL = 50;
+  private static final long EXPIRY = 4 * INTERVAL;
+  private static final int RETRY_AFTER = 1;
+
+  private MessageSender sender;
+  private Metrics metrics;
+  private ManualScheduler scheduler;
+  private ProgressEditor editor;
+
+  @Before
+  public void setUp() {
+    sender = mock(MessageSender.class);
+    metrics = new Metrics();
+    scheduler = new ManualScheduler();
+    editor = new ProgressEditor(() -> sender, INTERVAL, EXPIRY, scheduler, scheduler.ticker(), metrics);
+  }
+
+  @Test
+  public void coalescesUpdatesIntoFewEdits() throws TelegramApiException {
+    for (int i = 0; i < 1000; i++) {
+      editor.update(CHAT_ID, MESSAGE_ID, format("%d/1000", i));
+      scheduler.advance(1);
+    }
+    scheduler.advance(INTERVAL);
+    editor.finish(CHAT_ID, MESSAGE_ID, "Done");
+
+    List<String> edits = edits();
+    assertTrue("Progress updates were not coalesced", edits.size() <= 1000 / INTERVAL + 2);
+    assertEquals("Latest progress was not flushed", "999/1000", edits.get(edits.size() - 2));
+    assertEquals("Final text was not sent last", "Done", edits.get(edits.size() - 1));
+  }
+
+  @Test
+  public void skipsUnchangedText() throws TelegramApiException {
+    editor.update(CHAT_ID, MESSAGE_ID, "50%");
+    scheduler.advance(INTERVAL);
+    editor.update(CHAT_ID, MESSAGE_ID, "50%");
+    scheduler.advance(INTERVAL);
+
+    verify(sender, times(1)).editMessageText(any());
+    assertEquals("Unchanged edit was not skipped", 1, metrics.count(SKIPPED));
+  }
+
+  @Test
+  public void sendsFinalTextAfterEditInFlight() throws Exception {
+    CountDownLatch flushing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    when(sender.editMessageText(any())).then(invocation -> {
+      if ("50%".equals(((EditMessageText) invocation.getArguments()[0]).getText())) {
+        flushing.countDown();
+        release.await();
+      }
+      return null;
+    });
+
+    editor.update(CHAT_ID, MESSAGE_ID, "50%");
+    Thread flusher = new Thread(() -> scheduler.advance(0));
+    flusher.start();
+    assertTrue("Progress was not flushed", flushing.await(1, SECONDS));
+    Thread finisher = new Thread(() -> editor.finish(CHAT_ID, MESSAGE_ID, "Done"));
+    finisher.start();
+    while (finisher.getState() != Thread.State.BLOCKED && finisher.isAlive())
+      Thread.yield();
+    release.countDown();
+    finisher.join();
+    flusher.join();
+
+    assertEquals("Final text was overwritten by the edit in flight", newArrayList("50%", "Done"), edits());
+  }
+
+  @Test
+  public void reschedulesThrottledEditsWithoutHoldingOtherChats() throws TelegramApiException {
+    when(sender.editMessageText(any()))
+        .thenThrow(throttled())
+        .thenReturn(null);
+
+    editor.update(CHAT_ID, MESSAGE_ID, "50%");
+    scheduler.advance(0);
+    editor.update(CHAT_ID, MESSAGE_ID, "60%");
+    editor.update(OTHER_CHAT_ID, MESSAGE_ID, "10%");
+    scheduler.advance(INTERVAL);
+
+    assertEquals("Other chat waited for the throttled edit", newArrayList("50%", "10%"), edits());
+
+    scheduler.advance(SECONDS.toMillis(RETRY_AFTER));
+    assertEquals("Latest progress was not sent after retry_after", newArrayList("50%", "10%", "60%"), edits());
+    assertEquals("Throttled edit was not counted", 1, metrics.count(THROTTLED));
+  }
+
+  @Test
+  public void resendsThrottledFinalText() throws TelegramApiException {
+    when(sender.editMessageText(any()))
+        .thenReturn(null)
+        .thenThrow(throttled())
+        .thenReturn(null);
+
+    editor.update(CHAT_ID, MESSAGE_ID, "50%");
+    scheduler.advance(0);
+    editor.finish(CHAT_ID, MESSAGE_ID, "Done");
+    scheduler.advance(SECONDS.toMillis(RETRY_AFTER) - 1);
+
+    assertEquals("Final text was sent again before retry_after", newArrayList("50%", "Done"), edits());
+
+    scheduler.advance(1);
+    assertEquals("Final text was not sent again after retry_after", newArrayList("50%", "Done", "Done"), edits());
+  }
+
+  @Test
+  public void expiresUnfinishedMessages() {
+    editor.update(CHAT_ID, MESSAGE_ID, "50%");
+    scheduler.advance(EXPIRY - 1);
+    assertEquals("Message is not tracked", 1, editor.tracked());
+
+    scheduler.advance(EXPIRY);
+    assertEquals("Unfinished message is still tracked", 0, editor.tracked());
+    assertEquals("Expired message was not counted", 1, metrics.count(EXPIRED));
+  }
+
+  @After
+  public void tearDown() {
+    editor.shutdown();
+  }
+
+  private List<String> edits() throws TelegramApiException {
+    ArgumentCaptor<EditMessageText> captor = ArgumentCaptor.forClass(EditMessageText.class);
+    verify(sender, atLeast(0)).editMessageText(captor.capture());
+    return captor.getAllValues().stream().map(EditMessageText::getText).collect(toList());
+  }
+
+  private static TelegramApiRequestException throttled() {
+    return new TelegramApiRequestException("Error editing message", new JSONObject()
+        .put("ok", false)
+        .put("error_code", 429)
+        .put("description", "Too Many Requests")
+        .put("parameters", new JSONObject().put("retry_after", RETRY_AFTER)));
+  }
+}
@@ -0,0 +1,59 @@
+package org.telegram.abilitybots.api.db;
+
+import org.telegram.abilitybots.api.objects.EndUser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+
+import static java.lang.Integer.parseInt;
+import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
+import static org.telegram.abilitybots.api.db.MapDBContext.offlineInstance;
+import static org.telegram.abilitybots.api.objects.EndUser.endUser;
+
+/**
+ * Compares the size, backup time and recovery time of every {@link BackupFormat} on a DB of users.
+ * Every round recovers into an empty DB, the times are the best of all rounds.
+ * <p>
+ * Usage: <code>gradle benchmark -Pbench=BackupBenchmark [-Pargs="users rounds"]</code>
+ */
+public final class BackupBenchmark {
+  private BackupBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int users = args.length > 0 ? parseInt(args[0]) : 100_000;
+    int rounds = args.length > 1 ? parseInt(args[1]) : 5;
+
+    DBContext db = offlineInstance("backup");
+    Map<Integer, EndUser> map = db.getMap(USERS, Integer.class, EndUser.class);
+    for (int i = 0; i < users; i++)
+      map.put(i, endUser(i, "first" + i, "last" + i, "username" + i));
+    db.commit();
+
+    for (BackupFormat format : BackupFormat.values()) {
+      long bestBackup = Long.MAX_VALUE;
+      long bestRecover = Long.MAX_VALUE;
+      int size = 0;
+      for (int round = 0; round < rounds; round++) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        db.backup(out, format);
+        bestBackup = Math.min(bestBackup, System.nanoTime() - start);
+        size = out.size();
+
+        DBContext target = offlineInstance("recovered" + round);
+        start = System.nanoTime();
+        if (!target.recover(new ByteArrayInputStream(out.toByteArray())))
+          throw new IllegalStateException("Could not recover the " + format + " backup");
+        bestRecover = Math.min(bestRecover, System.nanoTime() - start);
+        target.close();
+      }
+
+      System.out.printf("%s: %,d bytes, backup %,d ms, recover %,d ms for %,d users%n",
+          format, size, bestBackup / 1_000_000, bestRecover / 1_000_000, users);
+    }
+
+    db.close();
+  }
+}
@@ -0,0 +1,52 @@
+package org.telegram.abilitybots.api.db;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.telegram.abilitybots.api.objects.Locality;
+
+import java.io.*;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.unmodifiableList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BinaryBackupTest {
+
+  @Test
+  public void readsJavaSerializedCollectionsAndModels() throws IOException, ClassNotFoundException {
+    Map<String, Object> value = new TreeMap<>(ImmutableMap.of(
+        "list", newArrayList(1, 2L, 3.0),
+        "set", newHashSet("a", 'b', true),
+        "map", new ConcurrentHashMap<>(ImmutableMap.of(1, Locality.USER)),
+        "unmodifiable", unmodifiableList(singletonList("a"))));
+
+    assertEquals("Java serialized element is different after reading it", value, readBack(value));
+  }
+
+  @Test
+  public void readsJavaSerializedArraysOfAllowedClasses() throws IOException, ClassNotFoundException {
+    Object[] value = {new String[]{"a"}, new int[][]{{1}}, new Long[]{1L}};
+
+    assertArrayEquals("Java serialized array is different after reading it", value, (Object[]) readBack(value));
+  }
+
+  @Test(expected = InvalidClassException.class)
+  public void rejectsClassesThatAreNotAllowed() throws IOException, ClassNotFoundException {
+    readBack(newArrayList(URI.create("https://example.org")));
+  }
+
+  private static Object readBack(Object value) throws IOException, ClassNotFoundException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      BinaryBackup.writeValue(out, value);
+    }
+    return BinaryBackup.readValue(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+}
@@ -0,0 +1,126 @@
+package org.telegram.abilitybots.api.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.abilitybots.api.objects.EndUser;
+import org.telegram.abilitybots.api.util.Metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.collect.Sets.newHashSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.telegram.abilitybots.api.bot.AbilityBot.BLACKLIST;
+import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
+import static org.telegram.abilitybots.api.bot.AbilityBotTest.CREATOR;
+import static org.telegram.abilitybots.api.bot.AbilityBotTest.MUSER;
+import static org.telegram.abilitybots.api.db.CachingDBContext.FLUSHED;
+import static org.telegram.abilitybots.api.db.CachingDBContext.HITS;
+import static org.telegram.abilitybots.api.db.CachingDBContext.MISSES;
+import static org.telegram.abilitybots.api.db.MapDBContext.offlineInstance;
+
+public class CachingDBContextTest {
+  private static final long NEVER = 60_000;
+
+  private DBContext backend;
+  private Metrics metrics;
+  private DBContext db;
+
+  @Before
+  public void setUp() {
+    backend = offlineInstance("db");
+    metrics = new Metrics();
+    db = new CachingDBContext(backend, 100, NEVER, metrics);
+  }
+
+  @Test
+  public void servesRepeatedReadsFromCache() {
+    backend.getMap(USERS, Integer.class, EndUser.class).put(CREATOR.id(), CREATOR);
+    Map<Integer, EndUser> users = db.getMap(USERS, Integer.class, EndUser.class);
+    Set<Integer> blacklist = db.getSet(BLACKLIST, Integer.class);
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals("Cached user is different", CREATOR, users.get(CREATOR.id()));
+      assertFalse("Absent element was found", blacklist.contains(CREATOR.id()));
+    }
+
+    assertEquals("Reads did not go through the cache", 2, metrics.count(MISSES));
+    assertEquals("Repeated reads were not served from the cache", 18, metrics.count(HITS));
+  }
+
+  @Test
+  public void countsCachesOfBotsApart() throws IOException {
+    DBContext bot = new CachingDBContext(offlineInstance("bot"), metrics.scoped("bot"));
+    DBContext other = new CachingDBContext(offlineInstance("other"), metrics.scoped("other"));
+    try {
+      bot.getMap(USERS, Integer.class, EndUser.class).get(CREATOR.id());
+      other.getMap(USERS, Integer.class, EndUser.class).get(CREATOR.id());
+      other.getMap(USERS, Integer.class, EndUser.class).get(MUSER.id());
+
+      assertEquals("Misses of a bot were not counted apart", 1, metrics.scoped("bot").count(MISSES));
+      assertEquals("Misses of a bot were not counted apart", 2, metrics.scoped("other").count(MISSES));
+      assertEquals("Misses were counted without the scope of their bot", 0, metrics.count(MISSES));
+    } finally {
+      bot.close();
+      other.close();
+    }
+  }
+
+  @Test
+  public void flushesWritesOnCommit() {
+    Map<Integer, EndUser> users = db.getMap(USERS, Integer.class, EndUser.class);
+    users.put(CREATOR.id(), CREATOR);
+    users.put(MUSER.id(), MUSER);
+    users.remove(MUSER.id());
+    db.getSet(BLACKLIST, Integer.class).add(MUSER.id());
+
+    Map<Integer, EndUser> backingUsers = backend.getMap(USERS);
+    assertNull("Write reached the backing DB before the commit", backingUsers.get(CREATOR.id()));
+    assertEquals("Pending write is not visible", CREATOR, users.get(CREATOR.id()));
+
+    db.commit();
+
+    assertEquals("Write was not flushed on commit", CREATOR, backingUsers.get(CREATOR.id()));
+    assertFalse("Removal was not flushed on commit", backingUsers.containsKey(MUSER.id()));
+    assertEquals("Set write was not flushed on commit", newHashSet(MUSER.id()), backend.getSet(BLACKLIST));
+    assertEquals("Flushed writes were not counted", 3, metrics.count(FLUSHED));
+  }
+
+  @Test
+  public void flushesWritesPeriodically() throws IOException, InterruptedException {
+    db.close();
+    backend = offlineInstance("db");
+    db = new CachingDBContext(backend, 100, 10, metrics);
+
+    db.getMap(USERS).put(CREATOR.id(), CREATOR);
+    Map<Integer, EndUser> backingUsers = backend.getMap(USERS);
+    for (int i = 0; i < 200 && !backingUsers.containsKey(CREATOR.id()); i++)
+      Thread.sleep(10);
+
+    assertEquals("Write was not flushed in the background", CREATOR, backingUsers.get(CREATOR.id()));
+  }
+
+  @Test
+  public void canRemoveThroughViews() {
+    Map<Integer, EndUser> users = db.getMap(USERS, Integer.class, EndUser.class);
+    users.put(CREATOR.id(), CREATOR);
+    users.put(MUSER.id(), MUSER);
+
+    users.values().removeIf(user -> user.equals(MUSER));
+
+    assertNull("Removed user is still cached", users.get(MUSER.id()));
+    assertEquals("Map is different after removing through its values", 1, users.size());
+    assertTrue("Remaining key is missing", users.keySet().contains(CREATOR.id()));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    db.clear();
+    db.close();
+  }
+}
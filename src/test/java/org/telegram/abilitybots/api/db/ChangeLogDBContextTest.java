@@ -0,0 +1,176 @@
+package org.telegram.abilitybots.api.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.abilitybots.api.objects.EndUser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.telegram.abilitybots.api.bot.AbilityBot.BLACKLIST;
+import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
+import static org.telegram.abilitybots.api.bot.AbilityBotTest.CREATOR;
+import static org.telegram.abilitybots.api.bot.AbilityBotTest.MUSER;
+import static org.telegram.abilitybots.api.db.MapDBContext.offlineInstance;
+
+public class ChangeLogDBContextTest {
+  private static final String TEST = "TEST";
+
+  private ChangeLogDBContext db;
+  private ChangeLogDBContext replica;
+
+  @Before
+  public void setUp() {
+    db = new ChangeLogDBContext(offlineInstance("db"));
+    replica = new ChangeLogDBContext(offlineInstance("replica"));
+  }
+
+  @Test
+  public void recordsChangesWithIncreasingSequence() {
+    Map<Integer, EndUser> users = db.getMap(USERS, Integer.class, EndUser.class);
+    users.put(CREATOR.id(), CREATOR);
+    users.remove(MUSER.id());
+    db.getSet(BLACKLIST, Integer.class).add(MUSER.id());
+
+    assertEquals("Writes were not recorded once each", 2, db.sequence());
+  }
+
+  @Test
+  public void recordsCountersOncePerBatch() throws IOException {
+    Counter counter = db.getCounter(TEST);
+    for (int i = 0; i < 1000; i++)
+      counter.increment();
+
+    ByteArrayOutputStream incremental = new ByteArrayOutputStream();
+    db.backupSince(0, incremental);
+    replica.recover(new ByteArrayInputStream(incremental.toByteArray()));
+
+    assertEquals("Increments were not recorded as a single write", 1, db.sequence());
+    assertEquals("Counter is different on the replica", 1000, replica.getCounter(TEST).get());
+  }
+
+  @Test
+  public void canRecoverBaseBackupFollowedByIncrementalBackups() throws IOException {
+    Map<Integer, EndUser> users = db.getMap(USERS, Integer.class, EndUser.class);
+    Set<Integer> blacklist = db.getSet(BLACKLIST, Integer.class);
+    List<String> list = db.getList(TEST);
+    users.put(CREATOR.id(), CREATOR);
+    list.add(TEST);
+
+    ByteArrayOutputStream base = new ByteArrayOutputStream();
+    db.backup(base, BackupFormat.BINARY);
+    long since = db.sequence();
+
+    users.put(MUSER.id(), MUSER);
+    blacklist.add(MUSER.id());
+    list.add(0, "FIRST");
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    since = db.backupSince(since, first);
+
+    users.remove(CREATOR.id());
+    blacklist.remove(MUSER.id());
+    blacklist.add(CREATOR.id());
+    list.remove(TEST);
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    db.backupSince(since, second);
+
+    assertTrue("Could not recover base backup", replica.recover(new ByteArrayInputStream(base.toByteArray())));
+    assertTrue("Could not apply first incremental backup", replica.recover(new ByteArrayInputStream(first.toByteArray())));
+    assertTrue("Could not apply second incremental backup", replica.recover(new ByteArrayInputStream(second.toByteArray())));
+
+    assertEquals("Recovered map is different", newHashMap(users), newHashMap(replica.getMap(USERS, Integer.class, EndUser.class)));
+    assertEquals("Recovered set is different", newHashSet(blacklist), newHashSet(replica.getSet(BLACKLIST, Integer.class)));
+    assertEquals("Recovered list is different", newArrayList(list), newArrayList(replica.getList(TEST)));
+    assertEquals("Recovered DB does not continue the chain", db.sequence(), replica.sequence());
+  }
+
+  @Test
+  public void canReapplyIncrementalBackup() throws IOException {
+    Set<Integer> blacklist = db.getSet(BLACKLIST, Integer.class);
+    blacklist.add(CREATOR.id());
+    blacklist.add(MUSER.id());
+    blacklist.remove(CREATOR.id());
+    ByteArrayOutputStream changes = new ByteArrayOutputStream();
+    db.backupSince(0, changes);
+
+    replica.recover(new ByteArrayInputStream(changes.toByteArray()));
+    assertTrue("Could not reapply incremental backup", replica.recover(new ByteArrayInputStream(changes.toByteArray())));
+
+    assertEquals("Reapplied set is different", newHashSet(MUSER.id()), newHashSet(replica.getSet(BLACKLIST, Integer.class)));
+  }
+
+  @Test
+  public void recordsListElementsOnTheirOwn() throws IOException {
+    List<String> list = db.getList(TEST);
+    for (int i = 0; i < 1000; i++)
+      list.add(TEST + i);
+    list.set(0, "FIRST");
+    list.remove(1);
+    list.remove(TEST + 2);
+    ByteArrayOutputStream changes = new ByteArrayOutputStream();
+    db.backupSince(0, changes);
+
+    replica.recover(new ByteArrayInputStream(changes.toByteArray()));
+    assertTrue("Could not reapply list changes", replica.recover(new ByteArrayInputStream(changes.toByteArray())));
+
+    assertEquals("Replayed list is different", newArrayList(list), newArrayList(replica.getList(TEST)));
+    assertTrue("List was recorded as a whole on every change", changes.size() < 20_000);
+  }
+
+  @Test
+  public void rejectsIncrementalBackupWithGap() throws IOException {
+    db.getSet(BLACKLIST, Integer.class).add(CREATOR.id());
+    long since = db.sequence();
+    db.getSet(BLACKLIST, Integer.class).add(MUSER.id());
+    ByteArrayOutputStream changes = new ByteArrayOutputStream();
+    db.backupSince(since, changes);
+
+    boolean recovered = replica.recover(new ByteArrayInputStream(changes.toByteArray()));
+
+    assertFalse("Incremental backup was applied over a gap", recovered);
+    assertTrue("Incremental backup partially applied", replica.getSet(BLACKLIST, Integer.class).isEmpty());
+  }
+
+  @Test
+  public void rejectsTruncatedIncrementalBackup() throws IOException {
+    db.getSet(BLACKLIST, Integer.class).addAll(asList(CREATOR.id(), MUSER.id()));
+    ByteArrayOutputStream changes = new ByteArrayOutputStream();
+    db.backupSince(0, changes);
+    byte[] bytes = changes.toByteArray();
+    byte[] truncated = new byte[bytes.length - 4];
+    System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+    boolean recovered = replica.recover(new ByteArrayInputStream(truncated));
+
+    assertFalse("Truncated incremental backup was applied", recovered);
+    assertTrue("Truncated incremental backup partially applied", replica.getSet(BLACKLIST, Integer.class).isEmpty());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void cannotBackupChangesDroppedByFullBackup() throws IOException {
+    db.getSet(BLACKLIST, Integer.class).add(CREATOR.id());
+    db.backup(new ByteArrayOutputStream());
+
+    db.backupSince(0, new ByteArrayOutputStream());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    db.clear();
+    db.close();
+    replica.clear();
+    replica.close();
+  }
+}
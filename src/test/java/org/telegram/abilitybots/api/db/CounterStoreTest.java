@@ -0,0 +1,71 @@
+package org.telegram.abilitybots.api.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.telegram.abilitybots.api.db.InMemoryDBContext.offlineInstance;
+
+public class CounterStoreTest {
+
+  private static final String TEST = "TEST";
+  private DBContext db;
+  private CounterStore store;
+
+  @Before
+  public void setUp() {
+    db = offlineInstance();
+    store = new CounterStore(db);
+  }
+
+  @Test
+  public void dropsCountsOnceTheyAreWritten() {
+    CounterMap<Integer> usage = store.map(TEST, Integer.class);
+    IntStream.range(0, 1000).forEach(usage::increment);
+    usage.get(1000);
+    assertEquals("Updated counts are not held until they are written", 1000, store.held());
+
+    store.flush();
+
+    assertEquals("Written counts were kept in memory", 0, store.held());
+    assertEquals("Written count was not loaded again", 1, usage.get(999));
+    assertEquals("Written count was not updated", 2, usage.increment(999));
+  }
+
+  @Test
+  public void keepsIncrementsMadeWhileCountsAreWritten() throws InterruptedException {
+    CounterMap<Integer> usage = store.map(TEST, Integer.class);
+    List<Thread> threads = IntStream.range(0, 4)
+        .mapToObj(i -> new Thread(() -> IntStream.range(0, 10000).forEach(j -> usage.increment(j % 10))))
+        .collect(toList());
+    AtomicBoolean done = new AtomicBoolean();
+    Thread flusher = new Thread(() -> {
+      while (!done.get())
+        store.flush();
+    });
+
+    threads.forEach(Thread::start);
+    flusher.start();
+    for (Thread thread : threads)
+      thread.join();
+    done.set(true);
+    flusher.join();
+    store.flush();
+
+    assertEquals("Increments were lost while counts were written", 40000, IntStream.range(0, 10).mapToLong(usage::get).sum());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    store.close();
+    db.clear();
+    db.close();
+  }
+}
@@ -0,0 +1,44 @@
+package org.telegram.abilitybots.api.db;
+
+import java.util.Map;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
+import static org.telegram.abilitybots.api.db.MapDBContext.onlineInstance;
+
+/**
+ * Writes and commits to a DB from several threads, acknowledging every committed key on the standard output, then halts the JVM
+ * without closing the DB.
+ * <p>
+ * Usage: <code>CrashingWriter [file] [durability] [threads] [crash after in milliseconds]</code>
+ */
+public final class CrashingWriter {
+  static final String CRASH = "CRASH";
+  static final int KEYS_PER_THREAD = 1_000_000;
+
+  private CrashingWriter() {
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    DBContext db = onlineInstance(args[0], Durability.valueOf(args[1]));
+    int threads = parseInt(args[2]);
+    Map<Integer, Integer> map = db.getMap(CRASH, Integer.class, Integer.class);
+
+    for (int t = 0; t < threads; t++) {
+      int first = t * KEYS_PER_THREAD;
+      Thread writer = new Thread(() -> {
+        for (int key = first; key < first + KEYS_PER_THREAD; key++) {
+          map.put(key, key);
+          db.commit();
+          System.out.println(key);
+        }
+      });
+      writer.setDaemon(true);
+      writer.start();
+    }
+
+    Thread.sleep(parseLong(args[3]));
+    System.out.flush();
+    Runtime.getRuntime().halt(1);
+  }
+}
@@ -0,0 +1,93 @@
+package org.telegram.abilitybots.api.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.telegram.abilitybots.api.db.MapDBContext.offlineInstance;
+
+/**
+ * Tests the default methods of {@link DBContext} on a DB that does not implement them.
+ */
+public class DBContextDefaultsTest {
+
+  private static final String TEST = "TEST";
+  private DBContext db;
+
+  @Before
+  public void setUp() {
+    db = new LegacyDBContext(offlineInstance("db"));
+  }
+
+  @Test
+  public void canExpireEntriesAfterWrite() throws InterruptedException {
+    Map<Integer, String> states = db.getExpiringMap(TEST, Integer.class, String.class,
+        Expiration.builder().afterWrite(50).evictionInterval(10).build());
+    states.put(1, TEST);
+    assertEquals("Entry expired before its time", TEST, states.get(1));
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!states.isEmpty() && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+
+    assertTrue("Expired entry was not evicted", states.isEmpty());
+    assertTrue("Expired entry was left in the DB", db.getMap(TEST).isEmpty());
+  }
+
+  @Test
+  public void canCapExpiringMap() {
+    Map<Integer, Integer> recent = db.getExpiringMap(TEST, Integer.class, Integer.class, Expiration.builder().maxSize(100).build());
+    for (int i = 0; i < 300; i++)
+      recent.put(i, i);
+
+    assertEquals("Capped map holds too many entries", 100, recent.size());
+    assertTrue("Latest entry was evicted", recent.containsKey(299));
+  }
+
+  @Test
+  public void canScanRangesOfSortedMap() {
+    NavigableMap<Integer, String> scores = db.getSortedMap(TEST, Integer.class, String.class);
+    List<Integer> shuffled = IntStream.range(0, 100).boxed().collect(toList());
+    Collections.shuffle(shuffled, new Random(0));
+    shuffled.forEach(score -> scores.put(score, "user" + score));
+
+    assertEquals("Range is different", newArrayList(10, 11, 12), newArrayList(scores.subMap(10, true, 12, true).keySet()));
+    assertEquals("Top entries are different", newArrayList(99, 98, 97),
+        SortedMaps.top(scores, 3).stream().map(Map.Entry::getKey).collect(toList()));
+    assertEquals("Sorted map was not iterated in order", IntStream.range(0, 100).boxed().collect(toList()), newArrayList(scores.keySet()));
+    assertEquals("Sorted map was not written to the DB", "user42", db.getMap(TEST).get(42));
+  }
+
+  @Test
+  public void canIncrementCountersConcurrently() throws InterruptedException {
+    Counter counter = db.getCounter(TEST);
+    List<Thread> threads = IntStream.range(0, 4)
+        .mapToObj(i -> new Thread(() -> IntStream.range(0, 1000).forEach(j -> counter.increment())))
+        .collect(toList());
+
+    threads.forEach(Thread::start);
+    for (Thread thread : threads)
+      thread.join();
+
+    assertEquals("Concurrent increments were lost", 4000, counter.get());
+    assertEquals("Counter was not written to the DB", 4000L, db.getMap(Counter.COUNTERS).get(TEST));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    db.clear();
+    db.close();
+  }
+}
@@ -0,0 +1,527 @@
+package org.telegram.abilitybots.api.db;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.telegram.abilitybots.api.objects.EndUser;
+import org.telegram.abilitybots.api.util.Metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.telegram.abilitybots.api.bot.AbilityBot.BLACKLIST;
+import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
+import static org.telegram.abilitybots.api.bot.AbilityBot.USER_ID;
+import static org.telegram.abilitybots.api.bot.AbilityBotTest.CREATOR;
+import static org.telegram.abilitybots.api.bot.AbilityBotTest.MUSER;
+
+/**
+ * Tests the behavior that every {@link DBContext} implementation must share.
+ */
+@RunWith(Parameterized.class)
+public class DBContextTest {
+
+  private static final String TEST = "TEST";
+  private final Supplier<DBContext> factory;
+  private DBContext db;
+
+  public DBContextTest(String implementation, Supplier<DBContext> factory) {
+    this.factory = factory;
+  }
+
+  @Parameters(name = "{0}")
+  public static Collection<Object[]> implementations() {
+    return asList(new Object[][]{
+        {"MapDB", (Supplier<DBContext>) () -> MapDBContext.offlineInstance("db")},
+        {"InMemory", (Supplier<DBContext>) InMemoryDBContext::offlineInstance},
+        {"Caching", (Supplier<DBContext>) () -> new CachingDBContext(MapDBContext.offlineInstance("db"), 100, 10, new Metrics())},
+        {"ChangeLog", (Supplier<DBContext>) () -> new ChangeLogDBContext(MapDBContext.offlineInstance("db"))}
+    });
+  }
+
+  @Before
+  public void setUp() {
+    db = factory.get();
+  }
+
+  @Test
+  public void canRecoverDB() throws IOException {
+    Map<Integer, EndUser> users = db.getMap(USERS);
+    Map<String, Integer> userIds = db.getMap(USER_ID);
+    users.put(CREATOR.id(), CREATOR);
+    users.put(MUSER.id(), MUSER);
+    userIds.put(CREATOR.username(), CREATOR.id());
+    userIds.put(MUSER.username(), MUSER.id());
+
+    db.getSet("AYRE").add(123123);
+    Map<Integer, EndUser> originalUsers = newHashMap(users);
+    String beforeBackupInfo = db.info(USERS);
+
+    Object jsonBackup = db.backup();
+    db.clear();
+    boolean recovered = db.recover(jsonBackup);
+
+    Map<Integer, EndUser> recoveredUsers = db.getMap(USERS);
+    String afterRecoveryInfo = db.info(USERS);
+
+    assertTrue("Could not recover database successfully", recovered);
+    assertEquals("Map info before and after recovery is different", beforeBackupInfo, afterRecoveryInfo);
+    assertEquals("Map before and after recovery are not equal", originalUsers, recoveredUsers);
+  }
+
+  @Test
+  public void dropsStructuresOrLeavesThemUntouched() {
+    db.getSet(TEST, String.class).add(TEST);
+    db.getMap(USERS, Integer.class, EndUser.class).put(CREATOR.id(), CREATOR);
+    db.commit();
+
+    if (!db.drop(TEST)) {
+      assertEquals("Structure that could not be dropped was modified", newHashSet(TEST), db.getSet(TEST));
+      return;
+    }
+
+    assertFalse("Dropped structure is still in the DB", db.contains(TEST));
+    Set<String> reopened = db.getSet(TEST, String.class);
+    assertTrue("Reopened structure kept the data of the dropped one", reopened.isEmpty());
+    reopened.add(format("%s-%s", TEST, TEST));
+    db.commit();
+
+    Object backup = db.backup();
+    db.clear();
+    assertTrue("Could not recover database successfully", db.recover(backup));
+    assertEquals("Reopened structure is not backed up", newHashSet(format("%s-%s", TEST, TEST)), db.getSet(TEST));
+    assertEquals("Other structures were dropped", CREATOR, db.getMap(USERS).get(CREATOR.id()));
+  }
+
+  @Test
+  public void canFallbackDBIfRecoveryFails() throws IOException {
+    Set<EndUser> users = db.getSet(USERS);
+    users.add(CREATOR);
+    users.add(MUSER);
+
+    Set<EndUser> originalSet = newHashSet(users);
+    Object jsonBackup = db.backup();
+    String corruptBackup = "!@#$" + String.valueOf(jsonBackup);
+    boolean recovered = db.recover(corruptBackup);
+
+    Set<EndUser> recoveredSet = db.getSet(USERS);
+
+    assertEquals("Recovery was successful from a CORRUPT backup", false, recovered);
+    assertEquals("Set before and after corrupt recovery are not equal", originalSet, recoveredSet);
+  }
+
+  @Test
+  public void canFallbackDBIfBackupStreamIsTruncated() throws IOException {
+    Set<String> set = db.getSet(TEST);
+    set.add(TEST);
+    db.getList(TEST + 1).add(TEST);
+
+    String jsonBackup = String.valueOf(db.backup());
+    InputStream truncated = new ByteArrayInputStream(jsonBackup.substring(0, jsonBackup.length() - 10).getBytes(UTF_8));
+    boolean recovered = db.recover(truncated);
+
+    assertEquals("Recovery was successful from a TRUNCATED backup", false, recovered);
+    assertEquals("Set before and after truncated recovery are not equal", newHashSet(TEST), db.getSet(TEST));
+  }
+
+  @Test
+  public void canRecoverDBFromStreamedBackup() throws IOException {
+    db.getMap(USERS, Integer.class, EndUser.class).put(CREATOR.id(), CREATOR);
+    db.getSet(TEST).add(TEST);
+    db.getList(TEST + 1).add(MUSER);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    db.backup(out);
+    db.clear();
+    boolean recovered = db.recover(new ByteArrayInputStream(out.toByteArray()));
+
+    assertTrue("Could not recover database from the streamed backup", recovered);
+    assertEquals("Map after recovery is different", CREATOR, db.getMap(USERS).get(CREATOR.id()));
+    assertEquals("Set after recovery is different", newHashSet(TEST), db.getSet(TEST));
+    assertEquals("List after recovery is different", singletonList(MUSER), db.getList(TEST + 1));
+    assertEquals("Streamed backup is different from the backup",
+        new ObjectMapper().readTree(String.valueOf(db.backup())), new ObjectMapper().readTree(out.toByteArray()));
+  }
+
+  @Test
+  public void canRecoverDBFromBinaryBackup() throws IOException {
+    db.getMap(USERS, Integer.class, EndUser.class).put(CREATOR.id(), CREATOR);
+    db.<Long, String>getMap(TEST).put(1L, TEST);
+    db.getSet(TEST + 1).add(MUSER);
+    db.getList(TEST + 2).add(1.5);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    db.backup(out, BackupFormat.BINARY);
+    db.clear();
+    boolean recovered = db.recover(new ByteArrayInputStream(out.toByteArray()));
+
+    assertTrue("Could not recover database from the binary backup", recovered);
+    assertEquals("Typed map after recovery is different", CREATOR, db.getMap(USERS).get(CREATOR.id()));
+    assertEquals("Untyped map keys lost their type", TEST, db.getMap(TEST).get(1L));
+    assertEquals("Set after recovery is different", newHashSet(MUSER), db.getSet(TEST + 1));
+    assertEquals("List after recovery is different", singletonList(1.5), db.getList(TEST + 2));
+  }
+
+  @Test
+  public void canFallbackDBIfBinaryBackupIsTruncated() throws IOException {
+    Map<Integer, EndUser> users = db.getMap(USERS, Integer.class, EndUser.class);
+    for (int i = 0; i < 2000; i++)
+      users.put(i, EndUser.endUser(i, TEST + i, null, null));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    db.backup(out, BackupFormat.BINARY);
+    byte[] backup = out.toByteArray();
+    users.remove(0);
+    boolean recovered = db.recover(new ByteArrayInputStream(backup, 0, backup.length - 10));
+
+    assertEquals("Recovery was successful from a TRUNCATED binary backup", false, recovered);
+    assertEquals("Map before and after truncated recovery are not equal", 1999, db.getMap(USERS).size());
+  }
+
+  @Test
+  public void binaryBackupIsSmallerThanJson() throws IOException {
+    Map<Integer, EndUser> users = db.getMap(USERS, Integer.class, EndUser.class);
+    for (int i = 0; i < 1000; i++)
+      users.put(i, EndUser.endUser(i, TEST + i, TEST, TEST + i));
+
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    db.backup(json);
+    db.backup(binary, BackupFormat.BINARY);
+
+    assertTrue(format("Binary backup of %d bytes is not smaller than JSON backup of %d bytes", binary.size(), json.size()),
+        binary.size() * 4 < json.size());
+  }
+
+  @Test
+  public void backupIsConsistentWhileDBIsUpdated() throws IOException {
+    Map<Integer, String> map = db.getMap(TEST, Integer.class, String.class);
+    Set<Integer> set = db.getSet(TEST + 1, Integer.class);
+    List<Integer> list = db.getList(TEST + 2, Integer.class);
+    for (int i = 0; i < 5000; i++) {
+      map.put(i, TEST + i);
+      set.add(i);
+    }
+    list.addAll(asList(1, 2, 3));
+    Map<Integer, String> originalMap = newHashMap(map);
+    Set<Integer> originalSet = newHashSet(set);
+    List<Integer> originalList = newArrayList(list);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream() {
+      private boolean updated;
+
+      @Override
+      public synchronized void write(byte[] bytes, int offset, int length) {
+        // Updates the whole DB once the backup started to be written
+        if (!updated) {
+          updated = true;
+          for (int i = 0; i < 5000; i++) {
+            map.put(i, TEST);
+            map.remove(i + 1);
+            map.put(i + 5000, TEST);
+            set.remove(i);
+            set.add(i + 5000);
+          }
+          list.clear();
+          list.add(-1);
+        }
+        super.write(bytes, offset, length);
+      }
+    };
+    db.backup(out);
+    db.recover(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals("Map backed up while updated is different", originalMap, newHashMap(db.getMap(TEST)));
+    assertEquals("Set backed up while updated is different", originalSet, newHashSet(db.getSet(TEST + 1)));
+    assertEquals("List backed up while updated is different", originalList, newArrayList(db.getList(TEST + 2)));
+  }
+
+  @Test
+  public void canGetSummary() throws IOException {
+    String anotherTest = TEST + 1;
+    db.getSet(TEST).add(TEST);
+    db.getSet(anotherTest).add(anotherTest);
+
+    String actualSummary = db.summary();
+    // Name - Type - Number of "rows"
+    String expectedSummary = format("%s - Set - 1\n%s - Set - 1", TEST, anotherTest);
+
+    assertEquals("Actual DB summary does not match that of the expected", expectedSummary, actualSummary);
+  }
+
+  @Test
+  public void canGetInfo() throws IOException {
+    db.getSet(TEST).add(TEST);
+
+    String actualInfo = db.info(TEST);
+    // JSON
+    String expectedInfo = "TEST - Set - 1";
+
+    assertEquals("Actual DB structure info does not match that of the expected", expectedInfo, actualInfo);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void cantGetInfoFromNonexistentDBStructureName() throws IOException {
+    db.info(TEST);
+  }
+
+  @Test
+  public void canCacheOpenedStructures() {
+    Set<String> set = db.getSet(TEST);
+    set.add(TEST);
+
+    assertSame("Opened structure was not cached", set, db.getSet(TEST));
+    assertSame("Typed structure was not cached", db.getMap(USERS, Integer.class, EndUser.class), db.getMap(USERS));
+
+    Object backup = db.backup();
+    db.clear();
+    assertTrue("Could not recover database successfully", db.recover(backup));
+    assertEquals("Set after recovery is different", newHashSet(TEST), db.getSet(TEST));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void cantOpenStructureWithDifferentTypes() {
+    db.getMap(TEST, Integer.class, EndUser.class);
+    db.getMap(TEST, String.class, EndUser.class);
+  }
+
+  @Test
+  public void canRunTransaction() {
+    int added = db.inTransaction(tx -> {
+      tx.getMap(USERS, Integer.class, EndUser.class).put(CREATOR.id(), CREATOR);
+      tx.getMap(USER_ID, String.class, Integer.class).put(CREATOR.username(), CREATOR.id());
+      return tx.getMap(USERS).size();
+    });
+
+    assertEquals("Transaction result is different", 1, added);
+    assertEquals("User was not added by the transaction", CREATOR, db.getMap(USERS).get(CREATOR.id()));
+    assertEquals("User ID was not added by the transaction", CREATOR.id(), db.getMap(USER_ID).get(CREATOR.username()));
+  }
+
+  @Test
+  public void canRollbackFailedTransaction() {
+    Map<Integer, EndUser> users = db.getMap(USERS, Integer.class, EndUser.class);
+    users.put(MUSER.id(), MUSER);
+    db.getList(TEST).add(TEST);
+
+    try {
+      db.inTransaction(tx -> {
+        Map<Integer, EndUser> txUsers = tx.getMap(USERS, Integer.class, EndUser.class);
+        txUsers.put(CREATOR.id(), CREATOR);
+        txUsers.remove(MUSER.id());
+        tx.getSet(BLACKLIST, Integer.class).add(MUSER.id());
+        tx.getList(TEST).clear();
+        throw new IllegalStateException(TEST);
+      });
+    } catch (IllegalStateException e) {
+      assertEquals("Transaction failure was not rethrown", TEST, e.getMessage());
+    }
+
+    assertEquals("Map writes were not rolled back", newHashSet(MUSER.id()), users.keySet());
+    assertEquals("Map removal was not rolled back", MUSER, users.get(MUSER.id()));
+    assertTrue("Set writes were not rolled back", db.getSet(BLACKLIST).isEmpty());
+    assertEquals("List writes were not rolled back", singletonList(TEST), db.getList(TEST));
+  }
+
+  @Test
+  public void canIsolateTransactions() throws InterruptedException {
+    Map<String, Integer> counts = db.getMap(TEST, String.class, Integer.class);
+    counts.put(TEST, 0);
+    counts.put(USERS, 0);
+
+    Runnable increments = () -> {
+      for (int i = 0; i < 200; i++)
+        db.inTransaction(tx -> {
+          Map<String, Integer> txCounts = tx.getMap(TEST, String.class, Integer.class);
+          txCounts.put(TEST, txCounts.get(TEST) + 1);
+          return txCounts.put(USERS, txCounts.get(USERS) + 1);
+        });
+    };
+    Thread first = new Thread(increments);
+    Thread second = new Thread(increments);
+    first.start();
+    second.start();
+    first.join();
+    second.join();
+
+    assertEquals("Transactions interleaved", Integer.valueOf(400), counts.get(TEST));
+    assertEquals("Transactions interleaved", Integer.valueOf(400), counts.get(USERS));
+  }
+
+  @Test
+  public void canExpireEntriesAfterWrite() throws InterruptedException {
+    Map<Integer, String> states = db.getExpiringMap(TEST, Integer.class, String.class,
+        Expiration.builder().afterWrite(50).evictionInterval(10).build());
+    states.put(CREATOR.id(), TEST);
+
+    awaitEviction(states, 0);
+
+    assertTrue("Expired entry was not evicted", states.isEmpty());
+  }
+
+  @Test
+  public void canKeepAccessedEntriesFromExpiring() throws InterruptedException {
+    Map<Integer, String> states = db.getExpiringMap(TEST, Integer.class, String.class,
+        Expiration.builder().afterAccess(500).evictionInterval(10).build());
+    states.put(CREATOR.id(), TEST);
+    for (int i = 0; i < 10; i++) {
+      Thread.sleep(100);
+      assertEquals("Accessed entry expired", TEST, states.get(CREATOR.id()));
+    }
+
+    awaitEviction(states, 0);
+
+    assertTrue("Expired entry was not evicted", states.isEmpty());
+  }
+
+  @Test
+  public void canCapExpiringMap() throws InterruptedException {
+    Map<Integer, Integer> recent = db.getExpiringMap(TEST, Integer.class, Integer.class,
+        Expiration.builder().maxSize(1000).evictionInterval(10).build());
+    for (int i = 0; i < 3000; i++)
+      recent.put(i, i);
+
+    awaitEviction(recent, 1000);
+
+    assertTrue("Capped map holds too many entries", recent.size() <= 1000);
+    assertTrue("Latest entry was evicted", recent.containsKey(2999));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void cannotReopenExpiringMapWithAnotherExpiration() {
+    db.getExpiringMap(TEST, Integer.class, String.class, Expiration.builder().afterWrite(1000).build());
+    db.getExpiringMap(TEST, Integer.class, String.class, Expiration.builder().afterWrite(2000).build());
+  }
+
+  @Test
+  public void canScanRangesOfSortedMap() {
+    NavigableMap<Integer, String> scores = db.getSortedMap(TEST, Integer.class, String.class);
+    List<Integer> shuffled = IntStream.range(0, 100).boxed().collect(toList());
+    Collections.shuffle(shuffled, new Random(0));
+    shuffled.forEach(score -> scores.put(score, "user" + score));
+
+    assertEquals("Range is different", newArrayList(10, 11, 12), newArrayList(scores.subMap(10, true, 12, true).keySet()));
+    assertEquals("Top entries are different", newArrayList(99, 98, 97),
+        SortedMaps.top(scores, 3).stream().map(Map.Entry::getKey).collect(toList()));
+    assertEquals("Bottom entries are different", newArrayList(0, 1),
+        SortedMaps.bottom(scores, 2).stream().map(Map.Entry::getKey).collect(toList()));
+    assertEquals("Sorted map was not iterated in order", IntStream.range(0, 100).boxed().collect(toList()), newArrayList(scores.keySet()));
+  }
+
+  @Test
+  public void canScanPrefixOfSortedMap() {
+    NavigableMap<String, Integer> log = db.getSortedMap(TEST, String.class, Integer.class);
+    asList("2017-05-01", "2017-05-31", "2017-06-01", "2017-06-15", "2017-07-01").forEach(day -> log.put(day, 1));
+
+    assertEquals("Prefix is different", newArrayList("2017-06-01", "2017-06-15"), newArrayList(SortedMaps.withPrefix(log, "2017-06").keySet()));
+  }
+
+  @Test
+  public void canRecoverSortedMap() throws IOException {
+    NavigableMap<Integer, String> scores = db.getSortedMap(TEST, Integer.class, String.class);
+    scores.put(2, TEST);
+    scores.put(1, TEST);
+    ByteArrayOutputStream backup = new ByteArrayOutputStream();
+    db.backup(backup, BackupFormat.BINARY);
+
+    db.clear();
+    boolean recovered = db.recover(new ByteArrayInputStream(backup.toByteArray()));
+    NavigableMap<Integer, String> recoveredScores = db.getSortedMap(TEST, Integer.class, String.class);
+
+    assertTrue("Could not recover sorted map", recovered);
+    assertEquals("Recovered sorted map is different", Integer.valueOf(1), recoveredScores.firstKey());
+    assertEquals("Recovered sorted map is different", 2, recoveredScores.size());
+  }
+
+  @Test
+  public void canRollbackSortedMap() {
+    NavigableMap<Integer, String> scores = db.getSortedMap(TEST, Integer.class, String.class);
+    scores.put(1, TEST);
+    try {
+      db.inTransaction(tx -> {
+        NavigableMap<Integer, String> txScores = tx.getSortedMap(TEST, Integer.class, String.class);
+        txScores.put(2, TEST);
+        txScores.pollFirstEntry();
+        throw new IllegalStateException(TEST);
+      });
+    } catch (IllegalStateException e) {
+      // Rolled back
+    }
+
+    assertEquals("Sorted map was not rolled back", newArrayList(1), newArrayList(scores.navigableKeySet()));
+  }
+
+  @Test
+  public void canIncrementCountersConcurrently() throws InterruptedException {
+    Counter counter = db.getCounter(TEST);
+    Set<Long> returned = Collections.synchronizedSet(newHashSet());
+    List<Thread> threads = IntStream.range(0, 4)
+        .mapToObj(i -> new Thread(() -> IntStream.range(0, 1000).forEach(j -> returned.add(counter.increment()))))
+        .collect(toList());
+
+    threads.forEach(Thread::start);
+    for (Thread thread : threads)
+      thread.join();
+
+    assertEquals("Concurrent increments were lost", 4000, counter.get());
+    assertEquals("Increments returned the same count twice", 4000, returned.size());
+    assertEquals("Counter does not share its count with the same name", 4000, db.getCounter(TEST).get());
+  }
+
+  @Test
+  public void canRecoverCounters() throws IOException {
+    CounterMap<Integer> usage = db.getCounterMap(TEST, Integer.class);
+    usage.increment(CREATOR.id());
+    usage.add(MUSER.id(), 5);
+    db.getCounter(USERS).add(2);
+
+    Object backup = db.backup();
+    db.clear();
+    assertEquals("Counter was not reset by the clear", 0, usage.get(CREATOR.id()));
+    boolean recovered = db.recover(backup);
+
+    assertTrue("Could not recover counters", recovered);
+    assertEquals("Counter map is different after recovery", newHashMap(ImmutableMap.of(CREATOR.id(), 1L, MUSER.id(), 5L)), usage.asMap());
+    assertEquals("Counter is different after recovery", 2, db.getCounter(USERS).get());
+  }
+
+  private static void awaitEviction(Map<?, ?> map, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (map.size() > size && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    db.clear();
+    db.close();
+  }
+}
@@ -0,0 +1,61 @@
+package org.telegram.abilitybots.api.db;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
+import static org.telegram.abilitybots.api.db.MapDBContext.onlineInstance;
+
+/**
+ * Counts the commits that writer threads complete on a file DB in a fixed time, for every {@link Durability} mode.
+ * <p>
+ * Usage: <code>gradle benchmark -Pbench=DurabilityBenchmark [-Pargs="threads millis"]</code>
+ */
+public final class DurabilityBenchmark {
+  private static final String WRITES = "WRITES";
+
+  private DurabilityBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? parseInt(args[0]) : 4;
+    long millis = args.length > 1 ? parseLong(args[1]) : 1000;
+
+    for (Durability durability : Durability.values()) {
+      Path dir = Files.createTempDirectory("durability");
+      DBContext db = onlineInstance(dir.resolve("db").toString(), durability);
+      Map<Integer, Integer> writes = db.getMap(WRITES, Integer.class, Integer.class);
+
+      AtomicBoolean running = new AtomicBoolean(true);
+      AtomicLong commits = new AtomicLong();
+      CountDownLatch done = new CountDownLatch(threads);
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        new Thread(() -> {
+          for (int i = 0; running.get(); i++) {
+            writes.put(thread * 100_000_000 + i, i);
+            db.commit();
+            commits.incrementAndGet();
+          }
+          done.countDown();
+        }).start();
+      }
+
+      Thread.sleep(millis);
+      running.set(false);
+      long committed = commits.get();
+      done.await();
+      db.close();
+
+      System.out.printf("%s: %,d commits in %d ms with %d threads%n", durability, committed, millis, threads);
+      dir.resolve("db").toFile().delete();
+      dir.resolve("db.wal.0").toFile().delete();
+      dir.toFile().delete();
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package org.telegram.abilitybots.api.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.telegram.abilitybots.api.db.CrashingWriter.CRASH;
+import static org.telegram.abilitybots.api.db.CrashingWriter.KEYS_PER_THREAD;
+import static org.telegram.abilitybots.api.db.MapDBContext.onlineInstance;
+
+/**
+ * Crashes a JVM while it commits and checks what survives, for every {@link Durability} mode.
+ */
+@RunWith(Parameterized.class)
+public class DurabilityTest {
+  private static final int THREADS = 4;
+  private static final long CRASH_AFTER = 1000;
+
+  private final Durability durability;
+  private Path dir;
+
+  public DurabilityTest(Durability durability) {
+    this.durability = durability;
+  }
+
+  @Parameters(name = "{0}")
+  public static Collection<Object[]> modes() {
+    return Arrays.stream(Durability.values()).map(mode -> new Object[]{mode}).collect(toList());
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("durability");
+  }
+
+  @Test
+  public void survivesCrash() throws IOException, InterruptedException {
+    String file = dir.resolve("db").toString();
+    Set<Integer> acknowledged = crash(file);
+
+    DBContext db = onlineInstance(file);
+    Map<Integer, Integer> map = db.getMap(CRASH, Integer.class, Integer.class);
+    Set<Integer> recovered = new HashSet<>(map.keySet());
+    db.close();
+
+    assertTrue("No commit was acknowledged before the crash", !acknowledged.isEmpty());
+    if (durability != Durability.ASYNC)
+      assertTrue("Acknowledged commits were lost in the crash", recovered.containsAll(acknowledged));
+
+    // Every thread commits its keys in order, a commit cannot survive without the ones before it
+    for (int t = 0; t < THREADS; t++) {
+      int first = t * KEYS_PER_THREAD;
+      long survived = recovered.stream().filter(key -> key >= first && key < first + KEYS_PER_THREAD).count();
+      for (int key = first; key < first + survived; key++)
+        assertTrue("Commits did not survive in order", recovered.contains(key));
+    }
+  }
+
+  private Set<Integer> crash(String file) throws IOException, InterruptedException {
+    String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+    Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), CrashingWriter.class.getName(),
+        file, durability.name(), String.valueOf(THREADS), String.valueOf(CRASH_AFTER))
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+
+    Set<Integer> acknowledged = new HashSet<>();
+    try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8))) {
+      String line;
+      while ((line = out.readLine()) != null)
+        acknowledged.add(Integer.valueOf(line.trim()));
+    }
+
+    assertTrue("Writer did not crash in time", process.waitFor(30, SECONDS));
+    assertEquals("Writer did not crash", 1, process.exitValue());
+    return acknowledged;
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (File file : dir.toFile().listFiles())
+      file.delete();
+    Files.delete(dir);
+  }
+}
@@ -0,0 +1,79 @@
+package org.telegram.abilitybots.api.db;
+
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.telegram.abilitybots.api.objects.EndUser;
+
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.Integer.parseInt;
+import static org.telegram.abilitybots.api.bot.AbilityBot.ADMINS;
+import static org.telegram.abilitybots.api.bot.AbilityBot.BLACKLIST;
+import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
+import static org.telegram.abilitybots.api.bot.AbilityBot.USER_ID;
+import static org.telegram.abilitybots.api.objects.EndUser.endUser;
+
+/**
+ * Measures the lookups of <code>users()</code>, <code>userIds()</code>, <code>blacklist()</code> and <code>admins()</code> that the bot
+ * makes on every update, through the handles cached by {@link MapDBContext} and through MapDB's <code>createOrOpen()</code>, which every
+ * lookup went through before the handles were cached.
+ * <p>
+ * Usage: <code>gradle benchmark -Pbench=HandleCacheBenchmark [-Pargs="rounds updates"]</code>
+ */
+public final class HandleCacheBenchmark {
+  private static final int WARMUP_ROUNDS = 3;
+  // Keeps the lookups from being optimized away
+  private static long sink;
+
+  private HandleCacheBenchmark() {
+  }
+
+  @SuppressWarnings("unchecked")
+  public static void main(String[] args) throws Exception {
+    int rounds = args.length > 0 ? parseInt(args[0]) : 8;
+    int updates = args.length > 1 ? parseInt(args[1]) : 200_000;
+
+    DBContext db = MapDBContext.offlineInstance("benchmark");
+    db.getMap(USERS, Integer.class, EndUser.class).put(1, endUser(1, "first", "last", "username"));
+    db.getMap(USER_ID, String.class, Integer.class).put("username", 1);
+    db.getSet(BLACKLIST, Integer.class).add(2);
+    db.getSet(ADMINS, Integer.class).add(1);
+
+    DB mapDB = DBMaker.memoryDB().make();
+    ((Map<Integer, EndUser>) mapDB.hashMap(USERS).createOrOpen()).put(1, endUser(1, "first", "last", "username"));
+    ((Map<String, Integer>) mapDB.hashMap(USER_ID).createOrOpen()).put("username", 1);
+    ((Set<Integer>) mapDB.hashSet(BLACKLIST).createOrOpen()).add(2);
+    ((Set<Integer>) mapDB.hashSet(ADMINS).createOrOpen()).add(1);
+
+    for (int round = 0; round < rounds; round++) {
+      long uncached = time(updates, () -> {
+        sink += System.identityHashCode(mapDB.hashMap(USERS).createOrOpen());
+        sink += System.identityHashCode(mapDB.hashMap(USER_ID).createOrOpen());
+        sink += System.identityHashCode(mapDB.hashSet(BLACKLIST).createOrOpen());
+        sink += System.identityHashCode(mapDB.hashSet(ADMINS).createOrOpen());
+      });
+      long cached = time(updates, () -> {
+        sink += System.identityHashCode(db.getMap(USERS, Integer.class, EndUser.class));
+        sink += System.identityHashCode(db.getMap(USER_ID, String.class, Integer.class));
+        sink += System.identityHashCode(db.getSet(BLACKLIST, Integer.class));
+        sink += System.identityHashCode(db.getSet(ADMINS, Integer.class));
+      });
+
+      if (round >= WARMUP_ROUNDS)
+        System.out.printf("round %d: createOrOpen %,.1f ns per update, cached handles %,.1f ns per update%n",
+            round, (double) uncached / updates, (double) cached / updates);
+    }
+
+    System.out.println(sink == 0 ? "" : "done");
+    mapDB.close();
+    db.close();
+  }
+
+  private static long time(int updates, Runnable update) {
+    long start = System.nanoTime();
+    for (int i = 0; i < updates; i++)
+      update.run();
+    return System.nanoTime() - start;
+  }
+}
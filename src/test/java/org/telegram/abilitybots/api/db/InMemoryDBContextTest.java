@@ -0,0 +1,90 @@
+package org.telegram.abilitybots.api.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.abilitybots.api.objects.EndUser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
+import static org.telegram.abilitybots.api.bot.AbilityBotTest.CREATOR;
+import static org.telegram.abilitybots.api.db.InMemoryDBContext.offlineInstance;
+import static org.telegram.abilitybots.api.db.InMemoryDBContext.onlineInstance;
+
+public class InMemoryDBContextTest {
+
+  private static final String TEST = "TEST";
+  private static final long NEVER = 60_000;
+  private Path dir;
+  private String name;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("snapshots");
+    name = dir.resolve("db").toString();
+  }
+
+  @Test
+  public void canLoadSnapshotWrittenOnClose() throws IOException {
+    DBContext db = onlineInstance(name, NEVER);
+    db.getMap(USERS, Integer.class, EndUser.class).put(CREATOR.id(), CREATOR);
+    db.getMap(TEST, Long.class, Integer.class).put(1L, 1);
+    db.commit();
+    db.close();
+
+    DBContext reopened = onlineInstance(name, NEVER);
+    Map<Integer, EndUser> users = reopened.getMap(USERS, Integer.class, EndUser.class);
+    Map<Long, Integer> counts = reopened.getMap(TEST, Long.class, Integer.class);
+    reopened.close();
+
+    assertEquals("Users are different after reloading the snapshot", CREATOR, users.get(CREATOR.id()));
+    assertEquals("Typed keys are different after reloading the snapshot", Integer.valueOf(1), counts.get(1L));
+  }
+
+  @Test
+  public void canSnapshotPeriodically() throws IOException, InterruptedException {
+    DBContext db = onlineInstance(name, 10);
+    db.getSet(TEST).add(TEST);
+    db.commit();
+
+    File snapshot = new File(name + ".json");
+    for (int i = 0; i < 200 && !snapshot.exists(); i++)
+      Thread.sleep(10);
+    db.close();
+
+    DBContext copy = offlineInstance();
+    try (InputStream in = Files.newInputStream(snapshot.toPath())) {
+      assertTrue("Could not recover from the periodic snapshot", copy.recover(in));
+    }
+    assertTrue("Periodic snapshot does not contain the set", copy.getSet(TEST).contains(TEST));
+  }
+
+  @Test
+  public void canSetAsideCorruptSnapshot() throws IOException {
+    Files.write(dir.resolve("db.json"), "!@#$".getBytes(UTF_8));
+
+    DBContext db = onlineInstance(name, NEVER);
+    boolean loaded = db.contains(TEST);
+    db.close();
+
+    assertFalse("Corrupt snapshot was loaded", loaded);
+    assertTrue("Corrupt snapshot was not set aside", Files.exists(dir.resolve("db.json.corrupt")));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (File file : dir.toFile().listFiles())
+      file.delete();
+    Files.delete(dir);
+  }
+}
@@ -0,0 +1,73 @@
+package org.telegram.abilitybots.api.db;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A DB that only implements the methods of {@link DBContext} without a default, like the implementations written before them, on top of
+ * another DB.
+ */
+public class LegacyDBContext implements DBContext {
+  private final DBContext db;
+
+  public LegacyDBContext(DBContext db) {
+    this.db = db;
+  }
+
+  @Override
+  public <T> List<T> getList(String name) {
+    return db.getList(name);
+  }
+
+  @Override
+  public <K, V> Map<K, V> getMap(String name) {
+    return db.getMap(name);
+  }
+
+  @Override
+  public <T> Set<T> getSet(String name) {
+    return db.getSet(name);
+  }
+
+  @Override
+  public String summary() {
+    return db.summary();
+  }
+
+  @Override
+  public Object backup() {
+    return db.backup();
+  }
+
+  @Override
+  public boolean recover(Object backup) {
+    return db.recover(backup);
+  }
+
+  @Override
+  public String info(String name) {
+    return db.info(name);
+  }
+
+  @Override
+  public void commit() {
+    db.commit();
+  }
+
+  @Override
+  public void clear() {
+    db.clear();
+  }
+
+  @Override
+  public boolean contains(String name) {
+    return db.contains(name);
+  }
+
+  @Override
+  public void close() throws IOException {
+    db.close();
+  }
+}
@@ -1,28 +1,38 @@
 package org.telegram.abilitybots.api.db;
 
+import com.google.common.base.Strings;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mapdb.DBException;
+import org.mapdb.DBMaker;
 import org.telegram.abilitybots.api.objects.EndUser;
+import org.telegram.abilitybots.api.util.Metrics;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
 
-import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Sets.newHashSet;
-import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
-import static org.telegram.abilitybots.api.bot.AbilityBot.USER_ID;
 import static org.telegram.abilitybots.api.bot.AbilityBotTest.CREATOR;
 import static org.telegram.abilitybots.api.bot.AbilityBotTest.MUSER;
 import static org.telegram.abilitybots.api.db.MapDBContext.offlineInstance;
+import static org.telegram.abilitybots.api.db.MapDBContext.onlineInstance;
 
 public class MapDBContextTest {
 
   private static final String TEST = "TEST";
+  private static final String NEW = "NEW";
   private DBContext db;
 
   @Before
@@ -31,74 +41,197 @@ public class MapDBContextTest {
   }
 
   @Test
-  public void canRecoverDB() throws IOException {
-    Map<Integer, EndUser> users = db.getMap(USERS);
-    Map<String, Integer> userIds = db.getMap(USER_ID);
-    users.put(CREATOR.id(), CREATOR);
-    users.put(MUSER.id(), MUSER);
-    userIds.put(CREATOR.username(), CREATOR.id());
-    userIds.put(MUSER.username(), MUSER.id());
-
-    db.getSet("AYRE").add(123123);
-    Map<Integer, EndUser> originalUsers = newHashMap(users);
-    String beforeBackupInfo = db.info(USERS);
-
-    Object jsonBackup = db.backup();
-    db.clear();
-    boolean recovered = db.recover(jsonBackup);
-
-    Map<Integer, EndUser> recoveredUsers = db.getMap(USERS);
-    String afterRecoveryInfo = db.info(USERS);
+  public void canReopenTypedStructuresByName() throws IOException {
+    File dir = Files.createTempDirectory("typed").toFile();
+    String file = new File(dir, "db").getPath();
+    try {
+      DBContext typed = onlineInstance(file);
+      typed.getMap(USERS, Integer.class, EndUser.class).put(CREATOR.id(), CREATOR);
+      typed.getSet(TEST, Integer.class).add(CREATOR.id());
+      typed.commit();
+      typed.close();
+
+      DBContext reopened = onlineInstance(file);
+      Map<Integer, EndUser> users = reopened.getMap(USERS);
+      Set<Integer> set = reopened.getSet(TEST);
+      Object backup = reopened.backup();
+      reopened.clear();
+      boolean recovered = reopened.recover(backup);
+
+      assertTrue("Could not recover typed database successfully", recovered);
+      assertEquals("Typed map is different after reopening by name", CREATOR, users.get(CREATOR.id()));
+      assertEquals("Typed set is different after reopening by name", newHashSet(CREATOR.id()), set);
+      reopened.close();
+    } finally {
+      for (File f : dir.listFiles())
+        f.delete();
+      dir.delete();
+    }
+  }
 
-    assertTrue("Could not recover database successfully", recovered);
-    assertEquals("Map info before and after recovery is different", beforeBackupInfo, afterRecoveryInfo);
-    assertEquals("Map before and after recovery are not equal", originalUsers, recoveredUsers);
+  @Test
+  public void persistsStructuresReopenedAfterBeingDropped() throws IOException {
+    File dir = Files.createTempDirectory("dropped").toFile();
+    String file = new File(dir, "db").getPath();
+    try {
+      DBContext dropping = onlineInstance(file);
+      dropping.getSet(TEST, Integer.class).add(CREATOR.id());
+      dropping.commit();
+      assertTrue("Could not drop structure", dropping.drop(TEST));
+      dropping.getSet(TEST, Integer.class).add(MUSER.id());
+      dropping.commit();
+      dropping.close();
+
+      DBContext reopened = onlineInstance(file);
+      assertEquals("Structure reopened after being dropped was not persisted", newHashSet(MUSER.id()), reopened.getSet(TEST));
+      reopened.close();
+    } finally {
+      for (File f : dir.listFiles())
+        f.delete();
+      dir.delete();
+    }
   }
 
   @Test
-  public void canFallbackDBIfRecoveryFails() throws IOException {
-    Set<EndUser> users = db.getSet(USERS);
-    users.add(CREATOR);
-    users.add(MUSER);
+  public void canMigrateUntypedStructures() throws IOException {
+    db.<Integer, EndUser>getMap(USERS).put(CREATOR.id(), CREATOR);
+    db.getList(TEST).add(TEST);
+
+    DBContext typed = offlineInstance("typed");
+    try {
+      typed.getMap(USERS, Integer.class, EndUser.class);
+      ((MapDBContext) db).copyTo(typed);
+
+      assertEquals("Typed map is different after migration", CREATOR, typed.getMap(USERS).get(CREATOR.id()));
+      assertEquals("Untyped list is different after migration", newArrayList(TEST), typed.getList(TEST));
+    } finally {
+      typed.close();
+    }
+  }
 
-    Set<EndUser> originalSet = newHashSet(users);
-    Object jsonBackup = db.backup();
-    String corruptBackup = "!@#$" + String.valueOf(jsonBackup);
-    boolean recovered = db.recover(corruptBackup);
+  @Test
+  public void canRollbackFailedRecovery() throws IOException {
+    db.getSet(TEST).add(TEST);
+    String backup = backupWithNewStructure();
 
-    Set<EndUser> recoveredSet = db.getSet(USERS);
+    boolean recovered = db.recover(new ByteArrayInputStream(backup.substring(0, backup.length() - 10).getBytes(UTF_8)));
 
-    assertEquals("Recovery was successful from a CORRUPT backup", false, recovered);
-    assertEquals("Set before and after corrupt recovery are not equal", originalSet, recoveredSet);
+    assertFalse("Recovery was successful from a TRUNCATED backup", recovered);
+    assertEquals("Set is different after the rollback", newHashSet(TEST), db.getSet(TEST));
+    assertFalse("Structure created by the failed recovery was kept", db.contains(NEW));
+    db.getMap(NEW).put(TEST, TEST);
+    assertEquals("Structure created by the failed recovery cannot be reopened", TEST, db.getMap(NEW).get(TEST));
   }
 
   @Test
-  public void canGetSummary() throws IOException {
-    String anotherTest = TEST + 1;
-    db.getSet(TEST).add(TEST);
-    db.getSet(anotherTest).add(anotherTest);
+  public void canRestoreFailedRecoveryWithoutTransactions() throws IOException {
+    DBContext offHeap = MapDBContext.offHeapInstance(TEST, 4 << 20, new Metrics());
+    try {
+      offHeap.getSet(TEST).add(TEST);
+      String backup = backupWithNewStructure();
+
+      boolean recovered = offHeap.recover(new ByteArrayInputStream(backup.substring(0, backup.length() - 10).getBytes(UTF_8)));
+
+      assertFalse("Recovery was successful from a TRUNCATED backup", recovered);
+      assertEquals("Set is different after the restore", newHashSet(TEST), offHeap.getSet(TEST));
+    } finally {
+      offHeap.close();
+    }
+  }
 
-    String actualSummary = db.summary();
-    // Name - Type - Number of "rows"
-    String expectedSummary = format("%s - Set - 1\n%s - Set - 1", TEST, anotherTest);
+  @Test
+  public void canCapOffHeapMemory() throws IOException {
+    long maxSize = 4 << 20;
+    Metrics metrics = new Metrics();
+    DBContext offHeap = MapDBContext.offHeapInstance(TEST, maxSize, metrics);
+    Map<Integer, String> cache = offHeap.getMap(TEST, Integer.class, String.class);
+    String value = Strings.repeat("A", 1024);
+
+    int written = 0;
+    try {
+      for (; written < 10_000; written++)
+        cache.put(written, value);
+    } catch (DBException.VolumeMaxSizeExceeded e) {
+      // Expected once the cap is reached
+    }
+
+    long allocated = metrics.snapshot().get("db.TEST.offheap.allocated").longValue();
+    long used = metrics.snapshot().get("db.TEST.offheap.used").longValue();
+    offHeap.close();
+
+    assertTrue("Off-heap DB was not capped", written > 0 && written < 10_000);
+    assertTrue("Off-heap DB allocated more than its maximum size", allocated <= maxSize);
+    assertTrue("Off-heap usage was not reported", used > written * 1024L);
+  }
 
-    assertEquals("Actual DB summary does not match that of the expected", expectedSummary, actualSummary);
+  private static String backupWithNewStructure() throws IOException {
+    DBContext other = offlineInstance("other");
+    try {
+      other.getSet(TEST).add(NEW);
+      other.getMap(NEW).put(TEST, NEW);
+      return String.valueOf(other.backup());
+    } finally {
+      other.close();
+    }
   }
 
   @Test
-  public void canGetInfo() throws IOException {
-    db.getSet(TEST).add(TEST);
+  public void canCountEvictions() throws IOException, InterruptedException {
+    Metrics metrics = new Metrics();
+    DBContext expiring = new MapDBContext(DBMaker.memoryDB().transactionEnable().make(), Durability.SYNC, 0, metrics);
+    try {
+      Map<Integer, String> states = expiring.getExpiringMap(TEST, Integer.class, String.class,
+          Expiration.builder().afterWrite(50).evictionInterval(10).build());
+      states.put(1, TEST);
+      states.put(2, TEST);
+      states.remove(2);
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!states.isEmpty() && System.currentTimeMillis() < deadline)
+        Thread.sleep(10);
+
+      assertEquals("Evictions were not counted once each", 1, metrics.count("db.evictions." + TEST));
+    } finally {
+      expiring.close();
+    }
+  }
 
-    String actualInfo = db.info(TEST);
-    // JSON
-    String expectedInfo = "TEST - Set - 1";
+  @Test(expected = IllegalStateException.class)
+  public void cannotExpireMapCreatedWithoutExpiration() {
+    db.getMap(TEST, Integer.class, String.class).put(1, TEST);
 
-    assertEquals("Actual DB structure info does not match that of the expected", expectedInfo, actualInfo);
+    db.getExpiringMap(TEST, Integer.class, String.class, Expiration.builder().afterWrite(1000).build());
   }
 
   @Test(expected = IllegalStateException.class)
-  public void cantGetInfoFromNonexistentDBStructureName() throws IOException {
-    db.info(TEST);
+  public void cannotSortMapCreatedUnsorted() {
+    db.getMap(TEST, Integer.class, String.class).put(1, TEST);
+
+    db.getSortedMap(TEST, Integer.class, String.class);
+  }
+
+  @Test
+  public void canReopenSortedMapByName() throws IOException {
+    File dir = Files.createTempDirectory("sorted").toFile();
+    String file = new File(dir, "db").getPath();
+    try {
+      DBContext sorted = onlineInstance(file);
+      sorted.getSortedMap(TEST, Integer.class, String.class).put(2, TEST);
+      sorted.getSortedMap(TEST, Integer.class, String.class).put(1, NEW);
+      sorted.commit();
+      sorted.close();
+
+      DBContext reopened = onlineInstance(file);
+      Map<Integer, String> map = reopened.getMap(TEST);
+
+      assertTrue("Sorted map was reopened unsorted", map instanceof NavigableMap);
+      assertEquals("Sorted map is different after reopening by name", NEW, ((NavigableMap<Integer, String>) map).firstEntry().getValue());
+      reopened.close();
+    } finally {
+      for (File f : dir.listFiles())
+        f.delete();
+      dir.delete();
+    }
   }
 
   @After
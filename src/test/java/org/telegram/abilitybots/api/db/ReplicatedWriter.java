@@ -0,0 +1,39 @@
+package org.telegram.abilitybots.api.db;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.telegram.abilitybots.api.db.MapDBContext.onlineInstance;
+
+/**
+ * Leads the replication of a DB, printing the port of the leader on the standard output, and writes keys in order to it, committing them in
+ * batches, until the JVM is killed.
+ * <p>
+ * Usage: <code>ReplicatedWriter [file]</code>
+ */
+public final class ReplicatedWriter {
+  static final String REPLICATED = "REPLICATED";
+  static final int KEYS = 1_000_000;
+  static final int COMMIT_EVERY = 100;
+  static final byte[] SECRET = "replicated-writer-secret".getBytes(UTF_8);
+
+  private ReplicatedWriter() {
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    ChangeLogDBContext db = new ChangeLogDBContext(onlineInstance(args[0]));
+    ReplicationLeader leader = new ReplicationLeader(db, 0, SECRET);
+    System.out.println(leader.port());
+    System.out.flush();
+
+    Map<Integer, Integer> map = db.getMap(REPLICATED, Integer.class, Integer.class);
+    for (int key = 0; key < KEYS; key++) {
+      map.put(key, key);
+      if (key % COMMIT_EVERY == 0)
+        db.commit();
+    }
+
+    Thread.currentThread().join();
+  }
+}
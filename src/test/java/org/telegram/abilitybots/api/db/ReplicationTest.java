@@ -0,0 +1,236 @@
+package org.telegram.abilitybots.api.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.abilitybots.api.objects.EndUser;
+import org.telegram.abilitybots.api.util.Metrics;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.telegram.abilitybots.api.bot.AbilityBot.BLACKLIST;
+import static org.telegram.abilitybots.api.bot.AbilityBot.USERS;
+import static org.telegram.abilitybots.api.bot.AbilityBotTest.CREATOR;
+import static org.telegram.abilitybots.api.bot.AbilityBotTest.MUSER;
+import static org.telegram.abilitybots.api.db.MapDBContext.offlineInstance;
+import static org.telegram.abilitybots.api.db.ReplicatedWriter.REPLICATED;
+import static org.telegram.abilitybots.api.db.ReplicatedWriter.SECRET;
+
+public class ReplicationTest {
+  private static final String TEST = "TEST";
+  private static final long TIMEOUT = 10000;
+  private static final long REPLICATED_BEFORE_KILL = 1000;
+
+  private ChangeLogDBContext db;
+  private ChangeLogDBContext standby;
+  private Metrics metrics;
+  private ReplicationLeader leader;
+  private ReplicationFollower follower;
+
+  @Before
+  public void setUp() throws IOException {
+    db = new ChangeLogDBContext(offlineInstance("leader"));
+    standby = new ChangeLogDBContext(offlineInstance("standby"));
+    metrics = new Metrics();
+    leader = new ReplicationLeader(db, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), SECRET, false, metrics);
+  }
+
+  @Test
+  public void followerReceivesChangesAsTheyAreRecorded() throws InterruptedException {
+    follower = follow();
+    Map<Integer, EndUser> users = db.getMap(USERS, Integer.class, EndUser.class);
+    Set<Integer> blacklist = db.getSet(BLACKLIST, Integer.class);
+    List<String> list = db.getList(TEST);
+    users.put(CREATOR.id(), CREATOR);
+    users.put(MUSER.id(), MUSER);
+    blacklist.add(MUSER.id());
+    list.add(TEST);
+    users.remove(CREATOR.id());
+
+    awaitCatchUp();
+
+    assertEquals("Replicated map is different", newHashMap(users), newHashMap(standby.getMap(USERS, Integer.class, EndUser.class)));
+    assertEquals("Replicated set is different", newHashSet(blacklist), newHashSet(standby.getSet(BLACKLIST, Integer.class)));
+    assertEquals("Replicated list is different", newArrayList(list), newArrayList(standby.getList(TEST)));
+    assertEquals("Shipped changes were not counted", db.sequence(), metrics.count(ReplicationLeader.SHIPPED));
+    assertEquals("Applied changes were not counted", db.sequence(), metrics.count(ReplicationFollower.APPLIED));
+  }
+
+  @Test
+  public void followerStartsFromSnapshotWhenChangesWereDroppedFromLog() throws IOException, InterruptedException {
+    Map<Integer, EndUser> users = db.getMap(USERS, Integer.class, EndUser.class);
+    users.put(CREATOR.id(), CREATOR);
+    db.backup(new ByteArrayOutputStream(), BackupFormat.BINARY);
+    users.put(MUSER.id(), MUSER);
+
+    follower = follow();
+    db.getSet(BLACKLIST, Integer.class).add(CREATOR.id());
+    awaitCatchUp();
+
+    assertEquals("Snapshot was not recovered", newHashMap(users), newHashMap(standby.getMap(USERS, Integer.class, EndUser.class)));
+    assertEquals("Changes after the snapshot were not replicated", newHashSet(CREATOR.id()), newHashSet(standby.getSet(BLACKLIST, Integer.class)));
+  }
+
+  @Test
+  public void rolledBackTransactionsAreNotReplicated() throws InterruptedException {
+    follower = follow();
+    Set<Integer> blacklist = db.getSet(BLACKLIST, Integer.class);
+    try {
+      db.inTransaction(tx -> {
+        tx.<Integer>getSet(BLACKLIST).add(CREATOR.id());
+        throw new IllegalStateException("Rolled back");
+      });
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    blacklist.add(MUSER.id());
+
+    awaitCatchUp();
+
+    assertEquals("Rolled back change was recorded", 1, db.sequence());
+    assertEquals("Rolled back change was replicated", newHashSet(MUSER.id()), newHashSet(standby.getSet(BLACKLIST, Integer.class)));
+  }
+
+  @Test
+  public void promotedFollowerContinuesTheLog() throws InterruptedException {
+    follower = follow();
+    db.getSet(BLACKLIST, Integer.class).add(CREATOR.id());
+    awaitCatchUp();
+
+    ChangeLogDBContext promoted = follower.promote();
+    db.getSet(BLACKLIST, Integer.class).add(MUSER.id());
+    promoted.getSet(BLACKLIST, Integer.class).remove(CREATOR.id());
+
+    assertTrue("Promoted follower kept following", promoted.getSet(BLACKLIST, Integer.class).isEmpty());
+    assertEquals("Promoted follower did not continue the log", 2, promoted.sequence());
+  }
+
+  @Test
+  public void followerTakesOverFromKilledLeaderProcess() throws IOException, InterruptedException {
+    Path dir = Files.createTempDirectory("replication");
+    String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+    Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ReplicatedWriter.class.getName(),
+        dir.resolve("db").toString())
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+    try {
+      BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8));
+      follower = follow(Integer.parseInt(out.readLine().trim()));
+
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (standby.sequence() < REPLICATED_BEFORE_KILL && System.currentTimeMillis() < deadline)
+        Thread.sleep(10);
+      assertTrue("Follower did not replicate the leader process", standby.sequence() >= REPLICATED_BEFORE_KILL);
+
+      process.destroyForcibly();
+      assertTrue("Leader process was not killed in time", process.waitFor(30, SECONDS));
+    } finally {
+      process.destroyForcibly();
+      for (File file : dir.toFile().listFiles())
+        file.delete();
+      Files.delete(dir);
+    }
+
+    ChangeLogDBContext promoted = follower.promote();
+    Map<Integer, Integer> replicated = promoted.getMap(REPLICATED, Integer.class, Integer.class);
+    int size = replicated.size();
+    // The leader writes its keys in order, the follower cannot hold a key without the ones before it
+    for (int key = 0; key < size; key++)
+      assertEquals("Changes were not replicated in order", Integer.valueOf(key), replicated.get(key));
+
+    long sequence = promoted.sequence();
+    replicated.put(size, size);
+    assertEquals("Promoted follower did not continue the log", sequence + 1, promoted.sequence());
+    assertEquals("Promoted follower did not take the write", Integer.valueOf(size), replicated.get(size));
+  }
+
+  @Test
+  public void followerWithoutTheSecretReceivesNothing() throws InterruptedException {
+    db.getMap(USERS, Integer.class, EndUser.class).put(CREATOR.id(), CREATOR);
+    follower = follow(leader.port(), "not-the-replication-secret".getBytes(UTF_8));
+
+    Thread.sleep(500);
+
+    assertEquals("Follower without the secret received changes", 0, standby.sequence());
+    assertEquals("Changes were shipped to a follower without the secret", 0, metrics.count(ReplicationLeader.SHIPPED));
+  }
+
+  @Test
+  public void leaderSendsNothingBeforeTheFollowerAuthenticates() throws IOException {
+    db.getMap(USERS, Integer.class, EndUser.class).put(CREATOR.id(), CREATOR);
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), leader.port())) {
+      socket.setSoTimeout((int) TIMEOUT);
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      in.readFully(new byte[32]);
+
+      // A nonce and a proof made up without the secret
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.write(new byte[64]);
+      out.flush();
+
+      assertEquals("Leader sent data to an unauthenticated peer", -1, in.read());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void leaderRefusesAddressesReachableFromOtherHostsByDefault() throws IOException {
+    new ReplicationLeader(db, new InetSocketAddress(0), SECRET, false, metrics).close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void leaderRefusesShortSecrets() throws IOException {
+    new ReplicationLeader(db, 0, "short".getBytes(UTF_8)).close();
+  }
+
+  private ReplicationFollower follow() {
+    return follow(leader.port());
+  }
+
+  private ReplicationFollower follow(int port) {
+    return follow(port, SECRET);
+  }
+
+  private ReplicationFollower follow(int port, byte[] secret) {
+    return new ReplicationFollower(standby, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), secret, metrics);
+  }
+
+  private void awaitCatchUp() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (standby.sequence() < db.sequence() && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    assertEquals("Follower did not catch up with the leader", db.sequence(), standby.sequence());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (follower != null)
+      follower.close();
+    leader.close();
+    db.clear();
+    db.close();
+    standby.clear();
+    standby.close();
+  }
+}
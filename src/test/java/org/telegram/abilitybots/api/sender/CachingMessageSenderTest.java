@@ -0,0 +1,171 @@
+package org.telegram.abilitybots.api.sender;
+
+import com.google.common.io.Files;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.telegram.abilitybots.api.db.DBContext;
+import org.telegram.abilitybots.api.db.LegacyDBContext;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.api.methods.send.SendDocument;
+import org.telegram.telegrambots.api.objects.Document;
+import org.telegram.telegrambots.api.objects.Message;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+
+import java.io.File;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.telegram.abilitybots.api.db.MapDBContext.offlineInstance;
+import static org.telegram.abilitybots.api.sender.CachingMessageSender.FILE_IDS;
+
+public class CachingMessageSenderTest {
+  private static final String FILE_ID = "FILE_ID";
+  private static final long CHAT_ID = 10L;
+
+  private DBContext db;
+  private MessageSender delegate;
+  private CachingMessageSender sender;
+  private File file;
+  private Message message;
+
+  @Before
+  public void setUp() throws IOException, TelegramApiException {
+    db = offlineInstance("db");
+    delegate = mock(MessageSender.class);
+    sender = new CachingMessageSender(delegate, db, 2, new Metrics());
+
+    file = File.createTempFile("upload", ".txt");
+    Files.write("content", file, UTF_8);
+
+    Document document = mock(Document.class);
+    when(document.getFileId()).thenReturn(FILE_ID);
+    message = mock(Message.class);
+    when(message.getDocument()).thenReturn(document);
+    when(delegate.sendDocument(any())).thenReturn(message);
+  }
+
+  @Test
+  public void reusesFileIdOfSameContent() throws TelegramApiException {
+    sender.sendDocument(new SendDocument().setNewDocument(file).setChatId(CHAT_ID));
+    sender.sendDocument(new SendDocument().setNewDocument(file).setChatId(CHAT_ID));
+
+    ArgumentCaptor<SendDocument> captor = ArgumentCaptor.forClass(SendDocument.class);
+    verify(delegate, times(2)).sendDocument(captor.capture());
+
+    SendDocument second = captor.getAllValues().get(1);
+    assertFalse("Cached document was uploaded again", second.isNewDocument());
+    assertEquals("Cached document was not sent by file_id", FILE_ID, second.getDocument());
+    assertEquals("File ID was not persisted", 1, db.getMap(FILE_IDS).size());
+  }
+
+  @Test
+  public void reuploadsIfCachedFileIdIsRejected() throws TelegramApiException {
+    sender.sendDocument(new SendDocument().setNewDocument(file).setChatId(CHAT_ID));
+    when(delegate.sendDocument(any())).thenAnswer(invocation -> {
+      SendDocument document = (SendDocument) invocation.getArguments()[0];
+      if (!document.isNewDocument())
+        throw apiError(400, "Bad Request: wrong file identifier/HTTP URL specified");
+      return message;
+    });
+
+    Message sent = sender.sendDocument(new SendDocument().setNewDocument(file).setChatId(CHAT_ID));
+
+    assertNotNull("File was not uploaded again after the cached ID was rejected", sent);
+    verify(delegate, times(3)).sendDocument(any());
+  }
+
+  @Test
+  public void keepsCachedFileIdOnTransientFailure() throws TelegramApiException {
+    sender.sendDocument(new SendDocument().setNewDocument(file).setChatId(CHAT_ID));
+    when(delegate.sendDocument(any())).thenThrow(apiError(429, "Too Many Requests: retry after 5"));
+
+    try {
+      sender.sendDocument(new SendDocument().setNewDocument(file).setChatId(CHAT_ID));
+      fail("Transient failure was not thrown");
+    } catch (TelegramApiRequestException e) {
+      assertEquals("Transient failure was not thrown as is", Integer.valueOf(429), e.getErrorCode());
+    }
+
+    verify(delegate, times(2)).sendDocument(any());
+    assertEquals("Cached file_id was evicted on a transient failure", FILE_ID, db.getMap(FILE_IDS).values().iterator().next());
+  }
+
+  @Test
+  public void leavesRequestOfCallerUntouched() throws TelegramApiException {
+    SendDocument request = new SendDocument().setNewDocument(file).setChatId(CHAT_ID).setCaption("caption").disableNotification();
+    sender.sendDocument(request);
+    sender.sendDocument(request);
+
+    ArgumentCaptor<SendDocument> captor = ArgumentCaptor.forClass(SendDocument.class);
+    verify(delegate, times(2)).sendDocument(captor.capture());
+
+    SendDocument cached = captor.getAllValues().get(1);
+    assertNotSame("Cached file_id was sent with the request of the caller", request, cached);
+    assertTrue("Request of the caller was modified", request.isNewDocument());
+    assertSame("Request of the caller was modified", file, request.getNewDocumentFile());
+    assertEquals("Copy of the request lost its chat", request.getChatId(), cached.getChatId());
+    assertEquals("Copy of the request lost its caption", "caption", cached.getCaption());
+    assertTrue("Copy of the request lost its notification setting", cached.getDisableNotification());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws IOException, TelegramApiException, InterruptedException {
+    // The default expiring maps evict beyond their exact size, MapDB caps each segment of its maps
+    DBContext legacy = new LegacyDBContext(offlineInstance("legacy"));
+    sender = new CachingMessageSender(delegate, legacy, 2, new Metrics());
+    File another = tempFile("another content");
+    File third = tempFile("third content");
+
+    try {
+      send(file);
+      send(another);
+      send(file);
+      send(third);
+      assertEquals("Cache exceeded its capacity", 2, legacy.getMap(FILE_IDS).size());
+      send(file);
+      send(another);
+
+      ArgumentCaptor<SendDocument> captor = ArgumentCaptor.forClass(SendDocument.class);
+      verify(delegate, times(6)).sendDocument(captor.capture());
+      assertFalse("Recently used file_id was evicted", captor.getAllValues().get(4).isNewDocument());
+      assertTrue("Least recently used file_id was not evicted", captor.getAllValues().get(5).isNewDocument());
+    } finally {
+      legacy.close();
+      assertTrue(another.delete());
+      assertTrue(third.delete());
+    }
+  }
+
+  private void send(File upload) throws TelegramApiException, InterruptedException {
+    sender.sendDocument(new SendDocument().setNewDocument(upload).setChatId(CHAT_ID));
+    // Entries are timed to the millisecond
+    MILLISECONDS.sleep(5);
+  }
+
+  private static File tempFile(String content) throws IOException {
+    File temp = File.createTempFile("upload", ".txt");
+    Files.write(content, temp, UTF_8);
+    return temp;
+  }
+
+  private static TelegramApiRequestException apiError(int errorCode, String description) {
+    return new TelegramApiRequestException("Error sending document", new JSONObject()
+        .put("ok", false)
+        .put("error_code", errorCode)
+        .put("description", description));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    assertTrue(file.delete());
+    db.clear();
+    db.close();
+  }
+}
@@ -0,0 +1,169 @@
+package org.telegram.abilitybots.api.sender;
+
+import com.google.common.base.Ticker;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.api.methods.send.SendMessage;
+import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.api.objects.Message;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.updateshandlers.SentCallback;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+import static org.telegram.abilitybots.api.sender.CircuitBreaker.State.*;
+
+public class CircuitBreakingMessageSenderTest {
+  private static final int WINDOW = 4;
+  private static final long OPEN_DURATION = SECONDS.toMillis(30);
+
+  private AtomicLong now;
+  private Metrics metrics;
+  private CircuitBreaker breaker;
+  private MessageSender delegate;
+  private CircuitBreakingMessageSender sender;
+
+  @Before
+  public void setUp() {
+    now = new AtomicLong();
+    metrics = new Metrics();
+    breaker = CircuitBreaker.builder()
+        .windowSize(WINDOW)
+        .minimumCalls(WINDOW)
+        .openDuration(OPEN_DURATION)
+        .halfOpenProbes(1)
+        .ticker(new Ticker() {
+          @Override
+          public long read() {
+            return now.get();
+          }
+        })
+        .metrics(metrics)
+        .build();
+    delegate = mock(MessageSender.class);
+    sender = new CircuitBreakingMessageSender(delegate, breaker, 10, metrics);
+  }
+
+  @Test
+  public void failsFastOnceOpen() throws TelegramApiException {
+    tripBreaker();
+
+    try {
+      sender.sendMessage(new SendMessage());
+      fail("Call went through an open circuit breaker");
+    } catch (CircuitOpenException e) {
+      verify(delegate, times(WINDOW)).sendMessage(any());
+    }
+    assertEquals("Transition to open was not recorded", 1, metrics.count(OPEN.metric()));
+  }
+
+  @Test
+  public void ignoresNonTransientErrors() throws TelegramApiException {
+    when(delegate.sendMessage(any())).thenThrow(new TelegramApiRequestException("Bad Request", error(400)));
+
+    for (int i = 0; i < WINDOW; i++) {
+      try {
+        sender.sendMessage(new SendMessage());
+      } catch (TelegramApiRequestException e) {
+        // Expected
+      }
+    }
+
+    assertEquals("Bad requests opened the circuit breaker", CLOSED, breaker.state());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void closesAfterSuccessfulProbeAndReplaysQueuedCalls() throws TelegramApiException {
+    tripBreaker();
+    SentCallback<Message> callback = mock(SentCallback.class);
+    sender.sendMessageAsync(new SendMessage(), callback);
+    assertEquals("Async call was not queued while open", 1, sender.queued());
+    verify(delegate, never()).sendMessageAsync(any(), any());
+
+    now.addAndGet(SECONDS.toNanos(31));
+    assertEquals("Breaker did not become half-open", HALF_OPEN, breaker.state());
+
+    reset(delegate);
+    when(delegate.sendMessage(any())).thenReturn(mock(Message.class));
+    sender.sendMessage(new SendMessage());
+
+    assertEquals("Breaker did not close after a successful probe", CLOSED, breaker.state());
+    assertEquals("Queued call was not replayed", 0, sender.queued());
+    verify(delegate, times(1)).sendMessageAsync(any(), any());
+  }
+
+  @Test
+  public void opensAgainstDegradedApi() throws Exception {
+    try (StubBotApiServer stub = StubBotApiServer.start()) {
+      MessageSender api = new DefaultMessageSender(stub.bot(), RetryPolicy.noRetries(), metrics);
+      CircuitBreakingMessageSender guarded = new CircuitBreakingMessageSender(api, breaker, 10, metrics);
+      stub.failNext(WINDOW, 503);
+
+      for (int i = 0; i < WINDOW; i++) {
+        try {
+          guarded.sendMessage(new SendMessage(1L, "hello"));
+        } catch (TelegramApiRequestException e) {
+          // Expected
+        }
+      }
+      assertEquals("Calls to a degraded API did not open the breaker", OPEN, breaker.state());
+
+      assertFalse("Call went through an open circuit breaker", guarded.send("hello", 1).isPresent());
+      assertEquals("Open breaker let calls reach the API", WINDOW, stub.calls("sendMessage"));
+    }
+  }
+
+  @Test
+  public void countsFailuresOfConvenienceMethods() throws TelegramApiException {
+    when(delegate.sendMessage(any())).thenThrow(new TelegramApiRequestException("Internal Server Error", error(500)));
+
+    for (int i = 0; i < WINDOW; i++)
+      assertFalse("Failed message was reported as sent", sender.send("hello", 1).isPresent());
+
+    assertEquals("Failures of the convenience methods did not open the breaker", OPEN, breaker.state());
+  }
+
+  @Test
+  public void seesEveryAttemptUnderRetries() throws Exception {
+    try (StubBotApiServer stub = StubBotApiServer.start()) {
+      MessageSender api = new DefaultMessageSender(stub.bot(), RetryPolicy.noRetries(), metrics);
+      RetryPolicy policy = RetryPolicy.builder().maxRetries(WINDOW * 2).baseDelay(1).maxDelay(1).jitter(0).build();
+      MessageSender retrying = new RetryingMessageSender(new CircuitBreakingMessageSender(api, breaker, 10, metrics), policy, metrics);
+      stub.failNext(WINDOW * 2, 503);
+
+      try {
+        retrying.editMessageText(new EditMessageText().setChatId(1L).setMessageId(1).setText("hello"));
+        fail("Failed edit was reported as done");
+      } catch (CircuitOpenException e) {
+        // Expected
+      }
+      assertEquals("Breaker did not open during the retries", OPEN, breaker.state());
+      assertEquals("Retries went through an open circuit breaker", WINDOW, stub.calls("editMessageText"));
+    }
+  }
+
+  private void tripBreaker() throws TelegramApiException {
+    when(delegate.sendMessage(any())).thenThrow(new TelegramApiRequestException("Internal Server Error", error(500)));
+    for (int i = 0; i < WINDOW; i++) {
+      try {
+        sender.sendMessage(new SendMessage());
+      } catch (TelegramApiRequestException e) {
+        // Expected
+      }
+    }
+    assertEquals("Breaker did not open after failures", OPEN, breaker.state());
+  }
+
+  private static JSONObject error(int code) {
+    return new JSONObject().put("ok", false).put("error_code", code).put("description", "error");
+  }
+}
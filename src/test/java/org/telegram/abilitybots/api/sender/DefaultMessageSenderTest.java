@@ -0,0 +1,150 @@
+package org.telegram.abilitybots.api.sender;
+
+import com.google.common.io.ByteStreams;
+import org.apache.http.client.config.RequestConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.api.methods.AnswerCallbackQuery;
+import org.telegram.telegrambots.api.methods.GetFile;
+import org.telegram.telegrambots.api.methods.send.SendMessage;
+import org.telegram.telegrambots.api.objects.Message;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class DefaultMessageSenderTest {
+  private static final long CHAT_ID = 10L;
+
+  private StubBotApiServer stub;
+  private Metrics metrics;
+  private DefaultMessageSender sender;
+
+  @Before
+  public void setUp() throws IOException {
+    stub = StubBotApiServer.start();
+    metrics = new Metrics();
+    RetryPolicy policy = RetryPolicy.builder().baseDelay(1).maxDelay(10).build();
+    sender = new DefaultMessageSender(stub.bot(), policy, metrics);
+  }
+
+  @Test
+  public void retriesServerErrorsOfIdempotentCalls() throws TelegramApiException {
+    stub.failNext(2, 502);
+
+    Boolean answered = sender.answerCallbackQuery(new AnswerCallbackQuery().setCallbackQueryId("query"));
+
+    assertTrue("Query was not answered after the server recovered", answered);
+    assertEquals("Server errors were not retried", 3, stub.calls("answerCallbackQuery"));
+    assertEquals("Retries were not counted", 2, metrics.count(DefaultMessageSender.RETRIES));
+  }
+
+  @Test
+  public void doesNotResendMessagesAfterServerErrors() throws TelegramApiException {
+    stub.failNext(1, 502);
+
+    try {
+      sender.sendMessage(new SendMessage(CHAT_ID, "hello"));
+      fail("Server error did not fail the call");
+    } catch (TelegramApiRequestException e) {
+      assertEquals(502, (int) e.getErrorCode());
+    }
+    assertEquals("Message that may have been sent was sent again", 1, stub.calls("sendMessage"));
+  }
+
+  @Test
+  public void honorsRetryAfter() throws TelegramApiException {
+    stub.throttleNext(1, 1);
+
+    long start = System.currentTimeMillis();
+    sender.sendMessage(new SendMessage(CHAT_ID, "hello"));
+
+    assertTrue("retry_after was not waited for", System.currentTimeMillis() - start >= 1000);
+    assertEquals("Throttled call was not retried", 2, stub.calls("sendMessage"));
+  }
+
+  @Test
+  public void doesNotRetryClientErrors() throws TelegramApiException {
+    stub.failNext(1, 400);
+
+    try {
+      sender.sendMessage(new SendMessage(CHAT_ID, "hello"));
+      fail("Bad request did not fail the call");
+    } catch (TelegramApiRequestException e) {
+      assertEquals("Error code was not kept", 400, e.getErrorCode().intValue());
+    }
+    assertEquals("Bad request was retried", 1, stub.calls("sendMessage"));
+  }
+
+  @Test
+  public void canStreamDownloads() throws TelegramApiException, IOException {
+    byte[] content = "backup content".getBytes(UTF_8);
+    String fileId = stub.addFile(content);
+    stub.failNext(1, 503);
+
+    byte[] downloaded;
+    try (InputStream stream = sender.downloadFileAsStream(sender.getFile(new GetFile().setFileId(fileId)))) {
+      downloaded = ByteStreams.toByteArray(stream);
+    }
+
+    assertArrayEquals("Downloaded content does not match the hosted file", content, downloaded);
+    assertEquals("Failed lookup was not retried", 2, stub.calls("getFile"));
+  }
+
+  @Test
+  public void timesOutStalledDownloads() throws TelegramApiException {
+    String fileId = stub.addFile("backup content".getBytes(UTF_8));
+    String path = sender.getFile(new GetFile().setFileId(fileId)).getFilePath();
+    DefaultBotOptions options = stub.options();
+    options.setRequestConfig(RequestConfig.custom().setSocketTimeout(100).build());
+    DefaultMessageSender impatient = new DefaultMessageSender(stub.bot(options), RetryPolicy.noRetries(), metrics);
+    stub.latency(5000);
+
+    long start = System.currentTimeMillis();
+    try {
+      impatient.downloadFileAsStream(path);
+      fail("Stalled download did not time out");
+    } catch (TelegramApiException e) {
+      assertTrue("Download did not fail on a network error", e.getCause() instanceof IOException);
+    }
+
+    assertTrue("Download waited past its socket timeout", System.currentTimeMillis() - start < 4000);
+  }
+
+  @Test
+  public void rejectsBaseUrlsWithoutBotPath() throws IOException {
+    DefaultBotOptions options = stub.options();
+    options.setBaseUrl(stub.baseUrl().replace("/bot", "/api/"));
+
+    try (DefaultMessageSender misconfigured = new DefaultMessageSender(stub.bot(options), RetryPolicy.noRetries(), metrics)) {
+      misconfigured.downloadFileAsStream("documents/file_0");
+      fail("Download did not fail on a base URL without the bot path");
+    } catch (TelegramApiException e) {
+      assertTrue("Error does not name the base URL", e.getMessage().contains("/api/"));
+    }
+  }
+
+  @Test
+  public void canUploadDocumentsFromBuffers() throws TelegramApiException {
+    stub.throttleNext(1, 1);
+
+    Message message = sender.sendDocument(CHAT_ID, "backup.json", UTF_8.encode("{}"), false);
+
+    assertNotNull("Uploaded document was not acknowledged", message.getDocument());
+    assertEquals("Buffer upload was not retried", 2, stub.calls("sendDocument"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    sender.close();
+    stub.close();
+  }
+}
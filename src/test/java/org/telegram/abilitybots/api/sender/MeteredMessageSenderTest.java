@@ -0,0 +1,90 @@
+package org.telegram.abilitybots.api.sender;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.api.methods.GetMe;
+import org.telegram.telegrambots.api.methods.send.SendMessage;
+import org.telegram.telegrambots.api.objects.Message;
+import org.telegram.telegrambots.api.objects.User;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.updateshandlers.SentCallback;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+import static org.telegram.abilitybots.api.sender.MeteredMessageSender.IN_FLIGHT;
+
+public class MeteredMessageSenderTest {
+  private MessageSender delegate;
+  private Metrics metrics;
+  private MeteredMessageSender sender;
+
+  @Before
+  public void setUp() {
+    delegate = mock(MessageSender.class);
+    metrics = new Metrics();
+    sender = new MeteredMessageSender(delegate, metrics);
+  }
+
+  @Test
+  public void recordsCallsAndLatency() throws TelegramApiException {
+    when(delegate.getMe()).thenReturn(mock(User.class));
+
+    sender.getMe();
+    sender.getMe();
+
+    assertEquals("Calls were not counted", 2, metrics.count("sender.calls.getMe"));
+    assertEquals("Latency was not recorded", 2L, metrics.snapshot().get("sender.latency.getMe.count"));
+  }
+
+  @Test
+  public void recordsErrorsByCode() throws TelegramApiException {
+    TelegramApiRequestException tooManyRequests = new TelegramApiRequestException("Too Many Requests",
+        new JSONObject().put("ok", false).put("error_code", 429).put("description", "Too Many Requests"));
+    when(delegate.sendMessage(any())).thenThrow(tooManyRequests);
+
+    try {
+      sender.sendMessage(new SendMessage());
+      fail("Error was swallowed by the sender");
+    } catch (TelegramApiRequestException e) {
+      assertEquals("Error was not rethrown as is", tooManyRequests, e);
+    }
+
+    assertEquals("Error was not counted by its code", 1, metrics.count("sender.errors.sendMessage.429"));
+  }
+
+  @Test
+  public void recordsErrorCodesOfConvenienceMethods() throws TelegramApiException {
+    when(delegate.sendMessage(any())).thenThrow(new TelegramApiRequestException("Forbidden",
+        new JSONObject().put("ok", false).put("error_code", 403).put("description", "Forbidden: bot was blocked by the user")));
+
+    Optional<Message> sent = sender.send("hello", 10L);
+
+    assertFalse("Failed message was reported as sent", sent.isPresent());
+    assertEquals("Error of the convenience method was not counted by its code", 1, metrics.count("sender.errors.send.403"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void tracksInFlightAsyncCalls() throws TelegramApiException {
+    AtomicReference<SentCallback<User>> pending = new AtomicReference<>();
+    doAnswer(invocation -> {
+      pending.set((SentCallback<User>) invocation.getArguments()[0]);
+      return null;
+    }).when(delegate).getMeAsync(any());
+
+    sender.getMeAsync(mock(SentCallback.class));
+    assertEquals("Async call is not in flight", 1, metrics.snapshot().get(IN_FLIGHT));
+
+    pending.get().onResult(new GetMe(), mock(User.class));
+    assertEquals("Completed async call is still in flight", 0, metrics.snapshot().get(IN_FLIGHT));
+    assertEquals("Async call was not recorded under its API method", 1, metrics.count("sender.calls.getMe"));
+  }
+}
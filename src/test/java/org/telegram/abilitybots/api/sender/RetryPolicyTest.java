@@ -0,0 +1,102 @@
+package org.telegram.abilitybots.api.sender;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.telegram.telegrambots.api.methods.send.SendMessage;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.exceptions.TelegramApiValidationException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.OptionalLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+  private final RetryPolicy policy = RetryPolicy.builder()
+      .maxRetries(3)
+      .baseDelay(100)
+      .maxDelay(250)
+      .maxRetryAfter(5000)
+      .jitter(0)
+      .build();
+
+  @Test
+  public void honorsRetryAfterOnTooManyRequests() {
+    OptionalLong delay = policy.delayFor(1, apiError(429, 3));
+
+    assertEquals("Delay does not match the server's retry_after", 3000, delay.getAsLong());
+  }
+
+  @Test
+  public void givesUpIfRetryAfterIsTooLong() {
+    assertFalse("Policy waits longer than the maximum retry_after", policy.delayFor(1, apiError(429, 30)).isPresent());
+  }
+
+  @Test
+  public void backsOffExponentiallyUpToMaxDelay() {
+    TelegramApiException e = apiError(502, null);
+
+    assertEquals(100, policy.delayFor(1, e).getAsLong());
+    assertEquals(200, policy.delayFor(2, e).getAsLong());
+    assertEquals(250, policy.delayFor(3, e).getAsLong());
+    assertFalse("Policy retries more than its maximum", policy.delayFor(4, e).isPresent());
+  }
+
+  @Test
+  public void jitterShortensDelay() {
+    RetryPolicy jittered = RetryPolicy.builder().baseDelay(1000).maxDelay(1000).jitter(0.5).build();
+    TelegramApiException e = new TelegramApiException("Unable to execute sendmessage method", new IOException());
+
+    for (int i = 0; i < 100; i++) {
+      long delay = jittered.delayFor(1, e).getAsLong();
+      assertTrue("Jittered delay is out of bounds: " + delay, delay > 500 && delay <= 1000);
+    }
+  }
+
+  @Test
+  public void doesNotRetryPermanentFailures() {
+    assertFalse(policy.isTransient(apiError(400, null)));
+    assertFalse(policy.isTransient(new TelegramApiValidationException("ChatId parameter can't be empty", new SendMessage())));
+    assertFalse(policy.delayFor(1, apiError(403, null)).isPresent());
+  }
+
+  @Test
+  public void retriesIOFailures() {
+    assertTrue(policy.isTransient(new TelegramApiException("Unable to execute sendmessage method", new IOException())));
+  }
+
+  @Test
+  public void retriesNonIdempotentCallsOnlyIfTheyWereNotCarriedOut() {
+    assertTrue(policy.isRetriable("sendMessage", apiError(429, 3)));
+    assertTrue(policy.isRetriable("sendMessage", new TelegramApiException("Unable to execute sendmessage method", new ConnectException())));
+    assertTrue(policy.isRetriable("sendMessage", new TelegramApiException("Unable to execute sendmessage method", new ConnectTimeoutException())));
+    assertFalse(policy.isRetriable("sendMessage", apiError(502, null)));
+    assertFalse(policy.isRetriable("sendMessage", new TelegramApiException("Unable to execute sendmessage method", new SocketTimeoutException())));
+    assertFalse(policy.delayFor(1, "sendDocument", apiError(500, null)).isPresent());
+  }
+
+  @Test
+  public void retriesIdempotentCallsOnTransientFailures() {
+    assertTrue(policy.isRetriable("getChat", apiError(502, null)));
+    assertTrue(policy.isRetriable("editMessageText", new TelegramApiException("Unable to execute editmessagetext method", new SocketTimeoutException())));
+    assertTrue(policy.isRetriable("sendChatAction", apiError(500, null)));
+    assertFalse(policy.isRetriable("answerCallbackQuery", apiError(400, null)));
+  }
+
+  private static TelegramApiRequestException apiError(int code, Integer retryAfter) {
+    JSONObject response = new JSONObject()
+        .put("ok", false)
+        .put("error_code", code)
+        .put("description", "error");
+    if (retryAfter != null)
+      response.put("parameters", new JSONObject().put("retry_after", retryAfter));
+
+    return new TelegramApiRequestException("Error sending method", response);
+  }
+}
@@ -0,0 +1,84 @@
+package org.telegram.abilitybots.api.sender;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.abilitybots.api.util.Metrics;
+import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.api.objects.Message;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryingMessageSenderTest {
+  private static final long CHAT_ID = 10L;
+  private static final long BACKOFF = 200;
+
+  private StubBotApiServer stub;
+  private Metrics metrics;
+  private RetryingMessageSender sender;
+
+  @Before
+  public void setUp() throws IOException {
+    stub = StubBotApiServer.start();
+    metrics = new Metrics();
+    MessageSender attempts = new MeteredMessageSender(new DefaultMessageSender(stub.bot(), RetryPolicy.noRetries(), metrics), metrics);
+    RetryPolicy policy = RetryPolicy.builder().baseDelay(BACKOFF).maxDelay(BACKOFF).jitter(0).build();
+    sender = new RetryingMessageSender(attempts, policy, metrics);
+  }
+
+  @Test
+  public void metersEveryAttempt() throws TelegramApiException {
+    stub.failNext(2, 502);
+
+    sender.editMessageText(new EditMessageText().setChatId(CHAT_ID).setMessageId(1).setText("hello"));
+
+    assertEquals("Attempts were not metered one by one", 3, metrics.count("sender.calls.editMessageText"));
+    assertEquals("Failed attempts were not counted by error code", 2, metrics.count("sender.errors.editMessageText.502"));
+    assertEquals("Retries were not counted", 2, metrics.count(DefaultMessageSender.RETRIES));
+    long maxLatency = metrics.snapshot().get("sender.latency.editMessageText.max").longValue();
+    assertTrue("Latency of an attempt includes the backoff", maxLatency < MILLISECONDS.toMicros(BACKOFF));
+  }
+
+  @Test
+  public void retriesAndMetersConvenienceMethods() {
+    stub.throttleNext(1, 1);
+
+    Optional<Message> sent = sender.send("hello", CHAT_ID);
+
+    assertTrue("Message was not sent after the retry", sent.isPresent());
+    assertEquals("Failed attempt was not counted by error code", 1, metrics.count("sender.errors.sendMessage.429"));
+  }
+
+  @Test
+  public void doesNotResendMessagesAfterServerErrors() {
+    stub.failNext(1, 503);
+
+    Optional<Message> sent = sender.send("hello", CHAT_ID);
+
+    assertFalse("Failed message was reported as sent", sent.isPresent());
+    assertEquals("Message that may have been sent was sent again", 1, stub.calls("sendMessage"));
+  }
+
+  @Test
+  public void doesNotRetryClientErrors() {
+    stub.failNext(1, 400);
+
+    Optional<Message> sent = sender.sendMd("hello", CHAT_ID);
+
+    assertFalse("Bad request was not reported as an empty result", sent.isPresent());
+    assertEquals("Bad request was retried", 1, stub.calls("sendMessage"));
+    assertEquals("Bad request was not counted by error code", 1, metrics.count("sender.errors.sendMessage.400"));
+  }
+
+  @After
+  public void tearDown() {
+    stub.close();
+  }
+}
@@ -0,0 +1,287 @@
+package org.telegram.abilitybots.api.sender;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.telegram.telegrambots.bots.DefaultAbsSender;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * An embedded stand-in for the Telegram Bot API, to test and load the outbound path of the bot without the network.
+ * <p>
+ * The server emulates the endpoints the sender relies on: <code>sendMessage</code>, <code>sendDocument</code>, <code>getFile</code>,
+ * file downloads, <code>answerCallbackQuery</code> and <code>editMessageText</code>. Point a bot at it through {@link StubBotApiServer#options()}.
+ * <p>
+ * Every response can be delayed, and errors can be injected either for the next calls or randomly at a given rate.
+ * Throttling is emulated with <code>429</code> responses carrying a <code>retry_after</code>.
+ */
+public class StubBotApiServer implements Closeable {
+  public static final String TOKEN = "123:STUB";
+
+  private static final String FILE_PREFIX = "/file/bot" + TOKEN + "/";
+  private static final String METHOD_PREFIX = "/bot" + TOKEN + "/";
+  private static final int TOO_MANY_REQUESTS = 429;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Queue<Fault> faults;
+  private final Map<String, AtomicInteger> calls;
+  private final Map<String, byte[]> files;
+  private final AtomicInteger messageIds;
+  private final AtomicLong latency;
+  private volatile Fault randomFault;
+  private volatile double faultRate;
+
+  private StubBotApiServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    executor = Executors.newCachedThreadPool();
+    faults = new ConcurrentLinkedQueue<>();
+    calls = new ConcurrentHashMap<>();
+    files = new ConcurrentHashMap<>();
+    messageIds = new AtomicInteger();
+    latency = new AtomicLong();
+
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+  }
+
+  public static StubBotApiServer start() throws IOException {
+    StubBotApiServer stub = new StubBotApiServer();
+    stub.server.start();
+    return stub;
+  }
+
+  /**
+   * @return the base URL of the Bot API served by this stub, in the format expected by {@link DefaultBotOptions#setBaseUrl(String)}
+   */
+  public String baseUrl() {
+    return format("http://%s:%d/bot", server.getAddress().getHostString(), server.getAddress().getPort());
+  }
+
+  public DefaultBotOptions options() {
+    DefaultBotOptions options = new DefaultBotOptions();
+    options.setBaseUrl(baseUrl());
+    return options;
+  }
+
+  /**
+   * @return a raw sender bound to this stub, to be wrapped in a {@link DefaultMessageSender}
+   */
+  public DefaultAbsSender bot() {
+    return bot(options());
+  }
+
+  /**
+   * @param options the options of the sender, as returned by {@link StubBotApiServer#options()}
+   * @return a raw sender bound to this stub with the options
+   */
+  public DefaultAbsSender bot(DefaultBotOptions options) {
+    return new DefaultAbsSender(options) {
+      @Override
+      public String getBotToken() {
+        return TOKEN;
+      }
+    };
+  }
+
+  /**
+   * @param millis the delay added to every response
+   */
+  public StubBotApiServer latency(long millis) {
+    latency.set(millis);
+    return this;
+  }
+
+  /**
+   * Fails the next calls, whatever their method, with the specified error code.
+   */
+  public StubBotApiServer failNext(int times, int errorCode) {
+    for (int i = 0; i < times; i++)
+      faults.add(new Fault(errorCode, 0));
+    return this;
+  }
+
+  /**
+   * Answers the next calls with <code>429 Too Many Requests</code>.
+   */
+  public StubBotApiServer throttleNext(int times, int retryAfter) {
+    for (int i = 0; i < times; i++)
+      faults.add(new Fault(TOO_MANY_REQUESTS, retryAfter));
+    return this;
+  }
+
+  /**
+   * Fails calls at random with the specified error code, <tt>0</tt> disables random failures.
+   */
+  public StubBotApiServer failRandomly(double rate, int errorCode) {
+    randomFault = new Fault(errorCode, 0);
+    faultRate = rate;
+    return this;
+  }
+
+  /**
+   * Hosts a file that can be looked up with <code>getFile</code> and downloaded.
+   *
+   * @return the <code>file_id</code> of the file
+   */
+  public String addFile(byte[] content) {
+    String fileId = format("FILE_%d", files.size());
+    files.put(fileId, content);
+    return fileId;
+  }
+
+  /**
+   * @param method the Bot API method, or <code>file</code> for downloads
+   * @return the number of requests received for the method, including the failed ones
+   */
+  public int calls(String method) {
+    AtomicInteger count = calls.get(method.toLowerCase());
+    return count == null ? 0 : count.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+      String path = exchange.getRequestURI().getPath();
+      boolean download = path.startsWith(FILE_PREFIX);
+      // The Bot API is case-insensitive and some methods are sent in lowercase
+      String method = download ? "file" : path.startsWith(METHOD_PREFIX) ? path.substring(METHOD_PREFIX.length()).toLowerCase() : null;
+      if (method == null) {
+        respond(exchange, 401, error(401, "Unauthorized"));
+        return;
+      }
+
+      calls.computeIfAbsent(method, key -> new AtomicInteger()).incrementAndGet();
+      MILLISECONDS.sleep(latency.get());
+
+      Fault fault = nextFault();
+      if (fault != null)
+        respond(exchange, fault.errorCode, fault.toJson());
+      else if (download)
+        download(exchange, path.substring(FILE_PREFIX.length()));
+      else
+        respond(exchange, dispatch(method, body));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private Fault nextFault() {
+    Fault fault = faults.poll();
+    if (fault == null && faultRate > 0 && ThreadLocalRandom.current().nextDouble() < faultRate)
+      fault = randomFault;
+    return fault;
+  }
+
+  private JSONObject dispatch(String method, byte[] body) {
+    switch (method) {
+      case "sendmessage":
+      case "editmessagetext":
+        JSONObject request = new JSONObject(new String(body, UTF_8));
+        return ok(message(request.optLong("chat_id")).put("text", request.optString("text")));
+      case "senddocument":
+        // Multipart bodies are not parsed, the upload is acknowledged as is
+        return ok(message(0).put("document", new JSONObject()
+            .put("file_id", format("UPLOAD_%d", messageIds.get()))
+            .put("file_size", body.length)));
+      case "getfile":
+        String fileId = new JSONObject(new String(body, UTF_8)).optString("file_id");
+        if (!files.containsKey(fileId))
+          return error(400, "Bad Request: wrong file_id");
+        return ok(new JSONObject()
+            .put("file_id", fileId)
+            .put("file_size", files.get(fileId).length)
+            .put("file_path", "documents/" + fileId));
+      case "answercallbackquery":
+        return new JSONObject().put("ok", true).put("result", true);
+      default:
+        return error(404, "Not Found: method not found");
+    }
+  }
+
+  private void download(HttpExchange exchange, String filePath) throws IOException {
+    byte[] content = files.get(filePath.substring(filePath.lastIndexOf('/') + 1));
+    if (content == null) {
+      respond(exchange, 404, error(404, "Not Found"));
+      return;
+    }
+
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(content);
+    }
+  }
+
+  private JSONObject message(long chatId) {
+    return new JSONObject()
+        .put("message_id", messageIds.incrementAndGet())
+        .put("date", System.currentTimeMillis() / 1000)
+        .put("chat", new JSONObject().put("id", chatId).put("type", "private"));
+  }
+
+  private static JSONObject ok(JSONObject result) {
+    return new JSONObject().put("ok", true).put("result", result);
+  }
+
+  private static JSONObject error(int errorCode, String description) {
+    return new JSONObject().put("ok", false).put("error_code", errorCode).put("description", description);
+  }
+
+  private static void respond(HttpExchange exchange, JSONObject json) throws IOException {
+    respond(exchange, json.getBoolean("ok") ? 200 : json.getInt("error_code"), json);
+  }
+
+  private static void respond(HttpExchange exchange, int status, JSONObject json) throws IOException {
+    byte[] bytes = json.toString().getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static final class Fault {
+    private final int errorCode;
+    private final int retryAfter;
+
+    private Fault(int errorCode, int retryAfter) {
+      this.errorCode = errorCode;
+      this.retryAfter = retryAfter;
+    }
+
+    private JSONObject toJson() {
+      JSONObject json = error(errorCode, errorCode == TOO_MANY_REQUESTS ? "Too Many Requests" : "Injected error");
+      if (retryAfter > 0)
+        json.put("parameters", new JSONObject().put("retry_after", retryAfter));
+      return json;
+    }
+  }
+}
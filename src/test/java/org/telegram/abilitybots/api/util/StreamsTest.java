@@ -0,0 +1,53 @@
+package org.telegram.abilitybots.api.util;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.telegram.abilitybots.api.util.Streams.asStream;
+import static org.telegram.abilitybots.api.util.Streams.gunzipIfCompressed;
+import static org.telegram.abilitybots.api.util.Streams.gzip;
+
+public class StreamsTest {
+  @Test
+  public void canGzipOnTheFly() throws IOException {
+    byte[] data = new byte[1 << 20];
+    new Random(42).nextBytes(data);
+
+    InputStream compressed = gzip(new ByteArrayInputStream(data));
+    byte[] decompressed = ByteStreams.toByteArray(new GZIPInputStream(compressed));
+
+    assertArrayEquals("Compressed stream does not decompress to the original data", data, decompressed);
+  }
+
+  @Test
+  public void canStreamDirectBuffers() throws IOException {
+    byte[] data = "direct buffer".getBytes();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+    buffer.put(data).flip();
+
+    byte[] streamed = ByteStreams.toByteArray(asStream(buffer));
+
+    assertArrayEquals("Streamed bytes do not match the buffer", data, streamed);
+    assertEquals("Streaming modified the buffer position", 0, buffer.position());
+  }
+
+  @Test
+  public void canDetectGzippedStreams() throws IOException {
+    byte[] data = "maybe compressed".getBytes();
+
+    byte[] fromCompressed = ByteStreams.toByteArray(gunzipIfCompressed(gzip(new ByteArrayInputStream(data))));
+    byte[] fromPlain = ByteStreams.toByteArray(gunzipIfCompressed(new ByteArrayInputStream(data)));
+
+    assertArrayEquals("Compressed stream was not decompressed", data, fromCompressed);
+    assertArrayEquals("Plain stream was altered", data, fromPlain);
+  }
+}